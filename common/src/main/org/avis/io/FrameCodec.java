@@ -20,6 +20,7 @@ package org.avis.io;
 import java.nio.BufferUnderflowException;
 
 import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.ByteBufferAllocator;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolCodecException;
@@ -29,6 +30,7 @@ import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 
 import org.avis.io.messages.ErrorMessage;
 import org.avis.io.messages.Message;
+import org.avis.io.messages.NotifyDeliver;
 import org.avis.io.messages.XidMessage;
 
 /**
@@ -38,54 +40,103 @@ import org.avis.io.messages.XidMessage;
  * {@link Message#encode(ByteBuffer)}. Understood message sets are
  * effectively defined by the subclasses' implementation of
  * {@link #newMessage(int, int)}.
+ * <p>
+ * As well as single messages, the encoder accepts an array of
+ * messages, which it writes as consecutive frames in a single buffer
+ * so that they can be written to the network together. Buffers are
+ * allocated at the exact size of the frames where this is known
+ * cheaply, otherwise as predicted by {@link FrameSizePredictor}, using
+ * the session's allocator if one has been set with
+ * {@link #setBufferAllocatorFor(IoSession, ByteBufferAllocator)}.
  * 
  * @author Matthew Phillips
  */
 public abstract class FrameCodec
   extends CumulativeProtocolDecoder implements ProtocolEncoder
 {
+  private static final FrameSizePredictor PREDICTOR =
+    FrameSizePredictor.SHARED;
+  
   public void encode (IoSession session, Object messageObject,
                       ProtocolEncoderOutput out)
     throws Exception
   {
+    Message [] messages;
+    
+    if (messageObject instanceof Message [])
+      messages = (Message [])messageObject;
+    else
+      messages = new Message [] {(Message)messageObject};
+    
+    int size = 0;
+    
+    for (Message message : messages)
+      size += frameSizeFor (message);
+    
     // buffer is auto deallocated
-    ByteBuffer buffer = ByteBuffer.allocate (4096); 
+    ByteBuffer buffer = allocate (session, size); 
     buffer.setAutoExpand (true);
     
-    // leave room for frame size
-    buffer.position (4);
+    int capacity = buffer.capacity ();
+    int maxLength = maxFrameLengthFor (session);
+    
+    for (Message message : messages)
+      putFrame (buffer, message, maxLength);
+    
+    PREDICTOR.recordEncode (buffer.capacity () != capacity);
+    
+    // if (isEnabled (TRACE) && buffer.limit () <= MAX_BUFFER_DUMP)
+    //  trace ("Codec output: " + buffer.getHexDump (), this);
+    
+    // write out whole frame(s)
+    buffer.flip ();
+    out.write (buffer);
+  }
+  
+  /**
+   * The exact or, failing that, predicted size of the frame for a
+   * message.
+   */
+  private static int frameSizeFor (Message message)
+    throws ProtocolCodecException
+  {
+    if (message instanceof NotifyDeliver)
+      return ((NotifyDeliver)message).encodedSize () + 8;
+    else
+      return PREDICTOR.predict (message.typeId ());
+  }
+
+  /**
+   * Write a message as a frame at the buffer's current position.
+   */
+  private static void putFrame (ByteBuffer buffer, Message message,
+                                int maxLength)
+    throws ProtocolCodecException, FrameTooLargeException
+  {
+    int start = buffer.position ();
     
-    Message message = (Message)messageObject;
+    // leave room for frame size
+    buffer.position (start + 4);
   
     // write frame type
     buffer.putInt (message.typeId ());
     
     message.encode (buffer);
   
-    int frameSize = buffer.position () - 4;
+    int frameSize = buffer.position () - start - 4;
     
     // write frame size
-    buffer.putInt (0, frameSize);
-    
-    // if (isEnabled (TRACE) && buffer.limit () <= MAX_BUFFER_DUMP)
-    //  trace ("Codec output: " + buffer.getHexDump (), this);
+    buffer.putInt (start, frameSize);
     
     // sanity check frame is 4-byte aligned
     if (frameSize % 4 != 0)
       throw new ProtocolCodecException
         ("Frame length not 4 byte aligned for " + message.getClass ());
     
-    int maxLength = maxFrameLengthFor (session);
-    
-    if (frameSize <= maxLength)
-    {
-      // write out whole frame
-      buffer.flip ();
-      out.write (buffer);
-    } else
-    {
+    if (frameSize > maxLength)
       throw new FrameTooLargeException (maxLength, frameSize);
-    }
+    
+    PREDICTOR.record (message.typeId (), frameSize + 4);
   }
 
   @Override
@@ -224,12 +275,36 @@ public abstract class FrameCodec
     // zip
   }
 
+  /**
+   * Allocate an output buffer for a session.
+   */
+  private static ByteBuffer allocate (IoSession session, int size)
+  {
+    ByteBufferAllocator allocator =
+      (ByteBufferAllocator)session.getAttribute ("bufferAllocator");
+    
+    if (allocator == null)
+      return ByteBuffer.allocate (size);
+    else
+      return allocator.allocate (size, ByteBuffer.isUseDirectBuffers ());
+  }
+  
+  /**
+   * Set the allocator used for buffers the codec encodes a session's
+   * messages into, in place of MINA's global allocator.
+   */
+  public static void setBufferAllocatorFor (IoSession session,
+                                            ByteBufferAllocator allocator)
+  {
+    session.setAttribute ("bufferAllocator", allocator);
+  }
+
   public static void setMaxFrameLengthFor (IoSession session, int length)
   {
     session.setAttribute ("maxFrameLength", length);
   }
 
-  private static int maxFrameLengthFor (IoSession session)
+  public static int maxFrameLengthFor (IoSession session)
   {
     Integer length = (Integer)session.getAttribute ("maxFrameLength");
     
@@ -0,0 +1,127 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.io;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Predicts the size of the buffer needed to encode frames of each
+ * message type from the sizes of recently encoded frames, so that
+ * most frames can be encoded in a single pass into a buffer of the
+ * right size rather than one that is expanded (and copied) as it
+ * fills.
+ * <p>
+ * The prediction for a type rises immediately to the largest recent
+ * frame, and decays slowly back towards smaller ones, so that a
+ * stream of similar frames is predicted well while an occasional
+ * outlier does not pin the prediction high. Thread safe: racing
+ * updates may lose a sample, which is harmless.
+ */
+public final class FrameSizePredictor
+{
+  /**
+   * The encoder's predictor.
+   */
+  public static final FrameSizePredictor SHARED = new FrameSizePredictor ();
+  
+  /**
+   * The prediction for a type with no history.
+   */
+  public static final int DEFAULT_SIZE = 4096;
+  
+  /**
+   * The smallest prediction made.
+   */
+  private static final int MIN_SIZE = 64;
+  
+  /**
+   * Predictions, indexed by the low 8 bits of the message type ID.
+   * Zero for none.
+   */
+  private AtomicIntegerArray predictions;
+  private AtomicLong encoded;
+  private AtomicLong expanded;
+
+  public FrameSizePredictor ()
+  {
+    this.predictions = new AtomicIntegerArray (256);
+    this.encoded = new AtomicLong ();
+    this.expanded = new AtomicLong ();
+  }
+  
+  /**
+   * Predict the size of the buffer needed for a frame.
+   * 
+   * @param typeId The frame's message type ID.
+   */
+  public int predict (int typeId)
+  {
+    int prediction = predictions.get (typeId & 0xFF);
+    
+    return prediction == 0 ? DEFAULT_SIZE : prediction;
+  }
+  
+  /**
+   * Record the size of an encoded frame.
+   * 
+   * @param typeId The frame's message type ID.
+   * @param size The encoded size, including frame header.
+   */
+  public void record (int typeId, int size)
+  {
+    int index = typeId & 0xFF;
+    int prediction = predictions.get (index);
+    
+    if (size >= prediction)
+      prediction = size;
+    else
+      prediction -= (prediction - size) >> 3;
+    
+    predictions.set (index, Math.max (MIN_SIZE, prediction));
+  }
+  
+  /**
+   * Record the outcome of encoding into a buffer.
+   * 
+   * @param expanded True if the buffer had to be expanded.
+   */
+  public void recordEncode (boolean expanded)
+  {
+    encoded.incrementAndGet ();
+    
+    if (expanded)
+      this.expanded.incrementAndGet ();
+  }
+  
+  /**
+   * The number of buffers encoded.
+   */
+  public long encoded ()
+  {
+    return encoded.get ();
+  }
+  
+  /**
+   * The number of buffers that had to be expanded while encoding.
+   */
+  public long expanded ()
+  {
+    return expanded.get ();
+  }
+}
@@ -30,6 +30,8 @@ import java.nio.charset.CharsetEncoder;
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.filter.codec.ProtocolCodecException;
 
+import org.avis.util.AttributeMap;
+
 import static java.nio.CharBuffer.wrap;
 import static java.util.Collections.emptyMap;
 
@@ -239,6 +241,161 @@ public final class XdrCoding
     return nameValues;
   }
 
+  /**
+   * Read a set of notification attributes. This is the same as
+   * {@link #getNameValues(ByteBuffer)}, but reads into an
+   * {@link AttributeMap} for fast lookup by attribute name slot.
+   */
+  public static Map<String, Object> getAttributes (ByteBuffer in)
+    throws ProtocolCodecException
+  {
+    int pairs = getPositiveInt (in);
+    
+    if (pairs == 0)
+      return emptyMap ();
+    
+    AttributeMap attributes = new AttributeMap (pairs);
+    
+    for ( ; pairs > 0; pairs--)
+      attributes.put (getString (in), getObject (in));
+
+    return attributes;
+  }
+
+  /**
+   * Read a set of notification attributes from their encoded form,
+   * deferring decoding of string and opaque values until they are
+   * first read from the map (see {@link AttributeMap.LazyValue}).
+   * Names and numeric values are decoded immediately, and the
+   * encoding is fully checked, so that a malformed set of attributes
+   * is rejected here rather than when a value is read.
+   * 
+   * @param bytes The encoded attributes, as written by
+   *          {@link #putNameValues(ByteBuffer, Map)}. This is
+   *          referenced by the result and must not be modified.
+   */
+  public static Map<String, Object> getLazyAttributes (byte [] bytes)
+    throws ProtocolCodecException
+  {
+    ByteBuffer in = ByteBuffer.wrap (bytes);
+    
+    int pairs = getPositiveInt (in);
+    
+    if (pairs == 0)
+      return emptyMap ();
+    
+    AttributeMap attributes = new AttributeMap (pairs);
+    
+    for ( ; pairs > 0; pairs--)
+    {
+      String name = getString (in);
+      int type = in.getInt ();
+      
+      if (type == TYPE_STRING || type == TYPE_OPAQUE)
+        attributes.put (name, getLazyValue (in, type, bytes));
+      else
+        attributes.put (name, getValue (in, type));
+    }
+
+    return attributes;
+  }
+  
+  /**
+   * Read a string or opaque value with a given type, returning a lazy
+   * value for it where possible.
+   */
+  private static Object getLazyValue (ByteBuffer in, int type,
+                                      byte [] bytes)
+    throws ProtocolCodecException
+  {
+    int length = getPositiveInt (in);
+    int offset = in.position ();
+    
+    skip (in, length + paddingFor (length));
+    
+    if (type == TYPE_OPAQUE)
+    {
+      return new LazyOpaque (bytes, offset, length);
+    } else if (length == 0)
+    {
+      return "";
+    } else if (isAscii (bytes, offset, length))
+    {
+      return new LazyAsciiString (bytes, offset, length);
+    } else
+    {
+      // not worth deferring: and must be checked for valid UTF-8 now
+      try
+      {
+        return fromUTF8 (bytes, offset, length);
+      } catch (CharacterCodingException ex)
+      {
+        throw new ProtocolCodecException ("Invalid UTF-8 string", ex);
+      }
+    }
+  }
+  
+  /**
+   * Skip over a set of name/value pairs without decoding them.
+   */
+  public static void skipNameValues (ByteBuffer in)
+    throws ProtocolCodecException
+  {
+    for (int pairs = getPositiveInt (in); pairs > 0; pairs--)
+    {
+      skipBlock (in);
+      
+      int type = in.getInt ();
+      
+      switch (type)
+      {
+        case TYPE_INT32:
+          skip (in, 4);
+          break;
+        case TYPE_INT64:
+        case TYPE_REAL64:
+          skip (in, 8);
+          break;
+        case TYPE_STRING:
+        case TYPE_OPAQUE:
+          skipBlock (in);
+          break;
+        default:
+          throw new ProtocolCodecException ("Unknown type code: " + type);
+      }
+    }
+  }
+
+  /**
+   * Skip a length-delimited, 4-byte-aligned block.
+   */
+  private static void skipBlock (ByteBuffer in)
+    throws ProtocolCodecException
+  {
+    int length = getPositiveInt (in);
+    
+    skip (in, length + paddingFor (length));
+  }
+  
+  private static void skip (ByteBuffer in, int length)
+  {
+    if (length > in.remaining ())
+      throw new BufferUnderflowException ();
+    
+    in.skip (length);
+  }
+  
+  private static boolean isAscii (byte [] bytes, int offset, int length)
+  {
+    for (int i = offset + length - 1; i >= offset; i--)
+    {
+      if (bytes [i] < 0)
+        return false;
+    }
+    
+    return true;
+  }
+  
   public static void putObjects (ByteBuffer out, Object [] objects)
     throws ProtocolCodecException
   {
@@ -301,8 +458,15 @@ public final class XdrCoding
   public static Object getObject (ByteBuffer in)
     throws ProtocolCodecException
   {
-    int type = in.getInt ();
-    
+    return getValue (in, in.getInt ());
+  }
+  
+  /**
+   * Read a value with a given type.
+   */
+  private static Object getValue (ByteBuffer in, int type)
+    throws ProtocolCodecException
+  {
     switch (type)
     {
       case TYPE_INT32:
@@ -436,4 +600,60 @@ public final class XdrCoding
     else
       throw new ProtocolCodecException ("Length cannot be negative: " + value);
   }
+  
+  /**
+   * An opaque value, copied out of its encoded form on demand.
+   */
+  private static final class LazyOpaque extends AttributeMap.LazyValue
+  {
+    private byte [] bytes;
+    private int offset;
+    private int length;
+    
+    public LazyOpaque (byte [] bytes, int offset, int length)
+    {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+    
+    @Override
+    protected Object decode ()
+    {
+      byte [] value = new byte [length];
+      
+      System.arraycopy (bytes, offset, value, 0, length);
+      
+      return value;
+    }
+  }
+  
+  /**
+   * A string known to be pure ASCII, decoded on demand: as ASCII is a
+   * subset of UTF-8 this cannot fail and needs no charset decoder.
+   */
+  private static final class LazyAsciiString extends AttributeMap.LazyValue
+  {
+    private byte [] bytes;
+    private int offset;
+    private int length;
+    
+    public LazyAsciiString (byte [] bytes, int offset, int length)
+    {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+    
+    @Override
+    protected Object decode ()
+    {
+      char [] chars = new char [length];
+      
+      for (int i = 0; i < length; i++)
+        chars [i] = (char)bytes [offset + i];
+      
+      return new String (chars);
+    }
+  }
 }
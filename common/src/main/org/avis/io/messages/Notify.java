@@ -29,13 +29,25 @@ import static java.util.Collections.emptyMap;
 import static java.util.Collections.unmodifiableMap;
 
 import static org.avis.io.XdrCoding.getBool;
-import static org.avis.io.XdrCoding.getNameValues;
+import static org.avis.io.XdrCoding.getLazyAttributes;
 import static org.avis.io.XdrCoding.putBool;
 import static org.avis.io.XdrCoding.putNameValues;
+import static org.avis.io.XdrCoding.skipNameValues;
 import static org.avis.security.Keys.EMPTY_KEYS;
 
 /**
  * Base class for notify messages.
+ * <p>
+ * A notification's attributes are kept in their XDR encoded form as
+ * well as decoded, so that a router can forward them or deliver them
+ * to any number of clients without encoding them again. Attributes
+ * must not be modified once a notification is decoded or delivered,
+ * although the attribute map may be replaced.
+ * <p>
+ * Decoded string and opaque attribute values are not decoded from
+ * the encoded form until they are first read (see
+ * {@link org.avis.util.AttributeMap.LazyValue}), since a router often
+ * never looks at most of them.
  * 
  * @author Matthew Phillips
  */
@@ -44,6 +56,13 @@ public abstract class Notify extends Message
   public Map<String, Object> attributes;
   public boolean deliverInsecure;
   public Keys keys;
+  
+  /**
+   * The attributes in encoded form: either the bytes they were
+   * decoded from, or as encoded by {@link #encodedAttributes()}. Null
+   * if not encoded yet.
+   */
+  private volatile EncodedAttributes encoded;
  
   protected Notify ()
   {
@@ -70,7 +89,20 @@ public abstract class Notify extends Message
   public void decode (ByteBuffer in)
     throws ProtocolCodecException
   {
-    attributes = getNameValues (in);
+    int start = in.position ();
+    
+    skipNameValues (in);
+    
+    // keep a copy of the raw attributes for re-use on output, and to
+    // decode attribute values from on demand
+    byte [] bytes = new byte [in.position () - start];
+    
+    in.position (start);
+    in.get (bytes);
+    
+    attributes = getLazyAttributes (bytes);
+    encoded = new EncodedAttributes (attributes, bytes);
+    
     deliverInsecure = getBool (in);
     keys = Keys.decode (in);
   }
@@ -79,11 +111,60 @@ public abstract class Notify extends Message
   public void encode (ByteBuffer out)
     throws ProtocolCodecException
   {
-    putNameValues (out, attributes);
+    putAttributes (out);
     putBool (out, deliverInsecure);
     keys.encode (out);
   }
   
+  /**
+   * Write the attributes to a buffer, re-using their encoded form if
+   * there is one.
+   */
+  void putAttributes (ByteBuffer out)
+    throws ProtocolCodecException
+  {
+    EncodedAttributes current = encoded;
+    
+    if (current != null && current.attributes == attributes)
+      out.put (current.bytes);
+    else
+      putNameValues (out, attributes);
+  }
+  
+  /**
+   * The XDR encoded form of the attributes, encoding them if this
+   * has not been done already. The result is shared and must not be
+   * modified. Thread safe.
+   */
+  public byte [] encodedAttributes ()
+    throws ProtocolCodecException
+  {
+    EncodedAttributes current = encoded;
+    
+    if (current == null || current.attributes != attributes)
+    {
+      Map<String, Object> currentAttributes = attributes;
+      ByteBuffer buffer = ByteBuffer.allocate (1024, false);
+      
+      buffer.setAutoExpand (true);
+      
+      putNameValues (buffer, currentAttributes);
+      
+      buffer.flip ();
+      
+      byte [] bytes = new byte [buffer.remaining ()];
+      
+      buffer.get (bytes);
+      buffer.release ();
+      
+      // racing threads produce identical results: last one wins
+      current = new EncodedAttributes (currentAttributes, bytes);
+      encoded = current;
+    }
+    
+    return current.bytes;
+  }
+  
   public static Map<String, Object> asAttributes (Object... pairs)
   {
     if (pairs.length % 2 != 0)
@@ -96,4 +177,19 @@ public abstract class Notify extends Message
 
     return unmodifiableMap (map);
   }
+  
+  /**
+   * A set of attributes and their encoded form.
+   */
+  private static final class EncodedAttributes
+  {
+    public final Map<String, Object> attributes;
+    public final byte [] bytes;
+    
+    public EncodedAttributes (Map<String, Object> attributes, byte [] bytes)
+    {
+      this.attributes = attributes;
+      this.bytes = bytes;
+    }
+  }
 }
@@ -35,6 +35,12 @@ public class NotifyDeliver extends Message
   public long [] secureMatches;
   public long [] insecureMatches;
   
+  /**
+   * The notification being delivered, if any, whose encoded
+   * attributes can be used in place of encoding them again.
+   */
+  private Notify notification;
+  
   public NotifyDeliver ()
   {
     // zip
@@ -48,17 +54,49 @@ public class NotifyDeliver extends Message
     this.insecureMatches = insecureMatches;
   }
 
+  /**
+   * Create an instance that delivers a notification's attributes.
+   * The attributes are encoded once by the notification and shared by
+   * all deliveries of it.
+   */
+  public NotifyDeliver (Notify notification,
+                        long [] secureMatches, long [] insecureMatches)
+  {
+    this (notification.attributes, secureMatches, insecureMatches);
+    
+    this.notification = notification;
+  }
+
   @Override
   public int typeId ()
   {
     return ID;
   }
 
+  /**
+   * The size of the message body once encoded, i.e. excluding the
+   * frame length and type header. The attributes are encoded to find
+   * this, and the result is re-used by encode ().
+   */
+  public int encodedSize ()
+    throws ProtocolCodecException
+  {
+    if (notification == null || notification.attributes != attributes)
+      notification = new NotifyEmit (attributes);
+    
+    return notification.encodedAttributes ().length +
+           8 + (secureMatches.length + insecureMatches.length) * 8;
+  }
+
   @Override
   public void encode (ByteBuffer out)
     throws ProtocolCodecException
   {
-    putNameValues (out, attributes);
+    if (notification != null && notification.attributes == attributes)
+      out.put (notification.encodedAttributes ());
+    else
+      putNameValues (out, attributes);
+    
     putLongArray (out, secureMatches);
     putLongArray (out, insecureMatches);
   }
@@ -17,12 +17,6 @@
  */
 package org.avis.security;
 
-import java.util.HashSet;
-import java.util.Set;
-
-import static java.util.Collections.emptySet;
-
-import static org.avis.util.Collections.difference;
 import static org.avis.security.DualKeyScheme.Subset.PRODUCER;
 
 /**
@@ -35,13 +29,13 @@ import static org.avis.security.DualKeyScheme.Subset.PRODUCER;
  */
 class DualKeySet implements KeySet
 {
-  public final Set<Key> producerKeys;
-  public final Set<Key> consumerKeys;
+  public final KeyArraySet producerKeys;
+  public final KeyArraySet consumerKeys;
   
   DualKeySet ()
   {
-    this.producerKeys = new HashSet<Key> ();
-    this.consumerKeys = new HashSet<Key> ();
+    this.producerKeys = new KeyArraySet ();
+    this.consumerKeys = new KeyArraySet ();
   }
  
   /**
@@ -51,11 +45,11 @@ class DualKeySet implements KeySet
    */
   DualKeySet (boolean immutable)
   {
-    this.producerKeys = emptySet ();
-    this.consumerKeys = emptySet ();
+    this.producerKeys = KeyArraySet.EMPTY;
+    this.consumerKeys = KeyArraySet.EMPTY;
   }
 
-  DualKeySet (Set<Key> producerKeys, Set<Key> consumerKeys)
+  DualKeySet (KeyArraySet producerKeys, KeyArraySet consumerKeys)
   {
     this.producerKeys = producerKeys;
     this.consumerKeys = consumerKeys;
@@ -66,7 +60,7 @@ class DualKeySet implements KeySet
    * 
    * @param subset One of PRODUCER or CONSUMER.
    */           
-  public Set<Key> keysFor (DualKeyScheme.Subset subset)
+  public KeyArraySet keysFor (DualKeyScheme.Subset subset)
   {
     if (subset == PRODUCER)
       return producerKeys;
@@ -118,8 +112,8 @@ class DualKeySet implements KeySet
   {
     DualKeySet keys = (DualKeySet)theKeys;
     
-    return new DualKeySet (difference (producerKeys, keys.producerKeys),
-                           difference (consumerKeys, keys.consumerKeys));
+    return new DualKeySet (producerKeys.difference (keys.producerKeys),
+                           consumerKeys.difference (keys.consumerKeys));
   }
   
   @Override
@@ -0,0 +1,309 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.security;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A compact set of keys, stored as an array sorted by key hash code
+ * with a parallel array of the hash codes. Key sets are small, and
+ * this takes much less space than a HashSet and needs only two
+ * allocations however many keys it holds.
+ * <p>
+ * Each set also maintains a 64 bit fingerprint with one bit set per
+ * key, selected by the key's hash code. Two sets whose fingerprints
+ * have no bits in common cannot share a key, which lets
+ * {@link #intersects(KeyArraySet)} reject most non-matching sets with
+ * a single AND.
+ */
+class KeyArraySet extends AbstractSet<Key>
+{
+  /**
+   * An immutable empty set.
+   */
+  public static final KeyArraySet EMPTY = new KeyArraySet ()
+  {
+    @Override
+    public boolean add (Key key)
+    {
+      throw new UnsupportedOperationException ();
+    }
+  };
+
+  private static final Key [] NO_KEYS = new Key [0];
+  private static final int [] NO_HASHES = new int [0];
+
+  private Key [] keys;
+  private int [] hashes;
+  private int size;
+  private long fingerprint;
+
+  KeyArraySet ()
+  {
+    this.keys = NO_KEYS;
+    this.hashes = NO_HASHES;
+  }
+
+  KeyArraySet (Collection<Key> keys)
+  {
+    this ();
+
+    ensureCapacity (keys.size ());
+    addAll (keys);
+  }
+
+  @Override
+  public int size ()
+  {
+    return size;
+  }
+
+  /**
+   * The set's fingerprint: the bitwise OR of the fingerprint bits of
+   * all its keys.
+   */
+  public long fingerprint ()
+  {
+    return fingerprint;
+  }
+
+  /**
+   * Make room for a given total number of keys.
+   */
+  public void ensureCapacity (int capacity)
+  {
+    if (capacity > keys.length)
+    {
+      Key [] newKeys = new Key [capacity];
+      int [] newHashes = new int [capacity];
+
+      System.arraycopy (keys, 0, newKeys, 0, size);
+      System.arraycopy (hashes, 0, newHashes, 0, size);
+
+      keys = newKeys;
+      hashes = newHashes;
+    }
+  }
+
+  @Override
+  public boolean contains (Object object)
+  {
+    return object instanceof Key && indexOf ((Key)object) >= 0;
+  }
+
+  @Override
+  public boolean add (Key key)
+  {
+    int index = indexOf (key);
+
+    if (index >= 0)
+      return false;
+
+    index = -index - 1;
+
+    if (size == keys.length)
+      ensureCapacity (Math.max (2, size * 2));
+
+    System.arraycopy (keys, index, keys, index + 1, size - index);
+    System.arraycopy (hashes, index, hashes, index + 1, size - index);
+
+    keys [index] = key;
+    hashes [index] = key.hashCode ();
+    size++;
+
+    fingerprint |= bitFor (key.hashCode ());
+
+    return true;
+  }
+
+  @Override
+  public boolean remove (Object object)
+  {
+    if (!(object instanceof Key))
+      return false;
+
+    int index = indexOf ((Key)object);
+
+    if (index < 0)
+      return false;
+
+    removeAt (index);
+
+    return true;
+  }
+
+  @Override
+  public void clear ()
+  {
+    for (int i = 0; i < size; i++)
+      keys [i] = null;
+
+    size = 0;
+    fingerprint = 0;
+  }
+
+  @Override
+  public Iterator<Key> iterator ()
+  {
+    return new Iterator<Key> ()
+    {
+      private int next;
+      private int current = -1;
+
+      public boolean hasNext ()
+      {
+        return next < size;
+      }
+
+      public Key next ()
+      {
+        if (next >= size)
+          throw new NoSuchElementException ();
+
+        current = next++;
+
+        return keys [current];
+      }
+
+      public void remove ()
+      {
+        if (current == -1)
+          throw new IllegalStateException ();
+
+        removeAt (current);
+
+        next = current;
+        current = -1;
+      }
+    };
+  }
+
+  /**
+   * Test if this set has at least one key in common with another.
+   */
+  public boolean intersects (KeyArraySet set)
+  {
+    if ((fingerprint & set.fingerprint) == 0)
+      return false;
+
+    KeyArraySet small = size <= set.size ? this : set;
+    KeyArraySet large = small == this ? set : this;
+
+    for (int i = 0; i < small.size; i++)
+    {
+      if ((bitFor (small.hashes [i]) & large.fingerprint) != 0 &&
+          large.indexOf (small.keys [i]) >= 0)
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * The keys in this set that are not in another. This is not
+   * guaranteed to generate a new set instance.
+   */
+  public KeyArraySet difference (KeyArraySet set)
+  {
+    if (isEmpty () || (fingerprint & set.fingerprint) == 0)
+      return this;
+
+    KeyArraySet diff = new KeyArraySet ();
+
+    for (int i = 0; i < size; i++)
+    {
+      if (set.indexOf (keys [i]) < 0)
+        diff.add (keys [i]);
+    }
+
+    return diff;
+  }
+
+  private void removeAt (int index)
+  {
+    size--;
+
+    System.arraycopy (keys, index + 1, keys, index, size - index);
+    System.arraycopy (hashes, index + 1, hashes, index, size - index);
+
+    keys [size] = null;
+
+    fingerprint = 0;
+
+    for (int i = 0; i < size; i++)
+      fingerprint |= bitFor (hashes [i]);
+  }
+
+  /**
+   * Find a key.
+   *
+   * @return The index of the key, or (-(insertion point) - 1) if
+   *         not found.
+   */
+  private int indexOf (Key key)
+  {
+    int hash = key.hashCode ();
+    int low = 0;
+    int high = size - 1;
+
+    while (low <= high)
+    {
+      int mid = (low + high) >>> 1;
+
+      if (hashes [mid] < hash)
+      {
+        low = mid + 1;
+      } else if (hashes [mid] > hash)
+      {
+        high = mid - 1;
+      } else
+      {
+        // scan the run of keys with the same hash code
+        int start = mid;
+
+        while (start > 0 && hashes [start - 1] == hash)
+          start--;
+
+        int i = start;
+
+        for ( ; i < size && hashes [i] == hash; i++)
+        {
+          if (keys [i].equals (key))
+            return i;
+        }
+
+        return -(i + 1);
+      }
+    }
+
+    return -(low + 1);
+  }
+
+  /**
+   * The fingerprint bit for a key hash code.
+   */
+  private static long bitFor (int hash)
+  {
+    return 1L << (hash ^ (hash >>> 6) ^ (hash >>> 12));
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An index of items by their consumer key collections, used to find
+ * all the items whose keys match a producer's key collection without
+ * testing each item's keys in turn. Clients should never need to use
+ * this.
+ * <p>
+ * Items are indexed by the keys that a producer must hold a matching
+ * key for: all the keys of single key schemes, and the producer keys
+ * of dual key schemes. Matching looks up each of the producer's keys,
+ * so its cost depends on the number of keys the producer has rather
+ * than the number of items in the index. Dual key matches, which also
+ * need a consumer key in common, are confirmed with a full match
+ * against the item's keys.
+ * <p>
+ * As with {@link Keys#match(Keys)}, all keys are assumed to be public
+ * (prime) keys.
+ * <p>
+ * Thread access is managed via a single writer/multiple reader lock.
+ */
+public class KeyIndex<T>
+{
+  /**
+   * Maps key scheme ID's to a map of index keys to the entries
+   * indexed under them.
+   */
+  private Map<Key, ArrayList<Entry<T>>> [] schemes;
+  
+  private int size;
+  
+  private ReentrantReadWriteLock lock;
+
+  @SuppressWarnings("unchecked")
+  public KeyIndex ()
+  {
+    int maxId = 0;
+    
+    for (KeyScheme scheme : KeyScheme.schemes ())
+      maxId = Math.max (maxId, scheme.id);
+    
+    this.schemes =
+      (Map<Key, ArrayList<Entry<T>>> [])new Map<?, ?> [maxId + 1];
+    this.lock = new ReentrantReadWriteLock ();
+    
+    for (KeyScheme scheme : KeyScheme.schemes ())
+      schemes [scheme.id] = new HashMap<Key, ArrayList<Entry<T>>> ();
+  }
+  
+  /**
+   * The number of items in the index. Items with no indexable keys
+   * are not counted.
+   */
+  public int size ()
+  {
+    lock.readLock ().lock ();
+    
+    try
+    {
+      return size;
+    } finally
+    {
+      lock.readLock ().unlock ();
+    }
+  }
+  
+  /**
+   * Add an item with a consumer key collection. Has no effect if the
+   * keys cannot match any producer.
+   */
+  public void add (Keys keys, T item)
+  {
+    if (keys.isEmpty ())
+      return;
+    
+    lock.writeLock ().lock ();
+    
+    try
+    {
+      if (index (keys, item))
+        size++;
+    } finally
+    {
+      lock.writeLock ().unlock ();
+    }
+  }
+  
+  /**
+   * Remove an item previously added with a given key collection. Has
+   * no effect if the item is not in the index under the keys.
+   */
+  public void remove (Keys keys, T item)
+  {
+    if (keys.isEmpty ())
+      return;
+    
+    lock.writeLock ().lock ();
+    
+    try
+    {
+      if (unindex (keys, item))
+        size--;
+    } finally
+    {
+      lock.writeLock ().unlock ();
+    }
+  }
+  
+  /**
+   * Change the key collection of an item previously added with a
+   * given key collection. This is the same as a remove () followed by
+   * an add (), except that it is atomic: a concurrent match () sees
+   * the item under either its old or its new keys, never neither.
+   */
+  public void replace (Keys oldKeys, Keys newKeys, T item)
+  {
+    if (oldKeys.isEmpty () && newKeys.isEmpty ())
+      return;
+    
+    lock.writeLock ().lock ();
+    
+    try
+    {
+      if (unindex (oldKeys, item))
+        size--;
+      
+      if (index (newKeys, item))
+        size++;
+    } finally
+    {
+      lock.writeLock ().unlock ();
+    }
+  }
+  
+  /**
+   * Add an item under its index keys. Must be called with the write
+   * lock held.
+   * 
+   * @return True if the item was added under any keys.
+   */
+  private boolean index (Keys keys, T item)
+  {
+    boolean added = false;
+    Entry<T> entry = new Entry<T> (keys, item);
+    
+    for (KeyScheme scheme : KeyScheme.schemes ())
+    {
+      Map<Key, ArrayList<Entry<T>>> index = schemes [scheme.id];
+      
+      for (Key key : indexKeysFor (scheme, keys.keysetFor (scheme)))
+      {
+        ArrayList<Entry<T>> entries = index.get (key);
+        
+        if (entries == null)
+        {
+          entries = new ArrayList<Entry<T>> (2);
+          
+          index.put (key, entries);
+        }
+        
+        entries.add (entry);
+        
+        added = true;
+      }
+    }
+    
+    return added;
+  }
+  
+  /**
+   * Remove an item from under its index keys. Must be called with the
+   * write lock held.
+   * 
+   * @return True if the item was removed from under any keys.
+   */
+  private boolean unindex (Keys keys, T item)
+  {
+    boolean removed = false;
+    
+    for (KeyScheme scheme : KeyScheme.schemes ())
+    {
+      Map<Key, ArrayList<Entry<T>>> index = schemes [scheme.id];
+      
+      for (Key key : indexKeysFor (scheme, keys.keysetFor (scheme)))
+      {
+        ArrayList<Entry<T>> entries = index.get (key);
+        
+        if (entries != null && removeItem (entries, item))
+        {
+          if (entries.isEmpty ())
+            index.remove (key);
+          
+          removed = true;
+        }
+      }
+    }
+    
+    return removed;
+  }
+  
+  /**
+   * Find the items whose keys match a producer key collection, i.e.
+   * those for which <code>keys.match (producerKeys)</code> is true.
+   * 
+   * @param producerKeys The producer keys.
+   * @param matches The collection to add matching items to. An item
+   *          may be added more than once.
+   */
+  public void match (Keys producerKeys, Collection<? super T> matches)
+  {
+    if (producerKeys.isEmpty ())
+      return;
+    
+    lock.readLock ().lock ();
+    
+    try
+    {
+      for (KeyScheme scheme : KeyScheme.schemes ())
+      {
+        KeySet producerKeyset = producerKeys.keysetFor (scheme);
+        
+        if (producerKeyset.isEmpty ())
+          continue;
+        
+        Map<Key, ArrayList<Entry<T>>> index = schemes [scheme.id];
+        
+        for (Key key : indexKeysFor (scheme, producerKeyset))
+        {
+          ArrayList<Entry<T>> entries = index.get (key);
+          
+          if (entries == null)
+            continue;
+          
+          for (int i = 0; i < entries.size (); i++)
+          {
+            Entry<T> entry = entries.get (i);
+            
+            if (!scheme.isDual () ||
+                scheme.match (producerKeyset, entry.keys.keysetFor (scheme)))
+            {
+              matches.add (entry.item);
+            }
+          }
+        }
+      }
+    } finally
+    {
+      lock.readLock ().unlock ();
+    }
+  }
+  
+  /**
+   * The keys of a key set that producer and consumer must have in
+   * common for a match in a scheme.
+   */
+  @SuppressWarnings("unchecked")
+  private static Set<Key> indexKeysFor (KeyScheme scheme, KeySet keyset)
+  {
+    if (scheme.isDual ())
+      return ((DualKeySet)keyset).producerKeys;
+    else
+      return (Set<Key>)keyset;
+  }
+  
+  private static <T> boolean removeItem (ArrayList<Entry<T>> entries, T item)
+  {
+    for (int i = 0; i < entries.size (); i++)
+    {
+      if (entries.get (i).item.equals (item))
+      {
+        entries.set (i, entries.get (entries.size () - 1));
+        entries.remove (entries.size () - 1);
+        
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  static final class Entry<T>
+  {
+    public final Keys keys;
+    public final T item;
+    
+    public Entry (Keys keys, T item)
+    {
+      this.keys = keys;
+      this.item = item;
+    }
+  }
+}
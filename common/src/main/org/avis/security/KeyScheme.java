@@ -144,11 +144,12 @@ public abstract class KeyScheme
   
   /**
    * Create the public (aka prime) key for a given private (aka raw)
-   * key using this scheme's hash.
+   * key using this scheme's hash. Recently used keys are looked up in
+   * {@link PublicKeyCache#SHARED} rather than hashed again.
    */
   public Key publicKeyFor (Key privateKey)
   {
-    return new Key (keyHash.hash (privateKey.data));
+    return PublicKeyCache.SHARED.publicKeyFor (keyHash, privateKey);
   }
   
   /**
@@ -188,17 +189,13 @@ public abstract class KeyScheme
    * @param publicKeys A set of public (aka prime) keys.
    * @return True if at least one private key mapped to its public
    *         version (using this scheme's hash) was in the given
-   *         public key set.
+   *         public key set. Sets with disjoint fingerprints are
+   *         rejected without looking up any keys.
    */
-  private boolean matchKeys (Set<Key> privateKeys, Set<Key> publicKeys)
+  private boolean matchKeys (KeyArraySet privateKeys,
+                             KeyArraySet publicKeys)
   {
-    for (Key privateKey : privateKeys)
-    {
-      if (publicKeys.contains (privateKey))
-        return true;
-    }
-    
-    return false;
+    return privateKeys.intersects (publicKeys);
   }
 
   @Override
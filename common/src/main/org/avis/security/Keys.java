@@ -19,10 +19,7 @@ package org.avis.security;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
-import java.util.Map.Entry;
 
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.filter.codec.ProtocolCodecException;
@@ -50,6 +47,24 @@ import static org.avis.security.Keys.Delta.EMPTY_DELTA;
  */
 public class Keys
 {
+  /**
+   * The key schemes indexed by ID.
+   */
+  private static final KeyScheme [] SCHEMES_BY_ID;
+  
+  static
+  {
+    int maxId = 0;
+    
+    for (KeyScheme scheme : KeyScheme.schemes ())
+      maxId = Math.max (maxId, scheme.id);
+    
+    SCHEMES_BY_ID = new KeyScheme [maxId + 1];
+    
+    for (KeyScheme scheme : KeyScheme.schemes ())
+      SCHEMES_BY_ID [scheme.id] = scheme;
+  }
+  
   /** An empty, immutable key collection. */
   public static final Keys EMPTY_KEYS = new EmptyKeys ();
 
@@ -57,16 +72,22 @@ public class Keys
   private static final SingleKeySet EMPTY_SINGLE_KEYSET = new EmptySingleKeys ();
   
   /**
-   * NB: this set must be kept normalised i.e. if there is a key
-   * scheme in the map, then there must be a non-empty key set
-   * associated with it.
+   * The key sets for each scheme, indexed by scheme ID, or null for
+   * schemes with no keys.
+   * <p>
+   * NB: this must be kept normalised i.e. if there is a key set for
+   * a scheme, then it must be non-empty.
+   */
+  private KeySet [] keySets;
+  
+  /**
+   * The number of non-null entries in keySets.
    */
-  private Map<KeyScheme, KeySet> keySets;
+  private int schemeCount;
 
   public Keys ()
   {
-    // todo opt: since schemes are static, could use a more optimized map here
-    keySets = new HashMap<KeyScheme, KeySet> (4);
+    keySets = new KeySet [SCHEMES_BY_ID.length];
   }
   
    public Keys (Keys keys)
@@ -81,7 +102,7 @@ public class Keys
    */
   public boolean isEmpty ()
   {
-    return keySets.isEmpty ();
+    return schemeCount == 0;
   }
   
   /**
@@ -94,8 +115,11 @@ public class Keys
 
     int size = 0;
     
-    for (KeySet keyset : keySets.values ())
-      size += keyset.size ();
+    for (KeySet keyset : keySets)
+    {
+      if (keyset != null)
+        size += keyset.size ();
+    }
     
     return size;
   }
@@ -153,14 +177,14 @@ public class Keys
   public void remove (SingleKeyScheme scheme, Key key)
     throws IllegalArgumentException
   {
-    KeySet keys = keySets.get (scheme);
+    KeySet keys = keySets [scheme.id];
 
     if (keys != null)
     {
       keys.remove (key);
       
       if (keys.isEmpty ())
-        keySets.remove (scheme);
+        removeKeyset (scheme);
     }
   }
   
@@ -195,14 +219,14 @@ public class Keys
                       DualKeyScheme.Subset subset,
                       Key key)
   {
-    DualKeySet keySet = (DualKeySet)keySets.get (scheme);
+    DualKeySet keySet = (DualKeySet)keySets [scheme.id];
     
     if (keySet != null)
     {
       keySet.keysFor (subset).remove (key);
       
       if (keySet.isEmpty ())
-        keySets.remove (scheme);
+        removeKeyset (scheme);
     }
   }
 
@@ -219,8 +243,11 @@ public class Keys
       throw new IllegalArgumentException
         ("Cannot add key collection to itself");
     
-    for (KeyScheme scheme: keys.keySets.keySet ())
-      add (scheme, keys.keySets.get (scheme));
+    for (int id = 0; id < keys.keySets.length; id++)
+    {
+      if (keys.keySets [id] != null)
+        add (SCHEMES_BY_ID [id], keys.keySets [id]);
+    }
   }
   
   private void add (KeyScheme scheme, KeySet keys)
@@ -242,16 +269,16 @@ public class Keys
       throw new IllegalArgumentException
         ("Cannot remove key collection from itself");
     
-    for (KeyScheme scheme: keys.keySets.keySet ())
+    for (int id = 0; id < keys.keySets.length; id++)
     {
-      KeySet myKeys = keySets.get (scheme);
+      KeySet myKeys = keySets [id];
       
-      if (myKeys != null)
+      if (myKeys != null && keys.keySets [id] != null)
       {
-        myKeys.remove (keys.keysetFor (scheme));
+        myKeys.remove (keys.keySets [id]);
         
         if (myKeys.isEmpty ())
-          keySets.remove (scheme);
+          removeKeyset (SCHEMES_BY_ID [id]);
       }
     }
   }
@@ -324,9 +351,9 @@ public class Keys
    * @see #keysetFor(DualKeyScheme)
    * @see #keysetFor(SingleKeyScheme)
    */
-  private KeySet keysetFor (KeyScheme scheme)
+  KeySet keysetFor (KeyScheme scheme)
   {
-    KeySet keys = keySets.get (scheme);
+    KeySet keys = keySets [scheme.id];
     
     if (keys == null)
       return scheme.isDual () ? EMPTY_DUAL_KEYSET : EMPTY_SINGLE_KEYSET;
@@ -347,7 +374,7 @@ public class Keys
    */
   DualKeySet keysetFor (DualKeyScheme scheme)
   {
-    DualKeySet keys = (DualKeySet)keySets.get (scheme);
+    DualKeySet keys = (DualKeySet)keySets [scheme.id];
     
     if (keys == null)
       return EMPTY_DUAL_KEYSET;
@@ -368,7 +395,7 @@ public class Keys
    */
   SingleKeySet keysetFor (SingleKeyScheme scheme)
   {
-    SingleKeySet keys = (SingleKeySet)keySets.get (scheme);
+    SingleKeySet keys = (SingleKeySet)keySets [scheme.id];
     
     if (keys == null)
       return EMPTY_SINGLE_KEYSET;
@@ -392,13 +419,14 @@ public class Keys
    */
   private SingleKeySet newKeysetFor (SingleKeyScheme scheme)
   {
-    SingleKeySet keys = (SingleKeySet)keySets.get (scheme);
+    SingleKeySet keys = (SingleKeySet)keySets [scheme.id];
     
     if (keys == null)
     {
       keys = new SingleKeySet ();
       
-      keySets.put (scheme, keys);
+      keySets [scheme.id] = keys;
+      schemeCount++;
     }
     
     return keys;
@@ -409,18 +437,28 @@ public class Keys
    */
   private DualKeySet newKeysetFor (DualKeyScheme scheme)
   {
-    DualKeySet keys = (DualKeySet)keySets.get (scheme);
+    DualKeySet keys = (DualKeySet)keySets [scheme.id];
     
     if (keys == null)
     {
       keys = new DualKeySet ();
       
-      keySets.put (scheme, keys);
+      keySets [scheme.id] = keys;
+      schemeCount++;
     }
     
     return keys;
   }
   
+  /**
+   * Remove the (now empty) key set for a scheme.
+   */
+  private void removeKeyset (KeyScheme scheme)
+  {
+    keySets [scheme.id] = null;
+    schemeCount--;
+  }
+  
   /**
    * Turn all private keys for a given role into their public versions
    * by hashing them in place. Clients should never need to use this.
@@ -433,18 +471,21 @@ public class Keys
     if (isEmpty ())
       return;
     
-    for (Map.Entry<KeyScheme, KeySet> entry : keySets.entrySet ())
+    for (int id = 0; id < keySets.length; id++)
     {
-      KeyScheme scheme = entry.getKey ();
+      KeyScheme scheme = SCHEMES_BY_ID [id];
+      KeySet keyset = keySets [id];
+      
+      if (keyset == null)
+        continue;
       
       if (scheme.isDual ())
       {
-        hashKeys (scheme, 
-                  ((DualKeySet)entry.getValue ()).keysFor (role));
+        hashKeys (scheme, ((DualKeySet)keyset).keysFor (role));
       } else if (scheme.consumer && role == CONSUMER ||
                  scheme.producer && role == PRODUCER)
       {
-        hashKeys (scheme, (SingleKeySet)entry.getValue ());
+        hashKeys (scheme, (SingleKeySet)keyset);
       }
     }
   }
@@ -479,13 +520,13 @@ public class Keys
     if (isEmpty () || producerKeys.isEmpty ())
       return false;
     
-    for (Entry<KeyScheme, KeySet> entry : producerKeys.keySets.entrySet ())
+    for (int id = 0; id < keySets.length; id++)
     {
-      KeyScheme scheme = entry.getKey ();
-      KeySet keyset = entry.getValue ();
+      KeySet consumerKeyset = keySets [id];
+      KeySet producerKeyset = producerKeys.keySets [id];
       
-      if (keySets.containsKey (scheme) &&
-          scheme.match (keyset, keySets.get (scheme)))
+      if (consumerKeyset != null && producerKeyset != null &&
+          SCHEMES_BY_ID [id].match (producerKeyset, consumerKeyset))
       {
         return true;
       }
@@ -497,12 +538,15 @@ public class Keys
   public void encode (ByteBuffer out)
   {
     // number of key schemes in the list
-    out.putInt (keySets.size ());
+    out.putInt (schemeCount);
     
-    for (Entry<KeyScheme, KeySet> entry : keySets.entrySet ())
+    for (int id = 0; id < keySets.length; id++)
     {
-      KeyScheme scheme = entry.getKey ();
-      KeySet keySet = entry.getValue ();
+      KeyScheme scheme = SCHEMES_BY_ID [id];
+      KeySet keySet = keySets [id];
+      
+      if (keySet == null)
+        continue;
 
       // scheme ID
       out.putInt (scheme.id);
@@ -577,10 +621,15 @@ public class Keys
       putBytes (out, key.data);
   }
   
-  private static void decodeKeys (ByteBuffer in, Set<Key> keys) 
+  private static void decodeKeys (ByteBuffer in, KeyArraySet keys) 
     throws ProtocolCodecException
   {
-    for (int keysetCount = in.getInt (); keysetCount > 0; keysetCount--)
+    int keysetCount = in.getInt ();
+    
+    // each key takes at least 8 bytes: don't trust a huge count
+    keys.ensureCapacity (Math.min (keysetCount, in.remaining () / 8));
+    
+    for ( ; keysetCount > 0; keysetCount--)
       keys.add (new Key (getBytes (in)));
   }
   
@@ -592,13 +641,16 @@ public class Keys
   
   public boolean equals (Keys keys)
   {
-    if (keySets.size () != keys.keySets.size ())
+    if (schemeCount != keys.schemeCount)
       return false;
     
-    for (KeyScheme scheme: keys.keySets.keySet ())
+    for (int id = 0; id < keySets.length; id++)
     {
-      if (!keysetFor (scheme).equals (keys.keysetFor (scheme)))
+      if (keys.keySets [id] != null &&
+          !keys.keySets [id].equals (keySets [id]))
+      {
         return false;
+      }
     }
     
     return true;
@@ -610,8 +662,11 @@ public class Keys
     // todo opt get a better hash code?
     int hash = 0;
     
-    for (KeyScheme scheme : keySets.keySet ())
-      hash ^= 1 << scheme.id;
+    for (int id = 0; id < keySets.length; id++)
+    {
+      if (keySets [id] != null)
+        hash ^= 1 << id;
+    }
     
     return hash;
   }
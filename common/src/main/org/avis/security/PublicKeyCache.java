@@ -0,0 +1,210 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.security;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the public keys computed from private keys.
+ * Producers tend to send the same few private keys with every
+ * notification, and the cache saves hashing them each time.
+ * <p>
+ * The cache is split into segments by key hash code, each an LRU
+ * map with its own lock, so that concurrent lookups rarely contend.
+ * Only keys of up to {@link #MAX_KEY_LENGTH} bytes are cached, both
+ * to bound the cache's memory use and so that very long keys, which
+ * are unlikely to be reused, do not evict useful ones.
+ * <p>
+ * The cache never changes the result of hashing a key: private keys
+ * are copied on entry, so a key changed by its owner after hashing
+ * cannot alter the cached result, and lookups compare key data in
+ * full. Thread safe.
+ */
+public final class PublicKeyCache
+{
+  /**
+   * The cache used by {@link KeyScheme#publicKeyFor(Key)}.
+   */
+  public static final PublicKeyCache SHARED = new PublicKeyCache (4096);
+
+  /** Keys longer than this are not cached. */
+  public static final int MAX_KEY_LENGTH = 1024;
+
+  private static final int SEGMENTS_PER_HASH = 16;
+
+  private Segment [] segments;
+  private AtomicLong hits;
+  private AtomicLong misses;
+  private AtomicLong evictions;
+
+  /**
+   * Create a new instance.
+   *
+   * @param maxSize The maximum number of keys to cache. 0 disables
+   *          caching.
+   */
+  public PublicKeyCache (int maxSize)
+  {
+    int segmentSize = (maxSize + SEGMENTS_PER_HASH - 1) / SEGMENTS_PER_HASH;
+
+    this.segments =
+      new Segment [SecureHash.values ().length * SEGMENTS_PER_HASH];
+    this.hits = new AtomicLong ();
+    this.misses = new AtomicLong ();
+    this.evictions = new AtomicLong ();
+
+    for (int i = 0; i < segments.length; i++)
+      segments [i] = new Segment (segmentSize);
+  }
+
+  /**
+   * Get the public key for a private key, hashing it if not cached.
+   *
+   * @param hash The hash used to create the public key.
+   * @param privateKey The private key.
+   *
+   * @return The public key.
+   */
+  public Key publicKeyFor (SecureHash hash, Key privateKey)
+  {
+    if (privateKey.data.length > MAX_KEY_LENGTH)
+      return new Key (hash.hash (privateKey.data));
+
+    Segment segment = segmentFor (hash, privateKey);
+
+    if (segment.maxSize == 0)
+      return new Key (hash.hash (privateKey.data));
+
+    Key publicKey;
+
+    synchronized (segment)
+    {
+      publicKey = segment.get (privateKey);
+    }
+
+    if (publicKey != null)
+    {
+      hits.incrementAndGet ();
+
+      return publicKey;
+    }
+
+    misses.incrementAndGet ();
+
+    // hash outside the lock: a racing miss for the same key is harmless
+    Key key = new Key (privateKey.data.clone ());
+
+    publicKey = new Key (hash.hash (key.data));
+
+    synchronized (segment)
+    {
+      segment.put (key, publicKey);
+    }
+
+    return publicKey;
+  }
+
+  /**
+   * The number of lookups that found a cached public key.
+   */
+  public long hits ()
+  {
+    return hits.get ();
+  }
+
+  /**
+   * The number of lookups that needed to hash the private key,
+   * excluding those for keys too long to cache.
+   */
+  public long misses ()
+  {
+    return misses.get ();
+  }
+
+  /**
+   * The number of keys evicted to make room for others.
+   */
+  public long evictions ()
+  {
+    return evictions.get ();
+  }
+
+  /**
+   * The number of keys cached.
+   */
+  public int size ()
+  {
+    int size = 0;
+
+    for (Segment segment : segments)
+    {
+      synchronized (segment)
+      {
+        size += segment.size ();
+      }
+    }
+
+    return size;
+  }
+
+  private Segment segmentFor (SecureHash hash, Key key)
+  {
+    int code = key.hashCode ();
+
+    // spread the high bits, since the low bits of array hash codes
+    // are poorly distributed for similar keys
+    code ^= (code >>> 16) ^ (code >>> 8);
+
+    return segments [hash.ordinal () * SEGMENTS_PER_HASH +
+                     (code & (SEGMENTS_PER_HASH - 1))];
+  }
+
+  /**
+   * A segment of the cache: an access ordered map that evicts its
+   * least recently used entry when full.
+   */
+  private final class Segment extends LinkedHashMap<Key, Key>
+  {
+    private static final long serialVersionUID = 1L;
+
+    public final int maxSize;
+
+    public Segment (int maxSize)
+    {
+      super (16, 0.75f, true);
+
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry (Map.Entry<Key, Key> eldest)
+    {
+      if (size () > maxSize)
+      {
+        evictions.incrementAndGet ();
+
+        return true;
+      } else
+      {
+        return false;
+      }
+    }
+  }
+}
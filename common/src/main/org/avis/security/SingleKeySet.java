@@ -17,24 +17,21 @@
  */
 package org.avis.security;
 
-import java.util.HashSet;
 import java.util.Set;
 
-import static org.avis.util.Collections.difference;
-
 /**
  * A single set of keys. Can be used directly as a java.util.Set.
  *  
  * @author Matthew Phillips
  */
-class SingleKeySet extends HashSet<Key> implements KeySet, Set<Key>
+class SingleKeySet extends KeyArraySet implements KeySet, Set<Key>
 {
   SingleKeySet ()
   {
     super ();
   }
   
-  SingleKeySet (Set<Key> keys)
+  SingleKeySet (KeyArraySet keys)
   {
     super (keys);
   }
@@ -57,6 +54,6 @@ class SingleKeySet extends HashSet<Key> implements KeySet, Set<Key>
   
   public KeySet subtract (KeySet keys)
   {
-    return new SingleKeySet (difference (this, (SingleKeySet)keys));
+    return new SingleKeySet (difference ((SingleKeySet)keys));
   }
 }
@@ -0,0 +1,547 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map of notification attributes that is indexed by the slots
+ * assigned to attribute names by {@link AttributeNames}. Looking up
+ * an attribute by slot is two array accesses, compared with hashing
+ * and comparing the name in a HashMap.
+ * <p>
+ * Entries are kept in compact parallel arrays, with a table mapping
+ * slots to positions in those arrays. Names that have no slot (either
+ * because the intern table is full, or because they were assigned a
+ * slot after being added to the map) are found by a linear search of
+ * the entries.
+ * <p>
+ * A value may be a {@link LazyValue}, which is decoded the first time
+ * it is read from the map. This lets attributes be read straight
+ * from a received frame without paying to decode values that are
+ * never looked at.
+ * <p>
+ * Null names are not allowed. Not thread safe for modification, but
+ * may be read concurrently.
+ */
+public class AttributeMap extends AbstractMap<String, Object>
+{
+  private static final int [] NO_POSITIONS = new int [0];
+
+  private String [] names;
+  private Object [] values;
+  private int [] slots;
+  private int size;
+
+  /**
+   * Maps slots to 1 + the position of their entry, or 0 for no entry.
+   */
+  private int [] positions;
+
+  /**
+   * The number of entries that were added without a slot.
+   */
+  private int unslotted;
+
+  public AttributeMap ()
+  {
+    this (8);
+  }
+
+  /**
+   * Create a new instance.
+   *
+   * @param capacity The expected number of attributes.
+   */
+  public AttributeMap (int capacity)
+  {
+    capacity = Math.max (capacity, 1);
+
+    this.names = new String [capacity];
+    this.values = new Object [capacity];
+    this.slots = new int [capacity];
+    this.positions = NO_POSITIONS;
+  }
+
+  /**
+   * Create a copy of a map.
+   */
+  public AttributeMap (Map<String, Object> map)
+  {
+    this (map.size ());
+
+    putAll (map);
+  }
+
+  /**
+   * Get the value of an attribute by slot.
+   *
+   * @param slot The attribute name's slot.
+   *
+   * @return The value, or null if there is no value.
+   *
+   * @see AttributeNames#slotFor(String)
+   */
+  public Object get (int slot)
+  {
+    int position = positionOf (slot);
+
+    return position == -1 ? null : valueAt (position);
+  }
+
+  /**
+   * Test if the map contains an attribute by slot.
+   */
+  public boolean containsKey (int slot)
+  {
+    return positionOf (slot) != -1;
+  }
+
+  /**
+   * Get an attribute from a map, by slot if it is an AttributeMap.
+   *
+   * @param map The map.
+   * @param name The attribute name.
+   * @param slot The slot for the name, or -1 if it has no slot.
+   */
+  public static Object get (Map<String, Object> map, String name, int slot)
+  {
+    if (slot != -1 && map instanceof AttributeMap)
+      return ((AttributeMap)map).get (slot);
+    else
+      return map.get (name);
+  }
+
+  /**
+   * Test if a map contains an attribute, by slot if it is an
+   * AttributeMap.
+   *
+   * @see #get(Map, String, int)
+   */
+  public static boolean containsKey (Map<String, Object> map,
+                                     String name, int slot)
+  {
+    if (slot != -1 && map instanceof AttributeMap)
+      return ((AttributeMap)map).containsKey (slot);
+    else
+      return map.containsKey (name);
+  }
+
+  @Override
+  public int size ()
+  {
+    return size;
+  }
+
+  @Override
+  public Object get (Object key)
+  {
+    int position = positionOf (key);
+
+    return position == -1 ? null : valueAt (position);
+  }
+
+  @Override
+  public boolean containsKey (Object key)
+  {
+    return positionOf (key) != -1;
+  }
+
+  @Override
+  public Object put (String name, Object value)
+  {
+    int slot = AttributeNames.slotFor (name);
+    int position = slot == -1 ? unslottedPositionOf (name) : positionOf (slot);
+
+    if (position != -1)
+    {
+      Object oldValue = valueAt (position);
+
+      values [position] = value;
+
+      return oldValue;
+    }
+
+    if (size == names.length)
+      grow ();
+
+    if (slot == -1)
+    {
+      unslotted++;
+    } else
+    {
+      // use the interned name, letting the caller's copy be collected
+      name = AttributeNames.nameOf (slot);
+
+      if (slot >= positions.length)
+      {
+        int [] newPositions =
+          new int [Math.max (slot + 1, positions.length * 2)];
+
+        System.arraycopy (positions, 0, newPositions, 0, positions.length);
+
+        positions = newPositions;
+      }
+
+      positions [slot] = size + 1;
+    }
+
+    names [size] = name;
+    values [size] = value;
+    slots [size] = slot;
+
+    size++;
+
+    return null;
+  }
+
+  @Override
+  public Object remove (Object key)
+  {
+    int position = positionOf (key);
+
+    if (position == -1)
+      return null;
+
+    Object oldValue = valueAt (position);
+
+    removeAt (position);
+
+    return oldValue;
+  }
+
+  @Override
+  public void clear ()
+  {
+    for (int i = 0; i < size; i++)
+    {
+      if (slots [i] != -1)
+        positions [slots [i]] = 0;
+
+      names [i] = null;
+      values [i] = null;
+    }
+
+    size = 0;
+    unslotted = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet ()
+  {
+    return new EntrySet ();
+  }
+
+  /**
+   * The attribute names. Unlike the default implementation, this
+   * does not create an entry per attribute, and does not decode lazy
+   * values.
+   */
+  @Override
+  public Set<String> keySet ()
+  {
+    return new KeySet ();
+  }
+
+  /**
+   * The value at a position, decoding it if it is lazy.
+   */
+  private Object valueAt (int position)
+  {
+    return decoded (values [position]);
+  }
+
+  private static Object decoded (Object value)
+  {
+    if (value instanceof LazyValue)
+      return ((LazyValue)value).value ();
+    else
+      return value;
+  }
+
+  private void grow ()
+  {
+    int newSize = names.length * 2;
+
+    String [] newNames = new String [newSize];
+    Object [] newValues = new Object [newSize];
+    int [] newSlots = new int [newSize];
+
+    System.arraycopy (names, 0, newNames, 0, size);
+    System.arraycopy (values, 0, newValues, 0, size);
+    System.arraycopy (slots, 0, newSlots, 0, size);
+
+    names = newNames;
+    values = newValues;
+    slots = newSlots;
+  }
+
+  /**
+   * Remove the entry at a position by moving the last entry into it.
+   */
+  private void removeAt (int position)
+  {
+    if (slots [position] == -1)
+      unslotted--;
+    else
+      positions [slots [position]] = 0;
+
+    int last = --size;
+
+    if (position != last)
+    {
+      names [position] = names [last];
+      values [position] = values [last];
+      slots [position] = slots [last];
+
+      if (slots [position] != -1)
+        positions [slots [position]] = position + 1;
+    }
+
+    names [last] = null;
+    values [last] = null;
+  }
+
+  private int positionOf (Object key)
+  {
+    if (!(key instanceof String))
+      return -1;
+
+    int slot = AttributeNames.slotOf ((String)key);
+
+    return slot == -1 ? unslottedPositionOf ((String)key) : positionOf (slot);
+  }
+
+  private int positionOf (int slot)
+  {
+    if (slot < positions.length && positions [slot] != 0)
+      return positions [slot] - 1;
+    else if (unslotted > 0)
+      return unslottedPositionOf (AttributeNames.nameOf (slot));
+    else
+      return -1;
+  }
+
+  private int unslottedPositionOf (String name)
+  {
+    if (unslotted > 0)
+    {
+      for (int i = 0; i < size; i++)
+      {
+        if (slots [i] == -1 && names [i].equals (name))
+          return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * A value that is decoded from its encoded form when it is first
+   * read from a map. The decoded value is cached, and is safe to read
+   * from multiple threads: racing threads may each decode the value,
+   * but all see a fully constructed result.
+   */
+  public abstract static class LazyValue
+  {
+    private volatile Object value;
+
+    /**
+     * The decoded value.
+     */
+    public final Object value ()
+    {
+      Object current = value;
+
+      if (current == null)
+      {
+        current = decode ();
+        value = current;
+      }
+
+      return current;
+    }
+
+    /**
+     * Decode the value. Must not return null.
+     */
+    protected abstract Object decode ();
+  }
+
+  class EntrySet extends AbstractSet<Map.Entry<String, Object>>
+  {
+    @Override
+    public int size ()
+    {
+      return size;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> iterator ()
+    {
+      return new EntryIterator ();
+    }
+  }
+
+  class KeySet extends AbstractSet<String>
+  {
+    @Override
+    public int size ()
+    {
+      return size;
+    }
+
+    @Override
+    public boolean contains (Object key)
+    {
+      return containsKey (key);
+    }
+
+    @Override
+    public Iterator<String> iterator ()
+    {
+      return new KeyIterator ();
+    }
+  }
+
+  /**
+   * Base class for iterators over the entry positions.
+   */
+  abstract class PositionIterator<E> implements Iterator<E>
+  {
+    private int next;
+    private int current = -1;
+
+    public boolean hasNext ()
+    {
+      return next < size;
+    }
+
+    /**
+     * Advance to the next position.
+     */
+    protected int nextPosition ()
+    {
+      if (next >= size)
+        throw new NoSuchElementException ();
+
+      current = next++;
+
+      return current;
+    }
+
+    public void remove ()
+    {
+      if (current == -1)
+        throw new IllegalStateException ();
+
+      removeAt (current);
+
+      // the last entry has been moved into the current position
+      next = current;
+      current = -1;
+    }
+  }
+
+  class EntryIterator extends PositionIterator<Map.Entry<String, Object>>
+  {
+    public Map.Entry<String, Object> next ()
+    {
+      return new AttributeEntry (nextPosition ());
+    }
+  }
+
+  class KeyIterator extends PositionIterator<String>
+  {
+    public String next ()
+    {
+      return names [nextPosition ()];
+    }
+  }
+
+  /**
+   * An entry. The value is held as stored in the map, and so is only
+   * decoded if it is lazy and getValue () is called.
+   */
+  class AttributeEntry implements Map.Entry<String, Object>
+  {
+    private String name;
+    private Object value;
+    private int position;
+
+    public AttributeEntry (int position)
+    {
+      this.position = position;
+      this.name = names [position];
+      this.value = values [position];
+    }
+
+    public String getKey ()
+    {
+      return name;
+    }
+
+    public Object getValue ()
+    {
+      return decoded (value);
+    }
+
+    public Object setValue (Object newValue)
+    {
+      Object oldValue = getValue ();
+
+      value = newValue;
+      values [position] = newValue;
+
+      return oldValue;
+    }
+
+    @Override
+    public boolean equals (Object o)
+    {
+      if (!(o instanceof Map.Entry))
+        return false;
+
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+      Object myValue = getValue ();
+
+      return name.equals (e.getKey ()) &&
+             (myValue == null ? e.getValue () == null :
+                                myValue.equals (e.getValue ()));
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      Object myValue = getValue ();
+
+      return name.hashCode () ^ (myValue == null ? 0 : myValue.hashCode ());
+    }
+
+    @Override
+    public String toString ()
+    {
+      return name + "=" + getValue ();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A process-wide intern table that assigns small integer slots to
+ * attribute names. Slots let {@link AttributeMap} find an attribute's
+ * value with an array index rather than a hash lookup, and let
+ * subscription nodes resolve the attributes they reference once, when
+ * they are created.
+ * <p>
+ * Since attribute names come from clients, the table is bounded:
+ * once it holds {@link #MAX_NAMES} names, new names are not assigned
+ * slots and are handled by name instead. Names are never removed, so
+ * a slot, once assigned, is valid for the life of the process.
+ */
+public final class AttributeNames
+{
+  /**
+   * The maximum number of names that will be assigned slots.
+   */
+  public static final int MAX_NAMES = 1024;
+
+  private static final ConcurrentHashMap<String, Integer> slots =
+    new ConcurrentHashMap<String, Integer> ();
+
+  private static final String [] names = new String [MAX_NAMES];
+
+  private AttributeNames ()
+  {
+    // zip
+  }
+
+  /**
+   * Get the slot for a name, assigning it one if it does not have one
+   * and the table is not full.
+   *
+   * @return The name's slot, or -1 if the table is full.
+   */
+  public static int slotFor (String name)
+  {
+    Integer slot = slots.get (name);
+
+    if (slot != null)
+      return slot;
+
+    synchronized (names)
+    {
+      slot = slots.get (name);
+
+      if (slot == null)
+      {
+        if (slots.size () == MAX_NAMES)
+          return -1;
+
+        slot = slots.size ();
+
+        names [slot] = name;
+
+        // publishes the name write above to readers of the slot
+        slots.put (name, slot);
+      }
+
+      return slot;
+    }
+  }
+
+  /**
+   * Get the slot for a name without assigning one.
+   *
+   * @return The name's slot, or -1 if it has none.
+   */
+  public static int slotOf (String name)
+  {
+    Integer slot = slots.get (name);
+
+    return slot == null ? -1 : slot;
+  }
+
+  /**
+   * Get the name assigned to a slot.
+   *
+   * @param slot A slot returned by {@link #slotFor(String)} or
+   *          {@link #slotOf(String)}.
+   */
+  public static String nameOf (int slot)
+  {
+    return names [slot];
+  }
+}
@@ -17,14 +17,25 @@
  */
 package org.avis.io;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.SimpleByteBufferAllocator;
 
 import org.junit.Test;
 
+import org.avis.io.messages.Message;
 import org.avis.io.messages.NotifyDeliver;
+import org.avis.io.messages.NotifyEmit;
+
+import static org.avis.io.FrameCodec.setBufferAllocatorFor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests for FrameCodec.
@@ -50,11 +61,16 @@ public class JUTestFrameCodec
     
     NotifyDeliver notifyDeliver = 
       new NotifyDeliver (attributes, new long [] {1}, new long [0]);
-       
+    
+    long expanded = FrameSizePredictor.SHARED.expanded ();
+    
     testSetup.session.write (notifyDeliver);
    
     NotifyDeliver message = (NotifyDeliver)acceptorListener.waitForMessage ();
     
+    // encoded in one pass into a buffer of the right size
+    assertEquals (expanded, FrameSizePredictor.SHARED.expanded ());
+    
     assertEquals (attributes.get ("string"), message.attributes.get ("string"));
     assertEquals (((byte [])attributes.get ("blob")).length, 
                   ((byte [])message.attributes.get ("blob")).length);
@@ -62,6 +78,122 @@ public class JUTestFrameCodec
     testSetup.close ();
   }
 
+  /**
+   * Test that output buffers come from a session's own allocator when
+   * it has one.
+   */
+  @Test
+  public void bufferAllocator ()
+    throws Exception
+  {
+    AcceptorConnectorSetup testSetup = new AcceptorConnectorSetup ();
+    
+    TestingIoHandler acceptorListener = new TestingIoHandler ();
+    
+    testSetup.connect (acceptorListener, new TestingIoHandler ());
+    
+    final AtomicInteger allocations = new AtomicInteger ();
+    
+    setBufferAllocatorFor (testSetup.session, new SimpleByteBufferAllocator ()
+    {
+      @Override
+      public ByteBuffer allocate (int capacity, boolean direct)
+      {
+        allocations.incrementAndGet ();
+        
+        return super.allocate (capacity, direct);
+      }
+    });
+    
+    HashMap<String, Object> attributes = new HashMap<String, Object> ();
+    
+    attributes.put ("string", "hello world");
+    
+    testSetup.session.write 
+      (new NotifyDeliver (attributes, new long [] {1}, new long [0]));
+    
+    NotifyDeliver message = (NotifyDeliver)acceptorListener.waitForMessage ();
+    
+    assertEquals ("hello world", message.attributes.get ("string"));
+    assertEquals (1, allocations.get ());
+    
+    testSetup.close ();
+  }
+
+  /**
+   * Test that a notification's encoded attributes are re-used
+   * verbatim, and are invalidated by replacing the attributes.
+   */
+  @Test
+  public void encodedAttributes ()
+    throws Exception
+  {
+    HashMap<String, Object> attributes = new HashMap<String, Object> ();
+    
+    attributes.put ("string", "hello world");
+    attributes.put ("int", 42);
+    attributes.put ("opaque", new byte [] {1, 2, 3});
+    
+    NotifyEmit emit = new NotifyEmit (attributes);
+    
+    byte [] encoded = emit.encodedAttributes ();
+    
+    assertSame (encoded, emit.encodedAttributes ());
+    
+    // decoded attributes keep the bytes they were decoded from
+    NotifyEmit decoded = new NotifyEmit ();
+    
+    decoded.decode (encode (emit));
+    
+    assertTrue (Arrays.equals (encoded, decoded.encodedAttributes ()));
+    
+    // delivery from decoded notification uses shared bytes
+    NotifyDeliver deliver =
+      new NotifyDeliver (decoded, new long [] {1}, new long [] {2, 3});
+    
+    NotifyDeliver decodedDeliver = new NotifyDeliver ();
+    
+    decodedDeliver.decode (encode (deliver));
+    
+    assertEquals (attributes.get ("string"),
+                  decodedDeliver.attributes.get ("string"));
+    assertEquals (42, decodedDeliver.attributes.get ("int"));
+    assertTrue (Arrays.equals (new long [] {2, 3},
+                               decodedDeliver.insecureMatches));
+    
+    // replacing attributes invalidates encoded form
+    HashMap<String, Object> newAttributes =
+      new HashMap<String, Object> (attributes);
+    
+    newAttributes.put ("string", "goodbye");
+    
+    decoded.attributes = newAttributes;
+    
+    NotifyEmit redecoded = new NotifyEmit ();
+    
+    redecoded.decode (encode (decoded));
+    
+    assertEquals ("goodbye", redecoded.attributes.get ("string"));
+    
+    deliver.attributes = newAttributes;
+    
+    decodedDeliver.decode (encode (deliver));
+    
+    assertEquals ("goodbye", decodedDeliver.attributes.get ("string"));
+  }
+
+  private static ByteBuffer encode (Message message)
+    throws Exception
+  {
+    ByteBuffer buffer = ByteBuffer.allocate (1024);
+    
+    message.encode (buffer);
+    
+    buffer.flip ();
+    
+    return buffer;
+  }
+
   private static String bigString ()
   {
     StringBuilder str = new StringBuilder ();
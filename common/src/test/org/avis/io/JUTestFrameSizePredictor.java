@@ -0,0 +1,68 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.io;
+
+import org.junit.Test;
+
+import static org.avis.io.FrameSizePredictor.DEFAULT_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the {@link FrameSizePredictor} class.
+ */
+public class JUTestFrameSizePredictor
+{
+  @Test
+  public void predict ()
+    throws Exception
+  {
+    FrameSizePredictor predictor = new FrameSizePredictor ();
+    
+    assertEquals (DEFAULT_SIZE, predictor.predict (42));
+    
+    predictor.record (42, 1000);
+    
+    assertEquals (1000, predictor.predict (42));
+    assertEquals (DEFAULT_SIZE, predictor.predict (43));
+    
+    // rises immediately
+    predictor.record (42, 100000);
+    
+    assertEquals (100000, predictor.predict (42));
+    
+    // decays slowly towards smaller frames
+    predictor.record (42, 1000);
+    
+    int prediction = predictor.predict (42);
+    
+    assertTrue (prediction < 100000 && prediction > 50000);
+    
+    for (int i = 0; i < 100; i++)
+      predictor.record (42, 1000);
+    
+    assertTrue (predictor.predict (42) < 1100);
+    assertTrue (predictor.predict (42) >= 1000);
+    
+    predictor.recordEncode (false);
+    predictor.recordEncode (true);
+    
+    assertEquals (2L, predictor.encoded ());
+    assertEquals (1L, predictor.expanded ());
+  }
+}
@@ -22,6 +22,8 @@ import java.util.Map;
 
 import java.lang.reflect.Array;
 
+import java.nio.BufferUnderflowException;
+
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.filter.codec.ProtocolCodecException;
 
@@ -31,6 +33,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Test the {@link XdrCoding} utility class.
@@ -105,6 +108,83 @@ public class JUTestXdrCoding
     assertMapsEqual (nameValues, XdrCoding.getNameValues (buff));
   }
 
+  /**
+   * Test reading attributes with lazily decoded values.
+   */
+  @Test 
+  public void lazyAttributes ()
+    throws Exception
+  {
+    ByteBuffer buff = ByteBuffer.allocate (1024);
+    HashMap<String, Object> nameValues = new HashMap<String, Object> ();
+    
+    nameValues.put ("int", 42);
+    nameValues.put ("long", 42L);
+    nameValues.put ("real", 3.14);
+    nameValues.put ("empty", "");
+    nameValues.put ("ascii", "hello world");
+    nameValues.put ("utf8", "Hi there \u00C4\uFB03ns");
+    nameValues.put ("opaque", new byte [] {1, 2, 3, 4, 5});
+    
+    XdrCoding.putNameValues (buff, nameValues);
+    
+    byte [] bytes = encoded (buff);
+    
+    assertMapsEqual (nameValues, XdrCoding.getLazyAttributes (bytes));
+    
+    // skipping should consume exactly the encoded bytes
+    ByteBuffer in = ByteBuffer.wrap (bytes);
+    
+    XdrCoding.skipNameValues (in);
+    
+    assertEquals (bytes.length, in.position ());
+    
+    // malformed values must be rejected up front, not when read
+    buff.clear ();
+    buff.putInt (1);
+    XdrCoding.putString (buff, "bad");
+    buff.putInt (XdrCoding.TYPE_STRING);
+    buff.putInt (2);
+    buff.put (new byte [] {(byte)0xC3, (byte)0x28, 0, 0});
+    
+    try
+    {
+      XdrCoding.getLazyAttributes (encoded (buff));
+      
+      fail ();
+    } catch (ProtocolCodecException ex)
+    {
+      // ok
+    }
+    
+    buff.clear ();
+    buff.putInt (1);
+    XdrCoding.putString (buff, "truncated");
+    buff.putInt (XdrCoding.TYPE_OPAQUE);
+    buff.putInt (100);
+    
+    try
+    {
+      XdrCoding.skipNameValues (ByteBuffer.wrap (encoded (buff)));
+      
+      fail ();
+    } catch (BufferUnderflowException ex)
+    {
+      // ok
+    }
+  }
+  
+  private static byte [] encoded (ByteBuffer buff)
+  {
+    buff.flip ();
+    
+    byte [] bytes = new byte [buff.remaining ()];
+    
+    buff.get (bytes);
+    
+    return bytes;
+  }
+
   @Test 
   public void objectsIO ()
     throws Exception
@@ -0,0 +1,210 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.security;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import static org.avis.security.DualKeyScheme.Subset.CONSUMER;
+import static org.avis.security.DualKeyScheme.Subset.PRODUCER;
+import static org.avis.security.KeyScheme.SHA1_CONSUMER;
+import static org.avis.security.KeyScheme.SHA1_DUAL;
+import static org.avis.security.KeyScheme.SHA1_PRODUCER;
+import static org.avis.security.Keys.EMPTY_KEYS;
+
+public class JUTestKeyIndex
+{
+  private static final Key [] POOL = new Key [6];
+
+  static
+  {
+    for (int i = 0; i < POOL.length; i++)
+      POOL [i] = new Key ("key " + i);
+  }
+
+  /**
+   * Test the index finds exactly the items that Keys.match () does for
+   * random key collections.
+   */
+  @Test
+  public void match ()
+  {
+    Random random = new Random (42);
+    KeyIndex<Integer> index = new KeyIndex<Integer> ();
+    List<Keys> consumers = new ArrayList<Keys> ();
+
+    for (int i = 0; i < 300; i++)
+    {
+      Keys keys = randomKeys (random);
+
+      consumers.add (keys);
+      index.add (keys, i);
+    }
+
+    checkMatches (random, index, consumers);
+
+    // remove every other item
+    for (int i = 0; i < consumers.size (); i += 2)
+    {
+      index.remove (consumers.get (i), i);
+
+      consumers.set (i, EMPTY_KEYS);
+    }
+
+    checkMatches (random, index, consumers);
+
+    // change the keys of the rest
+    for (int i = 1; i < consumers.size (); i += 2)
+    {
+      Keys keys = randomKeys (random);
+
+      index.replace (consumers.get (i), keys, i);
+
+      consumers.set (i, keys);
+    }
+
+    checkMatches (random, index, consumers);
+
+    for (int i = 1; i < consumers.size (); i += 2)
+      index.remove (consumers.get (i), i);
+
+    assertEquals (0, index.size ());
+  }
+
+  /**
+   * Test that an item whose keys are replaced with keys that still
+   * match a producer is never missing from a concurrent match.
+   */
+  @Test
+  public void replaceIsAtomic ()
+    throws Exception
+  {
+    final KeyIndex<Integer> index = new KeyIndex<Integer> ();
+    final Keys keys1 = new Keys ();
+    final Keys keys2 = new Keys ();
+    Keys producer = new Keys ();
+
+    keys1.add (SHA1_PRODUCER, POOL [0]);
+    keys2.add (SHA1_PRODUCER, POOL [0]);
+    keys2.add (SHA1_PRODUCER, POOL [1]);
+    producer.add (SHA1_PRODUCER, POOL [0]);
+
+    assertTrue (keys1.match (producer));
+    assertTrue (keys2.match (producer));
+
+    index.add (keys1, 1);
+
+    final AtomicBoolean done = new AtomicBoolean ();
+
+    Thread writer = new Thread ()
+    {
+      @Override
+      public void run ()
+      {
+        while (!done.get ())
+        {
+          index.replace (keys1, keys2, 1);
+          index.replace (keys2, keys1, 1);
+        }
+      }
+    };
+
+    writer.start ();
+
+    try
+    {
+      Set<Integer> matches = new HashSet<Integer> ();
+
+      for (int i = 0; i < 100000; i++)
+      {
+        matches.clear ();
+
+        index.match (producer, matches);
+
+        assertTrue (matches.contains (1));
+      }
+    } finally
+    {
+      done.set (true);
+
+      writer.join ();
+    }
+
+    assertEquals (1, index.size ());
+  }
+
+  private static void checkMatches (Random random, KeyIndex<Integer> index,
+                                    List<Keys> consumers)
+  {
+    for (int i = 0; i < 300; i++)
+    {
+      Keys producer = randomKeys (random);
+      Set<Integer> expected = new HashSet<Integer> ();
+      Set<Integer> matches = new HashSet<Integer> ();
+
+      for (int j = 0; j < consumers.size (); j++)
+      {
+        if (consumers.get (j).match (producer))
+          expected.add (j);
+      }
+
+      index.match (producer, matches);
+
+      assertEquals (expected, matches);
+    }
+  }
+
+  private static Keys randomKeys (Random random)
+  {
+    Keys keys = new Keys ();
+
+    for (int i = random.nextInt (4); i > 0; i--)
+    {
+      switch (random.nextInt (4))
+      {
+        case 0:
+          keys.add (SHA1_PRODUCER, randomKey (random));
+          break;
+        case 1:
+          keys.add (SHA1_CONSUMER, randomKey (random));
+          break;
+        case 2:
+          keys.add (SHA1_DUAL, PRODUCER, randomKey (random));
+          break;
+        default:
+          keys.add (SHA1_DUAL, CONSUMER, randomKey (random));
+      }
+    }
+
+    return keys;
+  }
+
+  private static Key randomKey (Random random)
+  {
+    return POOL [random.nextInt (POOL.length)];
+  }
+}
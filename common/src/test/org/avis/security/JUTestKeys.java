@@ -17,6 +17,11 @@
  */
 package org.avis.security;
 
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
 import org.apache.mina.common.ByteBuffer;
 
 import org.junit.Test;
@@ -429,4 +434,73 @@ public class JUTestKeys
     assertTrue (aliceNtfnKeys.match (bobSubKeys));
     assertFalse (eveSubKeys.match (aliceNtfnKeys));
   }
+  
+  /**
+   * Test the compact key set against a HashSet, including keys with
+   * colliding hash codes.
+   */
+  @Test
+  public void keyArraySet ()
+  {
+    Key [] pool = new Key [20];
+    
+    for (int i = 0; i < pool.length - 2; i++)
+      pool [i] = new Key ("key " + i);
+    
+    pool [pool.length - 2] = new Key (new byte [] {0, 31});
+    pool [pool.length - 1] = new Key (new byte [] {1, 0});
+    
+    assertEquals (pool [pool.length - 2].hashCode (),
+                  pool [pool.length - 1].hashCode ());
+    
+    Random random = new Random (1);
+    
+    for (int round = 0; round < 200; round++)
+    {
+      KeyArraySet set1 = new KeyArraySet ();
+      KeyArraySet set2 = new KeyArraySet ();
+      Set<Key> expected1 = new HashSet<Key> ();
+      Set<Key> expected2 = new HashSet<Key> ();
+      
+      for (int i = 0; i < 30; i++)
+      {
+        Key key = pool [random.nextInt (pool.length)];
+        
+        if (random.nextInt (3) == 0)
+          assertEquals (expected1.remove (key), set1.remove (key));
+        else
+          assertEquals (expected1.add (key), set1.add (key));
+        
+        if (random.nextBoolean ())
+          assertEquals (expected2.add (key), set2.add (key));
+      }
+      
+      assertEquals (expected1, set1);
+      assertEquals (expected2, set2);
+      
+      for (Key key : pool)
+        assertEquals (expected1.contains (key), set1.contains (key));
+      
+      Set<Key> common = new HashSet<Key> (expected1);
+      common.retainAll (expected2);
+      
+      assertEquals (!common.isEmpty (), set1.intersects (set2));
+      assertEquals (!common.isEmpty (), set2.intersects (set1));
+      
+      Set<Key> difference = new HashSet<Key> (expected1);
+      difference.removeAll (expected2);
+      
+      assertEquals (difference, set1.difference (set2));
+      
+      // removal through the iterator
+      for (Iterator<Key> i = set1.iterator (); i.hasNext (); )
+      {
+        if (expected2.contains (i.next ()))
+          i.remove ();
+      }
+      
+      assertEquals (difference, set1);
+      assertFalse (set1.intersects (set2));
+    }
+  }
 }
@@ -0,0 +1,90 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.security;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import static org.avis.security.SecureHash.SHA1;
+
+public class JUTestPublicKeyCache
+{
+  @Test
+  public void cache ()
+  {
+    PublicKeyCache cache = new PublicKeyCache (64);
+
+    Key privateKey = new Key ("private key");
+    Key publicKey = cache.publicKeyFor (SHA1, privateKey);
+
+    assertEquals (new Key (SHA1.hash (privateKey.data)), publicKey);
+    assertEquals (1L, cache.misses ());
+
+    // an equal key hits
+    assertSame (publicKey,
+                cache.publicKeyFor (SHA1, new Key ("private key")));
+    assertEquals (1L, cache.hits ());
+
+    // changing the original key's data does not affect the cache
+    privateKey.data [0] = 'X';
+
+    assertSame (publicKey,
+                cache.publicKeyFor (SHA1, new Key ("private key")));
+
+    // keys too long to cache are hashed directly
+    Key longKey = new Key (new byte [PublicKeyCache.MAX_KEY_LENGTH + 1]);
+
+    assertEquals (new Key (SHA1.hash (longKey.data)),
+                  cache.publicKeyFor (SHA1, longKey));
+    assertEquals (1L, cache.misses ());
+    assertEquals (1, cache.size ());
+  }
+
+  @Test
+  public void evict ()
+  {
+    PublicKeyCache cache = new PublicKeyCache (64);
+
+    for (int i = 0; i < 10000; i++)
+    {
+      Key privateKey = new Key ("key " + i);
+
+      assertEquals (new Key (SHA1.hash (privateKey.data)),
+                    cache.publicKeyFor (SHA1, privateKey));
+    }
+
+    assertTrue (cache.size () <= 64);
+    assertEquals (10000L - cache.size (), cache.evictions ());
+  }
+
+  @Test
+  public void disabled ()
+  {
+    PublicKeyCache cache = new PublicKeyCache (0);
+
+    Key privateKey = new Key ("private key");
+
+    assertEquals (cache.publicKeyFor (SHA1, privateKey),
+                  cache.publicKeyFor (SHA1, privateKey));
+    assertEquals (0, cache.size ());
+    assertEquals (0L, cache.hits ());
+  }
+}
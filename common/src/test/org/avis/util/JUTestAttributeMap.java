@@ -0,0 +1,231 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JUTestAttributeMap
+{
+  @Test
+  public void slots ()
+  {
+    int slot = AttributeNames.slotFor ("slots-test");
+
+    assertTrue (slot >= 0);
+    assertEquals (slot, AttributeNames.slotFor (new String ("slots-test")));
+    assertEquals (slot, AttributeNames.slotOf ("slots-test"));
+    assertEquals ("slots-test", AttributeNames.nameOf (slot));
+
+    AttributeMap map = new AttributeMap ();
+
+    assertNull (map.get (slot));
+    assertFalse (map.containsKey (slot));
+
+    map.put (new String ("slots-test"), 42);
+
+    assertEquals (42, map.get (slot));
+    assertEquals (42, map.get ("slots-test"));
+    assertTrue (map.containsKey (slot));
+    assertEquals (42, AttributeMap.get (map, "slots-test", slot));
+
+    // keys are interned
+    assertSame (AttributeNames.nameOf (slot),
+                map.keySet ().iterator ().next ());
+
+    // null values are allowed
+    map.put ("slots-test", null);
+
+    assertTrue (map.containsKey (slot));
+    assertNull (map.get (slot));
+  }
+
+  /**
+   * Test that lazy values are decoded once, when first read.
+   */
+  @Test
+  public void lazyValues ()
+  {
+    final int [] decodes = new int [1];
+    AttributeMap map = new AttributeMap ();
+
+    map.put ("lazy", new AttributeMap.LazyValue ()
+    {
+      @Override
+      protected Object decode ()
+      {
+        decodes [0]++;
+
+        return "value";
+      }
+    });
+
+    assertTrue (map.containsKey ("lazy"));
+    assertEquals (0, decodes [0]);
+
+    assertEquals ("value", map.get ("lazy"));
+    assertEquals ("value", map.get (AttributeNames.slotFor ("lazy")));
+    assertEquals ("value", map.values ().iterator ().next ());
+    assertEquals (1, decodes [0]);
+
+    assertEquals ("value", map.put ("lazy", "other"));
+    assertEquals ("other", map.get ("lazy"));
+  }
+
+  /**
+   * Test that iterating over keys and entries does not decode lazy
+   * values unless an entry's value is read.
+   */
+  @Test
+  public void lazyIteration ()
+  {
+    final int [] decodes = new int [1];
+    AttributeMap map = new AttributeMap ();
+
+    map.put ("plain", "plain value");
+
+    for (int i = 0; i < 3; i++)
+    {
+      map.put ("lazy" + i, new AttributeMap.LazyValue ()
+      {
+        @Override
+        protected Object decode ()
+        {
+          decodes [0]++;
+
+          return "value";
+        }
+      });
+    }
+
+    int count = 0;
+
+    for (String name : map.keySet ())
+    {
+      assertTrue (map.containsKey (name));
+
+      count++;
+    }
+
+    assertEquals (4, count);
+    assertTrue (map.keySet ().contains ("lazy1"));
+    assertFalse (map.keySet ().contains ("missing"));
+
+    count = 0;
+
+    for (Map.Entry<String, Object> entry : map.entrySet ())
+    {
+      assertTrue (map.containsKey (entry.getKey ()));
+
+      count++;
+    }
+
+    assertEquals (4, count);
+    assertEquals (0, decodes [0]);
+
+    Map.Entry<String, Object> lazyEntry = null;
+
+    for (Map.Entry<String, Object> entry : map.entrySet ())
+    {
+      if (entry.getKey ().equals ("lazy0"))
+        lazyEntry = entry;
+    }
+
+    assertEquals ("value", lazyEntry.getValue ());
+    assertEquals (1, decodes [0]);
+
+    // removing through the key set leaves the rest intact
+    for (Iterator<String> i = map.keySet ().iterator (); i.hasNext (); )
+    {
+      if (i.next ().startsWith ("lazy"))
+        i.remove ();
+    }
+
+    assertEquals (1, map.size ());
+    assertEquals ("plain value", map.get ("plain"));
+    assertEquals (1, decodes [0]);
+  }
+
+  /**
+   * Apply the same random operations to an AttributeMap and a HashMap
+   * and check they stay the same.
+   */
+  @Test
+  public void sameAsHashMap ()
+  {
+    Random random = new Random (42);
+    AttributeMap map = new AttributeMap (2);
+    Map<String, Object> expected = new HashMap<String, Object> ();
+
+    for (int i = 0; i < 10000; i++)
+    {
+      String name = "attr" + random.nextInt (40);
+
+      switch (random.nextInt (5))
+      {
+        case 0:
+        case 1:
+          assertEquals (expected.put (name, i), map.put (name, i));
+          break;
+        case 2:
+          assertEquals (expected.remove (name), map.remove (name));
+          break;
+        case 3:
+          int slot = AttributeNames.slotFor (name);
+
+          assertEquals (expected.get (name), map.get (slot));
+          assertEquals (expected.containsKey (name), map.containsKey (slot));
+          break;
+        default:
+          // remove a random subset via the iterator
+          for (Iterator<String> j = map.keySet ().iterator (); j.hasNext (); )
+          {
+            String key = j.next ();
+
+            if (random.nextInt (8) == 0)
+            {
+              j.remove ();
+              expected.remove (key);
+            }
+          }
+      }
+
+      assertEquals (expected.size (), map.size ());
+    }
+
+    assertEquals (expected, map);
+    assertEquals (map, expected);
+    assertEquals (expected.hashCode (), map.hashCode ());
+    assertEquals (expected, new AttributeMap (expected));
+
+    map.clear ();
+
+    assertTrue (map.isEmpty ());
+    assertNull (map.get ("attr1"));
+  }
+}
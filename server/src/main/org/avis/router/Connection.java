@@ -17,25 +17,58 @@
  */
 package org.avis.router;
 
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.mina.common.IoSession;
 
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 
 import org.avis.config.Options;
+import org.avis.security.KeyIndex;
 import org.avis.security.Keys;
+import org.avis.subscription.parser.ParseException;
 
 import static org.avis.security.DualKeyScheme.Subset.CONSUMER;
 import static org.avis.security.DualKeyScheme.Subset.PRODUCER;
+import static org.avis.security.Keys.EMPTY_KEYS;
 
 /**
  * Stores the state needed for a client's connection to the router.
- * Thread access is managed via a single writer/multiple reader lock.
+ * <p>
+ * Changes to the connection are serialised by a write lock. Changes
+ * that affect delivery publish new immutable state that
+ * notifications are matched against without locking, so a client
+ * changing its subscriptions does not stall deliveries to it: each
+ * subscription's delivery settings are published as a {@link Grant},
+ * and the connection-wide keys as a {@link Snapshot}. Only the state
+ * that changed is replaced, so a change costs the same however many
+ * subscriptions the connection has.
  * 
  * @author Matthew Phillips
  */
 class Connection
 {
+  /**
+   * Per thread buffers for the results of matchSubscriptions ().
+   */
+  private static final ThreadLocal<SubscriptionMatch> MATCHES =
+    new ThreadLocal<SubscriptionMatch> ()
+  {
+    @Override
+    protected SubscriptionMatch initialValue ()
+    {
+      return new SubscriptionMatch ();
+    }
+  };
+  
+  /**
+   * The session the connection is using (immutable).
+   */
+  public final IoSession session;
+  
   /**
    * Connection options established on construction (immutable).
    */
@@ -60,13 +93,36 @@ class Connection
   public Long2ObjectOpenHashMap<Subscription> subscriptions;
 
   /**
-   * Single writer/multiple reader lock.
+   * The router's subscription index, which must be kept in sync with
+   * the subscription set.
    */
-  private ReentrantReadWriteLock lock;
+  private SubscriptionIndex subscriptionIndex;
+
+  /**
+   * The router's index of subscription keys, which must be kept in
+   * sync with the connection's subscription keys and those of its
+   * subscriptions.
+   */
+  private KeyIndex<Object> keyIndex;
+
+  /**
+   * The connection-wide state used for delivery, republished after
+   * every change to the connection's keys. Null when the connection
+   * is closed.
+   */
+  private volatile Snapshot snapshot;
+
+  /**
+   * Serialises changes to the connection.
+   */
+  private ReentrantLock lock;
 
   /**
    * Create a new connection instance.
    * 
+   * @param session The connection's session.
+   * @param subscriptionIndex The router's subscription index.
+   * @param keyIndex The router's subscription key index.
    * @param defaultOptions The default connection options.
    * 
    * @param requestedOptions The client's requested option values.
@@ -75,18 +131,28 @@ class Connection
    * @param notificationKeys The client's initial global notification
    *                key collection.
    */
-  public Connection (Options defaultOptions,
+  public Connection (IoSession session,
+                     SubscriptionIndex subscriptionIndex,
+                     KeyIndex<Object> keyIndex,
+                     Options defaultOptions,
                      Map<String, Object> requestedOptions,
                      Keys subscriptionKeys, Keys notificationKeys)
   {
+    this.session = session;
+    this.subscriptionIndex = subscriptionIndex;
+    this.keyIndex = keyIndex;
     this.subscriptions = new Long2ObjectOpenHashMap<Subscription> ();
     this.subscriptionKeys = subscriptionKeys;
     this.notificationKeys = notificationKeys;
     this.options = new ClientConnectionOptions (defaultOptions, requestedOptions);
-    this.lock = new ReentrantReadWriteLock (true);
+    this.lock = new ReentrantLock ();
     
     subscriptionKeys.hashPrivateKeysForRole (CONSUMER);
     notificationKeys.hashPrivateKeysForRole (PRODUCER);
+    
+    keyIndex.add (subscriptionKeys, this);
+    
+    publish ();
   }
 
   /**
@@ -94,51 +160,127 @@ class Connection
    */
   public void close ()
   {
-    // use null options as marker for closed connection
+    if (options == null)
+      return;
+    
+    // use null options and snapshot as marker for closed connection
     options = null;
+    snapshot = null;
+    
+    subscriptionIndex.removeAll (subscriptions.values ());
+    
+    keyIndex.remove (subscriptionKeys, this);
+    
+    for (Subscription subscription : subscriptions.values ())
+      keyIndex.remove (subscription.keys, subscription);
+    
+    subscriptions.clear ();
   }
   
   public boolean isOpen ()
   {
-    return options != null;
+    return snapshot != null;
   }
   
   /**
-   * Lock the connection for writing. There can be only one writer and
-   * zero readers at any one time.
+   * Lock the connection for writing. There can be only one writer at
+   * any one time. Delivery does not need to lock the connection.
    */
   public void lockWrite ()
   {
-    lock.writeLock ().lock ();
+    lock.lock ();
   }
 
   public void unlockWrite ()
   {
-    lock.writeLock ().unlock ();
+    lock.unlock ();
   }
   
   /**
-   * Lock the connection for reading. There can be any number of
-   * readers and zero writers at any one time.
+   * The connection-wide notification keys, read without locking.
    */
-  public void lockRead ()
+  public Keys notificationKeys ()
   {
-    lock.readLock ().lock ();
-  }
-
-  public void unlockRead ()
-  {
-    lock.readLock ().unlock ();
+    Snapshot current = snapshot;
+    
+    return current == null ? EMPTY_KEYS : current.notificationKeys;
   }
   
   public void addSubscription (Subscription sub)
   {
     subscriptions.put (sub.id, sub);
+    
+    subscriptionIndex.add (this, sub);
+    keyIndex.add (sub.keys, sub);
+    
+    sub.grant = new Grant (this, sub.acceptInsecure);
   }
 
   public Subscription removeSubscription (long subscriptionId)
   {
-    return subscriptions.remove (subscriptionId);
+    Subscription sub = subscriptions.remove (subscriptionId);
+    
+    if (sub != null)
+    {
+      subscriptionIndex.remove (sub);
+      keyIndex.remove (sub.keys, sub);
+      
+      sub.grant = null;
+    }
+    
+    return sub;
+  }
+  
+  /**
+   * Change the expression of one of the connection's subscriptions.
+   * 
+   * @throws ParseException if the new expression is invalid, in
+   *           which case the subscription is unchanged.
+   */
+  public void updateSubscription (Subscription sub, String expr)
+    throws ParseException
+  {
+    sub.updateExpression (expr);
+    
+    subscriptionIndex.update (sub);
+  }
+  
+  /**
+   * Change the security settings of one of the connection's
+   * subscriptions.
+   */
+  public void updateSubscription (Subscription sub, Keys keys,
+                                  boolean acceptInsecure)
+  {
+    keyIndex.replace (sub.keys, keys, sub);
+    
+    sub.keys = keys;
+    sub.acceptInsecure = acceptInsecure;
+    sub.grant = new Grant (this, acceptInsecure);
+  }
+  
+  /**
+   * Change the connection-wide keys.
+   */
+  public void updateKeys (Keys newNotificationKeys, 
+                          Keys newSubscriptionKeys)
+  {
+    keyIndex.replace (subscriptionKeys, newSubscriptionKeys, this);
+    
+    notificationKeys = newNotificationKeys;
+    subscriptionKeys = newSubscriptionKeys;
+    
+    publish ();
+  }
+  
+  /**
+   * Publish a new snapshot of the connection-wide delivery state.
+   * Must be called with the connection locked for writing.
+   */
+  private void publish ()
+  {
+    if (options != null)
+      snapshot = new Snapshot (notificationKeys);
   }
   
   /**
@@ -168,49 +310,51 @@ class Connection
   }
 
   /**
-   * Match a given set of attributes against this connection's
-   * subscriptions and return the ID's of those subscriptions that
-   * match.
+   * Filter a set of this connection's subscriptions that are known
+   * to match a notification's attributes by their security keys, and
+   * return the ID's of those that can be delivered to.
    * 
-   * @param attributes The attributes to match.
-   * @param globalKeys The set of notification keys that apply to all
-   *          notifications.
-   * @param messageKeys The set of keys provided for the current
-   *          notification. Either these keys or globalKeys must match
-   *          a subscription's keys for a secure match to apply.
+   * @param candidates The subscriptions whose expressions match the
+   *          notification. Subscriptions that are no longer part of
+   *          this connection are ignored, as are all candidates if
+   *          the connection is closed.
+   * @param secured The connections and subscriptions whose keys match
+   *          the notification's keys, as found in the router's key
+   *          index. A subscription is a secure match if either it or
+   *          its connection is in this set.
    * @param deliverInsecure If true, insecure matches are acceptable
    *          for subscriptions that allow insecure delivery.
    * 
-   * @return The match result.
+   * @return The match result. This is a per thread buffer that is
+   *         reused by the next call in the same thread, so it must be
+   *         used before then.
    */
-  public SubscriptionMatch matchSubscriptions (Map<String, Object> attributes,
-                                               Keys globalKeys,
-                                               Keys messageKeys,
+  public SubscriptionMatch matchSubscriptions (List<Subscription> candidates,
+                                               Set<Object> secured,
                                                boolean deliverInsecure)
   {
-    SubscriptionMatch matches = new SubscriptionMatch ();
+    SubscriptionMatch matches = MATCHES.get ();
+    Snapshot current = snapshot;
     
-    for (Subscription subscription : subscriptions.values ())
+    matches.reset ();
+    
+    if (current == null)
+      return matches;
+    
+    boolean connectionSecured = secured.contains (this);
+    
+    for (int i = 0; i < candidates.size (); i++)
     {
-      /*
-       * Check message/global keys against global subscription keys
-       * and keys for the current subscription.
-       */
-      boolean secureMatch = subscriptionKeys.match (globalKeys) ||
-                            subscriptionKeys.match (messageKeys) ||
-                            subscription.keys.match (globalKeys) ||
-                            subscription.keys.match (messageKeys);
+      Subscription subscription = candidates.get (i);
+      Grant grant = subscription.grant;
+      
+      if (grant == null || grant.connection != this)
+        continue;
       
-      if (secureMatch || (deliverInsecure && subscription.acceptInsecure))
-      {
-        if (subscription.matches (attributes))
-        {
-          if (secureMatch)
-            matches.secure.add (subscription.id);
-          else
-            matches.insecure.add (subscription.id);
-        }
-      }
+      if (connectionSecured || secured.contains (subscription))
+        matches.addSecure (subscription.id);
+      else if (deliverInsecure && grant.acceptInsecure)
+        matches.addInsecure (subscription.id);
     }
     
     return matches;
@@ -226,4 +370,35 @@ class Connection
     else
       throw new InvalidSubscriptionException ("No subscription with ID " + id);
   }
+  
+  /**
+   * An immutable copy of the connection-wide state needed to deliver
+   * notifications to a connection.
+   */
+  static final class Snapshot
+  {
+    public final Keys notificationKeys;
+    
+    public Snapshot (Keys notificationKeys)
+    {
+      this.notificationKeys = notificationKeys;
+    }
+  }
+  
+  /**
+   * The delivery settings of a subscription that is part of a
+   * connection, replaced whenever they change. Secure delivery is
+   * decided by the router's key index.
+   */
+  static final class Grant
+  {
+    public final Connection connection;
+    public final boolean acceptInsecure;
+    
+    public Grant (Connection connection, boolean acceptInsecure)
+    {
+      this.connection = connection;
+      this.acceptInsecure = acceptInsecure;
+    }
+  }
 }
@@ -80,15 +80,14 @@ public class ConnectionOptionSet extends OptionSet
     add ("Subscription.Max-Count", 16, 2*K, 2*K);
     add ("Subscription.Max-Length", 1*K, 2*K, 4*K);
     
+    // enforced by ReceiveQueue and SendQueue
     add ("Receive-Queue.Max-Length", 1*K, 1*MB, 1*MB);
-
-    // todo: enforce following queue-related options
     add ("Receive-Queue.Drop-Policy",
          "oldest", "newest", "largest", "fail");
     
     add ("Send-Queue.Drop-Policy",
          "oldest", "newest", "largest", "fail");
-    add ("Send-Queue.Max-Length", MAX, MAX, MAX);
+    add ("Send-Queue.Max-Length", 1*K, 10*MB, 10*MB);
 
     add ("Supported-Key-Schemes", "SHA-1");    
     
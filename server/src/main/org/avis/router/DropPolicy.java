@@ -0,0 +1,75 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * The policies for dropping packets from a client's send or receive
+ * queue when it exceeds its max length, as selected by the
+ * Send-Queue.Drop-Policy and Receive-Queue.Drop-Policy connection
+ * options.
+ * <p>
+ * As a comparator, a policy orders queue entries so that the entry to
+ * be dropped first comes first. FAIL drops no entries, and orders them
+ * oldest first.
+ */
+enum DropPolicy implements Comparator<MessageQueue.Entry>
+{
+  /** Drop the oldest notifications in the queue. */
+  OLDEST,
+  
+  /** Drop the most recently queued notifications. */
+  NEWEST,
+  
+  /** Drop the largest notifications in the queue. */
+  LARGEST,
+  
+  /** Disconnect the client. */
+  FAIL;
+  
+  /**
+   * Get the policy for a drop policy option value.
+   */
+  public static DropPolicy parse (String value)
+  {
+    return valueOf (value.toUpperCase (Locale.ENGLISH));
+  }
+  
+  public int compare (MessageQueue.Entry entry1, MessageQueue.Entry entry2)
+  {
+    if (this == LARGEST && entry1.size != entry2.size)
+      return entry1.size > entry2.size ? -1 : 1;
+    else if (this == NEWEST)
+      return compareSequence (entry2, entry1);
+    else
+      return compareSequence (entry1, entry2);
+  }
+  
+  private static int compareSequence (MessageQueue.Entry entry1,
+                                      MessageQueue.Entry entry2)
+  {
+    if (entry1.sequence < entry2.sequence)
+      return -1;
+    else if (entry1.sequence > entry2.sequence)
+      return 1;
+    else
+      return 0;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import java.io.StringReader;
+
+import org.avis.subscription.ast.Node;
+import org.avis.subscription.parser.ParseException;
+import org.avis.subscription.parser.SubscriptionParser;
+
+import static org.avis.subscription.ast.Nodes.requiredAttributes;
+import static org.avis.subscription.index.AttributeSignature.signatureOf;
+
+/**
+ * A router-wide LRU cache of parsed subscription expressions, keyed by
+ * expression text. Clients often subscribe with identical expressions
+ * (especially when many reconnect at once), and a cache hit saves both
+ * the parse and the memory for a separate copy of the AST.
+ * <p>
+ * Cached ASTs are shared by all subscriptions with the same
+ * expression, which is safe since ASTs are not modified after
+ * parsing.
+ * <p>
+ * The cache is bounded by the estimated memory footprint of its
+ * entries rather than their number, since expressions vary widely in
+ * size. Thread safe.
+ */
+final class ExpressionCache
+{
+  /** Estimated overhead of an entry, its key and its map entry. */
+  private static final int ENTRY_FOOTPRINT = 128;
+
+  /** Estimated size of an AST node. */
+  private static final int NODE_FOOTPRINT = 48;
+
+  private LinkedHashMap<String, Expression> entries;
+  private long maxFootprint;
+  private long footprint;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Create a new instance.
+   *
+   * @param maxFootprint The maximum estimated footprint of the cache,
+   *          in bytes. 0 disables caching.
+   */
+  public ExpressionCache (long maxFootprint)
+  {
+    this.maxFootprint = maxFootprint;
+    this.entries = new LinkedHashMap<String, Expression> (16, 0.75f, true);
+  }
+
+  /**
+   * Get the parsed form of an expression, parsing it if not cached.
+   *
+   * @throws ParseException if the expression is not valid. Invalid
+   *           expressions are not cached.
+   */
+  public Expression get (String expr)
+    throws ParseException
+  {
+    Expression expression;
+
+    synchronized (this)
+    {
+      expression = entries.get (expr);
+
+      if (expression != null)
+      {
+        hits++;
+
+        return expression;
+      }
+
+      misses++;
+    }
+
+    // parse outside the lock: a race may parse an expression twice,
+    // but only one copy will be cached
+    expression = new Expression (expr);
+
+    synchronized (this)
+    {
+      Expression existing = entries.get (expr);
+
+      if (existing != null)
+        return existing;
+
+      if (expression.footprint <= maxFootprint)
+      {
+        entries.put (expr, expression);
+
+        footprint += expression.footprint;
+
+        evict ();
+      }
+    }
+
+    return expression;
+  }
+
+  /**
+   * Evict least recently used entries until the cache fits.
+   */
+  private void evict ()
+  {
+    Iterator<Expression> i = entries.values ().iterator ();
+
+    while (footprint > maxFootprint && i.hasNext ())
+    {
+      footprint -= i.next ().footprint;
+
+      i.remove ();
+
+      evictions++;
+    }
+  }
+
+  public synchronized long hits ()
+  {
+    return hits;
+  }
+
+  public synchronized long misses ()
+  {
+    return misses;
+  }
+
+  public synchronized long evictions ()
+  {
+    return evictions;
+  }
+
+  /**
+   * The number of cached expressions.
+   */
+  public synchronized int size ()
+  {
+    return entries.size ();
+  }
+
+  /**
+   * The estimated memory footprint of the cached expressions, in
+   * bytes.
+   */
+  public synchronized long footprint ()
+  {
+    return footprint;
+  }
+
+  /**
+   * A parsed subscription expression. Immutable.
+   */
+  static final class Expression
+  {
+    /** The root of the expression's AST. */
+    public final Node ast;
+
+    /** The expression's required attribute signature. */
+    public final long requiredSignature;
+
+    /** The estimated memory footprint, in bytes. */
+    final long footprint;
+
+    public Expression (String expr)
+      throws ParseException
+    {
+      this.ast =
+        new SubscriptionParser (new StringReader (expr)).parseAndValidate ();
+      this.requiredSignature = signatureOf (requiredAttributes (ast));
+      this.footprint =
+        ENTRY_FOOTPRINT + expr.length () * 2 + nodeCount (ast) * NODE_FOOTPRINT;
+    }
+
+    private static int nodeCount (Node node)
+    {
+      int count = 1;
+
+      for (Node child : node.children ())
+        count += nodeCount (child);
+
+      return count;
+    }
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.avis.io.messages.Message;
+
+/**
+ * The messages waiting in a {@link SendQueue} or {@link ReceiveQueue},
+ * in arrival order, along with their total size. Entries for
+ * notifications are droppable: the queue selects which of these to
+ * drop next according to its {@link DropPolicy}.
+ * <p>
+ * A slow client's queue can hold a great many entries, and entries
+ * are dropped one at a time as new ones arrive, so no operation scans
+ * the queue: entries are kept in a linked list that they can be
+ * unlinked from directly, and droppable entries are also kept sorted
+ * in the order the drop policy will drop them.
+ * <p>
+ * Not thread safe: the owning queue synchronizes access.
+ */
+class MessageQueue<E extends MessageQueue.Entry> implements Iterable<E>
+{
+  private Entry head;
+  private Entry tail;
+  private int size;
+  private long length;
+  private long sequence;
+
+  /**
+   * The droppable entries, ordered by the drop policy.
+   */
+  private SortedSet<Entry> droppable;
+
+  public MessageQueue ()
+  {
+    this.droppable = new TreeSet<Entry> (DropPolicy.OLDEST);
+  }
+
+  public void setDropPolicy (DropPolicy dropPolicy)
+  {
+    if (droppable.comparator () != dropPolicy)
+    {
+      SortedSet<Entry> newDroppable = new TreeSet<Entry> (dropPolicy);
+
+      newDroppable.addAll (droppable);
+
+      droppable = newDroppable;
+    }
+  }
+
+  /**
+   * The number of entries.
+   */
+  public int size ()
+  {
+    return size;
+  }
+
+  /**
+   * The total size in bytes of the entries.
+   */
+  public long length ()
+  {
+    return length;
+  }
+
+  public boolean isEmpty ()
+  {
+    return size == 0;
+  }
+
+  /**
+   * Iterate over the entries in arrival order.
+   */
+  public Iterator<E> iterator ()
+  {
+    return new EntryIterator ();
+  }
+
+  /**
+   * Add an entry to the end of the queue.
+   */
+  public void add (E entry)
+  {
+    entry.sequence = sequence++;
+    entry.previous = tail;
+    entry.next = null;
+
+    if (tail == null)
+      head = entry;
+    else
+      tail.next = entry;
+
+    tail = entry;
+    size++;
+    length += entry.size;
+
+    if (entry.droppable)
+      droppable.add (entry);
+  }
+
+  /**
+   * Remove the entry at the head of the queue.
+   *
+   * @throws NoSuchElementException if the queue is empty.
+   */
+  public E removeFirst ()
+  {
+    if (head == null)
+      throw new NoSuchElementException ();
+
+    E entry = cast (head);
+
+    remove (entry);
+
+    return entry;
+  }
+
+  /**
+   * Remove an entry from the queue. Does nothing if the entry is not
+   * in the queue.
+   */
+  public void remove (E entry)
+  {
+    if (entry.previous == null && head != entry)
+      return;
+
+    if (entry.previous == null)
+      head = entry.next;
+    else
+      entry.previous.next = entry.next;
+
+    if (entry.next == null)
+      tail = entry.previous;
+    else
+      entry.next.previous = entry.previous;
+
+    entry.previous = null;
+    entry.next = null;
+
+    size--;
+    length -= entry.size;
+
+    if (entry.droppable)
+      droppable.remove (entry);
+  }
+
+  /**
+   * Remove the droppable entry that should be dropped next according
+   * to the drop policy.
+   *
+   * @return The entry removed, or null if there are no droppable
+   *         entries.
+   */
+  public E removeVictim ()
+  {
+    if (droppable.isEmpty ())
+      return null;
+
+    E victim = cast (droppable.first ());
+
+    remove (victim);
+
+    return victim;
+  }
+
+  public void clear ()
+  {
+    for (Entry entry = head; entry != null; )
+    {
+      Entry next = entry.next;
+
+      entry.previous = null;
+      entry.next = null;
+
+      entry = next;
+    }
+
+    head = null;
+    tail = null;
+    size = 0;
+    length = 0;
+    droppable.clear ();
+  }
+
+  @SuppressWarnings("unchecked")
+  private E cast (Entry entry)
+  {
+    return (E)entry;
+  }
+
+  class EntryIterator implements Iterator<E>
+  {
+    private Entry next;
+
+    public EntryIterator ()
+    {
+      this.next = head;
+    }
+
+    public boolean hasNext ()
+    {
+      return next != null;
+    }
+
+    public E next ()
+    {
+      if (next == null)
+        throw new NoSuchElementException ();
+
+      E entry = cast (next);
+
+      next = next.next;
+
+      return entry;
+    }
+
+    public void remove ()
+    {
+      throw new UnsupportedOperationException ();
+    }
+  }
+
+  /**
+   * A message waiting in a queue.
+   */
+  static class Entry
+  {
+    public Message message;
+    public final int size;
+    public final boolean droppable;
+
+    /**
+     * Orders entries by arrival, for the drop policy.
+     */
+    long sequence;
+
+    Entry previous;
+    Entry next;
+
+    /**
+     * Create a new instance.
+     *
+     * @param message The message.
+     * @param size The estimated size of the message in bytes.
+     * @param droppable True if the message may be dropped.
+     */
+    public Entry (Message message, int size, boolean droppable)
+    {
+      this.message = message;
+      this.size = size;
+      this.droppable = droppable;
+    }
+  }
+}
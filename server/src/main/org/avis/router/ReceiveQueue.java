@@ -0,0 +1,297 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecException;
+
+import org.avis.io.messages.Message;
+import org.avis.io.messages.Notify;
+
+import static org.avis.logging.Log.warn;
+import static org.avis.util.Text.idFor;
+
+/**
+ * A bounded inbound message queue for a client session, implementing
+ * the Receive-Queue.Max-Length and Receive-Queue.Drop-Policy
+ * connection options.
+ * <p>
+ * The queue tracks decoded messages waiting for the router's thread
+ * pool: it is attached to a session's filter chain on either side of
+ * the thread pool filter. When the waiting messages exceed the max
+ * length, notifications are dropped according to the drop policy.
+ * Notifications already handed to the thread pool are dropped by
+ * marking them to be skipped when they come out of it. Requests and
+ * other messages are never dropped: if these alone exceed the max
+ * length, reads from the session are suspended until the queue
+ * drains.
+ * <p>
+ * Thread safe.
+ */
+class ReceiveQueue
+{
+  /**
+   * The estimated decoded size of messages other than notifications,
+   * which are small.
+   */
+  private static final int MESSAGE_SIZE = 64;
+  
+  private IoSession session;
+  private MessageQueue<Entry> queue;
+  private long maxLength;
+  private DropPolicy dropPolicy;
+  private boolean suspended;
+  private long dropped;
+
+  public ReceiveQueue (IoSession session, int maxLength, String dropPolicy)
+  {
+    this.session = session;
+    this.queue = new MessageQueue<Entry> ();
+    
+    setLimits (maxLength, dropPolicy);
+  }
+  
+  /**
+   * Add the queue's filters to a session's filter chain, either side
+   * of the filter that hands messages off to a thread pool.
+   * 
+   * @param chain The session's filter chain.
+   * @param threadPoolFilter The name of the thread pool filter.
+   */
+  public void attach (IoFilterChain chain, String threadPoolFilter)
+  {
+    chain.addBefore (threadPoolFilter, "receiveQueue.add", new Add ());
+    chain.addAfter (threadPoolFilter, "receiveQueue.release", new Release ());
+  }
+  
+  /**
+   * Set the queue's max length and drop policy.
+   * 
+   * @param maxLength The max number of bytes of messages waiting.
+   * @param dropPolicy The drop policy: "oldest", "newest", "largest"
+   *          or "fail".
+   */
+  public synchronized void setLimits (int maxLength, String dropPolicy)
+  {
+    this.maxLength = maxLength;
+    this.dropPolicy = DropPolicy.parse (dropPolicy);
+    
+    queue.setDropPolicy (this.dropPolicy);
+  }
+  
+  /**
+   * The number of messages waiting.
+   */
+  public synchronized int size ()
+  {
+    return queue.size ();
+  }
+  
+  /**
+   * The estimated number of bytes of messages waiting.
+   */
+  public synchronized long length ()
+  {
+    return queue.length ();
+  }
+  
+  /**
+   * The total number of notifications dropped.
+   */
+  public synchronized long dropped ()
+  {
+    return dropped;
+  }
+  
+  /**
+   * Add a received message to the queue, dropping notifications if
+   * needed.
+   * 
+   * @return The queue entry to pass on for processing, or null if the
+   *         message was dropped.
+   */
+  synchronized Entry add (Message message)
+  {
+    Entry entry = new Entry (message, sizeOf (message));
+    
+    queue.add (entry);
+    
+    // a single message is always accepted, however large
+    if (queue.length () > maxLength && queue.size () > 1)
+    {
+      drop ();
+      
+      if (queue.length () > maxLength && queue.size () > 1 && 
+          !suspended && !session.isClosing ())
+      {
+        session.suspendRead ();
+        
+        suspended = true;
+      }
+    }
+    
+    return entry.dropped ? null : entry;
+  }
+  
+  /**
+   * Remove an entry from the queue when it is ready to be processed.
+   * 
+   * @return The entry's message, or null if it was dropped.
+   */
+  synchronized Message release (Entry entry)
+  {
+    if (entry.dropped)
+      return null;
+    
+    queue.remove (entry);
+    
+    if (suspended && queue.length () <= maxLength)
+    {
+      session.resumeRead ();
+      
+      suspended = false;
+    }
+    
+    return entry.message;
+  }
+  
+  /**
+   * Drop notifications according to the drop policy until the queue
+   * is within its max length, or there are no notifications left to
+   * drop.
+   */
+  private void drop ()
+  {
+    if (dropPolicy == DropPolicy.FAIL)
+    {
+      warn ("Closing connection to client " + idFor (session) + 
+            ": receive queue overflowed", this);
+      
+      for (Entry entry : queue)
+        entry.drop ();
+      
+      queue.clear ();
+      
+      session.close ();
+      
+      return;
+    }
+    
+    while (queue.length () > maxLength && queue.size () > 1)
+    {
+      Entry victim = queue.removeVictim ();
+      
+      if (victim == null)
+        break;
+      
+      victim.drop ();
+      
+      dropped++;
+    }
+  }
+
+  private static int sizeOf (Message message)
+  {
+    if (message instanceof Notify)
+    {
+      try
+      {
+        return ((Notify)message).encodedAttributes ().length;
+      } catch (ProtocolCodecException ex)
+      {
+        return MESSAGE_SIZE;
+      }
+    } else
+    {
+      return MESSAGE_SIZE;
+    }
+  }
+  
+  /**
+   * A message waiting in the queue.
+   */
+  static final class Entry extends MessageQueue.Entry
+  {
+    public boolean dropped;
+    
+    public Entry (Message message, int size)
+    {
+      super (message, size, message instanceof Notify);
+    }
+    
+    /**
+     * Mark as dropped, releasing the message.
+     */
+    public void drop ()
+    {
+      dropped = true;
+      message = null;
+    }
+  }
+  
+  /**
+   * Adds messages to the queue before they are handed to the thread
+   * pool.
+   */
+  class Add extends IoFilterAdapter
+  {
+    @Override
+    public void messageReceived (IoFilter.NextFilter nextFilter,
+                                 IoSession ioSession, Object message)
+      throws Exception
+    {
+      if (message instanceof Message)
+      {
+        Entry entry = add ((Message)message);
+        
+        if (entry != null)
+          nextFilter.messageReceived (ioSession, entry);
+      } else
+      {
+        nextFilter.messageReceived (ioSession, message);
+      }
+    }
+  }
+
+  /**
+   * Releases messages from the queue as they come out of the thread
+   * pool.
+   */
+  class Release extends IoFilterAdapter
+  {
+    @Override
+    public void messageReceived (IoFilter.NextFilter nextFilter,
+                                 IoSession ioSession, Object message)
+      throws Exception
+    {
+      if (message instanceof Entry)
+      {
+        Message entryMessage = release ((Entry)message);
+        
+        if (entryMessage != null)
+          nextFilter.messageReceived (ioSession, entryMessage);
+      } else
+      {
+        nextFilter.messageReceived (ioSession, message);
+      }
+    }
+  }
+}
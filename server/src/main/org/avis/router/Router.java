@@ -17,6 +17,7 @@
  */
 package org.avis.router;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,14 +34,15 @@ import java.net.URI;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 
+import org.apache.mina.common.ByteBufferAllocator;
 import org.apache.mina.common.DefaultIoFilterChainBuilder;
 import org.apache.mina.common.ExceptionMonitor;
 import org.apache.mina.common.IdleStatus;
 import org.apache.mina.common.IoHandler;
 import org.apache.mina.common.IoSession;
+import org.apache.mina.common.SimpleByteBufferAllocator;
 import org.apache.mina.common.ThreadModel;
 import org.apache.mina.common.WriteFuture;
-import org.apache.mina.filter.ReadThrottleFilterBuilder;
 import org.apache.mina.filter.codec.ProtocolCodecException;
 import org.apache.mina.filter.executor.ExecutorFilter;
 import org.apache.mina.transport.socket.nio.SocketAcceptor;
@@ -50,6 +52,7 @@ import org.avis.common.ElvinURI;
 import org.avis.config.Options;
 import org.avis.io.ClientFrameCodec;
 import org.avis.io.ExceptionMonitorLogger;
+import org.avis.io.FrameSizePredictor;
 import org.avis.io.FrameTooLargeException;
 import org.avis.io.messages.ConfConn;
 import org.avis.io.messages.ConnRply;
@@ -73,7 +76,9 @@ import org.avis.io.messages.SubRply;
 import org.avis.io.messages.TestConn;
 import org.avis.io.messages.UNotify;
 import org.avis.io.messages.XidMessage;
+import org.avis.security.KeyIndex;
 import org.avis.security.Keys;
+import org.avis.security.PublicKeyCache;
 import org.avis.subscription.parser.ConstantExpressionException;
 import org.avis.subscription.parser.ParseException;
 import org.avis.util.ConcurrentHashSet;
@@ -85,6 +90,7 @@ import org.avis.util.Text;
 import static java.lang.Runtime.getRuntime;
 import static java.lang.System.currentTimeMillis;
 import static java.lang.Thread.sleep;
+import static java.util.Collections.emptySet;
 import static java.util.concurrent.Executors.newCachedThreadPool;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.mina.common.ByteBuffer.setUseDirectBuffers;
@@ -94,6 +100,7 @@ import static org.apache.mina.common.IoFutureListener.CLOSE;
 import static org.avis.common.Common.CLIENT_VERSION_MAJOR;
 import static org.avis.common.Common.CLIENT_VERSION_MINOR;
 import static org.avis.common.Common.DEFAULT_PORT;
+import static org.avis.io.FrameCodec.setBufferAllocatorFor;
 import static org.avis.io.FrameCodec.setMaxFrameLengthFor;
 import static org.avis.io.LegacyConnectionOptions.setWithLegacy;
 import static org.avis.io.Net.addressesFor;
@@ -108,6 +115,7 @@ import static org.avis.io.messages.Nack.NOT_IMPL;
 import static org.avis.io.messages.Nack.NO_SUCH_SUB;
 import static org.avis.io.messages.Nack.PARSE_ERROR;
 import static org.avis.io.messages.Nack.PROT_INCOMPAT;
+import static org.avis.logging.Log.DIAGNOSTIC;
 import static org.avis.logging.Log.TRACE;
 import static org.avis.logging.Log.alarm;
 import static org.avis.logging.Log.diagnostic;
@@ -140,6 +148,16 @@ public class Router implements IoHandler, Closeable
   private volatile boolean closing;
   
   private ConcurrentHashSet<IoSession> sessions;
+  private SubscriptionShards subscriptionShards;
+  private KeyIndex<Object> subscriptionKeys;
+  private int parallelMatchThreshold;
+  private ExpressionCache expressionCache;
+  
+  /**
+   * The allocator for session output buffers when IO.Pool-Buffers is
+   * off, or null to use MINA's shared pooled allocator.
+   */
+  private ByteBufferAllocator bufferAllocator;
 
   private ListenerList<NotifyListener> notifyListeners;
   private ListenerList<CloseListener> closeListeners;
@@ -189,17 +207,27 @@ public class Router implements IoHandler, Closeable
     
     this.routerOptions = options;
     this.sessions = new ConcurrentHashSet<IoSession> ();
+    this.expressionCache =
+      new ExpressionCache (options.getInt ("Subscription.Parse-Cache-Size"));
     this.executor = newCachedThreadPool ();
+    this.subscriptionShards =
+      new SubscriptionShards (getRuntime ().availableProcessors (), executor);
+    this.subscriptionKeys = new KeyIndex<Object> ();
+    this.parallelMatchThreshold =
+      options.getInt ("Subscription.Parallel-Match-Threshold");
     this.acceptor =
       new SocketAcceptor (getRuntime ().availableProcessors () + 1,
                           executor);
     
     setUseDirectBuffers (options.getBoolean ("IO.Use-Direct-Buffers"));
     
+    if (!options.getBoolean ("IO.Pool-Buffers"))
+      bufferAllocator = new SimpleByteBufferAllocator ();
+    
     /*
      * Setup IO filter chain with codec and then thread pool. NOTE:
-     * The read throttling system needs an ExecutorFilter to glom
-     * onto: it's not clear that we gain any other benefit from it
+     * The receive queue (see ReceiveQueue) needs an ExecutorFilter
+     * to glom onto: it's not clear that we gain any other benefit from it
      * since notification processing is non-blocking. See
      * http://mina.apache.org/configuring-thread-model.html.
      */
@@ -388,6 +416,32 @@ public class Router implements IoHandler, Closeable
     closeListeners.fire (this);
     closeListeners = null;
     
+    if (shouldLog (DIAGNOSTIC))
+    {
+      diagnostic ("Subscription prefilter rejected " + 
+                  subscriptionShards.prefilterRejections () + " of " + 
+                  subscriptionShards.prefilterChecks () + 
+                  " subscriptions checked before evaluation", this);
+      
+      diagnostic ("Subscription parse cache: " + expressionCache.hits () + 
+                  " hits, " + expressionCache.misses () + " misses, " + 
+                  expressionCache.evictions () + " evictions, " + 
+                  expressionCache.size () + " expressions using " +
+                  expressionCache.footprint () + " bytes", this);
+      
+      PublicKeyCache keyCache = PublicKeyCache.SHARED;
+      
+      diagnostic ("Public key cache: " + keyCache.hits () + " hits, " + 
+                  keyCache.misses () + " misses, " + 
+                  keyCache.evictions () + " evictions, " + 
+                  keyCache.size () + " keys", this);
+      
+      FrameSizePredictor predictor = FrameSizePredictor.SHARED;
+      
+      diagnostic ("Frame encoder: " + predictor.expanded () + " of " + 
+                  predictor.encoded () + " buffers expanded", this);
+    }
+    
     Disconn disconnMessage = new Disconn (REASON_SHUTDOWN);
     
     for (IoSession session : sessions)
@@ -428,6 +482,9 @@ public class Router implements IoHandler, Closeable
     {
       diagnostic ("Interrupted while waiting for shutdown", this, ex);
     }
+    
+    if (bufferAllocator != null)
+      bufferAllocator.dispose ();
   }
 
   private void waitForAllSessionsClosed ()
@@ -632,8 +689,10 @@ public class Router implements IoHandler, Closeable
       throw new ProtocolCodecException ("Already connected");
     
     Connection connection =
-      new Connection (routerOptions, message.options,
-                      message.subscriptionKeys, message.notificationKeys);
+      new Connection (session, subscriptionShards.assign (),
+                      subscriptionKeys, routerOptions, 
+                      message.options, message.subscriptionKeys, 
+                      message.notificationKeys);
     
     int maxKeys = connection.options.getInt ("Connection.Max-Keys");
     
@@ -708,8 +767,7 @@ public class Router implements IoHandler, Closeable
         nackLimit (session, message, "Too many keys");
       } else
       {
-        connection.notificationKeys = newNtfnKeys;
-        connection.subscriptionKeys = newSubKeys;
+        connection.updateKeys (newNtfnKeys, newSubKeys);
       
         send (session, new SecRply (message));
       }
@@ -755,7 +813,8 @@ public class Router implements IoHandler, Closeable
       {
         Subscription subscription =
           new Subscription (message.subscriptionExpr,
-                            message.keys, message.acceptInsecure);
+                            message.keys, message.acceptInsecure,
+                            expressionCache);
        
         connection.addSubscription (subscription);
   
@@ -795,10 +854,11 @@ public class Router implements IoHandler, Closeable
       } else
       {
         if (message.subscriptionExpr.length () > 0)
-          subscription.updateExpression (message.subscriptionExpr);
+          connection.updateSubscription (subscription, 
+                                         message.subscriptionExpr);
   
-        subscription.keys = newKeys;
-        subscription.acceptInsecure = message.acceptInsecure;
+        connection.updateSubscription (subscription, newKeys,
+                                       message.acceptInsecure);
         
         send (session, new SubRply (message, subscription.id));
       }
@@ -840,7 +900,7 @@ public class Router implements IoHandler, Closeable
     
     message.keys.hashPrivateKeysForRole (PRODUCER);
     
-    deliverNotification (message, connectionFor (session).notificationKeys);
+    deliverNotification (message, connectionFor (session).notificationKeys ());
   }
 
   private void handleUnotify (UNotify message)
@@ -869,61 +929,100 @@ public class Router implements IoHandler, Closeable
    *          to the message. These are in addition to any keys
    *          attached to the message itself.
    */
-  private void deliverNotification (Notify message, Keys notificationKeys)
+  private void deliverNotification (final Notify message,
+                                    final Keys notificationKeys)
   {
-    for (IoSession session : sessions)
+    final Set<Object> secured = securedBy (notificationKeys, message.keys);
+    
+    SubscriptionShards.Handler delivery = new SubscriptionShards.Handler ()
     {
-      Connection connection = peekConnectionFor (session);
-      
-      if (connection == null)
-        continue;
-      
-      connection.lockRead ();
-
-      try
-      {        
-        if (!connection.isOpen ())
-          continue;
-        
-        SubscriptionMatch matches =
-          connection.matchSubscriptions (message.attributes,
-                                         notificationKeys,
-                                         message.keys,
-                                         message.deliverInsecure);
-
-        if (matches.matched ())
-        {
-          if (shouldLog (TRACE))
-          {
-            trace ("Delivering notification " + idFor (message) + 
-                   " to client " + idFor (session), this);
-          }
-          
-          send (session, new NotifyDeliver (message.attributes,
-                                            matches.secure (),
-                                            matches.insecure ()));
-        }
-      } catch (RuntimeException ex)
-      {
-        /*
-         * Do not allow "normal" runtime exceptions to abort delivery
-         * to other clients. Log and continue to next client.
-         */
-        alarm ("Exception while delivering notification", this, ex);
-      } finally
+      public void matched (Connection connection,
+                           List<Subscription> subscriptions)
       {
-        connection.unlockRead ();
+        deliverNotification (message, connection, subscriptions, secured);
       }
-    }
+    };
+    
+    /*
+     * Matching the shards in parallel only pays once there are enough
+     * sessions to outweigh handing the work off to other threads.
+     */
+    subscriptionShards.match
+      (message.attributes, delivery,
+       sessions.size () >= parallelMatchThreshold);
     
     if (notifyListeners.hasListeners ())
       notifyListeners.fire (message, notificationKeys);
   }
+  
+  /**
+   * Find the connections and subscriptions whose keys allow secure
+   * delivery of a notification.
+   * 
+   * @param notificationKeys The global keys of the notification's
+   *          producer.
+   * @param messageKeys The keys attached to the notification.
+   * 
+   * @return The set of Connection's (for connection-wide keys) and
+   *         Subscription's that match either set of keys.
+   */
+  private Set<Object> securedBy (Keys notificationKeys, Keys messageKeys)
+  {
+    if (notificationKeys.isEmpty () && messageKeys.isEmpty ())
+      return emptySet ();
+    
+    Set<Object> secured = new HashSet<Object> ();
+    
+    subscriptionKeys.match (notificationKeys, secured);
+    subscriptionKeys.match (messageKeys, secured);
+    
+    return secured;
+  }
+  
+  /**
+   * Deliver a notification to a connection with a set of candidate
+   * subscriptions that match it, pending security checks.
+   */
+  private void deliverNotification (Notify message,
+                                    Connection connection,
+                                    List<Subscription> subscriptions,
+                                    Set<Object> secured)
+  {
+    try
+    {        
+      // matches against the connection's current snapshot, no lock needed
+      SubscriptionMatch matches =
+        connection.matchSubscriptions (subscriptions, secured,
+                                       message.deliverInsecure);
+
+      if (matches.matched ())
+      {
+        if (shouldLog (TRACE))
+        {
+          trace ("Delivering notification " + idFor (message) + 
+                 " to client " + idFor (connection.session), this);
+        }
+        
+        send (connection.session, 
+              new NotifyDeliver (message,
+                                 matches.secure (),
+                                 matches.insecure ()));
+      }
+    } catch (RuntimeException ex)
+    {
+      /*
+       * Do not allow "normal" runtime exceptions to abort delivery
+       * to other clients. Log and continue to next client.
+       */
+      alarm ("Exception while delivering notification", this, ex);
+    }
+  }
 
   private static void handleTestConn (IoSession session)
   {
     // if no other outgoing messages are waiting, send a confirm message
-    if (session.getScheduledWriteRequests () == 0)
+    if (session.getScheduledWriteRequests () == 0 &&
+        sendQueueFor (session).size () == 0)
       send (session, ConfConn.INSTANCE);
   }
   
@@ -1016,18 +1115,23 @@ public class Router implements IoHandler, Closeable
   }
   
   /**
-   * Update the receive/send queue lengths based on connection
-   * options. Currently only implements Receive-Queue.Max-Length using
-   * MINA's ReadThrottleFilterBuilder filter.
+   * Update the receive/send queue limits based on connection
+   * options.
    */
   private static void updateQueueLength (IoSession session,
                                          Connection connection)
   {
-    ReadThrottleFilterBuilder readThrottle =
-      (ReadThrottleFilterBuilder)session.getAttribute ("readThrottle");
+    receiveQueueFor (session).setLimits
+      (connection.options.getInt ("Receive-Queue.Max-Length"),
+       connection.options.getString ("Receive-Queue.Drop-Policy"));
     
-    readThrottle.setMaximumConnectionBufferSize
-      (connection.options.getInt ("Receive-Queue.Max-Length"));
+    SendQueue sendQueue = sendQueueFor (session);
+    
+    sendQueue.setLimits
+      (connection.options.getInt ("Send-Queue.Max-Length"),
+       connection.options.getString ("Send-Queue.Drop-Policy"));
+    sendQueue.setSendImmediately
+      (connection.options.getInt ("TCP.Send-Immediately") != 0);
   }
 
   /**
@@ -1111,7 +1215,7 @@ public class Router implements IoHandler, Closeable
   public void messageSent (IoSession session, Object message)
     throws Exception
   {
-    // zip
+    sendQueueFor (session).messageSent ();
   }
 
   /**
@@ -1124,6 +1228,8 @@ public class Router implements IoHandler, Closeable
       trace ("Server session " + Text.idFor (session) + " closed", this);
     
     sessions.remove (session);
+    
+    sendQueueFor (session).clear ();
 
     Connection connection = peekConnectionFor (session);
     
@@ -1154,15 +1260,30 @@ public class Router implements IoHandler, Closeable
       (READER_IDLE, 
        routerOptions.getInt ("IO.Idle-Connection-Timeout"));
     
-    // install read throttle
-    ReadThrottleFilterBuilder readThrottle = new ReadThrottleFilterBuilder ();
+    // install receive queue
+    ReceiveQueue receiveQueue =
+      new ReceiveQueue
+        (session,
+         CONNECTION_OPTION_SET.defaults.getInt ("Receive-Queue.Max-Length"),
+         CONNECTION_OPTION_SET.defaults.getString 
+           ("Receive-Queue.Drop-Policy"));
     
-    readThrottle.setMaximumConnectionBufferSize
-      (CONNECTION_OPTION_SET.defaults.getInt ("Receive-Queue.Max-Length"));
+    receiveQueue.attach (session.getFilterChain (), "threadPool");
     
-    readThrottle.attach (session.getFilterChain ());
+    session.setAttribute ("receiveQueue", receiveQueue);
     
-    session.setAttribute ("readThrottle", readThrottle);
+    // install send queue
+    session.setAttribute
+      ("sendQueue",
+       new SendQueue 
+         (session,
+          CONNECTION_OPTION_SET.defaults.getInt ("Send-Queue.Max-Length"),
+          CONNECTION_OPTION_SET.defaults.getString 
+            ("Send-Queue.Drop-Policy"),
+          routerOptions.getInt ("IO.Write-Coalesce-Size")));
+    
+    if (bufferAllocator != null)
+      setBufferAllocatorFor (session, bufferAllocator);
     
     // set default max length for connectionless sessions
     setMaxFrameLengthFor
@@ -1252,7 +1373,23 @@ public class Router implements IoHandler, Closeable
              Router.class);
     }
     
-    return session.write (message);
+    return sendQueueFor (session).send (message);
+  }
+  
+  /**
+   * The queue for incoming messages from a client session.
+   */
+  static ReceiveQueue receiveQueueFor (IoSession session)
+  {
+    return (ReceiveQueue)session.getAttribute ("receiveQueue");
+  }
+  
+  /**
+   * The queue for outgoing messages to a client session.
+   */
+  static SendQueue sendQueueFor (IoSession session)
+  {
+    return (SendQueue)session.getAttribute ("sendQueue");
   }
 
   private void logNotification (IoSession session, Notify message)
@@ -24,6 +24,9 @@ import org.avis.io.InetAddressFilter;
 import org.avis.util.Filter;
 
 import static org.avis.common.Common.DEFAULT_PORT;
+import static org.avis.common.Common.K;
+import static org.avis.common.Common.MAX;
+import static org.avis.common.Common.MB;
 import static org.avis.io.Net.uri;
 import static org.avis.router.ConnectionOptionSet.CONNECTION_OPTION_SET;
 
@@ -40,6 +43,10 @@ public class RouterOptionSet extends OptionSet
     add ("Listen", "elvin://0.0.0.0");
     add ("IO.Idle-Connection-Timeout", 1, 15, Integer.MAX_VALUE);
     add ("IO.Use-Direct-Buffers", false);
+    add ("IO.Pool-Buffers", true);
+    add ("IO.Write-Coalesce-Size", 0, 64*K, 1*MB);
+    add ("Subscription.Parse-Cache-Size", 0, 4*MB, MAX);
+    add ("Subscription.Parallel-Match-Threshold", 0, 1000, MAX);
     add ("TLS.Keystore", new OptionTypeURI (), uri (""));
     add ("TLS.Keystore-Passphrase", "");
     add ("Require-Authenticated", 
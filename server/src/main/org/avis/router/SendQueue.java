@@ -0,0 +1,382 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import org.apache.mina.common.IoFuture;
+import org.apache.mina.common.IoFutureListener;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.WriteFuture;
+import org.apache.mina.common.support.DefaultWriteFuture;
+import org.apache.mina.filter.codec.ProtocolCodecException;
+
+import org.avis.io.messages.DropWarn;
+import org.avis.io.messages.Message;
+import org.avis.io.messages.NotifyDeliver;
+
+import static java.lang.Math.min;
+import static org.avis.io.FrameCodec.maxFrameLengthFor;
+import static org.avis.logging.Log.warn;
+import static org.avis.util.Text.idFor;
+
+/**
+ * A bounded outbound message queue for a client session, implementing
+ * the Send-Queue.Max-Length and Send-Queue.Drop-Policy connection
+ * options.
+ * <p>
+ * Messages are passed straight to the session while its pending
+ * output is below a small window. Beyond that they are held here until
+ * the session catches up (see {@link #messageSent()}), which lets
+ * notifications still in the queue be dropped when the total of the
+ * session's pending output and the queue exceeds the maximum length.
+ * Only notifications are dropped: replies and other messages are
+ * always sent. A DropWarn is queued to tell the client whenever
+ * notifications are dropped.
+ * <p>
+ * Unless the client has asked for TCP.Send-Immediately, writes are
+ * also coalesced: while a write to the session is in progress,
+ * further messages wait in the queue, and are then written together
+ * as a single buffer of up to the coalesce size. Messages are never
+ * delayed when the session is idle, so this adds no latency, but
+ * under load it amortises per-write overheads across many frames.
+ * <p>
+ * Thread safe.
+ */
+class SendQueue
+{
+  /**
+   * Messages are written straight to the session while it has less
+   * than this many bytes waiting to be sent.
+   */
+  static final int WRITE_WINDOW = 64 * 1024;
+
+  /**
+   * The estimated encoded size of messages other than notifications,
+   * which are small.
+   */
+  private static final int MESSAGE_SIZE = 64;
+
+  private IoSession session;
+  private MessageQueue<Entry> queue;
+  private long maxLength;
+  private DropPolicy dropPolicy;
+  private boolean dropWarnQueued;
+  private long dropped;
+  private int coalesceSize;
+  private boolean sendImmediately;
+
+  /**
+   * Create a new instance.
+   * 
+   * @param session The session to send to.
+   * @param maxLength The max number of bytes pending for output.
+   * @param dropPolicy The drop policy.
+   * @param coalesceSize The max size in bytes of a coalesced write.
+   *          Zero disables coalescing.
+   */
+  public SendQueue (IoSession session, int maxLength, String dropPolicy,
+                    int coalesceSize)
+  {
+    this.session = session;
+    this.queue = new MessageQueue<Entry> ();
+    this.coalesceSize = coalesceSize;
+    
+    setLimits (maxLength, dropPolicy);
+  }
+  
+  /**
+   * Set the queue's max length and drop policy.
+   * 
+   * @param maxLength The max number of bytes pending for output.
+   * @param dropPolicy The drop policy: "oldest", "newest", "largest"
+   *          or "fail".
+   */
+  public synchronized void setLimits (int maxLength, String dropPolicy)
+  {
+    this.maxLength = maxLength;
+    this.dropPolicy = DropPolicy.parse (dropPolicy);
+    
+    queue.setDropPolicy (this.dropPolicy);
+  }
+  
+  /**
+   * Set whether the client wants messages sent immediately, which
+   * disables coalescing of writes.
+   */
+  public synchronized void setSendImmediately (boolean sendImmediately)
+  {
+    this.sendImmediately = sendImmediately;
+  }
+  
+  /**
+   * The number of messages waiting in the queue. This does not
+   * include messages already passed on to the session.
+   */
+  public synchronized int size ()
+  {
+    return queue.size ();
+  }
+  
+  /**
+   * The estimated number of bytes of output pending for the session,
+   * including those already passed on to the session.
+   */
+  public synchronized long length ()
+  {
+    return session.getScheduledWriteBytes () + queue.length ();
+  }
+  
+  /**
+   * The total number of notifications dropped.
+   */
+  public synchronized long dropped ()
+  {
+    return dropped;
+  }
+  
+  /**
+   * Send a message.
+   * 
+   * @return The future for the write. This completes when the message
+   *         is written or, if it is dropped, fails.
+   */
+  public synchronized WriteFuture send (Message message)
+  {
+    if (queue.isEmpty () && canWrite ())
+      return session.write (message);
+    
+    Entry entry = new Entry (session, message, sizeOf (message));
+    
+    queue.add (entry);
+    
+    if (length () > maxLength)
+      drop ();
+    
+    return entry.future;
+  }
+  
+  /**
+   * Called when a message has been sent by the session: passes
+   * waiting messages on to the session while it can take them.
+   */
+  public synchronized void messageSent ()
+  {
+    while (!queue.isEmpty () && canWrite ())
+    {
+      if (coalescing ())
+      {
+        writeCoalesced ();
+      } else
+      {
+        Entry entry = removeFirst ();
+        
+        entry.forward (session.write (entry.message));
+      }
+    }
+  }
+  
+  private boolean coalescing ()
+  {
+    return coalesceSize > 0 && !sendImmediately;
+  }
+  
+  /**
+   * True if messages can be passed on to the session rather than
+   * queued: i.e. if there is no write in progress or, when not
+   * coalescing, if the session is below the write window.
+   * <p>
+   * NB: MINA fires messageSent () for a write before it deducts the
+   * written bytes from the session's scheduled write bytes, so the
+   * scheduled request count is the only reliable signal that the last
+   * write has completed. Without this check the final messageSent ()
+   * can see a stale byte count and leave the queue stranded.
+   */
+  private boolean canWrite ()
+  {
+    if (session.getScheduledWriteRequests () == 0)
+      return true;
+    else if (coalescing ())
+      return false;
+    else
+      return session.getScheduledWriteBytes () < WRITE_WINDOW;
+  }
+  
+  /**
+   * Write as many notifications from the head of the queue as will
+   * fit in the coalesce size in one write. Other messages, and
+   * notifications too large to coalesce, are written on their own.
+   */
+  private void writeCoalesced ()
+  {
+    int maxFrameSize = min (coalesceSize, maxFrameLengthFor (session));
+    int batchSize = 0;
+    int count = 0;
+    
+    for (Entry entry : queue)
+    {
+      int frameSize = entry.size + 8;
+      
+      if (!(entry.message instanceof NotifyDeliver) ||
+          frameSize > maxFrameSize || batchSize + frameSize > coalesceSize)
+      {
+        break;
+      }
+      
+      batchSize += frameSize;
+      count++;
+    }
+    
+    if (count <= 1)
+    {
+      Entry entry = removeFirst ();
+      
+      entry.forward (session.write (entry.message));
+    } else
+    {
+      Entry [] entries = new Entry [count];
+      Message [] messages = new Message [count];
+      
+      for (int i = 0; i < count; i++)
+      {
+        entries [i] = removeFirst ();
+        messages [i] = entries [i].message;
+      }
+      
+      WriteFuture future = session.write (messages);
+      
+      for (Entry entry : entries)
+        entry.forward (future);
+    }
+  }
+  
+  private Entry removeFirst ()
+  {
+    Entry entry = queue.removeFirst ();
+    
+    if (entry.message instanceof DropWarn)
+      dropWarnQueued = false;
+    
+    return entry;
+  }
+  
+  /**
+   * Discard all waiting messages, failing their write futures. Used
+   * when the session closes.
+   */
+  public synchronized void clear ()
+  {
+    for (Entry entry : queue)
+      entry.future.setWritten (false);
+    
+    queue.clear ();
+  }
+  
+  /**
+   * Drop notifications according to the drop policy until the queue
+   * is within its max length, or there are no notifications left to
+   * drop.
+   */
+  private void drop ()
+  {
+    if (dropPolicy == DropPolicy.FAIL)
+    {
+      warn ("Closing connection to client " + idFor (session) + 
+            ": send queue overflowed", this);
+      
+      clear ();
+      
+      session.close ();
+      
+      return;
+    }
+    
+    int count = 0;
+    
+    while (length () > maxLength)
+    {
+      Entry victim = queue.removeVictim ();
+      
+      if (victim == null)
+        break;
+      
+      victim.future.setWritten (false);
+      
+      count++;
+    }
+    
+    if (count > 0)
+    {
+      dropped += count;
+      
+      if (!dropWarnQueued)
+      {
+        Entry dropWarn = new Entry (session, new DropWarn (), MESSAGE_SIZE);
+        
+        queue.add (dropWarn);
+        dropWarnQueued = true;
+      }
+    }
+  }
+
+  private static int sizeOf (Message message)
+  {
+    if (message instanceof NotifyDeliver)
+    {
+      try
+      {
+        return ((NotifyDeliver)message).encodedSize ();
+      } catch (ProtocolCodecException ex)
+      {
+        // will fail again when the session encodes it
+        return MESSAGE_SIZE;
+      }
+    } else
+    {
+      return MESSAGE_SIZE;
+    }
+  }
+  
+  /**
+   * A message waiting in the queue.
+   */
+  static final class Entry
+    extends MessageQueue.Entry implements IoFutureListener
+  {
+    public final DefaultWriteFuture future;
+    
+    public Entry (IoSession session, Message message, int size)
+    {
+      super (message, size, message instanceof NotifyDeliver);
+      
+      this.future = new DefaultWriteFuture (session);
+    }
+
+    /**
+     * Complete this entry's future when the session's write future
+     * for the message completes.
+     */
+    public void forward (WriteFuture sessionFuture)
+    {
+      sessionFuture.addListener (this);
+    }
+    
+    public void operationComplete (IoFuture sessionFuture)
+    {
+      future.setWritten (((WriteFuture)sessionFuture).isWritten ());
+    }
+  }
+}
@@ -17,18 +17,14 @@
  */
 package org.avis.router;
 
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
-import java.io.StringReader;
-
+import org.avis.router.ExpressionCache.Expression;
 import org.avis.security.Keys;
 import org.avis.subscription.ast.Node;
 import org.avis.subscription.parser.ParseException;
-import org.avis.subscription.parser.SubscriptionParser;
 
 import static org.avis.security.DualKeyScheme.Subset.CONSUMER;
-import static org.avis.subscription.ast.Node.TRUE;
 
 /**
  * Represents a client's subscription.
@@ -44,15 +40,42 @@ class Subscription
   public boolean acceptInsecure;
   public Keys keys;
 
-  private Node ast;
+  /**
+   * The subscription's delivery settings, published by its connection
+   * for lock-free delivery. Null if the subscription is not part of a
+   * connection.
+   */
+  volatile Connection.Grant grant;
+
+  private Expression expression;
+  private ExpressionCache cache;
 
   public Subscription (String expr, Keys keys, boolean acceptInsecure)
     throws ParseException
+  {
+    this (expr, keys, acceptInsecure, null);
+  }
+
+  /**
+   * Create a new instance.
+   * 
+   * @param expr The subscription expression.
+   * @param keys The subscription keys.
+   * @param acceptInsecure True if insecure notifications are accepted.
+   * @param cache The cache to parse expressions through, or null to
+   *          parse them directly.
+   *          
+   * @throws ParseException if the expression is invalid.
+   */
+  public Subscription (String expr, Keys keys, boolean acceptInsecure,
+                       ExpressionCache cache)
+    throws ParseException
   {
     this.expr = expr;
     this.keys = keys;
     this.acceptInsecure = acceptInsecure;
-    this.ast = parse (expr);
+    this.cache = cache;
+    this.expression = parse (expr);
     this.id = nextId ();
     
     keys.hashPrivateKeysForRole (CONSUMER);
@@ -61,19 +84,36 @@ class Subscription
   public void updateExpression (String subscriptionExpr)
     throws ParseException
   {
-    ast = parse (subscriptionExpr);
+    expression = parse (subscriptionExpr);
     expr = subscriptionExpr;
   }
   
-  public boolean matches (Map<String, Object> attributes)
+  /**
+   * The root of the subscription expression's AST.
+   */
+  public Node ast ()
+  {
+    return expression.ast;
+  }
+  
+  /**
+   * The signature of the attributes a notification must have to match
+   * the subscription.
+   * 
+   * @see org.avis.subscription.index.AttributeSignature
+   */
+  public long requiredSignature ()
   {
-    return ast.evaluate (attributes) == TRUE;
+    return expression.requiredSignature;
   }
   
-  private static Node parse (String expr)
+  private Expression parse (String subscriptionExpr)
     throws ParseException
   {
-    return new SubscriptionParser (new StringReader (expr)).parseAndValidate ();
+    if (cache == null)
+      return new Expression (subscriptionExpr);
+    else
+      return cache.get (subscriptionExpr);
   }
 
   private static long nextId ()
@@ -0,0 +1,1168 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import org.avis.subscription.ast.NameParentNode;
+import org.avis.subscription.ast.Node;
+import org.avis.subscription.ast.StringCompareNode;
+import org.avis.subscription.ast.nodes.And;
+import org.avis.subscription.ast.nodes.Compare;
+import org.avis.subscription.ast.nodes.Const;
+import org.avis.subscription.ast.nodes.Field;
+import org.avis.subscription.ast.nodes.Nan;
+import org.avis.subscription.ast.nodes.Require;
+import org.avis.subscription.ast.nodes.Size;
+import org.avis.subscription.ast.nodes.StrBeginsWith;
+import org.avis.subscription.ast.nodes.StrContains;
+import org.avis.subscription.ast.nodes.StrEndsWith;
+import org.avis.subscription.ast.nodes.StrRegex;
+import org.avis.subscription.ast.nodes.StrWildcard;
+import org.avis.subscription.ast.nodes.Type;
+import org.avis.subscription.index.EqualityIndex;
+import org.avis.subscription.index.PatternIndex;
+import org.avis.subscription.index.RangeIndex;
+import org.avis.subscription.index.StringTrie;
+import org.avis.subscription.index.SubstringIndex;
+import org.avis.subscription.index.Visitor;
+import org.avis.subscription.regex.LinearPattern;
+
+import static org.avis.logging.Log.alarm;
+import static org.avis.subscription.ast.NodeCompiler.DEFAULT_COMPILE_THRESHOLD;
+import static org.avis.subscription.ast.NodeCompiler.compileAfter;
+import static org.avis.subscription.ast.Node.TRUE;
+import static org.avis.subscription.index.AttributeSignature.covers;
+import static org.avis.subscription.index.AttributeSignature.signatureOf;
+
+/**
+ * A router-wide index of client subscriptions that finds the
+ * subscriptions matching a notification without evaluating every
+ * subscription in turn.
+ * <p>
+ * Each subscription expression is broken into its top-level
+ * conjuncts (the children of a root AND, or the root itself). A
+ * conjunct that can only be true when a given attribute is present
+ * becomes a predicate indexed by that attribute. Matching a
+ * notification evaluates only the predicates for the attributes it
+ * carries and counts the satisfied predicates of each subscription:
+ * once a subscription's count reaches its number of predicates, its
+ * remaining (unindexed) conjuncts are evaluated to confirm the
+ * match. Subscriptions with no indexable conjuncts fall back to a
+ * full evaluation of their AST.
+ * <p>
+ * Predicates of the form "field == constant" and numeric thresholds
+ * such as "field &gt; constant" are not evaluated at all: they are
+ * looked up by the attribute's value in an {@link EqualityIndex} or a
+ * {@link RangeIndex}. Likewise begins-with (), ends-with () and
+ * contains () tests of a field are found with a single walk of the
+ * attribute's value through a {@link StringTrie} or
+ * {@link SubstringIndex}, and regex () and wildcard () tests that
+ * the linear time engine supports are matched together by a
+ * {@link PatternIndex}.
+ * <p>
+ * Conjuncts that must be evaluated are hash-consed: structurally
+ * equal conjuncts from different subscriptions share a single
+ * {@link SharedNode}, which is evaluated at most once per
+ * notification, with its result memoised for the rest of the match.
+ * <p>
+ * Before any conjuncts of a subscription are evaluated, the
+ * subscription's required attribute signature is checked against the
+ * notification's: a subscription that needs an attribute the
+ * notification does not have is rejected without evaluating its AST.
+ * <p>
+ * Thread access is managed via a single writer/multiple reader lock.
+ */
+class SubscriptionIndex
+{
+  /**
+   * Per thread match state.
+   */
+  private static final ThreadLocal<Matcher> MATCHERS =
+    new ThreadLocal<Matcher> ()
+  {
+    @Override
+    protected Matcher initialValue ()
+    {
+      return new Matcher ();
+    }
+  };
+
+  /**
+   * Maps subscription ID's to their index entry.
+   */
+  private Long2ObjectOpenHashMap<Entry> entries;
+
+  /**
+   * Maps attribute names to the predicates that require them.
+   */
+  private Map<String, AttributeIndex> attributeIndexes;
+
+  /**
+   * Entries that have no indexable predicates.
+   */
+  private ArrayList<Entry> unindexed;
+
+  /**
+   * Maps evaluated conjuncts to their unique shared instance.
+   */
+  private Map<Node, SharedNode> sharedNodes;
+
+  /**
+   * Allocates entry counter slots.
+   */
+  private Ids slots;
+
+  /**
+   * Allocates shared node memo slots.
+   */
+  private Ids sharedIds;
+
+  /**
+   * The number of subscriptions checked by the required attribute
+   * prefilter, and the number it rejected.
+   */
+  private AtomicLong prefilterChecks;
+  private AtomicLong prefilterRejections;
+
+  private ReentrantReadWriteLock lock;
+
+  public SubscriptionIndex ()
+  {
+    this.entries = new Long2ObjectOpenHashMap<Entry> ();
+    this.attributeIndexes = new HashMap<String, AttributeIndex> ();
+    this.unindexed = new ArrayList<Entry> ();
+    this.sharedNodes = new HashMap<Node, SharedNode> ();
+    this.slots = new Ids ();
+    this.sharedIds = new Ids ();
+    this.prefilterChecks = new AtomicLong ();
+    this.prefilterRejections = new AtomicLong ();
+    this.lock = new ReentrantReadWriteLock ();
+  }
+
+  /**
+   * The number of subscriptions in the index.
+   */
+  public int size ()
+  {
+    lock.readLock ().lock ();
+
+    try
+    {
+      return entries.size ();
+    } finally
+    {
+      lock.readLock ().unlock ();
+    }
+  }
+
+  /**
+   * The number of unique evaluated conjuncts in the index.
+   */
+  int sharedNodeCount ()
+  {
+    lock.readLock ().lock ();
+
+    try
+    {
+      return sharedNodes.size ();
+    } finally
+    {
+      lock.readLock ().unlock ();
+    }
+  }
+
+  /**
+   * The total number of subscriptions that have been checked against
+   * a notification's attribute signature before evaluation.
+   */
+  public long prefilterChecks ()
+  {
+    return prefilterChecks.get ();
+  }
+
+  /**
+   * The total number of subscriptions rejected without evaluation
+   * because a notification lacked a required attribute.
+   */
+  public long prefilterRejections ()
+  {
+    return prefilterRejections.get ();
+  }
+
+  /**
+   * Add a subscription to the index.
+   *
+   * @param connection The connection that owns the subscription.
+   * @param subscription The subscription.
+   */
+  public void add (Connection connection, Subscription subscription)
+  {
+    lock.writeLock ().lock ();
+
+    try
+    {
+      addEntry (connection, subscription);
+    } finally
+    {
+      lock.writeLock ().unlock ();
+    }
+  }
+
+  /**
+   * Re-index a subscription after its expression has changed.
+   */
+  public void update (Subscription subscription)
+  {
+    lock.writeLock ().lock ();
+
+    try
+    {
+      Entry entry = removeEntry (subscription.id);
+
+      if (entry != null)
+        addEntry (entry.connection, subscription);
+    } finally
+    {
+      lock.writeLock ().unlock ();
+    }
+  }
+
+  /**
+   * Remove a subscription from the index. Has no effect if the
+   * subscription is not in the index.
+   */
+  public void remove (Subscription subscription)
+  {
+    lock.writeLock ().lock ();
+
+    try
+    {
+      removeEntry (subscription.id);
+    } finally
+    {
+      lock.writeLock ().unlock ();
+    }
+  }
+
+  /**
+   * Remove a set of subscriptions from the index, e.g. those of a
+   * closing connection.
+   */
+  public void removeAll (Iterable<Subscription> subscriptions)
+  {
+    lock.writeLock ().lock ();
+
+    try
+    {
+      for (Subscription subscription : subscriptions)
+        removeEntry (subscription.id);
+    } finally
+    {
+      lock.writeLock ().unlock ();
+    }
+  }
+
+  /**
+   * Find the subscriptions whose expressions match a set of
+   * attributes. This does not take security keys into account.
+   *
+   * @param attributes The notification attributes.
+   *
+   * @return The matching subscriptions, grouped by the connection
+   *         they belong to.
+   */
+  public Map<Connection, List<Subscription>> match
+    (Map<String, Object> attributes)
+  {
+    Map<Connection, List<Subscription>> matches =
+      new IdentityHashMap<Connection, List<Subscription>> ();
+
+    lock.readLock ().lock ();
+
+    try
+    {
+      Matcher matcher = MATCHERS.get ();
+
+      matcher.start (slots.limit (), sharedIds.limit (), attributes, matches);
+
+      try
+      {
+        for (Map.Entry<String, Object> attribute : attributes.entrySet ())
+        {
+          AttributeIndex index = attributeIndexes.get (attribute.getKey ());
+
+          if (index != null)
+            index.match (attribute.getValue (), matcher);
+        }
+
+        for (int i = 0; i < unindexed.size (); i++)
+        {
+          Entry entry = unindexed.get (i);
+
+          if (matcher.admits (entry) && matcher.residualMatches (entry))
+            addMatch (matches, entry);
+        }
+      } finally
+      {
+        if (matcher.checks > 0)
+        {
+          prefilterChecks.addAndGet (matcher.checks);
+          prefilterRejections.addAndGet (matcher.rejections);
+        }
+
+        matcher.finish ();
+      }
+    } finally
+    {
+      lock.readLock ().unlock ();
+    }
+
+    return matches;
+  }
+
+  private static void addMatch (Map<Connection, List<Subscription>> matches,
+                                Entry entry)
+  {
+    List<Subscription> subscriptions = matches.get (entry.connection);
+
+    if (subscriptions == null)
+    {
+      subscriptions = new ArrayList<Subscription> (2);
+
+      matches.put (entry.connection, subscriptions);
+    }
+
+    subscriptions.add (entry.subscription);
+  }
+
+  /**
+   * Evaluate a node, treating any runtime error as a non-match so
+   * that one bad expression cannot abort delivery to other clients.
+   */
+  private static boolean isTrue (Node node, Map<String, Object> attributes)
+  {
+    try
+    {
+      return node.evaluate (attributes) == TRUE;
+    } catch (RuntimeException ex)
+    {
+      alarm ("Exception while evaluating subscription",
+             SubscriptionIndex.class, ex);
+
+      return false;
+    }
+  }
+
+  private void addEntry (Connection connection, Subscription subscription)
+  {
+    Entry entry = new Entry (connection, subscription, slots.allocate ());
+
+    ArrayList<Node> residual = new ArrayList<Node> ();
+
+    for (Node conjunct : conjunctsOf (subscription.ast ()))
+    {
+      String attribute = indexAttributeFor (conjunct);
+
+      if (attribute == null)
+      {
+        residual.add (conjunct);
+      } else
+      {
+        Predicate predicate = new Predicate (attribute, conjunct, entry);
+
+        if (predicate.kind == Kind.EVALUATE)
+          predicate.shared = share (conjunct);
+
+        attributeIndexFor (attribute).add (predicate);
+        entry.predicates.add (predicate);
+      }
+    }
+
+    entry.predicateCount = entry.predicates.size ();
+
+    if (entry.predicateCount == 0)
+    {
+      // no use splitting into conjuncts, just evaluate the whole AST
+      entry.residual = new SharedNode [] {share (subscription.ast ())};
+
+      unindexed.add (entry);
+    } else
+    {
+      entry.residual = new SharedNode [residual.size ()];
+
+      for (int i = 0; i < entry.residual.length; i++)
+        entry.residual [i] = share (residual.get (i));
+    }
+
+    entries.put (subscription.id, entry);
+  }
+
+  private Entry removeEntry (long subscriptionId)
+  {
+    Entry entry = entries.remove (subscriptionId);
+
+    if (entry == null)
+      return null;
+
+    if (entry.predicateCount == 0)
+    {
+      unindexed.remove (entry);
+    } else
+    {
+      for (Predicate predicate : entry.predicates)
+      {
+        AttributeIndex index = attributeIndexes.get (predicate.attribute);
+
+        index.remove (predicate);
+
+        if (index.isEmpty ())
+          attributeIndexes.remove (predicate.attribute);
+
+        if (predicate.shared != null)
+          unshare (predicate.shared);
+      }
+    }
+
+    for (SharedNode node : entry.residual)
+      unshare (node);
+
+    slots.free (entry.slot);
+
+    return entry;
+  }
+
+  private AttributeIndex attributeIndexFor (String attribute)
+  {
+    AttributeIndex index = attributeIndexes.get (attribute);
+
+    if (index == null)
+    {
+      index = new AttributeIndex ();
+
+      attributeIndexes.put (attribute, index);
+    }
+
+    return index;
+  }
+
+  /**
+   * Get the shared instance of a conjunct, creating it if needed.
+   */
+  private SharedNode share (Node node)
+  {
+    SharedNode shared = sharedNodes.get (node);
+
+    if (shared == null)
+    {
+      shared = new SharedNode (node, sharedIds.allocate ());
+
+      sharedNodes.put (node, shared);
+    }
+
+    shared.references++;
+
+    return shared;
+  }
+
+  /**
+   * Release a reference to a shared conjunct, discarding it when no
+   * longer used.
+   */
+  private void unshare (SharedNode shared)
+  {
+    if (--shared.references == 0)
+    {
+      sharedNodes.remove (shared.source);
+      sharedIds.free (shared.id);
+    }
+  }
+
+  /**
+   * Break an expression into its top-level conjuncts, flattening
+   * nested AND's.
+   */
+  static List<Node> conjunctsOf (Node node)
+  {
+    ArrayList<Node> conjuncts = new ArrayList<Node> ();
+
+    addConjuncts (conjuncts, node);
+
+    return conjuncts;
+  }
+
+  private static void addConjuncts (List<Node> conjuncts, Node node)
+  {
+    if (node instanceof And)
+    {
+      for (Node child : node.children ())
+        addConjuncts (conjuncts, child);
+    } else
+    {
+      conjuncts.add (node);
+    }
+  }
+
+  /**
+   * Get the name of an attribute that must be present in a
+   * notification for a conjunct to evaluate to true.
+   *
+   * @return The attribute name, or null if the conjunct cannot be
+   *         indexed by attribute.
+   */
+  static String indexAttributeFor (Node conjunct)
+  {
+    if (conjunct instanceof Require ||
+        conjunct instanceof Type ||
+        conjunct instanceof Nan)
+    {
+      return ((NameParentNode)conjunct).name;
+    } else if (conjunct instanceof Compare)
+    {
+      // a missing operand makes a comparison bottom out
+      Compare compare = (Compare)conjunct;
+
+      String name = attributeOf (compare.child1 ());
+
+      return name != null ? name : attributeOf (compare.child2 ());
+    } else if (conjunct instanceof StringCompareNode)
+    {
+      return attributeOf (((StringCompareNode)conjunct).stringExpr ());
+    } else
+    {
+      return null;
+    }
+  }
+
+  /**
+   * The name of the attribute referenced by an operand node, or null
+   * if the operand does not directly reference one.
+   */
+  private static String attributeOf (Node operand)
+  {
+    if (operand instanceof Field)
+      return ((Field)operand).fieldName ();
+    else if (operand instanceof Size)
+      return ((Size)operand).name;
+    else
+      return null;
+  }
+
+  /**
+   * The index's record of a subscription.
+   */
+  static final class Entry
+  {
+    public final Connection connection;
+    public final Subscription subscription;
+
+    /** The entry's slot in the per-match counters. */
+    public final int slot;
+
+    /** The entry's indexed predicates. */
+    public final ArrayList<Predicate> predicates;
+
+    /** The number of predicates that must be true for a match. */
+    public int predicateCount;
+
+    /** The conjuncts not covered by the predicates. */
+    public SharedNode [] residual;
+
+    /** The signature of the attributes the subscription requires. */
+    public final long requiredSignature;
+
+    public Entry (Connection connection, Subscription subscription, int slot)
+    {
+      this.connection = connection;
+      this.subscription = subscription;
+      this.slot = slot;
+      this.requiredSignature = subscription.requiredSignature ();
+      this.predicates = new ArrayList<Predicate> (2);
+    }
+  }
+
+  /**
+   * A conjunct of a subscription that is indexed by the attribute it
+   * requires.
+   */
+  static final class Predicate
+  {
+    public final String attribute;
+    public final Node node;
+    public final Entry entry;
+
+    /** How the predicate is indexed. */
+    public Kind kind;
+
+    /**
+     * For all but EVALUATE predicates: the constant the attribute is
+     * compared to.
+     */
+    public Object constant;
+
+    /**
+     * For EVALUATE predicates: the shared instance of the node.
+     */
+    public SharedNode shared;
+
+    /**
+     * For RANGE predicates: the comparison of the attribute to the
+     * constant, as in Compare.
+     */
+    public int inequality;
+    public boolean equality;
+
+    /** The predicate's position in its predicate list. */
+    int position;
+
+    public Predicate (String attribute, Node node, Entry entry)
+    {
+      this.attribute = attribute;
+      this.node = node;
+      this.entry = entry;
+      this.kind = Kind.EVALUATE;
+
+      if (node instanceof Compare)
+        classifyCompare ((Compare)node);
+      else if (node instanceof StrBeginsWith)
+        classifyStringCompare ((StringCompareNode)node, Kind.PREFIX);
+      else if (node instanceof StrEndsWith)
+        classifyStringCompare ((StringCompareNode)node, Kind.SUFFIX);
+      else if (node instanceof StrContains)
+        classifyStringCompare ((StringCompareNode)node, Kind.CONTAINS);
+      else if (node instanceof StrRegex)
+        classifyPattern ((StrRegex)node, ((StrRegex)node).linearPattern ());
+      else if (node instanceof StrWildcard)
+        classifyPattern ((StrWildcard)node,
+                         ((StrWildcard)node).linearPattern ());
+    }
+
+    private void classifyPattern (StringCompareNode compare,
+                                  LinearPattern pattern)
+    {
+      if (pattern != null && compare.stringExpr () instanceof Field)
+      {
+        kind = Kind.PATTERN;
+        constant = pattern;
+      }
+    }
+
+    private void classifyStringCompare (StringCompareNode compare,
+                                        Kind stringKind)
+    {
+      if (compare.stringExpr () instanceof Field)
+      {
+        kind = stringKind;
+        constant = compare.string ();
+      }
+    }
+
+    /**
+     * Check for a comparison between a field and a constant that can
+     * be handled by a value index.
+     */
+    private void classifyCompare (Compare compare)
+    {
+      Node child1 = compare.child1 ();
+      Node child2 = compare.child2 ();
+
+      if (child1 instanceof Field && child2 instanceof Const)
+      {
+        constant = ((Const)child2).value ();
+        inequality = compare.inequality;
+      } else if (child2 instanceof Field && child1 instanceof Const)
+      {
+        // "constant op field": flip to "field op constant"
+        constant = ((Const)child1).value ();
+        inequality = -compare.inequality;
+      } else
+      {
+        return;
+      }
+
+      equality = compare.equality;
+
+      if (inequality == 0)
+      {
+        if (EqualityIndex.canIndex (constant))
+          kind = Kind.EQUALS;
+      } else if (RangeIndex.canIndex (constant))
+      {
+        kind = Kind.RANGE;
+      }
+
+      if (kind == Kind.EVALUATE)
+        constant = null;
+    }
+  }
+
+  static enum Kind
+  {
+    /** Predicate must be evaluated. */
+    EVALUATE,
+
+    /** "field == constant" */
+    EQUALS,
+
+    /** Numeric threshold e.g. "field &lt; constant". */
+    RANGE,
+
+    /** begins-with (field, constant) */
+    PREFIX,
+
+    /** ends-with (field, constant) */
+    SUFFIX,
+
+    /** contains (field, constant) */
+    CONTAINS,
+
+    /** regex (field, constant) or wildcard (field, constant) */
+    PATTERN;
+  }
+
+  /**
+   * The predicates indexed under a single attribute name.
+   */
+  static final class AttributeIndex
+  {
+    /** Predicates that must be evaluated. */
+    public final PredicateList predicates;
+
+    /** Predicates of the form "field == constant". */
+    public final EqualityIndex<Predicate> equality;
+
+    /** Numeric threshold predicates. */
+    public final RangeIndex<Predicate> ranges;
+
+    /** begins-with () predicates. */
+    public final StringTrie<Predicate> prefixes;
+
+    /** ends-with () predicates. */
+    public final StringTrie<Predicate> suffixes;
+
+    /** contains () predicates. */
+    public final SubstringIndex<Predicate> substrings;
+
+    /** regex () and wildcard () predicates. */
+    public final PatternIndex<Predicate> patterns;
+
+    public AttributeIndex ()
+    {
+      this.predicates = new PredicateList ();
+      this.equality = new EqualityIndex<Predicate> ();
+      this.ranges = new RangeIndex<Predicate> ();
+      this.prefixes = new StringTrie<Predicate> (false);
+      this.suffixes = new StringTrie<Predicate> (true);
+      this.substrings = new SubstringIndex<Predicate> ();
+      this.patterns = new PatternIndex<Predicate> ();
+    }
+
+    public boolean isEmpty ()
+    {
+      return predicates.size == 0 && equality.isEmpty () &&
+             ranges.isEmpty () && prefixes.isEmpty () &&
+             suffixes.isEmpty () && substrings.isEmpty () &&
+             patterns.isEmpty ();
+    }
+
+    public void add (Predicate predicate)
+    {
+      switch (predicate.kind)
+      {
+        case EQUALS:
+          equality.add (predicate.constant, predicate);
+          break;
+        case RANGE:
+          ranges.add (predicate.inequality, predicate.equality,
+                      predicate.constant, predicate);
+          break;
+        case PREFIX:
+          prefixes.add ((String)predicate.constant, predicate);
+          break;
+        case SUFFIX:
+          suffixes.add ((String)predicate.constant, predicate);
+          break;
+        case CONTAINS:
+          substrings.add ((String)predicate.constant, predicate);
+          break;
+        case PATTERN:
+          patterns.add ((LinearPattern)predicate.constant, predicate);
+          break;
+        default:
+          predicates.add (predicate);
+      }
+    }
+
+    public void remove (Predicate predicate)
+    {
+      switch (predicate.kind)
+      {
+        case EQUALS:
+          equality.remove (predicate.constant, predicate);
+          break;
+        case RANGE:
+          ranges.remove (predicate.inequality, predicate.equality,
+                         predicate.constant, predicate);
+          break;
+        case PREFIX:
+          prefixes.remove ((String)predicate.constant, predicate);
+          break;
+        case SUFFIX:
+          suffixes.remove ((String)predicate.constant, predicate);
+          break;
+        case CONTAINS:
+          substrings.remove ((String)predicate.constant, predicate);
+          break;
+        case PATTERN:
+          patterns.remove ((LinearPattern)predicate.constant, predicate);
+          break;
+        default:
+          predicates.remove (predicate);
+      }
+    }
+
+    /**
+     * Pass every predicate satisfied by an attribute value to a
+     * matcher.
+     */
+    public void match (Object value, Matcher matcher)
+    {
+      if (!equality.isEmpty ())
+        equality.match (value, matcher);
+
+      if (!ranges.isEmpty ())
+        ranges.match (value, matcher);
+
+      if (value instanceof String)
+      {
+        if (!prefixes.isEmpty ())
+          prefixes.match ((String)value, matcher);
+
+        if (!suffixes.isEmpty ())
+          suffixes.match ((String)value, matcher);
+
+        if (!substrings.isEmpty ())
+          substrings.match ((String)value, matcher);
+
+        if (!patterns.isEmpty ())
+          patterns.match ((String)value, matcher);
+      }
+
+      for (int i = 0; i < predicates.size; i++)
+      {
+        Predicate predicate = predicates.items [i];
+
+        if (matcher.isTrue (predicate.shared))
+          matcher.visit (predicate);
+      }
+    }
+  }
+
+  /**
+   * An array-backed list of predicates supporting constant time
+   * removal.
+   */
+  static final class PredicateList
+  {
+    public Predicate [] items;
+    public int size;
+
+    public PredicateList ()
+    {
+      this.items = new Predicate [4];
+    }
+
+    public void add (Predicate predicate)
+    {
+      if (size == items.length)
+      {
+        Predicate [] newItems = new Predicate [items.length * 2];
+
+        System.arraycopy (items, 0, newItems, 0, size);
+
+        items = newItems;
+      }
+
+      predicate.position = size;
+      items [size++] = predicate;
+    }
+
+    /**
+     * Remove a predicate by moving the last item into its position.
+     */
+    public void remove (Predicate predicate)
+    {
+      Predicate last = items [--size];
+
+      items [predicate.position] = last;
+      last.position = predicate.position;
+      items [size] = null;
+    }
+  }
+
+  /**
+   * A unique evaluated conjunct, shared by all the predicates and
+   * residual conjuncts that are structurally equal to it.
+   */
+  static final class SharedNode
+  {
+    /** The node as submitted, used as the key for sharing. */
+    public final Node source;
+
+    /** The node to evaluate. */
+    public final Node node;
+
+    /** The node's slot in the per-match memo. */
+    public final int id;
+
+    /** The number of predicates and entries using the node. */
+    public int references;
+
+    public SharedNode (Node source, int id)
+    {
+      this.source = source;
+      this.node = compileAfter (source, DEFAULT_COMPILE_THRESHOLD);
+      this.id = id;
+    }
+  }
+
+  /**
+   * Allocates small integer ID's from 0..limit - 1, with freed ID's
+   * recycled.
+   */
+  static final class Ids
+  {
+    private int limit;
+    private int [] free;
+    private int freeCount;
+
+    public Ids ()
+    {
+      this.free = new int [16];
+    }
+
+    /**
+     * One more than the highest ID allocated.
+     */
+    public int limit ()
+    {
+      return limit;
+    }
+
+    public int allocate ()
+    {
+      if (freeCount > 0)
+        return free [--freeCount];
+      else
+        return limit++;
+    }
+
+    public void free (int id)
+    {
+      if (freeCount == free.length)
+      {
+        int [] newFree = new int [free.length * 2];
+
+        System.arraycopy (free, 0, newFree, 0, freeCount);
+
+        free = newFree;
+      }
+
+      free [freeCount++] = id;
+    }
+  }
+
+  /**
+   * Per-thread match state: predicate counters indexed by entry slot,
+   * and memoised results of shared nodes indexed by ID. Both are
+   * lazily cleared by tagging each element with the generation of the
+   * match that last touched it.
+   */
+  static final class Matcher implements Visitor<Predicate>
+  {
+    /** The attributes being matched. */
+    public Map<String, Object> attributes;
+
+    /** The matches found so far. */
+    public Map<Connection, List<Subscription>> matches;
+
+    /** The signature of the attribute names being matched. */
+    public long signature;
+
+    /** Prefilter statistics for the current match. */
+    public int checks;
+    public int rejections;
+
+    private int generation;
+
+    private int [] counts;
+    private int [] countGenerations;
+
+    private boolean [] results;
+    private int [] resultGenerations;
+
+    public Matcher ()
+    {
+      this.counts = new int [64];
+      this.countGenerations = new int [64];
+      this.results = new boolean [64];
+      this.resultGenerations = new int [64];
+    }
+
+    /**
+     * Start a new match, ensuring there is room for a given number of
+     * counter slots and shared node ID's.
+     */
+    public void start (int slotCount, int sharedCount,
+                       Map<String, Object> newAttributes,
+                       Map<Connection, List<Subscription>> newMatches)
+    {
+      this.attributes = newAttributes;
+      this.matches = newMatches;
+      this.signature = signatureOf (newAttributes.keySet ());
+      this.checks = 0;
+      this.rejections = 0;
+
+      if (counts.length < slotCount)
+      {
+        int newSize = Math.max (slotCount, counts.length * 2);
+
+        counts = new int [newSize];
+        countGenerations = new int [newSize];
+      }
+
+      if (results.length < sharedCount)
+      {
+        int newSize = Math.max (sharedCount, results.length * 2);
+
+        results = new boolean [newSize];
+        resultGenerations = new int [newSize];
+      }
+
+      if (++generation == 0)
+      {
+        // generation has wrapped: clear stale tags
+        Arrays.fill (countGenerations, 0);
+        Arrays.fill (resultGenerations, 0);
+
+        generation = 1;
+      }
+    }
+
+    /**
+     * Drop references to the last match.
+     */
+    public void finish ()
+    {
+      attributes = null;
+      matches = null;
+    }
+
+    /**
+     * Called with each predicate that is true: counts the predicate
+     * against its entry and adds the entry's subscription to the
+     * matches if all its predicates are true and its residual
+     * conjuncts match.
+     */
+    public void visit (Predicate predicate)
+    {
+      Entry entry = predicate.entry;
+
+      if (increment (entry.slot) == entry.predicateCount &&
+          (entry.residual.length == 0 ||
+           (admits (entry) && residualMatches (entry))))
+      {
+        addMatch (matches, entry);
+      }
+    }
+
+    /**
+     * Test if the attributes being matched may include all those
+     * required by an entry, i.e. whether its residual conjuncts are
+     * worth evaluating.
+     */
+    public boolean admits (Entry entry)
+    {
+      checks++;
+
+      if (covers (signature, entry.requiredSignature))
+        return true;
+
+      rejections++;
+
+      return false;
+    }
+
+    /**
+     * Test that all the conjuncts of an entry not covered by its
+     * predicates are true.
+     */
+    public boolean residualMatches (Entry entry)
+    {
+      for (SharedNode node : entry.residual)
+      {
+        if (!isTrue (node))
+          return false;
+      }
+
+      return true;
+    }
+
+    /**
+     * Test if a shared node is true, evaluating it only if it has not
+     * already been evaluated in this match.
+     */
+    public boolean isTrue (SharedNode node)
+    {
+      int id = node.id;
+
+      if (resultGenerations [id] != generation)
+      {
+        resultGenerations [id] = generation;
+        results [id] = SubscriptionIndex.isTrue (node.node, attributes);
+      }
+
+      return results [id];
+    }
+
+    /**
+     * Increment the counter for a slot.
+     *
+     * @return The new count.
+     */
+    private int increment (int slot)
+    {
+      if (countGenerations [slot] != generation)
+      {
+        countGenerations [slot] = generation;
+        counts [slot] = 0;
+      }
+
+      return ++counts [slot];
+    }
+  }
+}
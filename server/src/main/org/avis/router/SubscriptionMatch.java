@@ -17,11 +17,15 @@
  */
 package org.avis.router;
 
-import it.unimi.dsi.fastutil.longs.LongArrayList;
-import it.unimi.dsi.fastutil.longs.LongList;
-
 /**
  * Represents the result of matching a subscription against a message.
+ * <p>
+ * Most matches find nothing to deliver, so instances are reusable
+ * buffers that are {@linkplain #reset() reset} between matches rather
+ * than allocated for each one: see
+ * {@link Connection#matchSubscriptions(java.util.List, java.util.Set, boolean)}.
+ * The arrays returned by {@link #secure()} and {@link #insecure()}
+ * are only allocated when they are asked for.
  * 
  * @author Matthew Phillips
  */
@@ -30,36 +34,83 @@ class SubscriptionMatch
   private static final long [] EMPTY = new long [0];
   
   /** Securely matched subscription ID's */
-  public final LongArrayList secure;
+  private long [] secure;
+  private int secureCount;
+  
   /** Insecurely matched subscription ID's */
-  public final LongArrayList insecure;
+  private long [] insecure;
+  private int insecureCount;
   
   public SubscriptionMatch ()
   {
-    this.secure = new LongArrayList ();
-    this.insecure = new LongArrayList ();
+    this.secure = new long [8];
+    this.insecure = new long [8];
+  }
+  
+  /**
+   * Clear the match for reuse.
+   */
+  public void reset ()
+  {
+    secureCount = 0;
+    insecureCount = 0;
+  }
+  
+  public void addSecure (long id)
+  {
+    if (secureCount == secure.length)
+      secure = grow (secure);
+    
+    secure [secureCount++] = id;
+  }
+  
+  public void addInsecure (long id)
+  {
+    if (insecureCount == insecure.length)
+      insecure = grow (insecure);
+    
+    insecure [insecureCount++] = id;
   }
   
+  /**
+   * A new array of the securely matched subscription ID's.
+   */
   public long [] secure ()
   {
-    return toArray (secure);
+    return toArray (secure, secureCount);
   }
   
+  /**
+   * A new array of the insecurely matched subscription ID's.
+   */
   public long [] insecure ()
   {
-    return toArray (insecure);
+    return toArray (insecure, insecureCount);
   }
   
   public boolean matched ()
   {
-    return !insecure.isEmpty () || !secure.isEmpty ();
+    return insecureCount > 0 || secureCount > 0;
   }
 
-  private static long [] toArray (LongList ids)
+  private static long [] grow (long [] ids)
+  {
+    long [] newIds = new long [ids.length * 2];
+    
+    System.arraycopy (ids, 0, newIds, 0, ids.length);
+    
+    return newIds;
+  }
+  
+  private static long [] toArray (long [] ids, int count)
   {
-    if (ids.isEmpty ())
+    if (count == 0)
       return EMPTY;
-    else
-      return ids.toLongArray ();
+    
+    long [] array = new long [count];
+    
+    System.arraycopy (ids, 0, array, 0, count);
+    
+    return array;
   }
 }
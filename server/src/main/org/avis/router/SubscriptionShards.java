@@ -0,0 +1,237 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.avis.logging.Log.alarm;
+
+/**
+ * Partitions the router's subscriptions into a set of
+ * {@link SubscriptionIndex} shards so that a notification can be
+ * matched against all of them in parallel.
+ * <p>
+ * Each connection is assigned a shard when it is created and keeps it
+ * for its lifetime, so all of a connection's subscriptions live in the
+ * same shard. Matches for a connection are therefore always handled
+ * by the single thread matching its shard, and since
+ * {@link #match(Map, Handler, boolean)} does not return until every
+ * shard is done, notifications are delivered to each connection in
+ * the order they are matched.
+ * <p>
+ * Thread safe.
+ */
+final class SubscriptionShards
+{
+  /**
+   * Receives the subscriptions of a connection that match a
+   * notification. In a parallel match, handlers are called
+   * concurrently for different connections.
+   */
+  public interface Handler
+  {
+    public void matched (Connection connection,
+                         List<Subscription> subscriptions);
+  }
+
+  private SubscriptionIndex [] shards;
+  private AtomicInteger nextShard;
+  private Executor executor;
+
+  /**
+   * Create a new instance.
+   *
+   * @param shardCount The number of shards. Usually the number of
+   *          processors available.
+   * @param executor The executor used to match shards in parallel.
+   */
+  public SubscriptionShards (int shardCount, Executor executor)
+  {
+    this.shards = new SubscriptionIndex [Math.max (1, shardCount)];
+    this.nextShard = new AtomicInteger ();
+    this.executor = executor;
+
+    for (int i = 0; i < shards.length; i++)
+      shards [i] = new SubscriptionIndex ();
+  }
+
+  /**
+   * The number of shards.
+   */
+  public int shardCount ()
+  {
+    return shards.length;
+  }
+
+  /**
+   * Assign the shard for a new connection. Shards are handed out in
+   * turn to keep them evenly loaded.
+   */
+  public SubscriptionIndex assign ()
+  {
+    return shards [(nextShard.getAndIncrement () & 0x7FFFFFFF) %
+                   shards.length];
+  }
+
+  /**
+   * The number of subscriptions in all shards.
+   */
+  public int size ()
+  {
+    int size = 0;
+
+    for (SubscriptionIndex shard : shards)
+      size += shard.size ();
+
+    return size;
+  }
+
+  /**
+   * @see SubscriptionIndex#prefilterChecks()
+   */
+  public long prefilterChecks ()
+  {
+    long checks = 0;
+
+    for (SubscriptionIndex shard : shards)
+      checks += shard.prefilterChecks ();
+
+    return checks;
+  }
+
+  /**
+   * @see SubscriptionIndex#prefilterRejections()
+   */
+  public long prefilterRejections ()
+  {
+    long rejections = 0;
+
+    for (SubscriptionIndex shard : shards)
+      rejections += shard.prefilterRejections ();
+
+    return rejections;
+  }
+
+  /**
+   * Find the subscriptions whose expressions match a set of
+   * attributes, and pass them to a handler grouped by connection. The
+   * handler is called after the shard holding the connection has been
+   * unlocked, so it may safely lock the connection.
+   *
+   * @param attributes The notification attributes.
+   * @param handler The handler for matching subscriptions.
+   * @param parallel True to match the shards in parallel, with all
+   *          but one running on the executor and the last in the
+   *          calling thread. If false, or there is only one shard, the
+   *          shards are matched in turn in the calling thread.
+   */
+  public void match (Map<String, Object> attributes, Handler handler,
+                     boolean parallel)
+  {
+    if (!parallel || shards.length == 1)
+    {
+      for (SubscriptionIndex shard : shards)
+        deliver (shard.match (attributes), handler);
+
+      return;
+    }
+
+    CountDownLatch done = new CountDownLatch (shards.length - 1);
+
+    for (int i = 1; i < shards.length; i++)
+    {
+      ShardMatch task = new ShardMatch (shards [i], attributes, handler, done);
+
+      try
+      {
+        executor.execute (task);
+      } catch (RejectedExecutionException ex)
+      {
+        // executor is shutting down
+        task.run ();
+      }
+    }
+
+    deliver (shards [0].match (attributes), handler);
+
+    boolean interrupted = false;
+
+    while (true)
+    {
+      try
+      {
+        done.await ();
+
+        break;
+      } catch (InterruptedException ex)
+      {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted)
+      Thread.currentThread ().interrupt ();
+  }
+
+  private static void deliver (Map<Connection, List<Subscription>> matches,
+                               Handler handler)
+  {
+    for (Map.Entry<Connection, List<Subscription>> entry : matches.entrySet ())
+      handler.matched (entry.getKey (), entry.getValue ());
+  }
+
+  /**
+   * Matches and delivers one shard as part of a parallel match.
+   */
+  private static final class ShardMatch implements Runnable
+  {
+    private SubscriptionIndex shard;
+    private Map<String, Object> attributes;
+    private Handler handler;
+    private CountDownLatch done;
+
+    public ShardMatch (SubscriptionIndex shard,
+                       Map<String, Object> attributes,
+                       Handler handler, CountDownLatch done)
+    {
+      this.shard = shard;
+      this.attributes = attributes;
+      this.handler = handler;
+      this.done = done;
+    }
+
+    public void run ()
+    {
+      try
+      {
+        deliver (shard.match (attributes), handler);
+      } catch (RuntimeException ex)
+      {
+        alarm ("Exception while matching subscriptions", this, ex);
+      } finally
+      {
+        done.countDown ();
+      }
+    }
+  }
+}
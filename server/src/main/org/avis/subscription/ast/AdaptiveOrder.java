@@ -0,0 +1,219 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.ast;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Maintains the order in which the children of an AND or OR are
+ * evaluated, adapting it to the observed cost and outcome of each
+ * child so that cheap, decisive children (those that usually make the
+ * AND false or the OR true) are evaluated first.
+ * <p>
+ * One in every SAMPLE_INTERVAL evaluations is sampled: every child is
+ * evaluated (with no short circuit) and timed. Only one junction per
+ * thread is sampled at a time: junctions nested in one being sampled
+ * are evaluated normally, and timed only as part of their parent. After every
+ * SAMPLES_PER_REORDER samples, children are sorted by their expected
+ * cost per decisive outcome, which for independent children minimises
+ * the expected cost of a short-circuit evaluation. Statistics are
+ * then halved, so that the order follows changes in the
+ * notifications being evaluated.
+ * <p>
+ * The order has no effect on the result, since evaluation has no side
+ * effects and, in three-valued logic, an AND is FALSE if any child is
+ * FALSE, otherwise BOTTOM if any child is BOTTOM, otherwise TRUE (and
+ * dually for OR).
+ * <p>
+ * Thread safe: the order is an immutable array that is replaced
+ * atomically. The evaluation count is deliberately unsynchronized,
+ * since a lost update only delays a sample.
+ */
+final class AdaptiveOrder
+{
+  static final int SAMPLE_INTERVAL = 64;
+  static final int SAMPLES_PER_REORDER = 32;
+
+  /**
+   * Per thread buffers for sampled evaluations.
+   */
+  private static final ThreadLocal<Sampler> SAMPLERS =
+    new ThreadLocal<Sampler> ()
+  {
+    @Override
+    protected Sampler initialValue ()
+    {
+      return new Sampler ();
+    }
+  };
+
+  /** The order to evaluate children in, as child indexes. */
+  private volatile int [] order;
+
+  private int evaluations;
+
+  /* Statistics, indexed by child index. Guarded by this. */
+  private long [] costs;
+  private int [] decisions;
+  private int samples;
+
+  public AdaptiveOrder (int size)
+  {
+    this.order = new int [size];
+    this.costs = new long [size];
+    this.decisions = new int [size];
+
+    for (int i = 0; i < size; i++)
+      order [i] = i;
+  }
+
+  /**
+   * The number of children.
+   */
+  public int size ()
+  {
+    return costs.length;
+  }
+
+  /**
+   * The current evaluation order. The array must not be modified.
+   */
+  public int [] order ()
+  {
+    return order;
+  }
+
+  /**
+   * Called at the start of each evaluation.
+   *
+   * @return The buffers to record the evaluation in if it should be
+   *         sampled, otherwise null. The sampler must be passed to
+   *         {@link #addSample(Sampler)} when the evaluation completes.
+   */
+  public Sampler sample ()
+  {
+    if ((++evaluations & (SAMPLE_INTERVAL - 1)) != 0)
+      return null;
+
+    Sampler sampler = SAMPLERS.get ();
+
+    if (sampler.active)
+      return null;
+
+    sampler.start (costs.length);
+
+    return sampler;
+  }
+
+  /**
+   * Record a sampled evaluation and release its sampler. Must be
+   * called even if the evaluation fails.
+   */
+  public void addSample (Sampler sampler)
+  {
+    try
+    {
+      addSample (sampler.costs, sampler.decisions);
+    } finally
+    {
+      sampler.active = false;
+    }
+  }
+
+  private synchronized void addSample (long [] childCosts,
+                                       boolean [] decisive)
+  {
+    for (int i = 0; i < costs.length; i++)
+    {
+      costs [i] += childCosts [i];
+
+      if (decisive [i])
+        decisions [i]++;
+    }
+
+    if (++samples == SAMPLES_PER_REORDER)
+      reorder ();
+  }
+
+  private void reorder ()
+  {
+    Integer [] children = new Integer [costs.length];
+    final double [] ranks = new double [costs.length];
+
+    for (int i = 0; i < children.length; i++)
+    {
+      children [i] = i;
+
+      // expected cost per decisive outcome, smoothed so that a child
+      // that has never been decisive still has a finite rank
+      ranks [i] = (costs [i] + 1.0) / (decisions [i] + 1.0);
+
+      costs [i] >>= 1;
+      decisions [i] >>= 1;
+    }
+
+    samples = 0;
+
+    // stable sort: ties keep expression order
+    Arrays.sort (children, new Comparator<Integer> ()
+    {
+      public int compare (Integer child1, Integer child2)
+      {
+        return Double.compare (ranks [child1], ranks [child2]);
+      }
+    });
+
+    int [] newOrder = new int [children.length];
+
+    for (int i = 0; i < newOrder.length; i++)
+      newOrder [i] = children [i];
+
+    order = newOrder;
+  }
+
+  /**
+   * Per thread buffers for a sampled evaluation: the time taken by
+   * each child and whether its result decided the outcome on its
+   * own. Indexed by child index, and may be longer than the number of
+   * children.
+   */
+  static final class Sampler
+  {
+    public long [] costs;
+    public boolean [] decisions;
+    boolean active;
+
+    public Sampler ()
+    {
+      this.costs = new long [8];
+      this.decisions = new boolean [8];
+    }
+
+    void start (int size)
+    {
+      if (costs.length < size)
+      {
+        costs = new long [size];
+        decisions = new boolean [size];
+      }
+
+      active = true;
+    }
+  }
+}
@@ -18,6 +18,9 @@
 package org.avis.subscription.ast;
 
 import java.util.Collection;
+import java.util.Map;
+
+import org.avis.subscription.ast.AdaptiveOrder.Sampler;
 
 /**
  * Base class for parent nodes that evaluate to boolean from boolean
@@ -28,6 +31,12 @@ import java.util.Collection;
 public abstract class BoolParentNode
   extends ParentNode
 {
+  /**
+   * The evaluation order used by evaluateJunction (). Lazily created,
+   * and recreated if the number of children changes.
+   */
+  private volatile AdaptiveOrder ordering;
+
   public BoolParentNode ()
   {
     // zip
@@ -66,6 +75,81 @@ public abstract class BoolParentNode
     return Boolean.class;
   }
   
+  /**
+   * Evaluate an AND or OR node. Children are evaluated in an order
+   * adapted to their observed cost and selectivity (see
+   * {@link AdaptiveOrder}) until one yields the decisive value.
+   * 
+   * @param attrs The attributes to evaluate against.
+   * @param decisive The child value that decides the result: FALSE
+   *          for AND, TRUE for OR.
+   * @param otherwise The result if no child is decisive or BOTTOM.
+   */
+  protected final Object evaluateJunction (Map<String, Object> attrs,
+                                           Boolean decisive,
+                                           Boolean otherwise)
+  {
+    AdaptiveOrder current = ordering;
+    
+    if (current == null || current.size () != children.size ())
+      ordering = current = new AdaptiveOrder (children.size ());
+    
+    Sampler sampler = current.sample ();
+    
+    if (sampler != null)
+      return evaluateSampled (attrs, current, sampler, decisive, otherwise);
+    
+    Object value = otherwise;
+    
+    for (int i : current.order ())
+    {
+      Object result = children.get (i).evaluate (attrs);
+      
+      if (result == decisive)
+        return decisive;
+      else if (result == BOTTOM)
+        value = BOTTOM;
+    }
+    
+    return value;
+  }
+
+  /**
+   * Evaluate and time every child, without short circuit, to sample
+   * their costs and outcomes.
+   */
+  private Object evaluateSampled (Map<String, Object> attrs,
+                                  AdaptiveOrder current, Sampler sampler,
+                                  Boolean decisive, Boolean otherwise)
+  {
+    Object value = otherwise;
+    
+    try
+    {
+      long start = System.nanoTime ();
+      
+      for (int i = 0; i < current.size (); i++)
+      {
+        Object result = children.get (i).evaluate (attrs);
+        long end = System.nanoTime ();
+        
+        sampler.costs [i] = end - start;
+        sampler.decisions [i] = result == decisive;
+        start = end;
+        
+        if (result == decisive)
+          value = decisive;
+        else if (result == BOTTOM && value != decisive)
+          value = BOTTOM;
+      }
+    } finally
+    {
+      current.addSample (sampler);
+    }
+    
+    return value;
+  }
+  
   @Override
   public String validateChild (Node child)
   {
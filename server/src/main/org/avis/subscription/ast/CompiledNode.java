@@ -0,0 +1,137 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.ast;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.avis.subscription.ast.NodeCompiler.Condition;
+import org.avis.subscription.ast.NodeCompiler.Frame;
+
+/**
+ * A boolean expression compiled by {@link NodeCompiler}. Evaluates to
+ * the same result as the source expression it was compiled from, and
+ * otherwise presents itself as the source expression.
+ */
+public final class CompiledNode extends Node
+{
+  /**
+   * Per thread evaluation frames.
+   */
+  private static final ThreadLocal<Frame> FRAMES = new ThreadLocal<Frame> ()
+  {
+    @Override
+    protected Frame initialValue ()
+    {
+      return new Frame ();
+    }
+  };
+
+  private Node source;
+  private Condition condition;
+  private int slotCount;
+
+  CompiledNode (Node source, Condition condition, int slotCount)
+  {
+    this.source = source;
+    this.condition = condition;
+    this.slotCount = slotCount;
+  }
+
+  /**
+   * The expression this was compiled from.
+   */
+  public Node source ()
+  {
+    return source;
+  }
+
+  @Override
+  public Object evaluate (Map<String, Object> attrs)
+  {
+    Frame frame = FRAMES.get ();
+
+    // a nested evaluation cannot share the thread's frame
+    if (frame.inUse ())
+      frame = new Frame ();
+
+    int result;
+
+    frame.start (attrs, slotCount);
+
+    try
+    {
+      result = condition.test (frame);
+    } finally
+    {
+      frame.finish ();
+    }
+
+    switch (result)
+    {
+      case NodeCompiler.TRUE:
+        return TRUE;
+      case NodeCompiler.FALSE:
+        return FALSE;
+      default:
+        return BOTTOM;
+    }
+  }
+
+  @Override
+  public Class<?> evalType ()
+  {
+    return Boolean.class;
+  }
+
+  @Override
+  public Node inlineConstants ()
+  {
+    return this;
+  }
+
+  @Override
+  public String expr ()
+  {
+    return source.expr ();
+  }
+
+  @Override
+  public String presentation ()
+  {
+    return source.presentation ();
+  }
+
+  @Override
+  public String name ()
+  {
+    return source.name ();
+  }
+
+  @Override
+  public boolean hasChildren ()
+  {
+    return source.hasChildren ();
+  }
+
+  @Override
+  public Collection<Node> children ()
+  {
+    return source.children ();
+  }
+}
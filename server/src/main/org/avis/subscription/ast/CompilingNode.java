@@ -0,0 +1,121 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.ast;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A boolean expression that is interpreted until it has been
+ * evaluated a given number of times, after which it is compiled by
+ * {@link NodeCompiler}. This avoids the cost of compiling expressions
+ * that are rarely evaluated. Otherwise presents itself as the source
+ * expression.
+ * <p>
+ * Thread safe: a race on the first evaluations may compile the
+ * expression more than once, which is harmless.
+ *
+ * @see NodeCompiler#compileAfter(Node, int)
+ */
+public final class CompilingNode extends Node
+{
+  private Node source;
+  private int threshold;
+  private int evaluations;
+  private volatile Node compiled;
+
+  CompilingNode (Node source, int threshold)
+  {
+    this.source = source;
+    this.threshold = threshold;
+  }
+
+  /**
+   * The source expression.
+   */
+  public Node source ()
+  {
+    return source;
+  }
+
+  /**
+   * True if the expression has been compiled.
+   */
+  public boolean isCompiled ()
+  {
+    return compiled != null;
+  }
+
+  @Override
+  public Object evaluate (Map<String, Object> attrs)
+  {
+    Node node = compiled;
+
+    if (node == null)
+    {
+      if (++evaluations >= threshold)
+        compiled = node = NodeCompiler.compile (source);
+      else
+        node = source;
+    }
+
+    return node.evaluate (attrs);
+  }
+
+  @Override
+  public Class<?> evalType ()
+  {
+    return source.evalType ();
+  }
+
+  @Override
+  public Node inlineConstants ()
+  {
+    return this;
+  }
+
+  @Override
+  public String expr ()
+  {
+    return source.expr ();
+  }
+
+  @Override
+  public String presentation ()
+  {
+    return source.presentation ();
+  }
+
+  @Override
+  public String name ()
+  {
+    return source.name ();
+  }
+
+  @Override
+  public boolean hasChildren ()
+  {
+    return source.hasChildren ();
+  }
+
+  @Override
+  public Collection<Node> children ()
+  {
+    return source.children ();
+  }
+}
@@ -17,6 +17,8 @@
  */
 package org.avis.subscription.ast;
 
+import static org.avis.subscription.ast.NumberResult.INT32;
+import static org.avis.subscription.ast.NumberResult.INT64;
 import static org.avis.util.Text.className;
 
 /**
@@ -64,6 +66,12 @@ public abstract class MathIntParentNode extends MathParentNode
     return value instanceof Integer || value instanceof Long;
   }
   
+  @Override
+  protected boolean validOperand (int type)
+  {
+    return type == INT32 || type == INT64;
+  }
+  
   @Override
   protected double evaluateReal64 (double number1, double number2)
   {
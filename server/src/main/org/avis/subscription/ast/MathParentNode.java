@@ -19,6 +19,12 @@ package org.avis.subscription.ast;
 
 import java.util.Map;
 
+import static java.lang.Math.max;
+
+import static org.avis.subscription.ast.NumberResult.INT32;
+import static org.avis.subscription.ast.NumberResult.INT64;
+import static org.avis.subscription.ast.NumberResult.NONE;
+import static org.avis.subscription.ast.NumberResult.REAL64;
 import static org.avis.util.Text.className;
 import static org.avis.util.Numbers.highestPrecision;
 import static org.avis.util.Numbers.upconvert;
@@ -104,6 +110,49 @@ public abstract class MathParentNode extends ParentBiNode
     }
   }
 
+  @Override
+  public int evaluateNumber (Map<String, Object> attrs, NumberResult result)
+  {
+    int type1 = child1.evaluateNumber (attrs, result);
+    
+    if (!validOperand (type1))
+      return NONE;
+    
+    long long1 = result.longValue;
+    double double1 = result.doubleValue;
+    
+    int type2 = child2.evaluateNumber (attrs, result);
+    
+    if (!validOperand (type2))
+      return NONE;
+    
+    int type = max (type1, type2);
+    
+    try
+    {
+      switch (type)
+      {
+        case INT32:
+          result.longValue =
+            evaluateInt32 ((int)long1, (int)result.longValue);
+          break;
+        case INT64:
+          result.longValue = evaluateInt64 (long1, result.longValue);
+          break;
+        default:
+          result.doubleValue =
+            evaluateReal64 (type1 == REAL64 ? double1 : long1,
+                            result.asDouble (type2));
+      }
+    } catch (ArithmeticException ex)
+    {
+      // e.g. div by zero
+      return NONE;
+    }
+    
+    return type;
+  }
+
   private Number evaluate (Node child,
                            Map<String, Object> attrs)
   {
@@ -123,6 +172,15 @@ public abstract class MathParentNode extends ParentBiNode
     return value instanceof Number;
   }
 
+  /**
+   * Test whether a value with a given NumberResult type tag is a
+   * valid operand for this operation.
+   */
+  protected boolean validOperand (int type)
+  {
+    return type != NONE;
+  }
+
   protected abstract int evaluateInt32 (int number1, int number2);
   
   protected abstract long evaluateInt64 (long number1, long number2);
@@ -18,8 +18,11 @@
 package org.avis.subscription.ast;
 
 import java.util.Collection;
+import java.util.Map;
 
 import org.avis.subscription.ast.nodes.Field;
+import org.avis.util.AttributeMap;
+import org.avis.util.AttributeNames;
 
 import static java.util.Collections.singleton;
 
@@ -33,6 +36,12 @@ public abstract class NameParentNode extends Node
 {
   public String name;
   
+  /**
+   * The slot assigned to the name by {@link AttributeNames}, or -1 if
+   * it has none.
+   */
+  public final int nameSlot;
+  
   public NameParentNode (Field field)
   {
     this (field.fieldName ());
@@ -41,6 +50,23 @@ public abstract class NameParentNode extends Node
   public NameParentNode (String name)
   {
     this.name = name;
+    this.nameSlot = AttributeNames.slotFor (name);
+  }
+
+  /**
+   * Get the value of the named attribute in a notification.
+   */
+  protected Object valueIn (Map<String, Object> attrs)
+  {
+    return AttributeMap.get (attrs, name, nameSlot);
+  }
+  
+  /**
+   * Test if a notification has the named attribute.
+   */
+  protected boolean isIn (Map<String, Object> attrs)
+  {
+    return AttributeMap.containsKey (attrs, name, nameSlot);
   }
 
   @Override
@@ -18,6 +18,7 @@
 package org.avis.subscription.ast;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 
 import org.avis.subscription.ast.nodes.Const;
@@ -49,6 +50,22 @@ public abstract class Node
    */
   public abstract Object evaluate (Map<String, Object> attrs);
 
+  /**
+   * Evaluate a numeric expression without boxing its result. Numeric
+   * nodes override this to avoid allocating intermediate results: the
+   * default just unpacks the result of {@link #evaluate(Map)}.
+   * 
+   * @param attrs The notification to match against.
+   * @param result Receives the value of the expression.
+   * 
+   * @return The type tag of the result, which is NumberResult.NONE if
+   *         the expression is bottom or not a number.
+   */
+  public int evaluateNumber (Map<String, Object> attrs, NumberResult result)
+  {
+    return result.set (evaluate (attrs));
+  }
+
   /**
    * The type of result that is guaranteed to be generated by {@link
    * #evaluate(Map)}.
@@ -81,6 +98,65 @@ public abstract class Node
    */
   public abstract String expr ();
 
+  /**
+   * Nodes are structurally equal if they are of the same class, have
+   * the same {@link #expr()} and have equal children. Subclasses with
+   * state not reflected in these (e.g. {@link Const}) override this.
+   */
+  @Override
+  public boolean equals (Object obj)
+  {
+    if (obj == this)
+      return true;
+    else if (obj == null || obj.getClass () != getClass ())
+      return false;
+
+    Node node = (Node)obj;
+
+    if (!expr ().equals (node.expr ()) ||
+        hasChildren () != node.hasChildren ())
+    {
+      return false;
+    }
+
+    if (hasChildren ())
+    {
+      Collection<Node> children = children ();
+      Collection<Node> nodeChildren = node.children ();
+
+      if (children.size () != nodeChildren.size ())
+        return false;
+
+      Iterator<Node> i = children.iterator ();
+      Iterator<Node> j = nodeChildren.iterator ();
+
+      while (i.hasNext ())
+      {
+        if (!i.next ().equals (j.next ()))
+          return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Structural hash code: consistent with {@link #equals(Object)}.
+   */
+  @Override
+  public int hashCode ()
+  {
+    int hash = getClass ().getName ().hashCode () * 31 + expr ().hashCode ();
+
+    if (hasChildren ())
+    {
+      for (Node child : children ())
+        hash = hash * 31 + child.hashCode ();
+    }
+
+    return hash;
+  }
+
   /**
    * Returns {@link #name()}. Subclasses may override.
    */
@@ -0,0 +1,831 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.avis.subscription.ast.AdaptiveOrder.Sampler;
+import org.avis.subscription.ast.nodes.And;
+import org.avis.subscription.ast.nodes.Compare;
+import org.avis.subscription.ast.nodes.Const;
+import org.avis.subscription.ast.nodes.Field;
+import org.avis.subscription.ast.nodes.Nan;
+import org.avis.subscription.ast.nodes.Not;
+import org.avis.subscription.ast.nodes.Or;
+import org.avis.subscription.ast.nodes.Require;
+import org.avis.subscription.ast.nodes.Type;
+import org.avis.subscription.ast.nodes.Xor;
+import org.avis.util.AttributeMap;
+import org.avis.util.AttributeNames;
+
+/**
+ * Compiles boolean expression trees into a form that evaluates
+ * faster than walking the tree with {@link Node#evaluate(Map)}.
+ * <p>
+ * The compiled form is a tree of specialised conditions that return
+ * a primitive three-valued result rather than a Boolean, with
+ * comparisons between a field and a constant specialised for the
+ * constant's type so that numeric tests do not box or upconvert.
+ * Fields referenced more than once in an expression are looked up
+ * once per evaluation. Nodes the compiler does not handle are
+ * evaluated by the interpreter, so compiled and interpreted
+ * expressions always give the same result.
+ *
+ * @see CompiledNode
+ * @see CompilingNode
+ */
+public final class NodeCompiler
+{
+  /**
+   * The default number of interpreted evaluations before a
+   * {@link CompilingNode} compiles its expression.
+   */
+  public static final int DEFAULT_COMPILE_THRESHOLD = 100;
+
+  /* Three-valued results */
+  static final int BOTTOM = -1;
+  static final int FALSE = 0;
+  static final int TRUE = 1;
+
+  /**
+   * Maps field names to the number of times they are referenced by
+   * compiled conditions.
+   */
+  private Map<String, Integer> references;
+
+  /**
+   * Maps field names referenced more than once to a slot in the
+   * evaluation frame.
+   */
+  private Map<String, Integer> slots;
+
+  private NodeCompiler ()
+  {
+    this.references = new HashMap<String, Integer> ();
+    this.slots = new HashMap<String, Integer> ();
+  }
+
+  /**
+   * Compile a boolean expression.
+   *
+   * @param node The root of the expression.
+   *
+   * @return The compiled expression, or the original node if it is not
+   *         boolean or is already compiled.
+   */
+  public static Node compile (Node node)
+  {
+    if (node.evalType () != Boolean.class ||
+        node instanceof CompiledNode || node instanceof Const)
+    {
+      return node;
+    }
+
+    NodeCompiler compiler = new NodeCompiler ();
+
+    compiler.countReferences (node);
+
+    return new CompiledNode (node, compiler.compileCondition (node),
+                             compiler.slots.size ());
+  }
+
+  /**
+   * Create a node that interprets an expression until it has been
+   * evaluated a given number of times, then compiles it.
+   *
+   * @param node The root of the expression.
+   * @param threshold The number of interpreted evaluations before
+   *          compiling.
+   *
+   * @see #DEFAULT_COMPILE_THRESHOLD
+   */
+  public static Node compileAfter (Node node, int threshold)
+  {
+    if (node.evalType () != Boolean.class ||
+        node instanceof CompiledNode || node instanceof CompilingNode ||
+        node instanceof Const)
+    {
+      return node;
+    }
+
+    return new CompilingNode (node, threshold);
+  }
+
+  /**
+   * Count the number of times each field is referenced by the
+   * conditions that will be compiled, so that fields referenced more
+   * than once can be assigned a slot.
+   */
+  private void countReferences (Node node)
+  {
+    String name = fieldReferenceOf (node);
+
+    if (name != null)
+    {
+      Integer count = references.get (name);
+
+      references.put (name, count == null ? 1 : count + 1);
+    } else if (isLogical (node))
+    {
+      for (Node child : node.children ())
+        countReferences (child);
+    }
+  }
+
+  /**
+   * The name of the field a compiled condition for a node will look
+   * up, or null if none.
+   */
+  private static String fieldReferenceOf (Node node)
+  {
+    if (node instanceof Type || node instanceof Nan)
+    {
+      return ((NameParentNode)node).name;
+    } else if (node instanceof StringCompareNode)
+    {
+      Node stringExpr = ((StringCompareNode)node).stringExpr ();
+
+      if (stringExpr instanceof Field)
+        return ((Field)stringExpr).fieldName ();
+    } else if (node instanceof Compare)
+    {
+      Compare compare = (Compare)node;
+
+      if (compare.child1 () instanceof Field &&
+          compare.child2 () instanceof Const)
+      {
+        return ((Field)compare.child1 ()).fieldName ();
+      } else if (compare.child2 () instanceof Field &&
+                 compare.child1 () instanceof Const)
+      {
+        return ((Field)compare.child2 ()).fieldName ();
+      }
+    }
+
+    return null;
+  }
+
+  private static boolean isLogical (Node node)
+  {
+    return node instanceof And || node instanceof Or ||
+           node instanceof Xor || node instanceof Not;
+  }
+
+  private Condition compileCondition (Node node)
+  {
+    if (node instanceof And)
+    {
+      return new AndCondition (compileChildren (node));
+    } else if (node instanceof Or)
+    {
+      return new OrCondition (compileChildren (node));
+    } else if (node instanceof Xor)
+    {
+      return new XorCondition (compileChildren (node));
+    } else if (node instanceof Not)
+    {
+      return new NotCondition
+        (compileCondition (node.children ().iterator ().next ()));
+    } else if (node instanceof Const)
+    {
+      Object value = ((Const)node).value ();
+
+      return new ConstCondition
+        (value == Node.TRUE ? TRUE : value == Node.FALSE ? FALSE : BOTTOM);
+    } else if (node instanceof Require)
+    {
+      return new RequireCondition (((Require)node).name,
+                                   ((Require)node).nameSlot);
+    }
+
+    String name = fieldReferenceOf (node);
+
+    if (name == null)
+      return new InterpretedCondition (node);
+
+    FieldRef field = fieldRef (name);
+
+    if (node instanceof Type)
+    {
+      return new TypeCondition (field, ((Type)node).type);
+    } else if (node instanceof Nan)
+    {
+      return new NanCondition (field);
+    } else if (node instanceof StringCompareNode)
+    {
+      return new StringCompareCondition (field, (StringCompareNode)node);
+    } else
+    {
+      Compare compare = (Compare)node;
+
+      if (compare.child1 () instanceof Const)
+      {
+        // "const op field" => "field op' const"
+        return compareCondition
+          (compare, field, ((Const)compare.child1 ()).value (),
+           -compare.inequality);
+      } else
+      {
+        return compareCondition
+          (compare, field, ((Const)compare.child2 ()).value (),
+           compare.inequality);
+      }
+    }
+  }
+
+  private static Condition compareCondition (Compare compare, FieldRef field,
+                                             Object constant,
+                                             int inequality)
+  {
+    if (constant instanceof Integer || constant instanceof Long)
+    {
+      return new CompareIntegerCondition
+        (compare, field, ((Number)constant).longValue (),
+         inequality, compare.equality);
+    } else if (constant instanceof Double)
+    {
+      return new CompareRealCondition
+        (compare, field, (Double)constant, inequality, compare.equality);
+    } else if (constant instanceof String)
+    {
+      return new CompareStringCondition
+        (compare, field, (String)constant, inequality, compare.equality);
+    } else
+    {
+      return new InterpretedCondition (compare);
+    }
+  }
+
+  private Condition [] compileChildren (Node node)
+  {
+    List<Condition> conditions = new ArrayList<Condition> ();
+
+    for (Node child : node.children ())
+      conditions.add (compileCondition (child));
+
+    return conditions.toArray (new Condition [conditions.size ()]);
+  }
+
+  private FieldRef fieldRef (String name)
+  {
+    if (references.get (name) > 1)
+    {
+      Integer slot = slots.get (name);
+
+      if (slot == null)
+      {
+        slot = slots.size ();
+
+        slots.put (name, slot);
+      }
+
+      return new FieldRef (name, slot);
+    } else
+    {
+      return new FieldRef (name, -1);
+    }
+  }
+
+  /**
+   * Map the result of a comparison to a three-valued result, as in
+   * Compare.
+   */
+  static int compareResult (int compare, int inequality, boolean equality)
+  {
+    if (compare == 0)
+      return equality ? TRUE : FALSE;
+    else if (compare < 0)
+      return inequality < 0 ? TRUE : FALSE;
+    else
+      return inequality > 0 ? TRUE : FALSE;
+  }
+
+  /**
+   * The state of a single evaluation of a compiled expression. Frames
+   * are reused across evaluations (see CompiledNode) to avoid
+   * allocating one per notification.
+   */
+  static final class Frame
+  {
+    private static final Object UNLOADED = new Object ();
+    private static final Object [] NO_VALUES = new Object [0];
+
+    public Map<String, Object> attributes;
+    private Object [] values;
+    private int slotCount;
+    private boolean inUse;
+
+    public Frame ()
+    {
+      this.values = NO_VALUES;
+    }
+
+    /**
+     * True if the frame is being used for an evaluation.
+     */
+    public boolean inUse ()
+    {
+      return inUse;
+    }
+
+    /**
+     * Start an evaluation.
+     *
+     * @param newAttributes The attributes to evaluate against.
+     * @param newSlotCount The number of field slots needed.
+     */
+    public void start (Map<String, Object> newAttributes, int newSlotCount)
+    {
+      if (values.length < newSlotCount)
+      {
+        values = new Object [newSlotCount];
+
+        Arrays.fill (values, UNLOADED);
+      }
+
+      this.attributes = newAttributes;
+      this.slotCount = newSlotCount;
+      this.inUse = true;
+    }
+
+    /**
+     * End an evaluation, releasing the attributes and field values.
+     */
+    public void finish ()
+    {
+      Arrays.fill (values, 0, slotCount, UNLOADED);
+
+      attributes = null;
+      inUse = false;
+    }
+
+    /**
+     * Get the value of a field, looking it up at most once if it has
+     * a slot.
+     */
+    public Object value (FieldRef field)
+    {
+      if (field.slot == -1)
+        return AttributeMap.get (attributes, field.name, field.nameSlot);
+
+      Object value = values [field.slot];
+
+      if (value == UNLOADED)
+      {
+        value = AttributeMap.get (attributes, field.name, field.nameSlot);
+
+        values [field.slot] = value;
+      }
+
+      return value;
+    }
+  }
+
+  /**
+   * A reference to a field, with a frame slot if the field is looked
+   * up more than once.
+   */
+  static final class FieldRef
+  {
+    public final String name;
+    public final int slot;
+
+    /** The attribute name's slot in an AttributeMap. */
+    public final int nameSlot;
+
+    public FieldRef (String name, int slot)
+    {
+      this.name = name;
+      this.slot = slot;
+      this.nameSlot = AttributeNames.slotFor (name);
+    }
+  }
+
+  /**
+   * Base class for compiled conditions.
+   */
+  abstract static class Condition
+  {
+    /**
+     * Evaluate the condition.
+     *
+     * @return TRUE, FALSE or BOTTOM.
+     */
+    public abstract int test (Frame frame);
+  }
+
+  static final class ConstCondition extends Condition
+  {
+    private final int value;
+
+    public ConstCondition (int value)
+    {
+      this.value = value;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      return value;
+    }
+  }
+
+  /**
+   * Base class for AND and OR conditions, which evaluate their
+   * children in adaptive order until one yields the decisive value.
+   *
+   * @see BoolParentNode#evaluateJunction(Map, Boolean, Boolean)
+   */
+  abstract static class JunctionCondition extends Condition
+  {
+    private final Condition [] children;
+    private final int decisive;
+    private final int otherwise;
+    private final AdaptiveOrder ordering;
+
+    public JunctionCondition (Condition [] children,
+                              int decisive, int otherwise)
+    {
+      this.children = children;
+      this.decisive = decisive;
+      this.otherwise = otherwise;
+      this.ordering = new AdaptiveOrder (children.length);
+    }
+
+    @Override
+    public final int test (Frame frame)
+    {
+      Sampler sampler = ordering.sample ();
+
+      if (sampler != null)
+        return testSampled (frame, sampler);
+
+      int value = otherwise;
+
+      for (int i : ordering.order ())
+      {
+        int result = children [i].test (frame);
+
+        if (result == decisive)
+          return decisive;
+        else if (result == BOTTOM)
+          value = BOTTOM;
+      }
+
+      return value;
+    }
+
+    private int testSampled (Frame frame, Sampler sampler)
+    {
+      int value = otherwise;
+
+      try
+      {
+        long start = System.nanoTime ();
+
+        for (int i = 0; i < children.length; i++)
+        {
+          int result = children [i].test (frame);
+          long end = System.nanoTime ();
+
+          sampler.costs [i] = end - start;
+          sampler.decisions [i] = result == decisive;
+          start = end;
+
+          if (result == decisive)
+            value = decisive;
+          else if (result == BOTTOM && value != decisive)
+            value = BOTTOM;
+        }
+      } finally
+      {
+        ordering.addSample (sampler);
+      }
+
+      return value;
+    }
+  }
+
+  static final class AndCondition extends JunctionCondition
+  {
+    public AndCondition (Condition [] children)
+    {
+      super (children, FALSE, TRUE);
+    }
+  }
+
+  static final class OrCondition extends JunctionCondition
+  {
+    public OrCondition (Condition [] children)
+    {
+      super (children, TRUE, FALSE);
+    }
+  }
+
+  static final class XorCondition extends Condition
+  {
+    private final Condition [] children;
+
+    public XorCondition (Condition [] children)
+    {
+      this.children = children;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      int value = FALSE;
+
+      for (int i = 0; i < children.length; i++)
+      {
+        int result = children [i].test (frame);
+
+        if (result == BOTTOM)
+          return BOTTOM;
+        else if (result == TRUE)
+          value = value == TRUE ? FALSE : TRUE;
+      }
+
+      return value;
+    }
+  }
+
+  static final class NotCondition extends Condition
+  {
+    private final Condition child;
+
+    public NotCondition (Condition child)
+    {
+      this.child = child;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      int result = child.test (frame);
+
+      return result == BOTTOM ? BOTTOM : TRUE - result;
+    }
+  }
+
+  static final class RequireCondition extends Condition
+  {
+    private final String name;
+    private final int nameSlot;
+
+    public RequireCondition (String name, int nameSlot)
+    {
+      this.name = name;
+      this.nameSlot = nameSlot;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      return AttributeMap.containsKey (frame.attributes, name, nameSlot) ?
+               TRUE : BOTTOM;
+    }
+  }
+
+  static final class TypeCondition extends Condition
+  {
+    private final FieldRef field;
+    private final Class<?> type;
+
+    public TypeCondition (FieldRef field, Class<?> type)
+    {
+      this.field = field;
+      this.type = type;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      Object value = frame.value (field);
+
+      if (value == null)
+        return BOTTOM;
+      else
+        return value.getClass () == type ? TRUE : FALSE;
+    }
+  }
+
+  static final class NanCondition extends Condition
+  {
+    private final FieldRef field;
+
+    public NanCondition (FieldRef field)
+    {
+      this.field = field;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      Object value = frame.value (field);
+
+      if (value instanceof Double)
+        return ((Double)value).isNaN () ? TRUE : FALSE;
+      else
+        return BOTTOM;
+    }
+  }
+
+  static final class StringCompareCondition extends Condition
+  {
+    private final FieldRef field;
+    private final StringCompareNode node;
+
+    public StringCompareCondition (FieldRef field, StringCompareNode node)
+    {
+      this.field = field;
+      this.node = node;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      Object value = frame.value (field);
+
+      if (value instanceof String)
+        return node.evaluate ((String)value, node.string) ? TRUE : FALSE;
+      else
+        return BOTTOM;
+    }
+  }
+
+  /**
+   * Base class for comparisons of a field with a constant. Values
+   * of unexpected types are handed to the original Compare node.
+   */
+  abstract static class CompareCondition extends Condition
+  {
+    private final Compare compare;
+    protected final FieldRef field;
+    protected final int inequality;
+    protected final boolean equality;
+
+    public CompareCondition (Compare compare, FieldRef field,
+                             int inequality, boolean equality)
+    {
+      this.compare = compare;
+      this.field = field;
+      this.inequality = inequality;
+      this.equality = equality;
+    }
+
+    protected int interpret (Frame frame)
+    {
+      Object result = compare.evaluate (frame.attributes);
+
+      return result == Node.TRUE ? TRUE :
+               result == Node.FALSE ? FALSE : BOTTOM;
+    }
+  }
+
+  static final class CompareIntegerCondition extends CompareCondition
+  {
+    private final long constant;
+
+    public CompareIntegerCondition (Compare compare, FieldRef field,
+                                    long constant,
+                                    int inequality, boolean equality)
+    {
+      super (compare, field, inequality, equality);
+
+      this.constant = constant;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      Object value = frame.value (field);
+
+      if (value instanceof Integer || value instanceof Long)
+      {
+        long longValue = ((Number)value).longValue ();
+
+        return compareResult (longValue < constant ? -1 :
+                                longValue == constant ? 0 : 1,
+                              inequality, equality);
+      } else if (value instanceof Double)
+      {
+        return compareResult (Double.compare ((Double)value, constant),
+                              inequality, equality);
+      } else if (value instanceof String || value == null)
+      {
+        return BOTTOM;
+      } else
+      {
+        return interpret (frame);
+      }
+    }
+  }
+
+  static final class CompareRealCondition extends CompareCondition
+  {
+    private final double constant;
+
+    public CompareRealCondition (Compare compare, FieldRef field,
+                                 double constant,
+                                 int inequality, boolean equality)
+    {
+      super (compare, field, inequality, equality);
+
+      this.constant = constant;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      Object value = frame.value (field);
+
+      if (value instanceof Double || value instanceof Integer ||
+          value instanceof Long)
+      {
+        return compareResult
+          (Double.compare (((Number)value).doubleValue (), constant),
+           inequality, equality);
+      } else if (value instanceof String || value == null)
+      {
+        return BOTTOM;
+      } else
+      {
+        return interpret (frame);
+      }
+    }
+  }
+
+  static final class CompareStringCondition extends CompareCondition
+  {
+    private final String constant;
+
+    public CompareStringCondition (Compare compare, FieldRef field,
+                                   String constant,
+                                   int inequality, boolean equality)
+    {
+      super (compare, field, inequality, equality);
+
+      this.constant = constant;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      Object value = frame.value (field);
+
+      if (value instanceof String)
+      {
+        return compareResult (((String)value).compareTo (constant),
+                              inequality, equality);
+      } else if (value instanceof Number || value == null)
+      {
+        return BOTTOM;
+      } else
+      {
+        return interpret (frame);
+      }
+    }
+  }
+
+  /**
+   * A condition evaluated by interpreting a node.
+   */
+  static final class InterpretedCondition extends Condition
+  {
+    private final Node node;
+
+    public InterpretedCondition (Node node)
+    {
+      this.node = node;
+    }
+
+    @Override
+    public int test (Frame frame)
+    {
+      Object result = node.evaluate (frame.attributes);
+
+      return result == Node.TRUE ? TRUE :
+               result == Node.FALSE ? FALSE : BOTTOM;
+    }
+  }
+}
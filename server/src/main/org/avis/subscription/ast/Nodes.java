@@ -17,14 +17,29 @@
  */
 package org.avis.subscription.ast;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import java.io.StringWriter;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 
+import org.avis.subscription.ast.nodes.And;
+import org.avis.subscription.ast.nodes.Compare;
+import org.avis.subscription.ast.nodes.Field;
+import org.avis.subscription.ast.nodes.MathBitInvert;
+import org.avis.subscription.ast.nodes.MathUnaryMinus;
+import org.avis.subscription.ast.nodes.Nan;
+import org.avis.subscription.ast.nodes.Not;
 import org.avis.subscription.ast.nodes.Or;
+import org.avis.subscription.ast.nodes.Require;
+import org.avis.subscription.ast.nodes.Size;
+import org.avis.subscription.ast.nodes.StrFoldCase;
+import org.avis.subscription.ast.nodes.StrUnicodeDecompose;
+import org.avis.subscription.ast.nodes.Type;
+import org.avis.subscription.ast.nodes.Xor;
 import org.avis.util.IndentingWriter;
 
 /**
@@ -166,5 +181,105 @@ public final class Nodes
       throw new Error (ex);
     }
   }
-}
 
+  /**
+   * Compute the set of attributes that must be present in a
+   * notification for a predicate expression to evaluate to true. For
+   * example, <tt>require (a) &amp;&amp; (b &gt; 1 || b &lt; c)</tt>
+   * requires both a and b, but not c.
+   * <p>
+   * The analysis is conservative: the result never contains an
+   * attribute that is not actually needed, but may omit some that
+   * are. Nodes it does not understand require nothing.
+   */
+  public static Set<String> requiredAttributes (Node node)
+  {
+    return required (node, true);
+  }
+
+  /**
+   * The attributes needed for a boolean node to evaluate to a given
+   * result.
+   */
+  private static Set<String> required (Node node, boolean result)
+  {
+    Set<String> names = new HashSet<String> ();
+    
+    if (node instanceof And || node instanceof Or)
+    {
+      /*
+       * Every child must be true for AND to be true, but only one
+       * needs to be false for it to be false: so AND needs the union
+       * of its children's attributes to be true, and only those they
+       * have in common to be false. OR is the dual.
+       */
+      boolean union = (node instanceof And) == result;
+      boolean first = true;
+      
+      for (Node child : node.children ())
+      {
+        Set<String> childNames = required (child, result);
+        
+        if (union || first)
+          names.addAll (childNames);
+        else
+          names.retainAll (childNames);
+        
+        first = false;
+      }
+    } else if (node instanceof Not)
+    {
+      names.addAll (required (node.children ().iterator ().next (), !result));
+    } else if (node instanceof Xor)
+    {
+      // XOR bottoms out if any child does, so every child must be
+      // either true or false
+      for (Node child : node.children ())
+      {
+        Set<String> childNames = required (child, true);
+        
+        childNames.retainAll (required (child, false));
+        
+        names.addAll (childNames);
+      }
+    } else if (node instanceof Require || node instanceof Type ||
+               node instanceof Nan)
+    {
+      names.add (((NameParentNode)node).name);
+    } else if (node instanceof Compare)
+    {
+      // a missing operand is not comparable
+      addValueAttributes (names, ((Compare)node).child1 ());
+      addValueAttributes (names, ((Compare)node).child2 ());
+    } else if (node instanceof StringCompareNode)
+    {
+      addValueAttributes (names, ((StringCompareNode)node).stringExpr ());
+    }
+    
+    return names;
+  }
+
+  /**
+   * Add the attributes needed for a value node to evaluate to
+   * something other than bottom.
+   */
+  private static void addValueAttributes (Set<String> names, Node node)
+  {
+    if (node instanceof Field)
+    {
+      names.add (((Field)node).fieldName ());
+    } else if (node instanceof Size)
+    {
+      names.add (((Size)node).name);
+    } else if (node instanceof MathParentNode ||
+               node instanceof MathBitInvert ||
+               node instanceof MathUnaryMinus ||
+               node instanceof StrFoldCase ||
+               node instanceof StrUnicodeDecompose)
+    {
+      // these all bottom out if any of their operands do
+      for (Node child : node.children ())
+        addValueAttributes (names, child);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.ast;
+
+/**
+ * Receives the result of {@link Node#evaluateNumber(java.util.Map,
+ * NumberResult)}, which evaluates numeric expressions without boxing.
+ * The evaluation returns one of the type tags defined here, and
+ * leaves the value in {@link #longValue} for INT32 and INT64 results
+ * or in {@link #doubleValue} for REAL64 results.
+ * <p>
+ * The type tags are ordered by precision, so the type two numbers
+ * are upconverted to for an operation is simply the larger of their
+ * tags.
+ */
+public final class NumberResult
+{
+  /** Not a number, including bottom. */
+  public static final int NONE = 0;
+
+  /** An Integer: the value is in longValue. */
+  public static final int INT32 = 1;
+
+  /** A Long: the value is in longValue. */
+  public static final int INT64 = 2;
+
+  /** A Double: the value is in doubleValue. */
+  public static final int REAL64 = 3;
+
+  private static final ThreadLocal<NumberResult> RESULTS =
+    new ThreadLocal<NumberResult> ()
+  {
+    @Override
+    protected NumberResult initialValue ()
+    {
+      return new NumberResult ();
+    }
+  };
+
+  public long longValue;
+  public double doubleValue;
+
+  /**
+   * A result holder for the current thread. Numeric nodes copy their
+   * operands' values out of the holder before evaluating the next
+   * operand, so a single holder serves a whole expression.
+   */
+  public static NumberResult forThread ()
+  {
+    return RESULTS.get ();
+  }
+
+  /**
+   * Set the result from a boxed value.
+   *
+   * @return The value's type tag.
+   */
+  public int set (Object value)
+  {
+    if (value instanceof Integer)
+    {
+      longValue = (Integer)value;
+
+      return INT32;
+    } else if (value instanceof Long)
+    {
+      longValue = (Long)value;
+
+      return INT64;
+    } else if (value instanceof Double)
+    {
+      doubleValue = (Double)value;
+
+      return REAL64;
+    } else
+    {
+      return NONE;
+    }
+  }
+
+  /**
+   * The result as a double, upconverting integer results.
+   *
+   * @param type The result's type tag.
+   */
+  public double asDouble (int type)
+  {
+    return type == REAL64 ? doubleValue : longValue;
+  }
+
+  /**
+   * Box the result.
+   *
+   * @param type The result's type tag.
+   *
+   * @return The boxed value, or null (bottom) for NONE.
+   */
+  public Object box (int type)
+  {
+    switch (type)
+    {
+      case INT32:
+        return (int)longValue;
+      case INT64:
+        return longValue;
+      case REAL64:
+        return doubleValue;
+      default:
+        return null;
+    }
+  }
+}
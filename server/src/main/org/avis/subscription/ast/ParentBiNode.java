@@ -64,6 +64,22 @@ public abstract class ParentBiNode
   
   protected abstract String validateChild (Node child);
   
+  /**
+   * The first (left-hand) child.
+   */
+  public Node child1 ()
+  {
+    return child1;
+  }
+  
+  /**
+   * The second (right-hand) child.
+   */
+  public Node child2 ()
+  {
+    return child2;
+  }
+  
   @Override
   public String presentation ()
   {
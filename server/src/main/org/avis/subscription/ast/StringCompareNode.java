@@ -45,6 +45,22 @@ public abstract class StringCompareNode extends Node
     this.string = string;
   }
 
+  /**
+   * The expression generating the string to be compared.
+   */
+  public Node stringExpr ()
+  {
+    return stringExpr;
+  }
+  
+  /**
+   * The constant string argument.
+   */
+  public String string ()
+  {
+    return string;
+  }
+
   @Override
   public Class<?> evalType ()
   {
@@ -79,7 +95,8 @@ public abstract class StringCompareNode extends Node
   {
     Object value = stringExpr.evaluate (attrs);
     
-    if (value == null)
+    // a missing or non-string value is a type mismatch
+    if (!(value instanceof String))
       return BOTTOM;
     else
       return evaluate ((String)value, string);
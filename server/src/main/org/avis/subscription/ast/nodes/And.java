@@ -83,18 +83,6 @@ public class And extends BoolParentNode
   @Override
   public Object evaluate (Map<String, Object> attrs)
   {
-    Boolean value = TRUE;
-    
-    for (int i = 0; i < children.size (); i++)
-    {
-      Object result = children.get (i).evaluate (attrs);
-      
-      if (result == FALSE)
-        return result;
-      else if (result == BOTTOM)
-        value = BOTTOM;
-    }
-    
-    return value;
+    return evaluateJunction (attrs, FALSE, TRUE);
   }
 }
@@ -21,8 +21,13 @@ import java.util.List;
 import java.util.Map;
 
 import org.avis.subscription.ast.Node;
+import org.avis.subscription.ast.NumberResult;
 import org.avis.subscription.ast.ParentBiNode;
 
+import static java.lang.Math.max;
+
+import static org.avis.subscription.ast.NumberResult.NONE;
+import static org.avis.subscription.ast.NumberResult.REAL64;
 import static org.avis.util.Text.className;
 import static org.avis.util.Numbers.highestPrecision;
 import static org.avis.util.Numbers.upconvert;
@@ -165,6 +170,9 @@ public class Compare extends ParentBiNode
   @SuppressWarnings("unchecked")
   public Object evaluate (Map<String, Object> attrs)
   {
+    if (isNumeric (child1) || isNumeric (child2))
+      return evaluateNumeric (attrs);
+    
     Object result1 = child1.evaluate (attrs);
     
     if (!(result1 instanceof Comparable))
@@ -207,4 +215,57 @@ public class Compare extends ParentBiNode
     else
       return inequality > 0;
   }
+
+  /**
+   * Evaluate a comparison involving a numeric expression, without
+   * boxing the values being compared. Since a numeric expression
+   * cannot be compared with anything but another number, non-numeric
+   * operands bottom out.
+   */
+  private Object evaluateNumeric (Map<String, Object> attrs)
+  {
+    NumberResult result = NumberResult.forThread ();
+    
+    int type1 = child1.evaluateNumber (attrs, result);
+    
+    if (type1 == NONE)
+      return BOTTOM;
+    
+    long long1 = result.longValue;
+    double double1 = result.doubleValue;
+    
+    int type2 = child2.evaluateNumber (attrs, result);
+    
+    if (type2 == NONE)
+      return BOTTOM;
+    
+    int compare;
+    
+    if (max (type1, type2) == REAL64)
+    {
+      compare = Double.compare (type1 == REAL64 ? double1 : long1,
+                                result.asDouble (type2));
+    } else
+    {
+      long long2 = result.longValue;
+      
+      compare = long1 < long2 ? -1 : (long1 == long2 ? 0 : 1);
+    }
+    
+    if (compare == 0)
+      return equality;
+    else if (compare < 0)
+      return inequality < 0;
+    else
+      return inequality > 0;
+  }
+
+  /**
+   * True if a node always evaluates to a number (or bottom).
+   */
+  private static boolean isNumeric (Node node)
+  {
+    return Number.class.isAssignableFrom (node.evalType ()) ||
+           node instanceof MathBitInvert || node instanceof MathUnaryMinus;
+  }
 }
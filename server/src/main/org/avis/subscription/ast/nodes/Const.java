@@ -74,7 +74,7 @@ public class Const extends Node
   @Override
   public boolean equals (Object obj)
   {
-    return obj.getClass () == Const.class && 
+    return obj != null && obj.getClass () == Const.class &&
            valuesEqual (((Const)obj).value, value);
   }
   
@@ -52,7 +52,7 @@ public class Field extends NameParentNode
   @Override
   public Object evaluate (Map<String, Object> attrs)
   {
-    return attrs.get (name);
+    return valueIn (attrs);
   }
   
   /**
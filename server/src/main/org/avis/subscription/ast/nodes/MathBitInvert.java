@@ -23,6 +23,11 @@ import java.util.Map;
 
 import org.avis.subscription.ast.IllegalChildException;
 import org.avis.subscription.ast.Node;
+import org.avis.subscription.ast.NumberResult;
+
+import static org.avis.subscription.ast.NumberResult.INT32;
+import static org.avis.subscription.ast.NumberResult.INT64;
+import static org.avis.subscription.ast.NumberResult.NONE;
 
 public class MathBitInvert extends Node
 {
@@ -98,4 +103,19 @@ public class MathBitInvert extends Node
     else
       return BOTTOM;
   }
+  
+  @Override
+  public int evaluateNumber (Map<String, Object> attrs, NumberResult result)
+  {
+    int type = child.evaluateNumber (attrs, result);
+    
+    if (type == INT32)
+      result.longValue = (int)result.longValue ^ 0xFFFFFFFF;
+    else if (type == INT64)
+      result.longValue ^= 0xFFFFFFFFFFFFFFFFL;
+    else
+      return NONE;
+    
+    return type;
+  }
 }
@@ -22,9 +22,14 @@ import java.util.Map;
 
 import org.avis.subscription.ast.IllegalChildException;
 import org.avis.subscription.ast.Node;
+import org.avis.subscription.ast.NumberResult;
 
 import static java.util.Collections.singleton;
 
+import static org.avis.subscription.ast.NumberResult.INT32;
+import static org.avis.subscription.ast.NumberResult.INT64;
+import static org.avis.subscription.ast.NumberResult.REAL64;
+
 public class MathUnaryMinus extends Node
 {
   private Node child;
@@ -101,4 +106,19 @@ public class MathUnaryMinus extends Node
     else
       return BOTTOM;
   }
+  
+  @Override
+  public int evaluateNumber (Map<String, Object> attrs, NumberResult result)
+  {
+    int type = child.evaluateNumber (attrs, result);
+    
+    if (type == INT32)
+      result.longValue = -(int)result.longValue;
+    else if (type == INT64)
+      result.longValue = -result.longValue;
+    else if (type == REAL64)
+      result.doubleValue = -result.doubleValue;
+    
+    return type;
+  }
 }
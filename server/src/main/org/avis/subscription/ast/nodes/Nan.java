@@ -48,7 +48,7 @@ public class Nan extends NameParentNode
   @Override
   public Object evaluate (Map<String, Object> attrs)
   {
-    Object value = attrs.get (name);
+    Object value = valueIn (attrs);
     
     if (!(value instanceof Double))
       return BOTTOM;
@@ -88,18 +88,6 @@ public class Or extends BoolParentNode
   @Override
   public Object evaluate (Map<String, Object> attrs)
   {
-    Boolean value = FALSE;
-    
-    for (int i = 0; i < children.size (); i++)
-    {
-      Boolean result = (Boolean)children.get (i).evaluate (attrs);
-      
-      if (result == TRUE)
-        return TRUE;
-      else if (result == BOTTOM)
-        value = BOTTOM;
-    }
-    
-    return value;
+    return evaluateJunction (attrs, TRUE, FALSE);
   }
 }
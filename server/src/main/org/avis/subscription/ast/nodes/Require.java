@@ -48,6 +48,6 @@ public class Require extends NameParentNode
   @Override
   public Object evaluate (Map<String, Object> attrs)
   {
-    return attrs.containsKey (name) ? TRUE : BOTTOM;
+    return isIn (attrs) ? TRUE : BOTTOM;
   }
 }
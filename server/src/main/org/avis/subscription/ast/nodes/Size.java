@@ -20,6 +20,10 @@ package org.avis.subscription.ast.nodes;
 import java.util.Map;
 
 import org.avis.subscription.ast.NameParentNode;
+import org.avis.subscription.ast.NumberResult;
+
+import static org.avis.subscription.ast.NumberResult.INT32;
+import static org.avis.subscription.ast.NumberResult.NONE;
 
 public class Size extends NameParentNode
 {
@@ -48,7 +52,7 @@ public class Size extends NameParentNode
   @Override
   public Object evaluate (Map<String, Object> attrs)
   {
-    Object value = attrs.get (name);
+    Object value = valueIn (attrs);
     
     if (value instanceof byte [])
       return ((byte [])value).length;
@@ -57,4 +61,19 @@ public class Size extends NameParentNode
     else
       return BOTTOM;
   }
+  
+  @Override
+  public int evaluateNumber (Map<String, Object> attrs, NumberResult result)
+  {
+    Object value = valueIn (attrs);
+    
+    if (value instanceof byte [])
+      result.longValue = ((byte [])value).length;
+    else if (value instanceof String)
+      result.longValue = ((String)value).length ();
+    else
+      return NONE;
+    
+    return INT32;
+  }
 }
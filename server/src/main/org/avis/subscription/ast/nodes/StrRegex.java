@@ -23,6 +23,7 @@ import java.util.regex.PatternSyntaxException;
 
 import org.avis.subscription.ast.Node;
 import org.avis.subscription.ast.StringCompareNode;
+import org.avis.subscription.regex.LinearPattern;
 
 import static java.util.regex.Pattern.DOTALL;
 import static java.util.regex.Pattern.compile;
@@ -32,6 +33,7 @@ import static org.avis.subscription.ast.Nodes.createConjunction;
 public class StrRegex extends StringCompareNode
 {
   private Pattern regex;
+  private LinearPattern linearRegex;
 
   /**
    * Create from a list of arguments.
@@ -47,6 +49,16 @@ public class StrRegex extends StringCompareNode
     super (stringExpr, stringConst);
     
     this.regex = compile (string, DOTALL);
+    this.linearRegex = LinearPattern.regex (string);
+  }
+
+  /**
+   * The regex compiled for linear time matching, or null if it uses
+   * features that need java.util.regex.
+   */
+  public LinearPattern linearPattern ()
+  {
+    return linearRegex;
   }
 
   @Override
@@ -58,6 +70,9 @@ public class StrRegex extends StringCompareNode
   @Override
   protected boolean evaluate (String string1, String string2)
   {
-    return regex.matcher (string1).find ();
+    if (linearRegex != null)
+      return linearRegex.matches (string1);
+    else
+      return regex.matcher (string1).find ();
   }
 }
@@ -22,6 +22,7 @@ import java.util.regex.Pattern;
 
 import org.avis.subscription.ast.Node;
 import org.avis.subscription.ast.StringCompareNode;
+import org.avis.subscription.regex.LinearPattern;
 
 import static org.avis.subscription.ast.Nodes.createConjunction;
 import static org.avis.util.Wildcard.toPattern;
@@ -35,6 +36,7 @@ import static org.avis.util.Wildcard.toPattern;
 public class StrWildcard extends StringCompareNode
 {
   private Pattern wildcard;
+  private LinearPattern linearWildcard;
 
   /**
    * Create from a list of arguments.
@@ -49,6 +51,16 @@ public class StrWildcard extends StringCompareNode
     super (stringExpr, stringConst);
     
     this.wildcard = toPattern (string);
+    this.linearWildcard = LinearPattern.wildcard (string);
+  }
+
+  /**
+   * The wildcard compiled for linear time matching, or null if it
+   * uses features that need java.util.regex.
+   */
+  public LinearPattern linearPattern ()
+  {
+    return linearWildcard;
   }
 
   @Override
@@ -60,6 +72,9 @@ public class StrWildcard extends StringCompareNode
   @Override
   protected boolean evaluate (String string1, String string2)
   {
-    return wildcard.matcher (string1).matches ();
+    if (linearWildcard != null)
+      return linearWildcard.matches (string1);
+    else
+      return wildcard.matcher (string1).matches ();
   }
 }
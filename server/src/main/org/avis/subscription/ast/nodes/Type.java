@@ -52,7 +52,7 @@ public class Type extends NameParentNode
   @Override
   public Object evaluate (Map<String, Object> attrs)
   {
-    Object value = attrs.get (name);
+    Object value = valueIn (attrs);
     
     if (value == null)
       return BOTTOM;
@@ -0,0 +1,83 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.Collection;
+
+/**
+ * Computes 64-bit signatures of sets of attribute names, used to
+ * quickly rule out subscriptions that need an attribute that a
+ * notification does not have.
+ * <p>
+ * A signature is a one-word Bloom filter: each name sets a single
+ * bit chosen by its hash code. If a notification's signature does not
+ * cover every bit of a subscription's required signature, the
+ * notification is certainly missing a required attribute. The
+ * converse does not hold, since different names may set the same
+ * bit, so a covered signature just means the subscription must be
+ * evaluated as usual.
+ */
+public final class AttributeSignature
+{
+  private AttributeSignature ()
+  {
+    // zip
+  }
+
+  /**
+   * The signature of a single name.
+   */
+  public static long signatureOf (String name)
+  {
+    int hash = name.hashCode ();
+
+    // spread high bits down, since the low bits of string hashes are
+    // dominated by the last character
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+    return 1L << (hash & 63);
+  }
+
+  /**
+   * The signature of a set of names.
+   */
+  public static long signatureOf (Collection<String> names)
+  {
+    long signature = 0;
+
+    for (String name : names)
+      signature |= signatureOf (name);
+
+    return signature;
+  }
+
+  /**
+   * Test if a set of names may include all of the names in another
+   * set.
+   *
+   * @param available The signature of the available names.
+   * @param required The signature of the required names.
+   *
+   * @return False if some required name is definitely not available.
+   */
+  public static boolean covers (long available, long required)
+  {
+    return (required & ~available) == 0;
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An inverted index of "value == constant" predicates, keyed by the
+ * constant. Looking up a value finds every item whose constant is
+ * equal to it under the same rules as the Compare node: strings must
+ * be identical, and Integer, Long and Double values are compared
+ * after upconverting to the more precise of the two types, so that 5,
+ * 5L and 5.0 are all equal.
+ * <p>
+ * Not thread safe.
+ *
+ * @see org.avis.subscription.ast.nodes.Compare
+ */
+public class EqualityIndex<T>
+{
+  private Map<String, ArrayList<T>> strings;
+
+  /** Integer and Long constants, keyed by their long value. */
+  private Map<Long, ArrayList<T>> integers;
+
+  /** Double constants. */
+  private Map<Double, ArrayList<T>> reals;
+
+  /**
+   * Integer and Long constants keyed by their value as a double, for
+   * comparison against Double values.
+   */
+  private Map<Double, ArrayList<T>> integersAsReals;
+
+  private int size;
+
+  public EqualityIndex ()
+  {
+    this.strings = new HashMap<String, ArrayList<T>> ();
+    this.integers = new HashMap<Long, ArrayList<T>> ();
+    this.reals = new HashMap<Double, ArrayList<T>> ();
+    this.integersAsReals = new HashMap<Double, ArrayList<T>> ();
+  }
+
+  /**
+   * Test if a constant can be indexed.
+   */
+  public static boolean canIndex (Object constant)
+  {
+    return constant instanceof String || constant instanceof Integer ||
+           constant instanceof Long || constant instanceof Double;
+  }
+
+  /**
+   * The number of items in the index.
+   */
+  public int size ()
+  {
+    return size;
+  }
+
+  public boolean isEmpty ()
+  {
+    return size == 0;
+  }
+
+  /**
+   * Add an item to the index.
+   *
+   * @param constant The constant the item's predicate requires a value
+   *          to equal.
+   * @param item The item.
+   *
+   * @throws IllegalArgumentException if the constant cannot be
+   *           indexed.
+   *
+   * @see #canIndex(Object)
+   */
+  public void add (Object constant, T item)
+    throws IllegalArgumentException
+  {
+    if (constant instanceof String)
+    {
+      add (strings, (String)constant, item);
+    } else if (constant instanceof Integer || constant instanceof Long)
+    {
+      long value = ((Number)constant).longValue ();
+
+      add (integers, value, item);
+      add (integersAsReals, (double)value, item);
+    } else if (constant instanceof Double)
+    {
+      add (reals, (Double)constant, item);
+    } else
+    {
+      throw new IllegalArgumentException
+        ("Cannot index constant " + constant);
+    }
+
+    size++;
+  }
+
+  /**
+   * Remove an item from the index. Has no effect if the item is not
+   * in the index under the given constant.
+   */
+  public void remove (Object constant, T item)
+  {
+    boolean removed;
+
+    if (constant instanceof String)
+    {
+      removed = remove (strings, (String)constant, item);
+    } else if (constant instanceof Integer || constant instanceof Long)
+    {
+      long value = ((Number)constant).longValue ();
+
+      removed = remove (integers, value, item);
+
+      if (removed)
+        remove (integersAsReals, (double)value, item);
+    } else if (constant instanceof Double)
+    {
+      removed = remove (reals, (Double)constant, item);
+    } else
+    {
+      removed = false;
+    }
+
+    if (removed)
+      size--;
+  }
+
+  /**
+   * Visit every item whose constant is equal to a value.
+   *
+   * @param value The value. Values of types other than String,
+   *          Integer, Long and Double never match.
+   * @param visitor The visitor to call with each matching item.
+   */
+  public void match (Object value, Visitor<T> visitor)
+  {
+    if (value instanceof String)
+    {
+      visit (strings.get (value), visitor);
+    } else if (value instanceof Integer || value instanceof Long)
+    {
+      long longValue = ((Number)value).longValue ();
+
+      visit (integers.get (longValue), visitor);
+
+      if (!reals.isEmpty ())
+        visit (reals.get ((double)longValue), visitor);
+    } else if (value instanceof Double)
+    {
+      visit (reals.get (value), visitor);
+
+      if (!integersAsReals.isEmpty ())
+        visit (integersAsReals.get (value), visitor);
+    }
+  }
+
+  private static <T> void visit (ArrayList<T> items, Visitor<T> visitor)
+  {
+    if (items != null)
+    {
+      for (int i = 0; i < items.size (); i++)
+        visitor.visit (items.get (i));
+    }
+  }
+
+  private static <K, T> void add (Map<K, ArrayList<T>> map, K key, T item)
+  {
+    ArrayList<T> items = map.get (key);
+
+    if (items == null)
+    {
+      items = new ArrayList<T> (2);
+
+      map.put (key, items);
+    }
+
+    items.add (item);
+  }
+
+  private static <K, T> boolean remove (Map<K, ArrayList<T>> map,
+                                        K key, T item)
+  {
+    ArrayList<T> items = map.get (key);
+
+    if (items == null || !items.remove (item))
+      return false;
+
+    if (items.isEmpty ())
+      map.remove (key);
+
+    return true;
+  }
+}
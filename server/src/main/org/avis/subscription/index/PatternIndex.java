@@ -0,0 +1,191 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.avis.subscription.regex.Automaton;
+import org.avis.subscription.regex.LinearPattern;
+
+/**
+ * An index of regex and wildcard patterns, used to find every item
+ * whose pattern matches a value with a single pass over the value.
+ * This is used to index regex () and wildcard () predicates.
+ * <p>
+ * Matching uses a combined {@link Automaton} built from the current
+ * set of patterns, which takes time linear in the length of the value
+ * regardless of the patterns. As with SubstringIndex, the automaton is
+ * discarded when the set changes and rebuilt on the next match.
+ * <p>
+ * Changes to the index must be externally synchronized with each
+ * other and with matching. Matching may proceed concurrently in
+ * multiple threads.
+ */
+public class PatternIndex<T>
+{
+  /**
+   * Per thread buffers for the indexes of matching patterns.
+   */
+  private static final ThreadLocal<int []> RESULTS =
+    new ThreadLocal<int []> ()
+  {
+    @Override
+    protected int [] initialValue ()
+    {
+      return new int [16];
+    }
+  };
+
+  /**
+   * Maps patterns to the items registered under them.
+   */
+  private Map<LinearPattern, ArrayList<T>> patterns;
+
+  private int size;
+
+  /**
+   * The automaton and items for the current patterns, or null if it
+   * needs to be rebuilt.
+   */
+  private volatile Compiled compiled;
+
+  public PatternIndex ()
+  {
+    this.patterns = new HashMap<LinearPattern, ArrayList<T>> ();
+  }
+
+  /**
+   * The number of items in the index.
+   */
+  public int size ()
+  {
+    return size;
+  }
+
+  public boolean isEmpty ()
+  {
+    return size == 0;
+  }
+
+  /**
+   * Add an item under a pattern.
+   */
+  public void add (LinearPattern pattern, T item)
+  {
+    ArrayList<T> items = patterns.get (pattern);
+
+    if (items == null)
+    {
+      items = new ArrayList<T> (2);
+
+      patterns.put (pattern, items);
+    }
+
+    items.add (item);
+
+    size++;
+    compiled = null;
+  }
+
+  /**
+   * Remove an item from under a pattern. Has no effect if the item is
+   * not in the index under the pattern.
+   */
+  public void remove (LinearPattern pattern, T item)
+  {
+    ArrayList<T> items = patterns.get (pattern);
+
+    if (items == null || !items.remove (item))
+      return;
+
+    if (items.isEmpty ())
+      patterns.remove (pattern);
+
+    size--;
+    compiled = null;
+  }
+
+  /**
+   * Visit every item whose pattern matches a value. Each item is
+   * visited at most once.
+   */
+  @SuppressWarnings("unchecked")
+  public void match (String value, Visitor<T> visitor)
+  {
+    Compiled current = compiled;
+
+    if (current == null)
+      current = build ();
+
+    int [] results = RESULTS.get ();
+
+    if (results.length < current.items.length)
+    {
+      results = new int [current.items.length];
+
+      RESULTS.set (results);
+    }
+
+    int count = current.automaton.match (value, results);
+
+    for (int i = 0; i < count; i++)
+    {
+      for (Object item : current.items [results [i]])
+        visitor.visit ((T)item);
+    }
+  }
+
+  private synchronized Compiled build ()
+  {
+    if (compiled == null)
+      compiled = new Compiled (patterns);
+
+    return compiled;
+  }
+
+  /**
+   * An immutable automaton for a set of patterns, plus the items for
+   * each pattern.
+   */
+  static final class Compiled
+  {
+    final Automaton automaton;
+    final Object [][] items;
+
+    public Compiled (Map<LinearPattern, ? extends List<?>> patterns)
+    {
+      List<LinearPattern> patternList =
+        new ArrayList<LinearPattern> (patterns.size ());
+
+      items = new Object [patterns.size ()][];
+
+      for (Map.Entry<LinearPattern, ? extends List<?>> entry :
+           patterns.entrySet ())
+      {
+        items [patternList.size ()] = entry.getValue ().toArray ();
+
+        patternList.add (entry.getKey ());
+      }
+
+      automaton = new Automaton (patternList);
+    }
+  }
+}
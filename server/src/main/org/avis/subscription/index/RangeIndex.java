@@ -0,0 +1,416 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+/**
+ * An index of numeric threshold predicates of the form "value &lt;
+ * constant", "value &lt;= constant", "value &gt; constant" and "value
+ * &gt;= constant". Looking up a value finds every satisfied predicate
+ * in O(log n + k) time, where k is the number of matches.
+ * <p>
+ * The thresholds for each operator are kept in sorted arrays, so the
+ * satisfied predicates for a value are always a prefix or suffix of
+ * an array found by binary search. A bounded range such as "x &gt; 1
+ * &amp;&amp; x &lt; 10" is simply two predicates.
+ * <p>
+ * Comparisons follow the Compare node's rules: Integer and Long
+ * values are compared exactly against Integer and Long constants, and
+ * are upconverted to Double when compared against Double constants
+ * (and vice versa). Doubles are ordered as by Double.compareTo (),
+ * i.e. -0.0 &lt; 0.0 and NaN is greater than all other values.
+ * <p>
+ * Not thread safe.
+ *
+ * @see org.avis.subscription.ast.nodes.Compare
+ */
+public class RangeIndex<T>
+{
+  private static final int LESS = 0;
+  private static final int LESS_OR_EQUAL = 1;
+  private static final int GREATER = 2;
+  private static final int GREATER_OR_EQUAL = 3;
+
+  /**
+   * Integer and Long constants, keyed by long value, indexed by
+   * operator.
+   */
+  private Thresholds<T> [] integers;
+
+  /**
+   * Double constants, keyed by sortableBits (), indexed by operator.
+   */
+  private Thresholds<T> [] reals;
+
+  private int size;
+
+  @SuppressWarnings("unchecked")
+  public RangeIndex ()
+  {
+    this.integers = (Thresholds<T> [])new Thresholds<?> [4];
+    this.reals = (Thresholds<T> [])new Thresholds<?> [4];
+
+    for (int i = 0; i < 4; i++)
+    {
+      integers [i] = new Thresholds<T> ();
+      reals [i] = new Thresholds<T> ();
+    }
+  }
+
+  /**
+   * Test if a constant can be indexed.
+   */
+  public static boolean canIndex (Object constant)
+  {
+    return constant instanceof Integer || constant instanceof Long ||
+           constant instanceof Double;
+  }
+
+  /**
+   * The number of items in the index.
+   */
+  public int size ()
+  {
+    return size;
+  }
+
+  public boolean isEmpty ()
+  {
+    return size == 0;
+  }
+
+  /**
+   * Add an item to the index.
+   *
+   * @param inequality &lt; 0 if the item's predicate is true for
+   *          values less than the constant, &gt; 0 if it is true for
+   *          values greater than the constant. Must not be 0.
+   * @param equality True if the predicate is also true for values
+   *          equal to the constant.
+   * @param constant The constant.
+   * @param item The item.
+   *
+   * @throws IllegalArgumentException if the constant cannot be
+   *           indexed or inequality is 0.
+   *
+   * @see #canIndex(Object)
+   */
+  public void add (int inequality, boolean equality, Object constant, T item)
+    throws IllegalArgumentException
+  {
+    if (constant instanceof Integer || constant instanceof Long)
+    {
+      integers [operator (inequality, equality)].add
+        (((Number)constant).longValue (), item);
+    } else if (constant instanceof Double)
+    {
+      reals [operator (inequality, equality)].add
+        (sortableBits ((Double)constant), item);
+    } else
+    {
+      throw new IllegalArgumentException
+        ("Cannot index constant " + constant);
+    }
+
+    size++;
+  }
+
+  /**
+   * Remove an item from the index. Has no effect if the item is not
+   * in the index under the given operator and constant.
+   */
+  public void remove (int inequality, boolean equality,
+                      Object constant, T item)
+  {
+    boolean removed;
+
+    if (constant instanceof Integer || constant instanceof Long)
+    {
+      removed = integers [operator (inequality, equality)].remove
+        (((Number)constant).longValue (), item);
+    } else if (constant instanceof Double)
+    {
+      removed = reals [operator (inequality, equality)].remove
+        (sortableBits ((Double)constant), item);
+    } else
+    {
+      removed = false;
+    }
+
+    if (removed)
+      size--;
+  }
+
+  /**
+   * Visit every item whose predicate is true for a value.
+   *
+   * @param value The value. Values of types other than Integer, Long
+   *          and Double never match.
+   * @param visitor The visitor to call with each matching item.
+   */
+  public void match (Object value, Visitor<T> visitor)
+  {
+    if (value instanceof Integer || value instanceof Long)
+    {
+      long longValue = ((Number)value).longValue ();
+
+      for (int op = 0; op < 4; op++)
+      {
+        Thresholds<T> thresholds = integers [op];
+
+        if (thresholds.size > 0)
+        {
+          thresholds.visit (op, thresholds.lowerBound (longValue),
+                            thresholds.upperBound (longValue), visitor);
+        }
+      }
+
+      matchReals (sortableBits ((double)longValue), visitor);
+    } else if (value instanceof Double)
+    {
+      double doubleValue = (Double)value;
+
+      for (int op = 0; op < 4; op++)
+      {
+        Thresholds<T> thresholds = integers [op];
+
+        if (thresholds.size > 0)
+        {
+          thresholds.visit (op, thresholds.lowerBound (doubleValue),
+                            thresholds.upperBound (doubleValue), visitor);
+        }
+      }
+
+      matchReals (sortableBits (doubleValue), visitor);
+    }
+  }
+
+  private void matchReals (long key, Visitor<T> visitor)
+  {
+    for (int op = 0; op < 4; op++)
+    {
+      Thresholds<T> thresholds = reals [op];
+
+      if (thresholds.size > 0)
+      {
+        thresholds.visit (op, thresholds.lowerBound (key),
+                          thresholds.upperBound (key), visitor);
+      }
+    }
+  }
+
+  private static int operator (int inequality, boolean equality)
+  {
+    if (inequality == 0)
+      throw new IllegalArgumentException ("Inequality cannot be 0");
+
+    return (inequality < 0 ? LESS : GREATER) + (equality ? 1 : 0);
+  }
+
+  /**
+   * Map a double to a long that sorts in the same order as
+   * Double.compare ().
+   */
+  private static long sortableBits (double value)
+  {
+    long bits = Double.doubleToLongBits (value);
+
+    return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+  }
+
+  /**
+   * A sorted array of threshold constants and their items.
+   */
+  static final class Thresholds<T>
+  {
+    long [] keys;
+    Object [] items;
+    int size;
+
+    public Thresholds ()
+    {
+      this.keys = new long [4];
+      this.items = new Object [4];
+    }
+
+    public void add (long key, T item)
+    {
+      if (size == keys.length)
+      {
+        long [] newKeys = new long [size * 2];
+        Object [] newItems = new Object [size * 2];
+
+        System.arraycopy (keys, 0, newKeys, 0, size);
+        System.arraycopy (items, 0, newItems, 0, size);
+
+        keys = newKeys;
+        items = newItems;
+      }
+
+      int index = upperBound (key);
+
+      System.arraycopy (keys, index, keys, index + 1, size - index);
+      System.arraycopy (items, index, items, index + 1, size - index);
+
+      keys [index] = key;
+      items [index] = item;
+
+      size++;
+    }
+
+    public boolean remove (long key, T item)
+    {
+      for (int i = lowerBound (key); i < size && keys [i] == key; i++)
+      {
+        if (items [i].equals (item))
+        {
+          System.arraycopy (keys, i + 1, keys, i, size - i - 1);
+          System.arraycopy (items, i + 1, items, i, size - i - 1);
+
+          items [--size] = null;
+
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    /**
+     * Visit the items satisfied by a value.
+     *
+     * @param op The operator for this set of thresholds.
+     * @param lower The index of the first key &gt;= the value.
+     * @param upper The index of the first key &gt; the value.
+     * @param visitor The visitor.
+     */
+    @SuppressWarnings("unchecked")
+    public void visit (int op, int lower, int upper, Visitor<T> visitor)
+    {
+      int start;
+      int end;
+
+      switch (op)
+      {
+        case LESS:
+          start = upper;
+          end = size;
+          break;
+        case LESS_OR_EQUAL:
+          start = lower;
+          end = size;
+          break;
+        case GREATER:
+          start = 0;
+          end = lower;
+          break;
+        default:
+          start = 0;
+          end = upper;
+      }
+
+      for (int i = start; i < end; i++)
+        visitor.visit ((T)items [i]);
+    }
+
+    /**
+     * The index of the first key &gt;= a value.
+     */
+    public int lowerBound (long value)
+    {
+      int low = 0;
+      int high = size;
+
+      while (low < high)
+      {
+        int mid = (low + high) >>> 1;
+
+        if (keys [mid] < value)
+          low = mid + 1;
+        else
+          high = mid;
+      }
+
+      return low;
+    }
+
+    /**
+     * The index of the first key &gt; a value.
+     */
+    public int upperBound (long value)
+    {
+      int low = 0;
+      int high = size;
+
+      while (low < high)
+      {
+        int mid = (low + high) >>> 1;
+
+        if (keys [mid] <= value)
+          low = mid + 1;
+        else
+          high = mid;
+      }
+
+      return low;
+    }
+
+    /**
+     * The index of the first key &gt;= a double value, comparing
+     * keys as integers upconverted to doubles.
+     */
+    public int lowerBound (double value)
+    {
+      int low = 0;
+      int high = size;
+
+      while (low < high)
+      {
+        int mid = (low + high) >>> 1;
+
+        if (Double.compare (keys [mid], value) < 0)
+          low = mid + 1;
+        else
+          high = mid;
+      }
+
+      return low;
+    }
+
+    /**
+     * The index of the first key &gt; a double value, comparing keys
+     * as integers upconverted to doubles.
+     */
+    public int upperBound (double value)
+    {
+      int low = 0;
+      int high = size;
+
+      while (low < high)
+      {
+        int mid = (low + high) >>> 1;
+
+        if (Double.compare (keys [mid], value) <= 0)
+          low = mid + 1;
+        else
+          high = mid;
+      }
+
+      return low;
+    }
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.ArrayList;
+
+/**
+ * A character trie of string keys, used to find all the keys that are
+ * a prefix (or, for a reversed trie, a suffix) of a value in a single
+ * walk of the value. This is used to index begins-with () and
+ * ends-with () predicates.
+ * <p>
+ * Not thread safe.
+ */
+public class StringTrie<T>
+{
+  private boolean reversed;
+  private TrieNode<T> root;
+  private int size;
+
+  /**
+   * Create a new instance.
+   *
+   * @param reversed If false, match keys that are prefixes of a
+   *          value. If true, keys and values are read backwards,
+   *          matching keys that are suffixes of a value.
+   */
+  public StringTrie (boolean reversed)
+  {
+    this.reversed = reversed;
+    this.root = new TrieNode<T> ();
+  }
+
+  /**
+   * The number of items in the trie.
+   */
+  public int size ()
+  {
+    return size;
+  }
+
+  public boolean isEmpty ()
+  {
+    return size == 0;
+  }
+
+  /**
+   * Add an item under a key.
+   */
+  public void add (String key, T item)
+  {
+    TrieNode<T> node = root;
+    int length = key.length ();
+
+    for (int i = 0; i < length; i++)
+      node = node.childFor (charAt (key, i, length), true);
+
+    node.addItem (item);
+
+    size++;
+  }
+
+  /**
+   * Remove an item from under a key, pruning any nodes left empty. Has
+   * no effect if the item is not in the trie under the key.
+   */
+  public void remove (String key, T item)
+  {
+    int length = key.length ();
+    ArrayList<TrieNode<T>> path = new ArrayList<TrieNode<T>> (length + 1);
+    TrieNode<T> node = root;
+
+    path.add (node);
+
+    for (int i = 0; i < length && node != null; i++)
+    {
+      node = node.childFor (charAt (key, i, length), false);
+
+      path.add (node);
+    }
+
+    if (node == null || !node.removeItem (item))
+      return;
+
+    size--;
+
+    // prune back towards the root
+    for (int i = length; i > 0 && path.get (i).isEmpty (); i--)
+      path.get (i - 1).removeChild (charAt (key, i - 1, length));
+  }
+
+  /**
+   * Visit every item whose key is a prefix of a value (or a suffix
+   * for a reversed trie). The empty key matches every value.
+   */
+  public void match (String value, Visitor<T> visitor)
+  {
+    TrieNode<T> node = root;
+    int length = value.length ();
+
+    for (int i = 0; ; i++)
+    {
+      node.visitItems (visitor);
+
+      if (i == length)
+        break;
+
+      node = node.childFor (charAt (value, i, length), false);
+
+      if (node == null)
+        break;
+    }
+  }
+
+  private char charAt (String string, int index, int length)
+  {
+    return reversed ? string.charAt (length - index - 1) :
+                      string.charAt (index);
+  }
+
+  /**
+   * A trie node. Child links are kept in a sorted array of characters
+   * searched by binary search, which keeps nodes small for the sparse
+   * branching typical of topic names.
+   */
+  static final class TrieNode<T>
+  {
+    private static final char [] NO_LABELS = new char [0];
+    private static final Object [] NO_OBJECTS = new Object [0];
+
+    private char [] labels;
+    private Object [] children;
+    private int childCount;
+
+    private Object [] items;
+    private int itemCount;
+
+    public TrieNode ()
+    {
+      this.labels = NO_LABELS;
+      this.children = NO_OBJECTS;
+      this.items = NO_OBJECTS;
+    }
+
+    public boolean isEmpty ()
+    {
+      return itemCount == 0 && childCount == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public TrieNode<T> childFor (char c, boolean create)
+    {
+      int index = indexOf (c);
+
+      if (index >= 0)
+        return (TrieNode<T>)children [index];
+      else if (!create)
+        return null;
+
+      index = -index - 1;
+
+      if (childCount == labels.length)
+      {
+        int newSize = Math.max (2, childCount * 2);
+        char [] newLabels = new char [newSize];
+        Object [] newChildren = new Object [newSize];
+
+        System.arraycopy (labels, 0, newLabels, 0, childCount);
+        System.arraycopy (children, 0, newChildren, 0, childCount);
+
+        labels = newLabels;
+        children = newChildren;
+      }
+
+      System.arraycopy (labels, index, labels, index + 1, childCount - index);
+      System.arraycopy (children, index, children, index + 1,
+                        childCount - index);
+
+      TrieNode<T> child = new TrieNode<T> ();
+
+      labels [index] = c;
+      children [index] = child;
+      childCount++;
+
+      return child;
+    }
+
+    public void removeChild (char c)
+    {
+      int index = indexOf (c);
+
+      if (index < 0)
+        return;
+
+      childCount--;
+
+      System.arraycopy (labels, index + 1, labels, index, childCount - index);
+      System.arraycopy (children, index + 1, children, index,
+                        childCount - index);
+
+      children [childCount] = null;
+    }
+
+    public void addItem (T item)
+    {
+      if (itemCount == items.length)
+      {
+        Object [] newItems = new Object [Math.max (2, itemCount * 2)];
+
+        System.arraycopy (items, 0, newItems, 0, itemCount);
+
+        items = newItems;
+      }
+
+      items [itemCount++] = item;
+    }
+
+    public boolean removeItem (T item)
+    {
+      for (int i = 0; i < itemCount; i++)
+      {
+        if (items [i].equals (item))
+        {
+          items [i] = items [--itemCount];
+          items [itemCount] = null;
+
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void visitItems (Visitor<T> visitor)
+    {
+      for (int i = 0; i < itemCount; i++)
+        visitor.visit ((T)items [i]);
+    }
+
+    /**
+     * Binary search for a child label.
+     *
+     * @return The index of the label, or (-(insertion point) - 1) if
+     *         not found.
+     */
+    private int indexOf (char c)
+    {
+      int low = 0;
+      int high = childCount - 1;
+
+      while (low <= high)
+      {
+        int mid = (low + high) >>> 1;
+        char label = labels [mid];
+
+        if (label < c)
+          low = mid + 1;
+        else if (label > c)
+          high = mid - 1;
+        else
+          return mid;
+      }
+
+      return -(low + 1);
+    }
+  }
+}
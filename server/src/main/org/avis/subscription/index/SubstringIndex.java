@@ -0,0 +1,473 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An index of substring patterns, used to find every item whose
+ * pattern is contained in a value with a single scan of the value.
+ * This is used to index contains () predicates.
+ * <p>
+ * Matching uses an Aho-Corasick automaton built from the current set
+ * of patterns. The automaton is discarded when the set changes and
+ * rebuilt on the next match, so a burst of subscription changes costs
+ * only one rebuild. For small numbers of patterns, where a
+ * String.indexOf () per pattern is faster than running the automaton
+ * (see SubstringIndexBenchmark), the patterns are simply scanned.
+ * <p>
+ * Changes to the index must be externally synchronized with each
+ * other and with matching. Matching may proceed concurrently in
+ * multiple threads.
+ */
+public class SubstringIndex<T>
+{
+  /**
+   * Up to this many patterns are matched by scanning rather than with
+   * an automaton.
+   */
+  static final int SCAN_LIMIT = 64;
+
+  /**
+   * Per thread marks used to report each pattern at most once per
+   * match.
+   */
+  private static final ThreadLocal<Marks> MARKS = new ThreadLocal<Marks> ()
+  {
+    @Override
+    protected Marks initialValue ()
+    {
+      return new Marks ();
+    }
+  };
+
+  /**
+   * Maps patterns to the items registered under them.
+   */
+  private Map<String, ArrayList<T>> patterns;
+
+  private int size;
+
+  /**
+   * The automaton for the current patterns, or null if it needs to be
+   * rebuilt.
+   */
+  private volatile Automaton<T> automaton;
+
+  public SubstringIndex ()
+  {
+    this.patterns = new HashMap<String, ArrayList<T>> ();
+  }
+
+  /**
+   * The number of items in the index.
+   */
+  public int size ()
+  {
+    return size;
+  }
+
+  public boolean isEmpty ()
+  {
+    return size == 0;
+  }
+
+  /**
+   * Add an item under a pattern.
+   */
+  public void add (String pattern, T item)
+  {
+    ArrayList<T> items = patterns.get (pattern);
+
+    if (items == null)
+    {
+      items = new ArrayList<T> (2);
+
+      patterns.put (pattern, items);
+    }
+
+    items.add (item);
+
+    size++;
+    automaton = null;
+  }
+
+  /**
+   * Remove an item from under a pattern. Has no effect if the item is
+   * not in the index under the pattern.
+   */
+  public void remove (String pattern, T item)
+  {
+    ArrayList<T> items = patterns.get (pattern);
+
+    if (items == null || !items.remove (item))
+      return;
+
+    if (items.isEmpty ())
+      patterns.remove (pattern);
+
+    size--;
+    automaton = null;
+  }
+
+  /**
+   * Visit every item whose pattern is a substring of a value. Each
+   * item is visited at most once, no matter how many times its pattern
+   * occurs in the value.
+   */
+  public void match (String value, Visitor<T> visitor)
+  {
+    Automaton<T> current = automaton;
+
+    if (current == null)
+      current = build ();
+
+    current.match (value, visitor, MARKS.get ());
+  }
+
+  private synchronized Automaton<T> build ()
+  {
+    if (automaton == null)
+      automaton = new Automaton<T> (patterns);
+
+    return automaton;
+  }
+
+  /**
+   * An immutable Aho-Corasick automaton. States are numbered from 0
+   * (the root) in breadth-first order. Each state's goto transitions
+   * are a sorted array of characters and a parallel array of target
+   * states.
+   */
+  static final class Automaton<T>
+  {
+    private static final char [] NO_LABELS = new char [0];
+    private static final int [] NO_TARGETS = new int [0];
+
+    /** Goto function: labels [s] are sorted. */
+    private char [][] labels;
+    private int [][] targets;
+
+    /** Failure function. */
+    private int [] fail;
+
+    /** The pattern ending at each state, or -1. */
+    private int [] output;
+
+    /**
+     * The nearest state reachable through failure links (excluding
+     * the root) that has an output, or -1.
+     */
+    private int [] outputLink;
+
+    /** The items for each pattern, as arrays. */
+    private Object [][] items;
+
+    /**
+     * The patterns, when there are few enough to scan instead of
+     * building the automaton.
+     */
+    private String [] scanPatterns;
+
+    private int stateCount;
+
+    public Automaton (Map<String, ArrayList<T>> patterns)
+    {
+      items = new Object [patterns.size ()][];
+
+      if (patterns.size () <= SCAN_LIMIT)
+      {
+        scanPatterns = new String [patterns.size ()];
+
+        int patternId = 0;
+
+        for (Map.Entry<String, ArrayList<T>> entry : patterns.entrySet ())
+        {
+          scanPatterns [patternId] = entry.getKey ();
+          items [patternId] = entry.getValue ().toArray ();
+
+          patternId++;
+        }
+
+        return;
+      }
+
+      int capacity = 1;
+
+      for (String pattern : patterns.keySet ())
+        capacity += pattern.length ();
+
+      labels = new char [capacity][];
+      targets = new int [capacity][];
+      fail = new int [capacity];
+      output = new int [capacity];
+      outputLink = new int [capacity];
+
+      Arrays.fill (output, -1);
+      Arrays.fill (outputLink, -1);
+
+      newState ();
+
+      int patternId = 0;
+
+      for (Map.Entry<String, ArrayList<T>> entry : patterns.entrySet ())
+      {
+        addPattern (entry.getKey (), patternId);
+
+        items [patternId] = entry.getValue ().toArray ();
+
+        patternId++;
+      }
+
+      computeFailureLinks ();
+    }
+
+    private int newState ()
+    {
+      labels [stateCount] = NO_LABELS;
+      targets [stateCount] = NO_TARGETS;
+
+      return stateCount++;
+    }
+
+    private void addPattern (String pattern, int patternId)
+    {
+      int state = 0;
+
+      for (int i = 0; i < pattern.length (); i++)
+      {
+        char c = pattern.charAt (i);
+        int next = transition (state, c);
+
+        if (next == -1)
+        {
+          next = newState ();
+
+          addTransition (state, c, next);
+        }
+
+        state = next;
+      }
+
+      output [state] = patternId;
+    }
+
+    private void addTransition (int state, char c, int target)
+    {
+      char [] oldLabels = labels [state];
+      int [] oldTargets = targets [state];
+      int count = oldLabels.length;
+      int index = -Arrays.binarySearch (oldLabels, c) - 1;
+
+      char [] newLabels = new char [count + 1];
+      int [] newTargets = new int [count + 1];
+
+      System.arraycopy (oldLabels, 0, newLabels, 0, index);
+      System.arraycopy (oldTargets, 0, newTargets, 0, index);
+      System.arraycopy (oldLabels, index, newLabels, index + 1, count - index);
+      System.arraycopy (oldTargets, index, newTargets, index + 1,
+                        count - index);
+
+      newLabels [index] = c;
+      newTargets [index] = target;
+
+      labels [state] = newLabels;
+      targets [state] = newTargets;
+    }
+
+    /**
+     * Breadth-first computation of failure and output links.
+     */
+    private void computeFailureLinks ()
+    {
+      int [] queue = new int [stateCount];
+      int head = 0;
+      int tail = 0;
+
+      for (int child : targets [0])
+      {
+        fail [child] = 0;
+        queue [tail++] = child;
+      }
+
+      while (head < tail)
+      {
+        int state = queue [head++];
+        char [] stateLabels = labels [state];
+        int [] stateTargets = targets [state];
+
+        for (int i = 0; i < stateLabels.length; i++)
+        {
+          char c = stateLabels [i];
+          int child = stateTargets [i];
+          int f = fail [state];
+
+          while (f != 0 && transition (f, c) == -1)
+            f = fail [f];
+
+          int target = transition (f, c);
+
+          fail [child] = target == -1 ? 0 : target;
+
+          int failState = fail [child];
+
+          if (failState != 0)
+          {
+            outputLink [child] =
+              output [failState] != -1 ? failState : outputLink [failState];
+          }
+
+          queue [tail++] = child;
+        }
+      }
+    }
+
+    private int transition (int state, char c)
+    {
+      char [] stateLabels = labels [state];
+
+      // linear scan is faster for the small fan-out of most states
+      if (stateLabels.length <= 8)
+      {
+        for (int i = 0; i < stateLabels.length; i++)
+        {
+          if (stateLabels [i] == c)
+            return targets [state][i];
+        }
+
+        return -1;
+      } else
+      {
+        int index = Arrays.binarySearch (stateLabels, c);
+
+        return index >= 0 ? targets [state][index] : -1;
+      }
+    }
+
+    public void match (String value, Visitor<T> visitor, Marks marks)
+    {
+      if (scanPatterns != null)
+      {
+        for (int i = 0; i < scanPatterns.length; i++)
+        {
+          if (value.indexOf (scanPatterns [i]) != -1)
+            visitItems (i, visitor);
+        }
+
+        return;
+      }
+
+      marks.reset (items.length);
+
+      // the empty pattern matches everything
+      if (output [0] != -1)
+        visit (output [0], visitor, marks);
+
+      int state = 0;
+
+      for (int i = 0; i < value.length (); i++)
+      {
+        char c = value.charAt (i);
+        int next;
+
+        while ((next = transition (state, c)) == -1 && state != 0)
+          state = fail [state];
+
+        state = next == -1 ? 0 : next;
+
+        int match = output [state] != -1 ? state : outputLink [state];
+
+        // stop at the first pattern already seen: all patterns further
+        // along the output chain were reported along with it
+        while (match != -1 && visit (output [match], visitor, marks))
+          match = outputLink [match];
+      }
+    }
+
+    /**
+     * Visit a pattern's items if not already visited.
+     *
+     * @return True if the pattern had not already been visited.
+     */
+    private boolean visit (int patternId, Visitor<T> visitor, Marks marks)
+    {
+      if (!marks.mark (patternId))
+        return false;
+
+      visitItems (patternId, visitor);
+
+      return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void visitItems (int patternId, Visitor<T> visitor)
+    {
+      for (Object item : items [patternId])
+        visitor.visit ((T)item);
+    }
+  }
+
+  /**
+   * A set of marks that are lazily cleared by tagging each with the
+   * generation of the match that set it.
+   */
+  static final class Marks
+  {
+    private int [] generations;
+    private int generation;
+
+    public Marks ()
+    {
+      this.generations = new int [16];
+    }
+
+    public void reset (int size)
+    {
+      if (generations.length < size)
+      {
+        generations = new int [Math.max (size, generations.length * 2)];
+        generation = 0;
+      }
+
+      if (++generation == 0)
+      {
+        Arrays.fill (generations, 0);
+
+        generation = 1;
+      }
+    }
+
+    /**
+     * Set a mark.
+     *
+     * @return True if the mark was not already set.
+     */
+    public boolean mark (int index)
+    {
+      if (generations [index] == generation)
+        return false;
+
+      generations [index] = generation;
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,435 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.regex;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.avis.subscription.regex.Program.ANY;
+import static org.avis.subscription.regex.Program.BEGIN;
+import static org.avis.subscription.regex.Program.CHAR;
+import static org.avis.subscription.regex.Program.DOLLAR;
+import static org.avis.subscription.regex.Program.DOT;
+import static org.avis.subscription.regex.Program.END;
+import static org.avis.subscription.regex.Program.JUMP;
+import static org.avis.subscription.regex.Program.MATCH;
+import static org.avis.subscription.regex.Program.SET;
+import static org.avis.subscription.regex.Program.SPLIT;
+
+/**
+ * An automaton that matches a set of linear patterns against an input
+ * in a single pass, finding every pattern that matches.
+ * <p>
+ * The patterns' NFA programs are combined into one and simulated
+ * directly (a "Pike VM"), tracking the set of live NFA states at each
+ * input position rather than backtracking. Since each state is live
+ * at most once per position, matching takes O(n * m) time for an
+ * input of length n and a combined program of size m, regardless of
+ * the patterns. Simulation stops early once every pattern has matched
+ * or no states are live.
+ * <p>
+ * Automata are immutable and may be used concurrently by multiple
+ * threads.
+ */
+public final class Automaton
+{
+  /**
+   * Per-thread matching state, sized for the largest automaton used
+   * by the thread.
+   */
+  private static final ThreadLocal<Scratch> SCRATCH =
+    new ThreadLocal<Scratch> ()
+  {
+    @Override
+    protected Scratch initialValue ()
+    {
+      return new Scratch ();
+    }
+  };
+
+  private final Program program;
+
+  /** The start address of each pattern. */
+  private final int [] starts;
+
+  /** Whether each pattern is anchored at the start of input. */
+  private final boolean [] anchored;
+
+  /** The pattern each instruction belongs to. */
+  private final int [] owners;
+
+  /** The number of unanchored patterns. */
+  private final int unanchoredCount;
+
+  /**
+   * Create a new instance.
+   *
+   * @param patterns The patterns. Matches are reported as indexes
+   *          into this list.
+   */
+  public Automaton (List<LinearPattern> patterns)
+  {
+    int size = 0;
+
+    for (LinearPattern pattern : patterns)
+      size += pattern.program ().size;
+
+    this.program = new Program (Math.max (size, 1));
+    this.starts = new int [patterns.size ()];
+    this.anchored = new boolean [patterns.size ()];
+    this.owners = new int [size];
+
+    int unanchored = 0;
+
+    for (int i = 0; i < patterns.size (); i++)
+    {
+      LinearPattern pattern = patterns.get (i);
+      int offset = program.append (pattern.program ());
+
+      starts [i] = offset + pattern.program ().start;
+      anchored [i] = pattern.isAnchored ();
+
+      for (int pc = offset; pc < program.size; pc++)
+        owners [pc] = i;
+
+      if (!anchored [i])
+        unanchored++;
+    }
+
+    this.unanchoredCount = unanchored;
+  }
+
+  /**
+   * The number of patterns.
+   */
+  public int size ()
+  {
+    return starts.length;
+  }
+
+  /**
+   * Test if any pattern matches an input.
+   */
+  public boolean matches (String input)
+  {
+    return match (input, new int [starts.length]) > 0;
+  }
+
+  /**
+   * Find the patterns that match an input.
+   *
+   * @param input The input.
+   * @param results Receives the index of each matching pattern, in no
+   *          particular order. Must have room for size () entries.
+   *
+   * @return The number of matching patterns.
+   */
+  public int match (String input, int [] results)
+  {
+    if (starts.length == 0)
+      return 0;
+
+    Scratch scratch = SCRATCH.get ();
+
+    scratch.reset (program.size, starts.length);
+
+    int length = input.length ();
+    int matchCount = 0;
+    int pendingUnanchored = unanchoredCount;
+
+    for (int position = 0; ; position++)
+    {
+      int current = position % 3;
+
+      // start a thread for each pattern that could still match here
+      for (int i = 0; i < starts.length; i++)
+      {
+        if ((position == 0 || !anchored [i]) && !scratch.isMatched (i))
+        {
+          matchCount =
+            addThread (scratch, current, starts [i], input, position,
+                       results, matchCount);
+        }
+      }
+
+      if (matchCount == starts.length || position == length)
+        break;
+
+      int codePoint = Character.codePointAt (input, position);
+      int next = (position + Character.charCount (codePoint)) % 3;
+      int [] threads = scratch.dense [current];
+
+      for (int t = 0; t < scratch.sizes [current]; t++)
+      {
+        int pc = threads [t];
+
+        if (scratch.isMatched (owners [pc]))
+          continue;
+
+        boolean accepted;
+
+        switch (program.ops [pc])
+        {
+          case CHAR:
+            accepted = codePoint == program.args [pc];
+            break;
+          case SET:
+            accepted = program.classes [pc].contains (codePoint);
+            break;
+          case ANY:
+            accepted = true;
+            break;
+          case DOT:
+            accepted = !isLineTerminator (codePoint);
+            break;
+          default:
+            accepted = false;
+        }
+
+        if (accepted)
+        {
+          matchCount =
+            addThread (scratch, next, program.nexts [pc], input,
+                       position + Character.charCount (codePoint),
+                       results, matchCount);
+        }
+      }
+
+      scratch.sizes [current] = 0;
+
+      if (matchCount == starts.length)
+        break;
+
+      if (pendingUnanchored > 0)
+      {
+        // count unanchored patterns not yet matched
+        pendingUnanchored = 0;
+
+        for (int i = 0; i < starts.length; i++)
+        {
+          if (!anchored [i] && !scratch.isMatched (i))
+            pendingUnanchored++;
+        }
+      }
+
+      if (pendingUnanchored == 0 && scratch.sizes [0] == 0 &&
+          scratch.sizes [1] == 0 && scratch.sizes [2] == 0)
+      {
+        break;
+      }
+    }
+
+    for (int i = 0; i < 3; i++)
+      scratch.sizes [i] = 0;
+
+    return matchCount;
+  }
+
+  /**
+   * Add a thread to a list, following empty transitions from its
+   * start address.
+   *
+   * @return The updated match count.
+   */
+  private int addThread (Scratch scratch, int list, int start,
+                         String input, int position,
+                         int [] results, int matchCount)
+  {
+    int [] stack = scratch.stack;
+    int top = 0;
+
+    if (!scratch.add (list, start))
+      return matchCount;
+
+    stack [top++] = start;
+
+    while (top > 0)
+    {
+      int pc = stack [--top];
+      int next;
+
+      switch (program.ops [pc])
+      {
+        case SPLIT:
+          if (scratch.add (list, program.alts [pc]))
+            stack [top++] = program.alts [pc];
+          next = program.nexts [pc];
+          break;
+        case JUMP:
+          next = program.nexts [pc];
+          break;
+        case BEGIN:
+          next = position == 0 ? program.nexts [pc] : -1;
+          break;
+        case END:
+          next = position == input.length () ? program.nexts [pc] : -1;
+          break;
+        case DOLLAR:
+          next = isDollar (input, position) ? program.nexts [pc] : -1;
+          break;
+        case MATCH:
+          if (scratch.mark (owners [pc]))
+            results [matchCount++] = owners [pc];
+          next = -1;
+          break;
+        default:
+          // consuming instruction: stays in the list
+          next = -1;
+      }
+
+      if (next != -1 && scratch.add (list, next))
+        stack [top++] = next;
+    }
+
+    return matchCount;
+  }
+
+  /**
+   * True for the line terminators that "." does not match.
+   */
+  private static boolean isLineTerminator (int c)
+  {
+    return c == '\n' || c == '\r' || c == '\u0085' || (c | 1) == '\u2029';
+  }
+
+  /**
+   * Test for "$" without MULTILINE: the end of input, or before a
+   * line terminator at the end of input.
+   */
+  private static boolean isDollar (String input, int position)
+  {
+    int length = input.length ();
+
+    if (position == length)
+      return true;
+
+    if (position == length - 2)
+    {
+      return input.charAt (position) == '\r' &&
+             input.charAt (position + 1) == '\n';
+    }
+
+    if (position == length - 1)
+    {
+      char c = input.charAt (position);
+
+      // not between the "\r" and "\n" of a "\r\n"
+      if (c == '\n')
+        return position == 0 || input.charAt (position - 1) != '\r';
+
+      return isLineTerminator (c);
+    }
+
+    return false;
+  }
+
+  /**
+   * Per-thread matching state: three thread lists (enough for a
+   * surrogate pair to skip a position), each a sparse set of
+   * instruction addresses, plus marks for matched patterns.
+   */
+  static final class Scratch
+  {
+    int [][] dense;
+    int [][] sparse;
+    int [] sizes;
+    int [] stack;
+
+    private int [] matched;
+    private int generation;
+
+    public Scratch ()
+    {
+      this.dense = new int [3][0];
+      this.sparse = new int [3][0];
+      this.sizes = new int [3];
+      this.stack = new int [0];
+      this.matched = new int [0];
+    }
+
+    public void reset (int programSize, int patternCount)
+    {
+      if (stack.length < programSize)
+      {
+        int newSize = Math.max (programSize, stack.length * 2);
+
+        for (int i = 0; i < 3; i++)
+        {
+          dense [i] = new int [newSize];
+          sparse [i] = new int [newSize];
+        }
+
+        stack = new int [newSize];
+      }
+
+      if (matched.length < patternCount)
+      {
+        matched = new int [Math.max (patternCount, matched.length * 2)];
+        generation = 0;
+      }
+
+      if (++generation == 0)
+      {
+        Arrays.fill (matched, 0);
+
+        generation = 1;
+      }
+    }
+
+    /**
+     * Add an address to a list.
+     *
+     * @return True if the address was not already in the list.
+     */
+    public boolean add (int list, int pc)
+    {
+      int [] listDense = dense [list];
+      int index = sparse [list][pc];
+      int size = sizes [list];
+
+      if (index < size && listDense [index] == pc)
+        return false;
+
+      sparse [list][pc] = size;
+      listDense [size] = pc;
+      sizes [list] = size + 1;
+
+      return true;
+    }
+
+    public boolean isMatched (int pattern)
+    {
+      return matched [pattern] == generation;
+    }
+
+    /**
+     * Mark a pattern as matched.
+     *
+     * @return True if it was not already marked.
+     */
+    public boolean mark (int pattern)
+    {
+      if (matched [pattern] == generation)
+        return false;
+
+      matched [pattern] = generation;
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.regex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A set of code points, represented as sorted, non-overlapping
+ * ranges. A class must be frozen before it is used for matching,
+ * after which it must not be changed.
+ */
+final class CharClass
+{
+  /** The "\d" class. */
+  static final CharClass DIGIT =
+    new CharClass ().addRange ('0', '9').freeze ();
+
+  /** The "\s" class. */
+  static final CharClass SPACE =
+    new CharClass ().add (' ').add ('\t').add ('\n').add ('\u000B').
+      add ('\f').add ('\r').freeze ();
+
+  /** The "\w" class. */
+  static final CharClass WORD =
+    new CharClass ().addRange ('a', 'z').addRange ('A', 'Z').
+      add ('_').addRange ('0', '9').freeze ();
+
+  private List<int []> ranges;
+
+  /** Flattened ranges: low0, high0, low1, high1, ... */
+  private int [] bounds;
+
+  private boolean negated;
+
+  public CharClass ()
+  {
+    this.ranges = new ArrayList<int []> ();
+  }
+
+  public CharClass add (int c)
+  {
+    return addRange (c, c);
+  }
+
+  public CharClass addRange (int low, int high)
+  {
+    ranges.add (new int [] {low, high});
+    bounds = null;
+
+    return this;
+  }
+
+  public CharClass addAll (CharClass other)
+  {
+    if (other.negated)
+    {
+      // add the complement of the other class's ranges
+      int low = 0;
+
+      for (int [] range : other.normalised ())
+      {
+        if (range [0] > low)
+          addRange (low, range [0] - 1);
+
+        low = range [1] + 1;
+      }
+
+      if (low <= Character.MAX_CODE_POINT)
+        addRange (low, Character.MAX_CODE_POINT);
+    } else
+    {
+      ranges.addAll (other.normalised ());
+      bounds = null;
+    }
+
+    return this;
+  }
+
+  public CharClass negate ()
+  {
+    CharClass negation = new CharClass ();
+
+    negation.ranges.addAll (normalised ());
+    negation.negated = !negated;
+
+    return negation;
+  }
+
+  public boolean contains (int c)
+  {
+    // binary search for the last range with low <= c
+    int low = 0;
+    int high = bounds.length / 2 - 1;
+    boolean found = false;
+
+    while (low <= high)
+    {
+      int mid = (low + high) >>> 1;
+
+      if (bounds [mid * 2] <= c)
+      {
+        if (c <= bounds [mid * 2 + 1])
+        {
+          found = true;
+
+          break;
+        }
+
+        low = mid + 1;
+      } else
+      {
+        high = mid - 1;
+      }
+    }
+
+    return found != negated;
+  }
+
+  private List<int []> normalised ()
+  {
+    freeze ();
+
+    return ranges;
+  }
+
+  /**
+   * Sort and merge the ranges, ready for matching.
+   */
+  public CharClass freeze ()
+  {
+    if (bounds != null)
+      return this;
+
+    Collections.sort (ranges, new Comparator<int []> ()
+    {
+      public int compare (int [] r1, int [] r2)
+      {
+        return r1 [0] < r2 [0] ? -1 : (r1 [0] == r2 [0] ? 0 : 1);
+      }
+    });
+
+    List<int []> merged = new ArrayList<int []> (ranges.size ());
+
+    for (int [] range : ranges)
+    {
+      int [] last = merged.isEmpty () ? null : merged.get (merged.size () - 1);
+
+      if (last != null && range [0] <= last [1] + 1)
+        last [1] = Math.max (last [1], range [1]);
+      else
+        merged.add (new int [] {range [0], range [1]});
+    }
+
+    int [] newBounds = new int [merged.size () * 2];
+
+    for (int i = 0; i < merged.size (); i++)
+    {
+      newBounds [i * 2] = merged.get (i) [0];
+      newBounds [i * 2 + 1] = merged.get (i) [1];
+    }
+
+    ranges = merged;
+    bounds = newBounds;
+
+    return this;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.regex;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * A regex or wildcard pattern compiled for the linear time matching
+ * engine in {@link Automaton}. Unlike java.util.regex, which
+ * backtracks and can take exponential time on patterns like
+ * "(a|a)*b", matching takes time proportional to the length of the
+ * input times the size of the pattern.
+ * <p>
+ * Only the regular subset of Java's regex syntax is supported (see
+ * PatternCompiler): the factory methods return null for patterns
+ * using anything else, such as backreferences, in which case the
+ * caller should use java.util.regex.Pattern. Patterns must already
+ * have been checked for syntax errors by Pattern.
+ */
+public final class LinearPattern
+{
+  private String source;
+  private boolean wildcard;
+  private boolean anchored;
+  private Program program;
+
+  /** Lazily created automaton for matches (). */
+  private Automaton automaton;
+
+  private LinearPattern (String source, boolean wildcard,
+                         boolean anchored, Program program)
+  {
+    this.source = source;
+    this.wildcard = wildcard;
+    this.anchored = anchored;
+    this.program = program;
+  }
+
+  /**
+   * Compile a regex with the semantics of regex (): i.e. compiled by
+   * Pattern with the DOTALL flag and matching if found anywhere in
+   * the input.
+   *
+   * @param regex The regex.
+   *
+   * @return The compiled pattern, or null if the regex uses features
+   *         not supported by the linear engine.
+   */
+  public static LinearPattern regex (String regex)
+  {
+    try
+    {
+      boolean [] anchored = new boolean [1];
+
+      Program program = PatternCompiler.compileRegex (regex, anchored);
+
+      return new LinearPattern (regex, false, anchored [0], program);
+    } catch (UnsupportedPatternException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Compile a wildcard with the semantics of wildcard (): i.e.
+   * matching the whole input.
+   *
+   * @param wildcard The wildcard.
+   *
+   * @return The compiled pattern, or null if the wildcard uses
+   *         features not supported by the linear engine.
+   *
+   * @see org.avis.util.Wildcard#toPattern(String)
+   */
+  public static LinearPattern wildcard (String wildcard)
+  {
+    try
+    {
+      Program program = PatternCompiler.compileWildcard (wildcard);
+
+      return new LinearPattern (wildcard, true, true, program);
+    } catch (UnsupportedPatternException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * The source regex or wildcard.
+   */
+  public String source ()
+  {
+    return source;
+  }
+
+  public boolean isWildcard ()
+  {
+    return wildcard;
+  }
+
+  /**
+   * True if the pattern can only match at the start of input.
+   */
+  boolean isAnchored ()
+  {
+    return anchored;
+  }
+
+  Program program ()
+  {
+    return program;
+  }
+
+  /**
+   * Test if the pattern matches an input. To match many patterns
+   * against the same input, use a combined Automaton instead.
+   */
+  public boolean matches (String input)
+  {
+    if (automaton == null)
+      automaton = new Automaton (singletonList (this));
+
+    return automaton.matches (input);
+  }
+
+  @Override
+  public boolean equals (Object o)
+  {
+    return o instanceof LinearPattern &&
+           ((LinearPattern)o).wildcard == wildcard &&
+           ((LinearPattern)o).source.equals (source);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return wildcard ? ~source.hashCode () : source.hashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return (wildcard ? "wildcard " : "regex ") + source;
+  }
+}
@@ -0,0 +1,895 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.regex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.Character.isHighSurrogate;
+import static java.lang.Character.isLowSurrogate;
+
+import static org.avis.subscription.regex.Program.ANY;
+import static org.avis.subscription.regex.Program.BEGIN;
+import static org.avis.subscription.regex.Program.CHAR;
+import static org.avis.subscription.regex.Program.DOLLAR;
+import static org.avis.subscription.regex.Program.DOT;
+import static org.avis.subscription.regex.Program.END;
+import static org.avis.subscription.regex.Program.MATCH;
+import static org.avis.subscription.regex.Program.SET;
+import static org.avis.subscription.regex.Program.SPLIT;
+
+/**
+ * Compiles the regular subset of Java regex syntax, and Avis
+ * wildcards, to NFA programs.
+ * <p>
+ * Patterns are assumed to have already been accepted by
+ * java.util.regex.Pattern, which remains the authority on syntax
+ * errors. Anything outside the supported subset, or anything whose
+ * meaning in Java is not clear-cut, is rejected with an
+ * UnsupportedPatternException so that the caller can fall back to
+ * Pattern. The supported subset is: literals and the usual escapes,
+ * ".", "[...]" classes with ranges and negation, "\d", "\s", "\w" and
+ * their negations, "^", "$", "\A", "\Z", "\z", groups, "(?:...)",
+ * alternation, and greedy or lazy quantifiers. Notably absent are
+ * backreferences, lookaround, possessive quantifiers, flags and
+ * word boundaries.
+ */
+final class PatternCompiler
+{
+  private String pattern;
+  private int index;
+
+  /** The number of assertions parsed so far. */
+  private int assertions;
+
+  private PatternCompiler (String pattern)
+  {
+    this.pattern = pattern;
+  }
+
+  /**
+   * Compile a regex as used by regex (), i.e. as compiled by Pattern
+   * with the DOTALL flag and matched with find ().
+   *
+   * @return The program, which ends in MATCH 0.
+   */
+  public static Program compileRegex (String regex, boolean [] anchored)
+    throws UnsupportedPatternException
+  {
+    PatternCompiler compiler = new PatternCompiler (regex);
+
+    Term term = compiler.parseAlternation ();
+
+    if (compiler.index < regex.length ())
+      throw new UnsupportedPatternException ("Unbalanced ')'");
+
+    anchored [0] = term.isAnchored ();
+
+    Program program = new Program ();
+
+    program.start = term.emit (program, program.add (MATCH, 0, -1));
+
+    return program;
+  }
+
+  /**
+   * Compile a wildcard as used by wildcard (), i.e. as translated by
+   * Wildcard.toPattern () and matched with matches ().
+   *
+   * @return The program, which must be started only at the beginning
+   *         of the input, and which ends in MATCH 0.
+   */
+  public static Program compileWildcard (String wildcard)
+    throws UnsupportedPatternException
+  {
+    PatternCompiler compiler = new PatternCompiler (wildcard);
+
+    Term term = compiler.parseWildcard ();
+
+    Program program = new Program ();
+
+    program.start =
+      term.emit (program, program.add (END, 0, program.add (MATCH, 0, -1)));
+
+    return program;
+  }
+
+  private Term parseWildcard ()
+    throws UnsupportedPatternException
+  {
+    Sequence sequence = new Sequence ();
+
+    while (index < pattern.length ())
+    {
+      char c = pattern.charAt (index++);
+
+      switch (c)
+      {
+        case '*':
+          sequence.add (new Repeat (new Atom (DOT), 0, -1));
+          break;
+        case '?':
+          sequence.add (new Atom (DOT));
+          break;
+        case '\\':
+          if (index < pattern.length ())
+          {
+            c = pattern.charAt (index++);
+
+            // becomes a regex escape such as \d or \1
+            if (isAsciiLetterOrDigit (c))
+              throw new UnsupportedPatternException ("Escape: " + c);
+          }
+
+          sequence.add (new Atom (CHAR, literal (c)));
+          break;
+        default:
+          sequence.add (new Atom (CHAR, literal (c)));
+      }
+    }
+
+    return sequence;
+  }
+
+  private Term parseAlternation ()
+    throws UnsupportedPatternException
+  {
+    Term first = parseSequence ();
+
+    if (!peek ('|'))
+      return first;
+
+    Alternation alternation = new Alternation ();
+
+    alternation.add (first);
+
+    while (peek ('|'))
+    {
+      index++;
+
+      alternation.add (parseSequence ());
+    }
+
+    return alternation;
+  }
+
+  private Term parseSequence ()
+    throws UnsupportedPatternException
+  {
+    Sequence sequence = new Sequence ();
+
+    while (index < pattern.length () && !peek ('|') && !peek (')'))
+    {
+      int assertionsBefore = assertions;
+      Term atom = parseAtom ();
+
+      sequence.add (parseQuantified (atom, assertions > assertionsBefore));
+    }
+
+    return sequence;
+  }
+
+  /**
+   * Parse any quantifier following an atom.
+   *
+   * @param atom The atom.
+   * @param hasAssertion True if the atom contains an assertion.
+   */
+  private Term parseQuantified (Term atom, boolean hasAssertion)
+    throws UnsupportedPatternException
+  {
+    if (index == pattern.length ())
+      return atom;
+
+    int min;
+    int max;
+
+    switch (pattern.charAt (index))
+    {
+      case '*':
+        min = 0;
+        max = -1;
+        index++;
+        break;
+      case '+':
+        min = 1;
+        max = -1;
+        index++;
+        break;
+      case '?':
+        min = 0;
+        max = 1;
+        index++;
+        break;
+      case '{':
+        index++;
+        min = parseNumber ();
+        max = min;
+
+        if (peek (','))
+        {
+          index++;
+
+          max = peek ('}') ? -1 : parseNumber ();
+        }
+
+        if (!peek ('}') || (max != -1 && max < min))
+          throw new UnsupportedPatternException ("Bad repetition");
+
+        index++;
+        break;
+      default:
+        return atom;
+    }
+
+    // Pattern ends a loop early when an iteration matches nothing,
+    // which only makes a difference when an assertion allows an
+    // empty iteration in one place but not another: rather than
+    // emulate this, leave such loops to Pattern
+    if (atom instanceof Assertion || (hasAssertion && max != 1))
+      throw new UnsupportedPatternException ("Quantified assertion");
+
+    // lazy quantifiers are fine: we only care whether there is a
+    // match, not which one
+    if (peek ('?'))
+      index++;
+
+    if (index < pattern.length () &&
+        "*+?{".indexOf (pattern.charAt (index)) != -1)
+      throw new UnsupportedPatternException ("Possessive or double quantifier");
+
+    return new Repeat (atom, min, max);
+  }
+
+  private int parseNumber ()
+    throws UnsupportedPatternException
+  {
+    int start = index;
+
+    while (index < pattern.length () && index - start < 6 &&
+           isDigit (pattern.charAt (index)))
+    {
+      index++;
+    }
+
+    if (index == start || (index < pattern.length () &&
+                           isDigit (pattern.charAt (index))))
+    {
+      throw new UnsupportedPatternException ("Bad number");
+    }
+
+    return Integer.parseInt (pattern.substring (start, index));
+  }
+
+  private Term parseAtom ()
+    throws UnsupportedPatternException
+  {
+    char c = pattern.charAt (index++);
+
+    switch (c)
+    {
+      case '(':
+        if (peek ('?'))
+        {
+          if (index + 1 < pattern.length () &&
+              pattern.charAt (index + 1) == ':')
+          {
+            index += 2;
+          } else
+          {
+            throw new UnsupportedPatternException ("Special group");
+          }
+        }
+
+        Term group = parseAlternation ();
+
+        if (!peek (')'))
+          throw new UnsupportedPatternException ("Unclosed group");
+
+        index++;
+
+        return new Group (group);
+      case '[':
+        return new Atom (parseClass ());
+      case '.':
+        // compiled with DOTALL
+        return new Atom (ANY);
+      case '^':
+        return assertion (BEGIN);
+      case '$':
+        return assertion (DOLLAR);
+      case '\\':
+        return parseEscape ();
+      case '{':
+      case '*':
+      case '+':
+      case '?':
+      case ')':
+        throw new UnsupportedPatternException ("Unexpected " + c);
+      default:
+        return new Atom (CHAR, literal (c));
+    }
+  }
+
+  /**
+   * Parse an escape outside a character class, after the backslash.
+   */
+  private Term parseEscape ()
+    throws UnsupportedPatternException
+  {
+    if (index == pattern.length ())
+      throw new UnsupportedPatternException ("Trailing \\");
+
+    char c = pattern.charAt (index);
+
+    switch (c)
+    {
+      case 'A':
+        index++;
+        return assertion (BEGIN);
+      case 'Z':
+        index++;
+        return assertion (DOLLAR);
+      case 'z':
+        index++;
+        return assertion (END);
+      default:
+        CharClass escapeClass = parseClassEscape ();
+
+        if (escapeClass != null)
+          return new Atom (escapeClass);
+        else
+          return new Atom (CHAR, parseCharEscape ());
+    }
+  }
+
+  /**
+   * Parse a class escape such as \d after the backslash.
+   *
+   * @return The class, or null if not a class escape.
+   */
+  private CharClass parseClassEscape ()
+  {
+    CharClass escapeClass;
+
+    switch (pattern.charAt (index))
+    {
+      case 'd':
+        escapeClass = CharClass.DIGIT;
+        break;
+      case 'D':
+        escapeClass = CharClass.DIGIT.negate ();
+        break;
+      case 's':
+        escapeClass = CharClass.SPACE;
+        break;
+      case 'S':
+        escapeClass = CharClass.SPACE.negate ();
+        break;
+      case 'w':
+        escapeClass = CharClass.WORD;
+        break;
+      case 'W':
+        escapeClass = CharClass.WORD.negate ();
+        break;
+      default:
+        return null;
+    }
+
+    index++;
+
+    return escapeClass.freeze ();
+  }
+
+  /**
+   * Parse an escape standing for a single character, after the
+   * backslash.
+   */
+  private int parseCharEscape ()
+    throws UnsupportedPatternException
+  {
+    char c = pattern.charAt (index++);
+
+    switch (c)
+    {
+      case 't':
+        return '\t';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case 'a':
+        return '\u0007';
+      case 'e':
+        return '\u001B';
+      case '0':
+        return parseOctal ();
+      case 'x':
+        if (peek ('{'))
+        {
+          int end = pattern.indexOf ('}', index);
+
+          if (end == -1 || end - index > 7)
+            throw new UnsupportedPatternException ("Bad hex escape");
+
+          int value = parseHex (index + 1, end);
+
+          index = end + 1;
+
+          return literal (value);
+        } else
+        {
+          index += 2;
+
+          return literal (parseHex (index - 2, index));
+        }
+      case 'u':
+        index += 4;
+
+        return literal (parseHex (index - 4, index));
+      default:
+        if (isAsciiLetterOrDigit (c))
+          throw new UnsupportedPatternException ("Escape: " + c);
+
+        return literal (c);
+    }
+  }
+
+  /**
+   * Parse an octal escape after the "\0", as Pattern does.
+   */
+  private int parseOctal ()
+    throws UnsupportedPatternException
+  {
+    int n = octalDigit (index);
+
+    if (n == -1)
+      throw new UnsupportedPatternException ("Bad octal escape");
+
+    index++;
+
+    int m = octalDigit (index);
+
+    if (m == -1)
+      return n;
+
+    index++;
+
+    int o = octalDigit (index);
+
+    if (o != -1 && n <= 3)
+    {
+      index++;
+
+      return n * 64 + m * 8 + o;
+    }
+
+    return n * 8 + m;
+  }
+
+  private int octalDigit (int position)
+  {
+    if (position < pattern.length ())
+    {
+      char c = pattern.charAt (position);
+
+      if (c >= '0' && c <= '7')
+        return c - '0';
+    }
+
+    return -1;
+  }
+
+  private int parseHex (int start, int end)
+    throws UnsupportedPatternException
+  {
+    if (start >= end || end > pattern.length ())
+      throw new UnsupportedPatternException ("Bad hex escape");
+
+    int value = 0;
+
+    for (int i = start; i < end; i++)
+    {
+      int digit = Character.digit (pattern.charAt (i), 16);
+
+      if (digit == -1)
+        throw new UnsupportedPatternException ("Bad hex escape");
+
+      value = value * 16 + digit;
+    }
+
+    return value;
+  }
+
+  /**
+   * Parse a character class, after the "[".
+   */
+  private CharClass parseClass ()
+    throws UnsupportedPatternException
+  {
+    CharClass charClass = new CharClass ();
+    boolean negated = false;
+
+    if (peek ('^'))
+    {
+      index++;
+      negated = true;
+    }
+
+    // avoid Java's special cases for ']' and '-' at the start
+    if (peek (']') || peek ('-'))
+      throw new UnsupportedPatternException ("Special class syntax");
+
+    while (!peek (']'))
+    {
+      if (index == pattern.length ())
+        throw new UnsupportedPatternException ("Unclosed class");
+
+      char c = pattern.charAt (index);
+
+      if (c == '[' || c == '-' ||
+          (c == '&' && index + 1 < pattern.length () &&
+           pattern.charAt (index + 1) == '&'))
+      {
+        throw new UnsupportedPatternException ("Special class syntax");
+      }
+
+      boolean escaped = c == '\\';
+
+      if (escaped)
+      {
+        index++;
+
+        if (index == pattern.length ())
+          throw new UnsupportedPatternException ("Trailing \\");
+
+        CharClass escapeClass = parseClassEscape ();
+
+        if (escapeClass != null)
+        {
+          if (peek ('-'))
+            throw new UnsupportedPatternException ("Range from class");
+
+          charClass.addAll (escapeClass);
+
+          continue;
+        }
+      }
+
+      int low =
+        escaped ? parseCharEscape () : literal (pattern.charAt (index++));
+
+      if (peek ('-') && index + 1 < pattern.length () &&
+          pattern.charAt (index + 1) != ']')
+      {
+        index++;
+
+        if (peek ('['))
+          throw new UnsupportedPatternException ("Special class syntax");
+
+        int high;
+
+        if (peek ('\\'))
+        {
+          index++;
+
+          if (index == pattern.length () || parseClassEscape () != null)
+            throw new UnsupportedPatternException ("Range to class");
+
+          high = parseCharEscape ();
+        } else
+        {
+          high = literal (pattern.charAt (index++));
+        }
+
+        if (high < low)
+          throw new UnsupportedPatternException ("Bad range");
+
+        charClass.addRange (low, high);
+      } else if (peek ('-'))
+      {
+        // trailing '-' is literal
+        index++;
+
+        charClass.add (low);
+        charClass.add ('-');
+      } else
+      {
+        charClass.add (low);
+      }
+    }
+
+    index++;
+
+    charClass.freeze ();
+
+    return negated ? charClass.negate ().freeze () : charClass;
+  }
+
+  private Term assertion (int op)
+  {
+    assertions++;
+
+    return new Assertion (op);
+  }
+
+  private boolean peek (char c)
+  {
+    return index < pattern.length () && pattern.charAt (index) == c;
+  }
+
+  /**
+   * Check a literal code point is supported.
+   */
+  private static int literal (int c)
+    throws UnsupportedPatternException
+  {
+    if (c > Character.MAX_VALUE ||
+        isHighSurrogate ((char)c) || isLowSurrogate ((char)c))
+    {
+      throw new UnsupportedPatternException ("Supplementary character");
+    }
+
+    return c;
+  }
+
+  private static boolean isDigit (char c)
+  {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isAsciiLetterOrDigit (char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit (c);
+  }
+
+  /**
+   * A parsed pattern term.
+   */
+  abstract static class Term
+  {
+    /**
+     * Emit the code for the term.
+     *
+     * @param program The program to add to.
+     * @param next The address of the code to run after the term.
+     *
+     * @return The address of the start of the term's code.
+     */
+    public abstract int emit (Program program, int next)
+      throws UnsupportedPatternException;
+
+    /**
+     * True if the term can only match at the start of input.
+     */
+    public boolean isAnchored ()
+    {
+      return false;
+    }
+  }
+
+  static final class Atom extends Term
+  {
+    private int op;
+    private int arg;
+    private CharClass charClass;
+
+    public Atom (int op)
+    {
+      this.op = op;
+    }
+
+    public Atom (int op, int arg)
+    {
+      this.op = op;
+      this.arg = arg;
+    }
+
+    public Atom (CharClass charClass)
+    {
+      this.op = SET;
+      this.charClass = charClass;
+    }
+
+    @Override
+    public int emit (Program program, int next)
+      throws UnsupportedPatternException
+    {
+      int pc = program.add (op, arg, next);
+
+      program.classes [pc] = charClass;
+
+      return pc;
+    }
+  }
+
+  static final class Assertion extends Term
+  {
+    private int op;
+
+    public Assertion (int op)
+    {
+      this.op = op;
+    }
+
+    @Override
+    public int emit (Program program, int next)
+      throws UnsupportedPatternException
+    {
+      return program.add (op, 0, next);
+    }
+
+    @Override
+    public boolean isAnchored ()
+    {
+      return op == BEGIN;
+    }
+  }
+
+  static final class Group extends Term
+  {
+    private Term term;
+
+    public Group (Term term)
+    {
+      this.term = term;
+    }
+
+    @Override
+    public int emit (Program program, int next)
+      throws UnsupportedPatternException
+    {
+      return term.emit (program, next);
+    }
+
+    @Override
+    public boolean isAnchored ()
+    {
+      return term.isAnchored ();
+    }
+  }
+
+  static final class Sequence extends Term
+  {
+    private List<Term> terms = new ArrayList<Term> ();
+
+    public void add (Term term)
+    {
+      terms.add (term);
+    }
+
+    @Override
+    public int emit (Program program, int next)
+      throws UnsupportedPatternException
+    {
+      for (int i = terms.size () - 1; i >= 0; i--)
+        next = terms.get (i).emit (program, next);
+
+      return next;
+    }
+
+    @Override
+    public boolean isAnchored ()
+    {
+      return !terms.isEmpty () && terms.get (0).isAnchored ();
+    }
+  }
+
+  static final class Alternation extends Term
+  {
+    private List<Term> terms = new ArrayList<Term> ();
+
+    public void add (Term term)
+    {
+      terms.add (term);
+    }
+
+    @Override
+    public int emit (Program program, int next)
+      throws UnsupportedPatternException
+    {
+      int start = terms.get (terms.size () - 1).emit (program, next);
+
+      for (int i = terms.size () - 2; i >= 0; i--)
+      {
+        int split =
+          program.add (SPLIT, 0, terms.get (i).emit (program, next));
+
+        program.alts [split] = start;
+
+        start = split;
+      }
+
+      return start;
+    }
+
+    @Override
+    public boolean isAnchored ()
+    {
+      for (Term term : terms)
+      {
+        if (!term.isAnchored ())
+          return false;
+      }
+
+      return true;
+    }
+  }
+
+  static final class Repeat extends Term
+  {
+    private Term term;
+    private int min;
+    private int max;
+
+    /**
+     * Create a new instance.
+     *
+     * @param term The term to repeat.
+     * @param min The minimum repetitions.
+     * @param max The maximum repetitions, or -1 for unbounded.
+     */
+    public Repeat (Term term, int min, int max)
+    {
+      this.term = term;
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    public int emit (Program program, int next)
+      throws UnsupportedPatternException
+    {
+      if (max == -1)
+      {
+        // loop: split (term then back to split, next)
+        int split = program.add (SPLIT, 0, -1);
+        int body = term.emit (program, split);
+
+        // NB: emit () may reallocate the program's arrays
+        program.nexts [split] = body;
+        program.alts [split] = next;
+
+        next = split;
+      } else
+      {
+        for (int i = min; i < max; i++)
+        {
+          int split = program.add (SPLIT, 0, term.emit (program, next));
+
+          program.alts [split] = next;
+
+          next = split;
+        }
+      }
+
+      for (int i = 0; i < min; i++)
+        next = term.emit (program, next);
+
+      return next;
+    }
+
+    @Override
+    public boolean isAnchored ()
+    {
+      return min > 0 && term.isAnchored ();
+    }
+  }
+}
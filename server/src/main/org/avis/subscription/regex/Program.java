@@ -0,0 +1,167 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.regex;
+
+/**
+ * A compiled NFA program, in the style of Thompson's construction:
+ * each instruction either consumes a code point and moves on to its
+ * next instruction, or is an empty (epsilon) transition that may
+ * branch or test the current position.
+ */
+final class Program
+{
+  /** Consume the code point in arg. */
+  static final int CHAR = 0;
+
+  /** Consume a code point in classes [pc]. */
+  static final int SET = 1;
+
+  /** Consume any code point. */
+  static final int ANY = 2;
+
+  /** Consume any code point but a line terminator. */
+  static final int DOT = 3;
+
+  /** Continue at both next and alt. */
+  static final int SPLIT = 4;
+
+  /** Continue at next. */
+  static final int JUMP = 5;
+
+  /** Assert the start of input ("^", "\A"). */
+  static final int BEGIN = 6;
+
+  /** Assert the end of input, ignoring a final line terminator ("$"). */
+  static final int DOLLAR = 7;
+
+  /** Assert the end of input ("\z"). */
+  static final int END = 8;
+
+  /** The pattern in arg has matched. */
+  static final int MATCH = 9;
+
+  /**
+   * The maximum number of instructions in a program, mainly to limit
+   * the expansion of counted repetitions like "a{1000}".
+   */
+  static final int MAX_SIZE = 10000;
+
+  int [] ops;
+  int [] args;
+  int [] nexts;
+  int [] alts;
+  CharClass [] classes;
+  int size;
+
+  /** The address of the first instruction to run. */
+  int start;
+
+  public Program ()
+  {
+    this (16);
+  }
+
+  public Program (int capacity)
+  {
+    this.ops = new int [capacity];
+    this.args = new int [capacity];
+    this.nexts = new int [capacity];
+    this.alts = new int [capacity];
+    this.classes = new CharClass [capacity];
+  }
+
+  /**
+   * Add an instruction.
+   *
+   * @return The new instruction's address.
+   *
+   * @throws UnsupportedPatternException if the program is too large.
+   */
+  public int add (int op, int arg, int next)
+    throws UnsupportedPatternException
+  {
+    if (size == MAX_SIZE)
+      throw new UnsupportedPatternException ("Pattern too complex");
+
+    if (size == ops.length)
+      grow ();
+
+    ops [size] = op;
+    args [size] = arg;
+    nexts [size] = next;
+    alts [size] = -1;
+
+    return size++;
+  }
+
+  /**
+   * Append a copy of another program, relocating its addresses.
+   *
+   * @return The address the other program was copied to.
+   */
+  public int append (Program program)
+  {
+    while (size + program.size > ops.length)
+      grow ();
+
+    int offset = size;
+
+    for (int pc = 0; pc < program.size; pc++)
+    {
+      ops [offset + pc] = program.ops [pc];
+      args [offset + pc] = program.args [pc];
+      nexts [offset + pc] = relocate (program.nexts [pc], offset);
+      alts [offset + pc] = relocate (program.alts [pc], offset);
+      classes [offset + pc] = program.classes [pc];
+    }
+
+    size += program.size;
+
+    return offset;
+  }
+
+  private static int relocate (int pc, int offset)
+  {
+    return pc == -1 ? -1 : pc + offset;
+  }
+
+  private void grow ()
+  {
+    int newSize = ops.length * 2;
+
+    ops = copy (ops, newSize);
+    args = copy (args, newSize);
+    nexts = copy (nexts, newSize);
+    alts = copy (alts, newSize);
+
+    CharClass [] newClasses = new CharClass [newSize];
+
+    System.arraycopy (classes, 0, newClasses, 0, size);
+
+    classes = newClasses;
+  }
+
+  private static int [] copy (int [] array, int newSize)
+  {
+    int [] newArray = new int [newSize];
+
+    System.arraycopy (array, 0, newArray, 0, array.length);
+
+    return newArray;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.IoSession;
+
+import org.avis.io.messages.NotifyDeliver;
+import org.avis.io.messages.NotifyEmit;
+
+import static java.lang.System.nanoTime;
+import static java.lang.Thread.sleep;
+
+/**
+ * Measure the rate at which the router delivers a stream of small
+ * notifications from one producer to a number of subscribers, with
+ * the IO.Write-Coalesce-Size router option set to each of the sizes
+ * given on the command line (default: 0 and 64K).
+ */
+public class DeliveryBenchmark
+{
+  private static final int PORT = 29170;
+  private static final int SUBSCRIBERS = 10;
+  private static final int NOTIFICATIONS = 100000;
+  private static final int ROUNDS = 3;
+  
+  /**
+   * The max number of notifications the producer gets ahead of the
+   * subscribers, which keeps it within the router's receive queue
+   * limit.
+   */
+  private static final int WINDOW = 1000;
+
+  public static void main (String [] args)
+    throws Exception
+  {
+    if (args.length == 0)
+      args = new String [] {"0", "65536"};
+    
+    System.out.println ("coalesce size\tround\tdeliveries/s");
+    
+    for (String size : args)
+    {
+      for (int round = 0; round < ROUNDS; round++)
+      {
+        System.out.println (size + "\t" + round + "\t" +
+                            run (Integer.parseInt (size)));
+      }
+    }
+  }
+
+  /**
+   * Run one round.
+   * 
+   * @return The number of notifications delivered per second.
+   */
+  private static long run (int coalesceSize)
+    throws Exception
+  {
+    RouterOptions options = new RouterOptions ();
+    
+    options.set ("Port", PORT);
+    options.set ("IO.Write-Coalesce-Size", coalesceSize);
+    
+    Router router = new Router (options);
+    AtomicInteger delivered = new AtomicInteger ();
+    CountingClient [] subscribers = new CountingClient [SUBSCRIBERS];
+    
+    for (int i = 0; i < SUBSCRIBERS; i++)
+    {
+      subscribers [i] = new CountingClient (delivered);
+      
+      subscribers [i].connect ();
+      subscribers [i].subscribe ("require (Benchmark)");
+    }
+    
+    CountingClient producer = new CountingClient (delivered);
+    
+    producer.connect ();
+    
+    NotifyEmit notification = new NotifyEmit ("Benchmark", 1, 
+                                              "Payload", "hello world");
+    int expected = NOTIFICATIONS * SUBSCRIBERS;
+    long start = nanoTime ();
+    
+    for (int i = 0; i < NOTIFICATIONS; i++)
+    {
+      while ((i - WINDOW) * SUBSCRIBERS > delivered.get ())
+        Thread.yield ();
+      
+      producer.emit (notification);
+    }
+    
+    long deadline = nanoTime () + 10 * 1000000000L;
+    
+    while (delivered.get () < expected)
+    {
+      if (nanoTime () > deadline)
+        throw new IllegalStateException ("Notifications were dropped");
+      
+      sleep (1);
+    }
+    
+    long rate = expected * 1000000000L / (nanoTime () - start);
+    
+    producer.close ();
+    
+    for (CountingClient subscriber : subscribers)
+      subscriber.close ();
+    
+    router.close ();
+    
+    return rate;
+  }
+  
+  /**
+   * A client that counts notifications delivered to it rather than
+   * queueing them, and can emit notifications without waiting for
+   * each to be written.
+   */
+  static class CountingClient extends SimpleClient
+  {
+    private AtomicInteger delivered;
+
+    public CountingClient (AtomicInteger delivered)
+      throws Exception
+    {
+      super ("localhost", PORT);
+      
+      this.delivered = delivered;
+    }
+    
+    public void emit (NotifyEmit notification)
+    {
+      clientSession.write (notification);
+    }
+    
+    @Override
+    public void messageReceived (IoSession session, Object message)
+      throws Exception
+    {
+      if (message instanceof NotifyDeliver)
+        delivered.incrementAndGet ();
+      else
+        super.messageReceived (session, message);
+    }
+  }
+}
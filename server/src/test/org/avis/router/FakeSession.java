@@ -0,0 +1,96 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.support.DefaultWriteFuture;
+
+/**
+ * A stand-in for a MINA session that records what is done to it,
+ * supporting just the operations the router's queues use.
+ */
+public class FakeSession implements InvocationHandler
+{
+  public IoSession session;
+  public List<Object> written;
+  public int scheduledWriteBytes;
+  public int scheduledWriteRequests;
+  public boolean closed;
+  public boolean readSuspended;
+  
+  public FakeSession ()
+  {
+    this.written = new ArrayList<Object> ();
+    this.session =
+      (IoSession)Proxy.newProxyInstance
+        (getClass ().getClassLoader (),
+         new Class<?> [] {IoSession.class}, this);
+  }
+  
+  public Object invoke (Object proxy, Method method, Object [] args)
+  {
+    String name = method.getName ();
+    
+    if (name.equals ("write"))
+    {
+      written.add (args [0]);
+      
+      return DefaultWriteFuture.newWrittenFuture (session);
+    } else if (name.equals ("getScheduledWriteBytes"))
+    {
+      return scheduledWriteBytes;
+    } else if (name.equals ("getScheduledWriteRequests"))
+    {
+      return scheduledWriteRequests;
+    } else if (name.equals ("getAttribute"))
+    {
+      return null;
+    } else if (name.equals ("close"))
+    {
+      closed = true;
+      
+      return null;
+    } else if (name.equals ("isClosing"))
+    {
+      return closed;
+    } else if (name.equals ("suspendRead"))
+    {
+      readSuspended = true;
+      
+      return null;
+    } else if (name.equals ("resumeRead"))
+    {
+      readSuspended = false;
+      
+      return null;
+    } else if (name.equals ("hashCode"))
+    {
+      return System.identityHashCode (proxy);
+    } else
+    {
+      throw new UnsupportedOperationException (name);
+    }
+  }
+}
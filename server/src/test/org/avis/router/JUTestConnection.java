@@ -0,0 +1,132 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import org.avis.security.Key;
+import org.avis.security.KeyIndex;
+import org.avis.security.Keys;
+
+import static org.avis.security.DualKeyScheme.Subset.PRODUCER;
+import static org.avis.security.KeyScheme.SHA1_PRODUCER;
+import static org.avis.security.Keys.EMPTY_KEYS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test delivery state published by connections.
+ */
+public class JUTestConnection
+{
+  private KeyIndex<Object> keyIndex;
+  private List<Subscription> candidates;
+
+  /**
+   * Test that matching sees subscription and key changes, and nothing
+   * after close.
+   */
+  @Test
+  public void snapshot ()
+    throws Exception
+  {
+    Key privateKey = new Key ("private");
+
+    Keys ntfnKeys = new Keys ();
+    ntfnKeys.add (SHA1_PRODUCER, privateKey);
+    ntfnKeys.hashPrivateKeysForRole (PRODUCER);
+
+    Keys subKeys = new Keys ();
+    subKeys.add (SHA1_PRODUCER, privateKey.publicKeyFor (SHA1_PRODUCER));
+
+    keyIndex = new KeyIndex<Object> ();
+
+    Connection connection =
+      new Connection (null, new SubscriptionIndex (), keyIndex,
+                      new RouterOptions (), new HashMap<String, Object> (),
+                      EMPTY_KEYS, EMPTY_KEYS);
+
+    Subscription subscription = new Subscription ("require (A)",
+                                                  EMPTY_KEYS, false);
+
+    candidates = Collections.singletonList (subscription);
+
+    // not yet added
+    assertFalse (match (connection, ntfnKeys).matched ());
+
+    connection.lockWrite ();
+    connection.addSubscription (subscription);
+    connection.unlockWrite ();
+
+    // no keys, and insecure not accepted
+    assertFalse (match (connection, ntfnKeys).matched ());
+
+    connection.lockWrite ();
+    connection.updateSubscription (subscription, subKeys, false);
+    connection.unlockWrite ();
+
+    assertEquals (1, match (connection, ntfnKeys).secure ().length);
+
+    // connection-wide keys
+    connection.lockWrite ();
+    connection.updateSubscription (subscription, EMPTY_KEYS, true);
+    connection.updateKeys (EMPTY_KEYS, subKeys);
+    connection.unlockWrite ();
+
+    assertEquals (1, match (connection, ntfnKeys).secure ().length);
+    assertEquals (1, match (connection, EMPTY_KEYS).insecure ().length);
+
+    // removed subscriptions are not matched
+    connection.lockWrite ();
+    connection.removeSubscription (subscription.id);
+    connection.unlockWrite ();
+
+    assertFalse (match (connection, ntfnKeys).matched ());
+
+    connection.lockWrite ();
+    connection.addSubscription (subscription);
+    connection.unlockWrite ();
+
+    assertEquals (1, match (connection, ntfnKeys).secure ().length);
+
+    connection.lockWrite ();
+    connection.close ();
+    connection.unlockWrite ();
+
+    assertFalse (connection.isOpen ());
+    assertFalse (match (connection, ntfnKeys).matched ());
+    assertTrue (connection.notificationKeys ().isEmpty ());
+    assertEquals (0, keyIndex.size ());
+  }
+
+  private SubscriptionMatch match (Connection connection, Keys keys)
+  {
+    Set<Object> secured = new HashSet<Object> ();
+
+    keyIndex.match (keys, secured);
+
+    return connection.matchSubscriptions (candidates, secured, true);
+  }
+}
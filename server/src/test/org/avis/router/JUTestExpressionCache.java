@@ -0,0 +1,117 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import org.avis.router.ExpressionCache.Expression;
+import org.avis.subscription.parser.ParseException;
+
+import org.junit.Test;
+
+import static org.avis.security.Keys.EMPTY_KEYS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JUTestExpressionCache
+{
+  @Test
+  public void cache ()
+    throws Exception
+  {
+    ExpressionCache cache = new ExpressionCache (1024 * 1024);
+
+    Expression expression1 = cache.get ("Service == 'quotes'");
+    Expression expression2 = cache.get ("Service == 'quotes'");
+    Expression expression3 = cache.get ("Price > 100");
+
+    assertSame (expression1, expression2);
+    assertNotSame (expression1, expression3);
+    assertEquals (1L, cache.hits ());
+    assertEquals (2L, cache.misses ());
+    assertEquals (2, cache.size ());
+    assertEquals (expression1.footprint + expression3.footprint,
+                  cache.footprint ());
+
+    // subscriptions share the cached AST
+    Subscription sub1 =
+      new Subscription ("Price > 100", EMPTY_KEYS, true, cache);
+    Subscription sub2 =
+      new Subscription ("Service == 'quotes'", EMPTY_KEYS, true, cache);
+
+    assertSame (expression3.ast, sub1.ast ());
+
+    sub2.updateExpression ("Price > 100");
+
+    assertSame (sub1.ast (), sub2.ast ());
+    assertEquals (4L, cache.hits ());
+
+    // invalid expressions are not cached
+    for (int i = 0; i < 2; i++)
+    {
+      try
+      {
+        cache.get ("Price >");
+
+        fail ();
+      } catch (ParseException ex)
+      {
+        // ok
+      }
+    }
+
+    assertEquals (4L, cache.misses ());
+    assertEquals (2, cache.size ());
+  }
+
+  @Test
+  public void evict ()
+    throws Exception
+  {
+    long footprint = new Expression ("Count == 0").footprint;
+    ExpressionCache cache = new ExpressionCache (footprint * 3);
+
+    for (int i = 0; i < 10; i++)
+      cache.get ("Count == " + i);
+
+    assertEquals (3, cache.size ());
+    assertEquals (7L, cache.evictions ());
+    assertTrue (cache.footprint () <= footprint * 3);
+
+    // least recently used is evicted first
+    cache.get ("Count == 7");
+    cache.get ("Count == 9");
+    cache.get ("Count == 0");
+
+    assertEquals (2L, cache.hits ());
+
+    cache.get ("Count == 7");
+    cache.get ("Count == 8");
+
+    assertEquals (3L, cache.hits ());
+
+    // disabled cache
+    cache = new ExpressionCache (0);
+
+    assertNotSame (cache.get ("Count == 0"), cache.get ("Count == 0"));
+    assertEquals (0, cache.size ());
+    assertEquals (0L, cache.hits ());
+  }
+}
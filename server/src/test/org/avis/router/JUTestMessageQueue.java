@@ -0,0 +1,197 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.avis.router.MessageQueue.Entry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the {@link MessageQueue} class.
+ */
+public class JUTestMessageQueue
+{
+  @Test
+  public void victims ()
+  {
+    MessageQueue<Entry> queue = new MessageQueue<Entry> ();
+
+    Entry small1 = entry (10, true);
+    Entry request = entry (5, false);
+    Entry large1 = entry (30, true);
+    Entry small2 = entry (10, true);
+    Entry large2 = entry (30, true);
+
+    queue.add (small1);
+    queue.add (request);
+    queue.add (large1);
+    queue.add (small2);
+    queue.add (large2);
+
+    assertEquals (5, queue.size ());
+    assertEquals (85L, queue.length ());
+
+    queue.setDropPolicy (DropPolicy.OLDEST);
+    assertSame (small1, queue.removeVictim ());
+
+    queue.setDropPolicy (DropPolicy.NEWEST);
+    assertSame (large2, queue.removeVictim ());
+
+    queue.add (large2);
+
+    // oldest of the largest first
+    queue.setDropPolicy (DropPolicy.LARGEST);
+    assertSame (large1, queue.removeVictim ());
+    assertSame (large2, queue.removeVictim ());
+    assertSame (small2, queue.removeVictim ());
+
+    // non-droppable entries are never victims
+    assertNull (queue.removeVictim ());
+
+    assertEquals (entries (request), contents (queue));
+    assertEquals (5L, queue.length ());
+  }
+
+  @Test
+  public void remove ()
+  {
+    MessageQueue<Entry> queue = new MessageQueue<Entry> ();
+
+    Entry entry1 = entry (10, true);
+    Entry entry2 = entry (20, true);
+    Entry entry3 = entry (30, false);
+    Entry entry4 = entry (40, true);
+
+    queue.add (entry1);
+    queue.add (entry2);
+    queue.add (entry3);
+    queue.add (entry4);
+
+    queue.remove (entry2);
+
+    assertEquals (entries (entry1, entry3, entry4), contents (queue));
+
+    // removing an entry that is not queued is a no-op
+    queue.remove (entry2);
+
+    assertEquals (3, queue.size ());
+    assertEquals (80L, queue.length ());
+
+    assertSame (entry1, queue.removeFirst ());
+
+    queue.remove (entry4);
+
+    assertEquals (entries (entry3), contents (queue));
+    assertNull (queue.removeVictim ());
+
+    queue.add (entry2);
+
+    assertEquals (entries (entry3, entry2), contents (queue));
+    assertSame (entry2, queue.removeVictim ());
+
+    queue.clear ();
+
+    assertTrue (queue.isEmpty ());
+    assertEquals (0L, queue.length ());
+    assertNull (queue.removeVictim ());
+  }
+
+  /**
+   * Test that dropping from a long queue does not scan it: with a
+   * scan per drop, this takes minutes under the NEWEST and LARGEST
+   * policies.
+   */
+  @Test (timeout = 20000)
+  public void dropFromLongQueue ()
+  {
+    for (DropPolicy policy : DropPolicy.values ())
+    {
+      MessageQueue<Entry> queue = new MessageQueue<Entry> ();
+
+      queue.setDropPolicy (policy);
+
+      for (int i = 0; i < 200000; i++)
+        queue.add (entry (100 + i % 50, i % 10 != 0));
+
+      // add one entry and drop one entry, like an overflowing queue
+      for (int i = 0; i < 200000; i++)
+      {
+        queue.add (entry (100 + i % 50, true));
+
+        assertTrue (queue.removeVictim ().droppable);
+      }
+
+      assertEquals (200000, queue.size ());
+    }
+  }
+
+  /**
+   * Test drop policy names parse the same in any locale: e.g. "fail"
+   * upper-cases to "FA\u0130L" in Turkish.
+   */
+  @Test
+  public void parsePolicy ()
+  {
+    Locale locale = Locale.getDefault ();
+
+    try
+    {
+      Locale.setDefault (new Locale ("tr", "TR"));
+
+      assertSame (DropPolicy.FAIL, DropPolicy.parse ("fail"));
+      assertSame (DropPolicy.LARGEST, DropPolicy.parse ("largest"));
+    } finally
+    {
+      Locale.setDefault (locale);
+    }
+  }
+
+  private static Entry entry (int size, boolean droppable)
+  {
+    return new Entry (null, size, droppable);
+  }
+
+  private static List<Entry> entries (Entry... entries)
+  {
+    List<Entry> list = new ArrayList<Entry> ();
+
+    for (Entry entry : entries)
+      list.add (entry);
+
+    return list;
+  }
+
+  private static List<Entry> contents (MessageQueue<Entry> queue)
+  {
+    List<Entry> list = new ArrayList<Entry> ();
+
+    for (Entry entry : queue)
+      list.add (entry);
+
+    return list;
+  }
+}
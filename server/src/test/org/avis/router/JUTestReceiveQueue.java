@@ -0,0 +1,171 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import org.avis.io.messages.Message;
+import org.avis.io.messages.NotifyEmit;
+import org.avis.io.messages.SubAddRqst;
+import org.avis.router.ReceiveQueue.Entry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the {@link ReceiveQueue} class.
+ */
+public class JUTestReceiveQueue
+{
+  private FakeSession fake;
+  
+  public JUTestReceiveQueue ()
+  {
+    fake = new FakeSession ();
+  }
+  
+  @Test
+  public void dropOldest ()
+    throws Exception
+  {
+    ReceiveQueue queue = new ReceiveQueue (fake.session, 1200, "oldest");
+    
+    NotifyEmit small1 = notification (100);
+    NotifyEmit small2 = notification (100);
+    SubAddRqst request = new SubAddRqst ("require (foo)");
+    NotifyEmit large = notification (1000);
+    
+    Entry small1Entry = queue.add (small1);
+    Entry small2Entry = queue.add (small2);
+    Entry requestEntry = queue.add (request);
+    Entry largeEntry = queue.add (large);
+    
+    // both small ones dropped, even though already queued
+    assertEquals (2L, queue.dropped ());
+    assertEquals (2, queue.size ());
+    
+    assertNull (queue.release (small1Entry));
+    assertNull (queue.release (small2Entry));
+    assertSame (request, queue.release (requestEntry));
+    assertSame (large, queue.release (largeEntry));
+    
+    assertEquals (0, queue.size ());
+    assertEquals (0L, queue.length ());
+    assertFalse (fake.readSuspended);
+  }
+  
+  @Test
+  public void dropNewest ()
+    throws Exception
+  {
+    ReceiveQueue queue = new ReceiveQueue (fake.session, 1200, "newest");
+    
+    NotifyEmit small = notification (100);
+    NotifyEmit large = notification (1000);
+    
+    assertSame (small, queue.release (queue.add (small)));
+    
+    Entry smallEntry = queue.add (small);
+    Entry largeEntry = queue.add (large);
+    
+    assertNull (queue.add (notification (100)));
+    assertEquals (1L, queue.dropped ());
+    
+    assertSame (small, queue.release (smallEntry));
+    assertSame (large, queue.release (largeEntry));
+  }
+  
+  @Test
+  public void dropLargest ()
+    throws Exception
+  {
+    ReceiveQueue queue = new ReceiveQueue (fake.session, 1200, "largest");
+    
+    NotifyEmit small1 = notification (100);
+    NotifyEmit small2 = notification (100);
+    
+    Entry small1Entry = queue.add (small1);
+    Entry largeEntry = queue.add (notification (1000));
+    Entry small2Entry = queue.add (small2);
+    
+    assertEquals (1L, queue.dropped ());
+    
+    assertSame (small1, queue.release (small1Entry));
+    assertNull (queue.release (largeEntry));
+    assertSame (small2, queue.release (small2Entry));
+  }
+  
+  @Test
+  public void dropFail ()
+    throws Exception
+  {
+    ReceiveQueue queue = new ReceiveQueue (fake.session, 1200, "fail");
+    
+    Entry entry = queue.add (notification (100));
+    
+    queue.add (notification (1000));
+    
+    assertFalse (fake.closed);
+    
+    assertNull (queue.add (notification (100)));
+    assertTrue (fake.closed);
+    assertNull (queue.release (entry));
+  }
+  
+  /**
+   * Test that requests are not dropped, but cause reads to be
+   * suspended when they overflow the queue.
+   */
+  @Test
+  public void suspend ()
+    throws Exception
+  {
+    ReceiveQueue queue = new ReceiveQueue (fake.session, 100, "oldest");
+    
+    // a single message is always accepted
+    Message large = notification (1000);
+    
+    assertSame (large, queue.release (queue.add (large)));
+    assertFalse (fake.readSuspended);
+    assertEquals (0L, queue.dropped ());
+    
+    Entry request1 = queue.add (new SubAddRqst ("require (foo)"));
+    Entry request2 = queue.add (new SubAddRqst ("require (bar)"));
+    
+    assertTrue (fake.readSuspended);
+    
+    queue.release (request1);
+    
+    assertFalse (fake.readSuspended);
+    
+    queue.release (request2);
+    
+    assertEquals (0L, queue.dropped ());
+  }
+  
+  /**
+   * Create a notification with a string attribute of a given length.
+   */
+  private static NotifyEmit notification (int length)
+  {
+    return new NotifyEmit ("value", new String (new char [length]));
+  }
+}
@@ -25,6 +25,9 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.ByteBufferAllocator;
+
 import org.avis.common.ElvinURI;
 import org.avis.federation.FederationOptionSet;
 
@@ -36,6 +39,7 @@ import static org.avis.common.Common.DEFAULT_PORT;
 import static org.avis.io.Net.addressesFor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class JUTestRouterOptions
@@ -146,6 +150,32 @@ public class JUTestRouterOptions
     config.set ("Federation.Subscribe[Test]", "require (federated)");
   }
 
+  /**
+   * Test that disabling buffer pooling does not change MINA's global
+   * buffer allocator.
+   */
+  @Test
+  public void bufferPooling ()
+    throws Exception
+  {
+    ByteBufferAllocator allocator = ByteBuffer.getAllocator ();
+    
+    RouterOptions options = new RouterOptions (29170);
+    options.set ("IO.Pool-Buffers", false);
+    
+    Router router = new Router (options);
+    
+    try
+    {
+      assertSame (allocator, ByteBuffer.getAllocator ());
+    } finally
+    {
+      router.close ();
+    }
+    
+    assertSame (allocator, ByteBuffer.getAllocator ());
+  }
+
   private void testHost (Set<InetAddress> hostAddresses, String hostOption, int port)
     throws Exception
   {
@@ -0,0 +1,329 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.WriteFuture;
+
+import org.avis.io.messages.DropWarn;
+import org.avis.io.messages.Message;
+import org.avis.io.messages.NotifyDeliver;
+import org.avis.io.messages.SubRply;
+
+import org.junit.Test;
+
+import static org.avis.router.SendQueue.WRITE_WINDOW;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the {@link SendQueue} class.
+ */
+public class JUTestSendQueue
+{
+  private static final long [] NO_MATCHES = new long [0];
+  
+  private FakeSession fake;
+  private IoSession session;
+  
+  public JUTestSendQueue ()
+  {
+    fake = new FakeSession ();
+    session = fake.session;
+  }
+  
+  /**
+   * Test messages pass straight through while below the write window,
+   * and are queued and then sent in order once above it.
+   */
+  @Test
+  public void window ()
+    throws Exception
+  {
+    SendQueue queue = new SendQueue (session, 1024 * 1024, "oldest", 0);
+    
+    NotifyDeliver ntfn1 = notification (10);
+    
+    assertTrue (queue.send (ntfn1).isWritten ());
+    assertSame (ntfn1, fake.written.get (0));
+    assertEquals (0, queue.size ());
+    
+    // fill window
+    fake.scheduledWriteBytes = WRITE_WINDOW;
+    fake.scheduledWriteRequests = 1;
+    
+    NotifyDeliver ntfn2 = notification (10);
+    SubRply reply = new SubRply ();
+
+    WriteFuture future2 = queue.send (ntfn2);
+    WriteFuture replyFuture = queue.send (reply);
+    
+    assertFalse (future2.isWritten ());
+    assertEquals (1, fake.written.size ());
+    assertEquals (2, queue.size ());
+    assertTrue (queue.length () > WRITE_WINDOW);
+    
+    // drain
+    fake.scheduledWriteBytes = 0;
+    fake.scheduledWriteRequests = 0;
+    
+    queue.messageSent ();
+    
+    assertEquals (3, fake.written.size ());
+    assertSame (ntfn2, fake.written.get (1));
+    assertSame (reply, fake.written.get (2));
+    assertTrue (future2.isWritten ());
+    assertTrue (replyFuture.isWritten ());
+    assertEquals (0, queue.size ());
+    assertEquals (0L, queue.length ());
+    assertEquals (0L, queue.dropped ());
+  }
+
+  /**
+   * Test that the queue drains when the session has no writes in
+   * progress, even though its scheduled byte count has not yet caught
+   * up (MINA fires messageSent before deducting written bytes).
+   */
+  @Test
+  public void staleWriteBytes ()
+    throws Exception
+  {
+    SendQueue queue = new SendQueue (session, 1024 * 1024, "oldest", 0);
+
+    fake.scheduledWriteBytes = WRITE_WINDOW;
+    fake.scheduledWriteRequests = 1;
+
+    NotifyDeliver ntfn = notification (10);
+
+    queue.send (ntfn);
+
+    assertEquals (1, queue.size ());
+
+    // last write complete, but bytes not yet deducted
+    fake.scheduledWriteRequests = 0;
+
+    queue.messageSent ();
+
+    assertEquals (0, queue.size ());
+    assertSame (ntfn, fake.written.get (0));
+  }
+
+  /**
+   * Test that notifications are written together while a write is in
+   * progress.
+   */
+  @Test
+  public void coalesce ()
+    throws Exception
+  {
+    SendQueue queue = new SendQueue (session, 1024 * 1024, "oldest", 1024);
+    
+    NotifyDeliver ntfn1 = notification (10);
+    
+    // idle session: write immediately
+    queue.send (ntfn1);
+    
+    assertEquals (messages (ntfn1), fake.written);
+    
+    fake.scheduledWriteRequests = 1;
+    
+    NotifyDeliver ntfn2 = notification (10);
+    NotifyDeliver ntfn3 = notification (10);
+    SubRply reply = new SubRply ();
+    NotifyDeliver large = notification (2000);
+    NotifyDeliver ntfn4 = notification (10);
+    
+    WriteFuture future2 = queue.send (ntfn2);
+    WriteFuture future3 = queue.send (ntfn3);
+    queue.send (reply);
+    queue.send (large);
+    queue.send (ntfn4);
+    
+    assertEquals (5, queue.size ());
+    
+    fake.written.clear ();
+    fake.scheduledWriteRequests = 0;
+    
+    queue.messageSent ();
+    
+    // notifications are coalesced up to a non-notification, or one
+    // too large to coalesce
+    assertEquals (4, fake.written.size ());
+    assertTrue (Arrays.equals (new Message [] {ntfn2, ntfn3},
+                               (Message [])fake.written.get (0)));
+    assertEquals (messages (reply, large, ntfn4), 
+                  fake.written.subList (1, 4));
+    assertTrue (future2.isWritten ());
+    assertTrue (future3.isWritten ());
+    
+    // no coalescing with TCP.Send-Immediately
+    queue.setSendImmediately (true);
+    
+    fake.written.clear ();
+    fake.scheduledWriteRequests = 1;
+    
+    queue.send (ntfn1);
+    
+    assertEquals (messages (ntfn1), fake.written);
+  }
+  
+  @Test
+  public void dropOldest ()
+    throws Exception
+  {
+    SendQueue queue = fullQueue ("oldest");
+    
+    NotifyDeliver small = notification (100);
+    NotifyDeliver large = notification (1100);
+    SubRply reply = new SubRply ();
+    
+    WriteFuture smallFuture = queue.send (small);
+    queue.send (reply);
+    queue.send (large);
+    
+    // small one is dropped, reply is never dropped
+    assertEquals (1L, queue.dropped ());
+    assertFalse (smallFuture.isWritten ());
+    assertTrue (smallFuture.isReady ());
+    
+    assertEquals (messages (reply, large, DropWarn.class), drain (queue));
+  }
+  
+  @Test
+  public void dropNewest ()
+    throws Exception
+  {
+    SendQueue queue = fullQueue ("newest");
+    
+    NotifyDeliver small = notification (100);
+    NotifyDeliver large = notification (1100);
+    
+    queue.send (small);
+    queue.send (large);
+    
+    assertEquals (1L, queue.dropped ());
+    assertEquals (messages (small, DropWarn.class), drain (queue));
+  }
+  
+  @Test
+  public void dropLargest ()
+    throws Exception
+  {
+    SendQueue queue = fullQueue ("largest");
+    
+    NotifyDeliver large = notification (1100);
+    NotifyDeliver small1 = notification (100);
+    NotifyDeliver small2 = notification (100);
+    
+    queue.send (large);
+    queue.send (small1);
+    queue.send (small2);
+    
+    // DropWarn follows the message that caused the drop
+    assertEquals (messages (small1, DropWarn.class, small2), drain (queue));
+    
+    // another DropWarn after the first is sent
+    fake.scheduledWriteBytes = WRITE_WINDOW + 1500;
+    fake.scheduledWriteRequests = 1;
+    
+    queue.send (notification (1100));
+    
+    assertEquals (2L, queue.dropped ());
+    assertEquals (messages (DropWarn.class), drain (queue));
+  }
+  
+  @Test
+  public void dropFail ()
+    throws Exception
+  {
+    SendQueue queue = fullQueue ("fail");
+    
+    WriteFuture future = queue.send (notification (100));
+    
+    assertFalse (fake.closed);
+    
+    queue.send (notification (1100));
+    
+    assertTrue (fake.closed);
+    assertFalse (future.isWritten ());
+    assertEquals (0, queue.size ());
+  }
+  
+  /**
+   * Create a queue whose session's output is just below its max length.
+   */
+  private SendQueue fullQueue (String dropPolicy)
+  {
+    fake.scheduledWriteBytes = WRITE_WINDOW + 1000;
+    fake.scheduledWriteRequests = 1;
+    
+    return new SendQueue (session, WRITE_WINDOW + 2200, dropPolicy, 0);
+  }
+  
+  /**
+   * Let the session output all waiting messages.
+   * 
+   * @return The messages written.
+   */
+  private List<Object> drain (SendQueue queue)
+  {
+    fake.written.clear ();
+    fake.scheduledWriteBytes = 0;
+    fake.scheduledWriteRequests = 0;
+    
+    queue.messageSent ();
+    
+    assertEquals (0, queue.size ());
+    
+    return messages (fake.written.toArray ());
+  }
+  
+  /**
+   * Create a list of messages for comparison, with DropWarn messages
+   * represented by their class.
+   */
+  private static List<Object> messages (Object... messages)
+  {
+    List<Object> list = new ArrayList<Object> ();
+    
+    for (Object message : messages)
+      list.add (message instanceof DropWarn ? DropWarn.class : message);
+    
+    return list;
+  }
+  
+  /**
+   * Create a notification with a string attribute of a given length.
+   */
+  private static NotifyDeliver notification (int length)
+  {
+    Map<String, Object> attributes = new HashMap<String, Object> ();
+    
+    attributes.put ("value", new String (new char [length]));
+    
+    return new NotifyDeliver (attributes, NO_MATCHES, NO_MATCHES);
+  }
+}
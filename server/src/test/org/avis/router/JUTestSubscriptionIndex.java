@@ -0,0 +1,263 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.avis.security.KeyIndex;
+
+import static org.avis.io.messages.Notify.asAttributes;
+import static org.avis.security.Keys.EMPTY_KEYS;
+import static org.avis.subscription.ast.Node.TRUE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the router's subscription index against plain AST evaluation.
+ */
+public class JUTestSubscriptionIndex
+{
+  private static final String [] EXPRESSIONS = new String []
+  {
+    "Service == 'quotes'",
+    "Service == 'quotes' && Symbol == 'XYZ'",
+    "Service == 'quotes' && Symbol == 'ABC'",
+    "Service == 'quotes' && Price > 100.5 && Price <= 200",
+    "Price > 100 && Price < 150",
+    "Price >= 150 || Volume == 0",
+    "require (Presence-Info)",
+    "require (Presence-Info) && Group == 'elvin'",
+    "Group == 'elvin' && !require (Presence-Info)",
+    "begins-with (Topic, 'news.') && size (Topic) > 8",
+    "ends-with (Topic, '.sport') && Priority >= 2",
+    "contains (Topic, 'weather') || regex (Topic, '^alert')",
+    "wildcard (Topic, 'news.*.local')",
+    "int32 (Count) && Count * 2 == 10",
+    "nan (Level)",
+    "Count == 5L && Count == 5.0",
+    "string (Symbol) && Symbol != 'XYZ'",
+    "(Bytes * 8) / Interval > 1000000",
+    "fold-case (Name) == 'bob'",
+    "Price == 120",
+    "Price == 120.0 && 'XYZ' == Symbol",
+    "200L == Price || Price == 100.5",
+    "Volume == 0.0 && Service == 'quotes'",
+    "Count == 'five'",
+    "100 < Price && 150.5 >= Price",
+    "Level > -0.0 || Level <= -1",
+    "Count >= 5 && Count < 5.5 && Count != 5.25",
+    "begins-with (Topic, 'news') && ends-with (Topic, 'local')",
+    "begins-with (Topic, '') && ends-with (Name, 'B')",
+    "begins-with (Topic, 'news.', 'alert')",
+    "ends-with (fold-case (Name), 'ob')",
+    "contains (Topic, 'o') && contains (Topic, 'local')",
+    "contains (Topic, 'news', 'sport')",
+    "!(Group == 'elvin' || Priority > 2)",
+    "Priority > 1 ^^ Count == 5",
+    "regex (Topic, 'sport$') && Priority >= 1",
+    "regex (Topic, '^news\\\\.[a-z]+$', '(s)\\\\1')",
+    "wildcard (Topic, '*.sport') || wildcard (Topic, 'news.?')"
+  };
+
+  private SubscriptionIndex index;
+  private List<Subscription> subscriptions;
+
+  @Before
+  public void setup ()
+    throws Exception
+  {
+    index = new SubscriptionIndex ();
+    subscriptions = new ArrayList<Subscription> ();
+
+    Connection connection = newConnection ();
+
+    for (String expr : EXPRESSIONS)
+    {
+      Subscription subscription = new Subscription (expr, EMPTY_KEYS, true);
+
+      connection.addSubscription (subscription);
+      subscriptions.add (subscription);
+    }
+  }
+
+  @Test
+  public void match ()
+    throws Exception
+  {
+    checkMatch (asAttributes ("Service", "quotes", "Symbol", "XYZ",
+                              "Price", 120));
+    checkMatch (asAttributes ("Service", "quotes", "Symbol", "ABC",
+                              "Price", 200L, "Volume", 0));
+    checkMatch (asAttributes ("Service", "quotes", "Price", 100.5));
+    checkMatch (asAttributes ("Presence-Info", "online", "Group", "elvin"));
+    checkMatch (asAttributes ("Group", "elvin"));
+    checkMatch (asAttributes ("Topic", "news.local", "Priority", 3));
+    checkMatch (asAttributes ("Topic", "news.world.sport", "Priority", 2));
+    checkMatch (asAttributes ("Topic", "alert: bad weather"));
+    checkMatch (asAttributes ("Topic", "news.foo.local"));
+    checkMatch (asAttributes ("Count", 5));
+    checkMatch (asAttributes ("Count", 5L));
+    checkMatch (asAttributes ("Level", Double.NaN, "Symbol", "ABC"));
+    checkMatch (asAttributes ("Bytes", 1000000L, "Interval", 2));
+    checkMatch (asAttributes ("Name", "BoB", "Topic", 42));
+    checkMatch (asAttributes ("Symbol", "XYZ", "Price", 120L));
+    checkMatch (asAttributes ("Symbol", "XYZ", "Price", 120.0));
+    checkMatch (asAttributes ("Service", "quotes", "Volume", 0L));
+    checkMatch (asAttributes ("Count", "five", "Price", 200.0));
+    checkMatch (asAttributes ("Count", 5.0, "Price", new byte [] {120}));
+    checkMatch (asAttributes ("Count", 5.25, "Price", 150.5));
+    checkMatch (asAttributes ("Level", 0.0, "Price", 150));
+    checkMatch (asAttributes ("Level", -0.0, "Price", 151));
+    checkMatch (asAttributes ("Level", -1, "Price", "cheap"));
+    checkMatch (asAttributes ("Topic", "news.x", "Priority", 1));
+    checkMatch (asAttributes ("Topic", "press"));
+    checkMatch (asAttributes ());
+  }
+
+  @Test
+  public void prefilter ()
+    throws Exception
+  {
+    long checks = index.prefilterChecks ();
+    long rejections = index.prefilterRejections ();
+
+    // many of the unindexed subscriptions need an attribute other
+    // than Group
+    checkMatch (asAttributes ("Group", "elvin"));
+
+    assertTrue (index.prefilterChecks () > checks);
+    assertTrue (index.prefilterRejections () > rejections);
+    assertTrue (index.prefilterRejections () <= index.prefilterChecks ());
+  }
+
+  @Test
+  public void update ()
+    throws Exception
+  {
+    Map<String, Object> ntfn =
+      asAttributes ("Service", "quotes", "Symbol", "XYZ");
+
+    Subscription subscription = subscriptions.get (0);
+    Connection connection =
+      index.match (ntfn).keySet ().iterator ().next ();
+
+    connection.updateSubscription (subscription, "Symbol == 'ABC'");
+
+    checkMatch (ntfn);
+    checkMatch (asAttributes ("Symbol", "ABC"));
+
+    connection.removeSubscription (subscription.id);
+    subscriptions.remove (subscription);
+
+    checkMatch (asAttributes ("Symbol", "ABC"));
+
+    assertEquals (EXPRESSIONS.length - 1, index.size ());
+
+    connection.close ();
+
+    assertEquals (0, index.size ());
+    assertTrue (index.match (ntfn).isEmpty ());
+  }
+
+  /**
+   * Test that conjuncts shared by subscriptions on different
+   * connections are evaluated correctly as subscriptions come and
+   * go.
+   */
+  @Test
+  public void sharing ()
+    throws Exception
+  {
+    int sharedCount = index.sharedNodeCount ();
+
+    Connection connection = newConnection ();
+
+    for (String expr : EXPRESSIONS)
+    {
+      Subscription subscription = new Subscription (expr, EMPTY_KEYS, true);
+
+      connection.addSubscription (subscription);
+      subscriptions.add (subscription);
+    }
+
+    // copies share all their evaluated nodes
+    assertEquals (sharedCount, index.sharedNodeCount ());
+
+    checkMatch (asAttributes ("Presence-Info", "online", "Group", "elvin"));
+    checkMatch (asAttributes ("Topic", "news.local", "Priority", 3));
+
+    // close the original connection
+    Connection original = null;
+
+    for (Connection c : index.match (asAttributes ("Level", Double.NaN)).keySet ())
+    {
+      if (c != connection)
+        original = c;
+    }
+
+    subscriptions.subList (0, EXPRESSIONS.length).clear ();
+    original.close ();
+
+    assertEquals (sharedCount, index.sharedNodeCount ());
+
+    checkMatch (asAttributes ("Presence-Info", "online", "Group", "elvin"));
+    checkMatch (asAttributes ("Group", "elvin"));
+    checkMatch (asAttributes ("Count", 5, "Level", Double.NaN));
+
+    connection.close ();
+
+    assertEquals (0, index.sharedNodeCount ());
+  }
+
+  private void checkMatch (Map<String, Object> ntfn)
+  {
+    Set<Long> expected = new HashSet<Long> ();
+
+    for (Subscription subscription : subscriptions)
+    {
+      if (subscription.ast ().evaluate (ntfn) == TRUE)
+        expected.add (subscription.id);
+    }
+
+    Set<Long> actual = new HashSet<Long> ();
+
+    for (List<Subscription> matches : index.match (ntfn).values ())
+    {
+      for (Subscription subscription : matches)
+        assertTrue (actual.add (subscription.id));
+    }
+
+    assertEquals ("Match for " + ntfn, expected, actual);
+  }
+
+  private Connection newConnection ()
+  {
+    return new Connection (null, index, new KeyIndex<Object> (),
+                           new RouterOptions (),
+                           new HashMap<String, Object> (),
+                           EMPTY_KEYS, EMPTY_KEYS);
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.avis.security.KeyIndex;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+import static org.avis.io.messages.Notify.asAttributes;
+import static org.avis.security.Keys.EMPTY_KEYS;
+import static org.avis.subscription.ast.Node.TRUE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test sharded subscription matching.
+ */
+public class JUTestSubscriptionShards
+{
+  private ExecutorService executor;
+  private SubscriptionShards shards;
+  private List<Connection> connections;
+
+  @Before
+  public void setup ()
+    throws Exception
+  {
+    executor = newCachedThreadPool ();
+    shards = new SubscriptionShards (4, executor);
+    connections = new ArrayList<Connection> ();
+
+    for (int i = 0; i < 40; i++)
+    {
+      Connection connection =
+        new Connection (null, shards.assign (), new KeyIndex<Object> (),
+                        new RouterOptions (),
+                        new HashMap<String, Object> (),
+                        EMPTY_KEYS, EMPTY_KEYS);
+
+      connection.addSubscription
+        (new Subscription ("Count % 10 == " + (i % 10), EMPTY_KEYS, true));
+      connection.addSubscription
+        (new Subscription ("Count > " + i, EMPTY_KEYS, true));
+
+      connections.add (connection);
+    }
+  }
+
+  @After
+  public void shutdown ()
+  {
+    executor.shutdown ();
+  }
+
+  @Test
+  public void assign ()
+  {
+    assertEquals (4, shards.shardCount ());
+    assertEquals (80, shards.size ());
+
+    // round robin assignment
+    SubscriptionIndex [] assigned = new SubscriptionIndex [4];
+
+    for (int i = 0; i < assigned.length; i++)
+      assigned [i] = shards.assign ();
+
+    for (int i = 1; i < assigned.length; i++)
+      assertNotSame (assigned [0], assigned [i]);
+
+    assertSame (assigned [0], shards.assign ());
+  }
+
+  @Test
+  public void match ()
+  {
+    for (int count = -1; count <= 45; count += 3)
+    {
+      Map<String, Object> attributes = asAttributes ("Count", count);
+
+      Map<Connection, List<Subscription>> sequential =
+        matchShards (attributes, false);
+
+      assertEquals (expectedMatches (count), sequential);
+      assertEquals (sequential, matchShards (attributes, true));
+    }
+  }
+
+  /**
+   * Run a match, checking each connection is handled at most once.
+   */
+  private Map<Connection, List<Subscription>> matchShards
+    (Map<String, Object> attributes, boolean parallel)
+  {
+    final Map<Connection, List<Subscription>> matches =
+      new HashMap<Connection, List<Subscription>> ();
+
+    shards.match (attributes, new SubscriptionShards.Handler ()
+    {
+      public void matched (Connection connection,
+                           List<Subscription> subscriptions)
+      {
+        synchronized (matches)
+        {
+          assertEquals (null, matches.put (connection, subscriptions));
+        }
+      }
+    }, parallel);
+
+    // make subscription order irrelevant
+    for (Map.Entry<Connection, List<Subscription>> entry : matches.entrySet ())
+      entry.setValue (sorted (entry.getValue ()));
+
+    return matches;
+  }
+
+  private Map<Connection, List<Subscription>> expectedMatches (int count)
+  {
+    Map<Connection, List<Subscription>> matches =
+      new HashMap<Connection, List<Subscription>> ();
+    Map<String, Object> ntfn = asAttributes ("Count", count);
+
+    for (Connection connection : connections)
+    {
+      List<Subscription> subscriptions = new ArrayList<Subscription> ();
+
+      for (Subscription subscription : connection.subscriptions.values ())
+      {
+        if (subscription.ast ().evaluate (ntfn) == TRUE)
+          subscriptions.add (subscription);
+      }
+
+      if (!subscriptions.isEmpty ())
+        matches.put (connection, sorted (subscriptions));
+    }
+
+    return matches;
+  }
+
+  private static List<Subscription> sorted (List<Subscription> subscriptions)
+  {
+    List<Subscription> sorted = new ArrayList<Subscription> ();
+
+    for (Subscription subscription : subscriptions)
+    {
+      int i = 0;
+
+      while (i < sorted.size () && sorted.get (i).id < subscription.id)
+        i++;
+
+      sorted.add (i, subscription);
+    }
+
+    return sorted;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.lang.management.ManagementFactory;
+
+import org.avis.security.KeyIndex;
+
+import static java.lang.System.nanoTime;
+
+import static org.avis.security.Keys.EMPTY_KEYS;
+
+/**
+ * Measure the time taken and the bytes allocated per call to
+ * Connection.matchSubscriptions (), both for the common case where
+ * no candidate can be delivered to and for a match. Allocation is
+ * measured with the HotSpot-specific per-thread allocation counter:
+ * a miss should show 0 bytes per call once the JIT has warmed up,
+ * and a match only the arrays for the NotifyDeliver.
+ */
+public class SubscriptionMatchBenchmark
+{
+  private static final int ROUNDS = 10;
+  private static final int CALLS = 1000000;
+
+  public static void main (String [] args)
+    throws Exception
+  {
+    Connection connection =
+      new Connection (null, new SubscriptionIndex (),
+                      new KeyIndex<Object> (), new RouterOptions (),
+                      new HashMap<String, Object> (),
+                      EMPTY_KEYS, EMPTY_KEYS);
+
+    List<Subscription> candidates = new ArrayList<Subscription> ();
+
+    for (int i = 0; i < 4; i++)
+    {
+      Subscription subscription =
+        new Subscription ("Count > " + i, EMPTY_KEYS, false);
+
+      connection.addSubscription (subscription);
+      candidates.add (subscription);
+    }
+
+    Set<Object> unsecured = new HashSet<Object> ();
+    Set<Object> secured = new HashSet<Object> ();
+
+    secured.add (candidates.get (0));
+
+    System.out.println ("round\tmiss (ns)\tmiss (bytes)\t" +
+                        "match (ns)\tmatch (bytes)");
+
+    for (int round = 0; round < ROUNDS; round++)
+    {
+      long missBytes = allocatedBytes ();
+      long start = nanoTime ();
+
+      match (connection, candidates, unsecured);
+
+      long missTime = nanoTime () - start;
+
+      missBytes = allocatedBytes () - missBytes;
+
+      long matchBytes = allocatedBytes ();
+
+      start = nanoTime ();
+
+      match (connection, candidates, secured);
+
+      long matchTime = nanoTime () - start;
+
+      matchBytes = allocatedBytes () - matchBytes;
+
+      System.out.println (round + "\t" + 
+                          missTime / CALLS + "\t\t" +
+                          missBytes / CALLS + "\t\t" +
+                          matchTime / CALLS + "\t\t" +
+                          matchBytes / CALLS);
+    }
+  }
+
+  private static int match (Connection connection,
+                            List<Subscription> candidates,
+                            Set<Object> secured)
+  {
+    int matches = 0;
+
+    for (int i = 0; i < CALLS; i++)
+    {
+      SubscriptionMatch match =
+        connection.matchSubscriptions (candidates, secured, false);
+
+      if (match.matched ())
+        matches += match.secure ().length;
+    }
+
+    return matches;
+  }
+
+  private static long allocatedBytes ()
+  {
+    return ((com.sun.management.ThreadMXBean)
+              ManagementFactory.getThreadMXBean ()).getThreadAllocatedBytes
+                (Thread.currentThread ().getId ());
+  }
+}
@@ -20,8 +20,10 @@ package org.avis.subscription.ast;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import java.io.StringReader;
 
@@ -64,6 +66,7 @@ import org.avis.subscription.parser.ParseException;
 import org.avis.subscription.parser.SubscriptionParser;
 
 import static java.lang.Double.NaN;
+import static java.util.Arrays.asList;
 
 import static org.avis.subscription.ast.Node.BOTTOM;
 import static org.avis.subscription.ast.Node.EMPTY_NOTIFICATION;
@@ -143,6 +146,70 @@ public class JUTestEvaluation
 
   }
   
+  /**
+   * Test that AND and OR keep their three-valued semantics while
+   * adaptively reordering their children, both interpreted and
+   * compiled.
+   */
+  @Test
+  public void adaptiveOrder ()
+    throws Exception
+  {
+    Random random = new Random (42);
+    int evaluations = AdaptiveOrder.SAMPLE_INTERVAL *
+                      AdaptiveOrder.SAMPLES_PER_REORDER * 2;
+
+    for (int i = 0; i < 50; i++)
+    {
+      List<Node> children = new ArrayList<Node> ();
+      Boolean and = TRUE;
+      Boolean or = FALSE;
+
+      for (int j = 2 + random.nextInt (4); j > 0; j--)
+      {
+        Boolean state = LOGIC_STATES [random.nextInt (LOGIC_STATES.length)];
+
+        children.add (new Const (state));
+
+        and = and (and, state);
+        or = or (or, state);
+      }
+
+      Node andNode = new And (children);
+      Node orNode = new Or (children);
+      Node andCompiled = NodeCompiler.compile (andNode);
+      Node orCompiled = NodeCompiler.compile (orNode);
+
+      for (int j = 0; j < evaluations; j++)
+      {
+        assertEquals (and, andNode.evaluate (EMPTY_NOTIFICATION));
+        assertEquals (or, orNode.evaluate (EMPTY_NOTIFICATION));
+        assertEquals (and, andCompiled.evaluate (EMPTY_NOTIFICATION));
+        assertEquals (or, orCompiled.evaluate (EMPTY_NOTIFICATION));
+      }
+    }
+
+    // a never-decisive child listed first should end up evaluated
+    // only when sampling
+    CountingNode present = new CountingNode (new Require ("a"));
+    CountingNode decisive = new CountingNode (new Const (FALSE));
+    Node node = new And (present, decisive);
+    Map<String, Object> ntfn = new HashMap<String, Object> ();
+
+    ntfn.put ("a", 1);
+
+    // allow for timing noise from JIT compilation in early samples
+    for (int i = 0; i < evaluations * 8; i++)
+      assertEquals (FALSE, node.evaluate (ntfn));
+
+    present.count = 0;
+
+    for (int i = 0; i < evaluations; i++)
+      node.evaluate (ntfn);
+
+    assertEquals (evaluations / AdaptiveOrder.SAMPLE_INTERVAL, present.count);
+  }
+  
   /**
    * Lookup result for AND in truth table.
    */
@@ -305,6 +372,14 @@ public class JUTestEvaluation
     testPred (StrWildcard.class, "fo\\", "fo\\\\", TRUE);
     testPred (StrWildcard.class, "fo\\", "fo\\", TRUE);
     
+    // non-string values are a type mismatch
+    ntfn = new HashMap<String, Object> ();
+    ntfn.put ("int32", 42);
+    assertEquals (BOTTOM, new StrBeginsWith (field ("int32"), 
+                                             new Const ("4")).evaluate (ntfn));
+    assertEquals (BOTTOM, 
+                  new StrFoldCase (field ("int32")).evaluate (ntfn));
+    
     // require
     ntfn = new HashMap<String, Object> ();
     ntfn.put ("exists", "true");
@@ -542,6 +617,195 @@ public class JUTestEvaluation
     assertEquals (TRUE, compare.evaluate (new HashMap<String, Object> ()));
   }
   
+  /**
+   * Test structural equality of nodes, as used to share common
+   * sub-expressions. NOTE: this depends on the parser to generate
+   * AST's.
+   */
+  @Test
+  public void structuralEquality ()
+    throws ParseException
+  {
+    String [] exprs = new String []
+      {"a == 1", "a == 1L", "a == 1.0", "a != 1", "a < 1", "b == 1",
+       "require (a)", "int32 (a)", "int64 (a)", "begins-with (a, 'x')",
+       "ends-with (a, 'x')", "begins-with (a, 'y')",
+       "regex (a, 'x')", "fold-case (a) == 'x'",
+       "a == 1 && b == 2", "a == 1 || b == 2", "b == 2 && a == 1"};
+    
+    for (int i = 0; i < exprs.length; i++)
+    {
+      Node node1 = parse (exprs [i]);
+      
+      for (int j = 0; j < exprs.length; j++)
+      {
+        Node node2 = parse (exprs [j]);
+
+        assertEquals (exprs [i] + " vs " + exprs [j],
+                      i == j, node1.equals (node2));
+        
+        if (i == j)
+          assertEquals (node1.hashCode (), node2.hashCode ());
+      }
+    }
+  }
+  
+  /**
+   * Test computation of the attributes required for an expression to
+   * be true. NOTE: this depends on the parser to generate AST's.
+   */
+  @Test
+  public void requiredAttributes ()
+    throws ParseException
+  {
+    assertRequires ("require (a)", "a");
+    assertRequires ("a == 1 && b == 2", "a", "b");
+    assertRequires ("a == 1 || b == 2");
+    assertRequires ("a == 1 || (a == 2 && b == 3)", "a");
+    assertRequires ("a + b * c > 1", "a", "b", "c");
+    assertRequires ("begins-with (a, 'x', 'y')", "a");
+    assertRequires ("size (a) > 1 && nan (b) && string (c)", "a", "b", "c");
+    assertRequires ("fold-case (a) == 'x'", "a");
+    assertRequires ("!(a == 1 || b == 2)", "a", "b");
+    assertRequires ("!(a == 1 && b == 2)");
+    assertRequires ("!!require (a)", "a");
+    assertRequires ("a == 1 ^^ b == 2", "a", "b");
+    assertRequires ("(a == 1 || b == 1) ^^ c == 2", "c");
+    assertRequires ("1 == 1");
+    
+    // check soundness: leaving out any required attribute must
+    // prevent a match
+    Map<String, Object> ntfn = new HashMap<String, Object> ();
+    ntfn.put ("a", 1);
+    ntfn.put ("b", 2);
+    ntfn.put ("c", 3);
+    
+    String [] exprs = new String []
+      {"a == 1 && b == 2", "a == 1 ^^ b == 3", "!(a == 2 || c == 2)",
+       "a + b == 3 && (c > 0 || b > 0)", "a == 1 && !!(b == 2)"};
+    
+    for (String expr : exprs)
+    {
+      Node node = parse (expr);
+      
+      assertEquals (expr, TRUE, node.evaluate (ntfn));
+      
+      for (String name : Nodes.requiredAttributes (node))
+      {
+        Map<String, Object> missing = new HashMap<String, Object> (ntfn);
+        
+        missing.remove (name);
+        
+        assertFalse (expr + " without " + name, 
+                     node.evaluate (missing) == TRUE);
+      }
+    }
+  }
+
+  /**
+   * Check that unboxed numeric evaluation gives the same results as
+   * boxed evaluation, for random arithmetic expressions over random
+   * values. NOTE: this depends on the parser to generate AST's.
+   */
+  @Test
+  public void numericEvaluation ()
+    throws Exception
+  {
+    String [] ops = new String []
+      {"+", "-", "*", "/", "%", "&", "|", "^", "<<", ">>", ">>>"};
+    String [] operands = new String [] {"a", "b", "c", "3", "0", "2L", 
+                                        "1.5", "-0.0", "size (s)"};
+    Object [] values = new Object []
+      {0, -7, Integer.MAX_VALUE, 5L, Long.MIN_VALUE, 2.5, -0.0, 
+       NaN, "str", null};
+    
+    Random random = new Random (42);
+    NumberResult result = new NumberResult ();
+    
+    for (int i = 0; i < 5000; i++)
+    {
+      String expr = randomOperand (random, operands);
+      
+      for (int j = random.nextInt (3); j >= 0; j--)
+      {
+        expr = "(" + expr + " " + ops [random.nextInt (ops.length)] + " " +
+               randomOperand (random, operands) + ")";
+      }
+      
+      Node node;
+      
+      try
+      {
+        node = parse (expr);
+      } catch (ParseException ex)
+      {
+        // e.g. bitwise op with a real constant
+        continue;
+      }
+      
+      Map<String, Object> ntfn = new HashMap<String, Object> ();
+      
+      for (String name : new String [] {"a", "b", "c"})
+      {
+        Object value = values [random.nextInt (values.length)];
+        
+        if (value != null)
+          ntfn.put (name, value);
+      }
+      
+      ntfn.put ("s", "hello");
+
+      Object boxed = node.evaluate (ntfn);
+      
+      assertEquals (expr + " with " + ntfn, boxed,
+                    result.box (node.evaluateNumber (ntfn, result)));
+      
+      // compare with boxed comparison of the same values via fields
+      Object other = values [random.nextInt (values.length)];
+      Map<String, Object> boxedValues = new HashMap<String, Object> ();
+      
+      boxedValues.put ("x", boxed);
+      boxedValues.put ("y", other);
+      ntfn.put ("y", other);
+      
+      for (int inequality = -1; inequality <= 1; inequality++)
+      {
+        Compare compare = 
+          new Compare (node, new Field ("y"), inequality, random.nextBoolean ());
+        Compare boxedCompare =
+          new Compare (new Field ("x"), new Field ("y"), 
+                       compare.inequality, compare.equality);
+        
+        assertEquals (expr + " " + compare.expr () + " " + other + 
+                      " with " + ntfn,
+                      boxedCompare.evaluate (boxedValues),
+                      compare.evaluate (ntfn));
+      }
+    }
+  }
+
+  private static String randomOperand (Random random, String [] operands)
+  {
+    String operand = operands [random.nextInt (operands.length)];
+    
+    switch (random.nextInt (6))
+    {
+      case 0:
+        return "-" + operand;
+      case 1:
+        return "~" + operand;
+      default:
+        return operand;
+    }
+  }
+
+  private static void assertRequires (String expr, String... names)
+    throws ParseException
+  {
+    assertEquals (expr, new HashSet<String> (asList (names)),
+                  Nodes.requiredAttributes (parse (expr)));
+  }
+  
   /**
    * Test inlining of constant sub-expressions. NOTE: this depends on
    * the parser to generate AST's.
@@ -774,4 +1038,50 @@ public class JUTestEvaluation
   {
     return new Field (name);
   }
+
+  /**
+   * Counts the evaluations of a boolean node.
+   */
+  static class CountingNode extends Node
+  {
+    public Node node;
+    public int count;
+
+    public CountingNode (Node node)
+    {
+      this.node = node;
+    }
+
+    @Override
+    public Object evaluate (Map<String, Object> attrs)
+    {
+      count++;
+
+      return node.evaluate (attrs);
+    }
+
+    @Override
+    public Class<?> evalType ()
+    {
+      return node.evalType ();
+    }
+
+    @Override
+    public Node inlineConstants ()
+    {
+      return this;
+    }
+
+    @Override
+    public String expr ()
+    {
+      return node.expr ();
+    }
+
+    @Override
+    public String presentation ()
+    {
+      return node.presentation ();
+    }
+  }
 }
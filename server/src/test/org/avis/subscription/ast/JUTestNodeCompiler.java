@@ -0,0 +1,143 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.ast;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import org.avis.subscription.parser.SubscriptionParser;
+
+import static org.avis.subscription.ast.Node.TRUE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that compiled expressions evaluate exactly as interpreted
+ * ones.
+ */
+public class JUTestNodeCompiler
+{
+  private static final String [] EXPRESSIONS = new String []
+  {
+    "a == 1",
+    "a == 1 && b != 'x'",
+    "a < 2.5 || a >= 10",
+    "2 > a",
+    "1.5 <= a && a < 3L",
+    "a == b",
+    "a + 1 > b",
+    "!(a == 1) || !require (b)",
+    "require (a) ^^ require (b)",
+    "a == 1 ^^ b == 'x' ^^ c > 0",
+    "int32 (a) && int64 (b) || real64 (c) || string (a) || opaque (b)",
+    "nan (a) || nan (c)",
+    "begins-with (b, 'x') && ends-with (b, 'y') || contains (c, 'z')",
+    "regex (b, '^x.*y$') || wildcard (c, 'x*')",
+    "fold-case (b) == 'xy'",
+    "size (b) > 1 && b < 'y'",
+    "'x' <= b && c != 'z'",
+    "a == 1 && a == 1.0 && a == 1L && a > 0 && a < 2",
+    "a > 1 && (b == 'x' || (c < 0 && !(a == 5)))",
+    "a > -0.0",
+    "b > 'x' || b < 'x'"
+  };
+
+  private static final Object [] VALUES = new Object []
+  {
+    null, 0, 1, -1, 5, 1L, 3L, 1.0, 2.5, -0.0, 0.0, 10.5, Double.NaN,
+    Long.MAX_VALUE, "", "x", "xy", "xzy", "y", "z", "Z",
+    new byte [] {1, 2}
+  };
+
+  private static final String [] NAMES = new String [] {"a", "b", "c"};
+
+  @Test
+  public void differential ()
+    throws Exception
+  {
+    Random random = new Random (42);
+
+    for (String expr : EXPRESSIONS)
+    {
+      Node node = parse (expr);
+      Node compiled = NodeCompiler.compile (node);
+
+      assertTrue (compiled instanceof CompiledNode);
+      assertEquals (Nodes.unparse (node), Nodes.unparse (compiled));
+
+      for (int i = 0; i < 500; i++)
+      {
+        Map<String, Object> attributes = new HashMap<String, Object> ();
+
+        for (String name : NAMES)
+        {
+          Object value = VALUES [random.nextInt (VALUES.length)];
+
+          if (value != null)
+            attributes.put (name, value);
+        }
+
+        assertSame (expr + " with " + attributes,
+                    node.evaluate (attributes),
+                    compiled.evaluate (attributes));
+      }
+    }
+  }
+
+  @Test
+  public void compileAfter ()
+    throws Exception
+  {
+    Node node = parse ("a > 1 && b == 'x'");
+    CompilingNode compiling = (CompilingNode)NodeCompiler.compileAfter (node, 3);
+
+    Map<String, Object> attributes = new HashMap<String, Object> ();
+
+    attributes.put ("a", 2);
+    attributes.put ("b", "x");
+
+    for (int i = 0; i < 2; i++)
+    {
+      assertSame (TRUE, compiling.evaluate (attributes));
+      assertFalse (compiling.isCompiled ());
+    }
+
+    assertSame (TRUE, compiling.evaluate (attributes));
+    assertTrue (compiling.isCompiled ());
+    assertSame (TRUE, compiling.evaluate (attributes));
+
+    // non-boolean and constant expressions are not compiled
+    Node math = parse ("a + 1");
+
+    assertSame (math, NodeCompiler.compile (math));
+    assertSame (math, NodeCompiler.compileAfter (math, 3));
+  }
+
+  private static Node parse (String expr)
+    throws Exception
+  {
+    return new SubscriptionParser (new StringReader (expr)).parse ();
+  }
+}
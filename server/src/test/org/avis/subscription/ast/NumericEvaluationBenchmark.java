@@ -0,0 +1,140 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.ast;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.io.StringReader;
+
+import java.lang.management.ManagementFactory;
+
+import org.avis.subscription.ast.nodes.Compare;
+import org.avis.subscription.parser.SubscriptionParser;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Measure the time taken and the bytes allocated per evaluation of a
+ * set of arithmetic subscriptions, comparing boxed evaluation of
+ * their numeric operands (as done before evaluateNumber () existed)
+ * with the unboxed evaluation now used by Compare. Allocation is
+ * measured with the HotSpot-specific per-thread allocation counter:
+ * unboxed evaluation should show 0 bytes per evaluation once the JIT
+ * has warmed up.
+ */
+public class NumericEvaluationBenchmark
+{
+  private static final String [] EXPRESSIONS = new String []
+  {
+    "(Bytes * 8) / Interval > 1000000",
+    "Price * Volume >= 1000000.0",
+    "(Flags & 0x40) == 0x40",
+    "-Delta < 2L && Delta % 1000 != 7",
+    "size (Name) + Count > 1000",
+    "Bytes / Interval * 1.5 < Price"
+  };
+
+  private static final int ROUNDS = 10;
+  private static final int EVALUATIONS = 1000000;
+
+  public static void main (String [] args)
+    throws Exception
+  {
+    Map<String, Object> ntfn = new HashMap<String, Object> ();
+
+    ntfn.put ("Bytes", 123456789L);
+    ntfn.put ("Interval", 1000);
+    ntfn.put ("Price", 1234.5);
+    ntfn.put ("Volume", 20000);
+    ntfn.put ("Flags", 0x1F3);
+    ntfn.put ("Delta", -50000L);
+    ntfn.put ("Name", "a string with more than a few characters");
+    ntfn.put ("Count", 4000);
+
+    Node [] subscriptions = new Node [EXPRESSIONS.length];
+    Node [] operands = new Node [EXPRESSIONS.length];
+
+    for (int i = 0; i < EXPRESSIONS.length; i++)
+    {
+      subscriptions [i] =
+        new SubscriptionParser
+          (new StringReader (EXPRESSIONS [i])).parseAndValidate ();
+
+      Node node = subscriptions [i];
+
+      while (!(node instanceof Compare))
+        node = node.children ().iterator ().next ();
+
+      operands [i] = ((Compare)node).child1 ();
+    }
+
+    // the boxed figures are for the left operands alone, the unboxed
+    // ones for the whole subscription
+    System.out.println ("round\tboxed (ns)\tboxed (bytes)\t" +
+                        "unboxed (ns)\tunboxed (bytes)");
+
+    for (int round = 0; round < ROUNDS; round++)
+    {
+      long boxedBytes = allocatedBytes ();
+      long start = nanoTime ();
+
+      evaluate (operands, ntfn);
+
+      long boxedTime = nanoTime () - start;
+
+      boxedBytes = allocatedBytes () - boxedBytes;
+
+      long unboxedBytes = allocatedBytes ();
+
+      start = nanoTime ();
+
+      evaluate (subscriptions, ntfn);
+
+      long unboxedTime = nanoTime () - start;
+
+      unboxedBytes = allocatedBytes () - unboxedBytes;
+
+      System.out.println (round + "\t" + 
+                          boxedTime / EVALUATIONS + "\t\t" +
+                          boxedBytes / EVALUATIONS + "\t\t" +
+                          unboxedTime / EVALUATIONS + "\t\t" +
+                          unboxedBytes / EVALUATIONS);
+    }
+  }
+
+  private static int evaluate (Node [] nodes, Map<String, Object> ntfn)
+  {
+    int results = 0;
+
+    for (int i = 0; i < EVALUATIONS; i++)
+    {
+      if (nodes [i % nodes.length].evaluate (ntfn) != null)
+        results++;
+    }
+
+    return results;
+  }
+
+  private static long allocatedBytes ()
+  {
+    return ((com.sun.management.ThreadMXBean)
+              ManagementFactory.getThreadMXBean ()).getThreadAllocatedBytes
+                (Thread.currentThread ().getId ());
+  }
+}
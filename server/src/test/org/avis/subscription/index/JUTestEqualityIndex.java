@@ -0,0 +1,85 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JUTestEqualityIndex
+{
+  @Test
+  public void match ()
+    throws Exception
+  {
+    EqualityIndex<String> index = new EqualityIndex<String> ();
+
+    index.add ("hello", "s1");
+    index.add ("hello", "s2");
+    index.add (5, "i5");
+    index.add (5L, "l5");
+    index.add (5.0, "d5");
+    index.add (5.5, "d5.5");
+    index.add (Long.MAX_VALUE, "lmax");
+
+    assertEquals (7, index.size ());
+
+    assertMatches (index, "hello", "s1", "s2");
+    assertMatches (index, "Hello");
+    assertMatches (index, 5, "i5", "l5", "d5");
+    assertMatches (index, 5L, "i5", "l5", "d5");
+    assertMatches (index, 5.0, "i5", "l5", "d5");
+    assertMatches (index, 5.5, "d5.5");
+    assertMatches (index, 6);
+    assertMatches (index, Long.MAX_VALUE, "lmax");
+    assertMatches (index, new byte [] {5});
+
+    index.remove (5, "i5");
+    index.remove (5.0, "d5");
+    index.remove ("hello", "s1");
+    index.remove ("hello", "not there");
+
+    assertEquals (4, index.size ());
+
+    assertMatches (index, 5.0, "l5");
+    assertMatches (index, 5, "l5");
+    assertMatches (index, "hello", "s2");
+  }
+
+  private static void assertMatches (EqualityIndex<String> index,
+                                     Object value, String... expected)
+  {
+    final Set<String> matches = new HashSet<String> ();
+
+    index.match (value, new Visitor<String> ()
+    {
+      public void visit (String item)
+      {
+        assertTrue (matches.add (item));
+      }
+    });
+
+    assertEquals (new HashSet<String> (asList (expected)), matches);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+
+import static org.avis.subscription.regex.LinearPattern.regex;
+import static org.avis.subscription.regex.LinearPattern.wildcard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JUTestPatternIndex
+{
+  @Test
+  public void match ()
+    throws Exception
+  {
+    PatternIndex<String> index = new PatternIndex<String> ();
+
+    index.add (regex ("^news\\."), "news");
+    index.add (regex ("sport$"), "sport");
+    index.add (regex ("^(a|b)*c$"), "abc");
+    index.add (wildcard ("*.local"), "local");
+    index.add (wildcard ("news.*"), "news wildcard");
+
+    assertMatches (index, "news.local", "news", "local", "news wildcard");
+    assertMatches (index, "world.sport", "sport");
+    assertMatches (index, "abababc", "abc");
+    assertMatches (index, "xyz");
+    assertMatches (index, "");
+
+    index.add (regex ("sport$"), "sport2");
+    index.add (regex (""), "empty");
+
+    assertMatches (index, "xyz", "empty");
+    assertMatches (index, "sport", "empty", "sport", "sport2");
+
+    index.remove (regex ("sport$"), "sport");
+    index.remove (regex (""), "empty");
+    index.remove (wildcard ("sport$"), "sport2");
+
+    assertEquals (5, index.size ());
+
+    assertMatches (index, "news.sport", "news", "sport2", "news wildcard");
+
+    // regex and wildcard with the same source are different patterns
+    index.add (wildcard ("news.*"), "news wildcard 2");
+    index.add (regex ("news.*"), "news regex");
+
+    assertMatches (index, "the news.", "news regex");
+  }
+
+  private static void assertMatches (PatternIndex<String> index,
+                                     String value, String... expected)
+  {
+    assertEquals (new HashSet<String> (asList (expected)),
+                  matches (index, value));
+  }
+
+  private static Set<String> matches (PatternIndex<String> index,
+                                      String value)
+  {
+    final Set<String> matches = new HashSet<String> ();
+
+    index.match (value, new Visitor<String> ()
+    {
+      public void visit (String item)
+      {
+        assertTrue (matches.add (item));
+      }
+    });
+
+    return matches;
+  }
+}
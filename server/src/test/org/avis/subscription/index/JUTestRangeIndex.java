@@ -0,0 +1,131 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import org.avis.subscription.ast.Node;
+import org.avis.subscription.ast.nodes.Compare;
+import org.avis.subscription.ast.nodes.Const;
+import org.avis.subscription.ast.nodes.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JUTestRangeIndex
+{
+  private static final Object [] VALUES = new Object []
+  {
+    0, 1, -1, 5, 5L, 5.0, 5.5, -0.0, 0.0, 100, 100.5,
+    Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE,
+    (1L << 53) + 1, (double)(1L << 53), Double.NaN,
+    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MAX_VALUE
+  };
+
+  /**
+   * Check every combination of operator, constant and value against
+   * the result of evaluating the equivalent Compare node.
+   */
+  @Test
+  public void compareSemantics ()
+    throws Exception
+  {
+    RangeIndex<Node> index = new RangeIndex<Node> ();
+    List<Node> nodes = new ArrayList<Node> ();
+
+    for (Object constant : VALUES)
+    {
+      for (int inequality = -1; inequality <= 1; inequality += 2)
+      {
+        for (int i = 0; i < 2; i++)
+        {
+          boolean equality = i == 0;
+
+          Node node = new Compare (new Field ("value"), new Const (constant),
+                                   inequality, equality);
+
+          index.add (inequality, equality, constant, node);
+          nodes.add (node);
+        }
+      }
+    }
+
+    assertEquals (nodes.size (), index.size ());
+
+    checkMatches (index, nodes);
+
+    // remove every other node
+    for (int i = 0; i < nodes.size (); i++)
+    {
+      Compare node = (Compare)nodes.get (i);
+
+      index.remove (node.inequality, node.equality,
+                    ((Const)node.child2 ()).value (), node);
+
+      nodes.remove (i);
+    }
+
+    assertEquals (nodes.size (), index.size ());
+
+    checkMatches (index, nodes);
+  }
+
+  private static void checkMatches (RangeIndex<Node> index, List<Node> nodes)
+  {
+    for (Object value : VALUES)
+    {
+      Map<String, Object> attributes = new HashMap<String, Object> ();
+
+      attributes.put ("value", value);
+
+      Set<Node> expected = new HashSet<Node> ();
+
+      for (Node node : nodes)
+      {
+        if (node.evaluate (attributes) == Node.TRUE)
+          expected.add (node);
+      }
+
+      assertEquals ("Matches for " + value, expected, matches (index, value));
+    }
+
+    assertTrue (matches (index, "string").isEmpty ());
+  }
+
+  private static Set<Node> matches (RangeIndex<Node> index, Object value)
+  {
+    final Set<Node> matches = new HashSet<Node> ();
+
+    index.match (value, new Visitor<Node> ()
+    {
+      public void visit (Node item)
+      {
+        assertTrue (matches.add (item));
+      }
+    });
+
+    return matches;
+  }
+}
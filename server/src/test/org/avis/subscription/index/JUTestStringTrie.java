@@ -0,0 +1,99 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JUTestStringTrie
+{
+  private static final String [] KEYS =
+    new String [] {"", "n", "news", "news.", "news.world", "new", "local",
+                   "al", "news.local"};
+
+  @Test
+  public void prefixes ()
+    throws Exception
+  {
+    StringTrie<String> trie = new StringTrie<String> (false);
+
+    for (String key : KEYS)
+      trie.add (key, key);
+
+    assertEquals (KEYS.length, trie.size ());
+
+    assertMatches (trie, "news.local", "", "n", "new", "news", "news.",
+                   "news.local");
+    assertMatches (trie, "new", "", "n", "new");
+    assertMatches (trie, "", "");
+    assertMatches (trie, "local", "", "local");
+    assertMatches (trie, "xyz", "");
+
+    trie.remove ("news.local", "news.local");
+    trie.remove ("new", "new");
+    trie.remove ("new", "new");
+    trie.remove ("news.l", "news.local");
+    trie.remove ("", "");
+
+    assertEquals (KEYS.length - 3, trie.size ());
+
+    assertMatches (trie, "news.local", "n", "news", "news.");
+    assertMatches (trie, "xyz");
+  }
+
+  @Test
+  public void suffixes ()
+    throws Exception
+  {
+    StringTrie<String> trie = new StringTrie<String> (true);
+
+    for (String key : KEYS)
+      trie.add (key, key);
+
+    assertMatches (trie, "news.local", "", "local", "al", "news.local");
+    assertMatches (trie, "glocal", "", "local", "al");
+    assertMatches (trie, "newn", "", "n");
+
+    trie.remove ("al", "al");
+
+    assertMatches (trie, "glocal", "", "local");
+  }
+
+  private static void assertMatches (StringTrie<String> trie,
+                                     String value, String... expected)
+  {
+    final Set<String> matches = new HashSet<String> ();
+
+    trie.match (value, new Visitor<String> ()
+    {
+      public void visit (String item)
+      {
+        assertTrue (matches.add (item));
+      }
+    });
+
+    assertEquals (new HashSet<String> (asList (expected)), matches);
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JUTestSubstringIndex
+{
+  @Test
+  public void match ()
+    throws Exception
+  {
+    SubstringIndex<String> index = new SubstringIndex<String> ();
+
+    for (String pattern : new String [] {"he", "she", "his", "hers", "e"})
+      index.add (pattern, pattern);
+
+    assertMatches (index, "ushers", "he", "she", "hers", "e");
+    assertMatches (index, "hishe", "his", "he", "she", "e");
+    assertMatches (index, "xyz");
+    assertMatches (index, "");
+
+    index.add ("", "empty");
+    index.add ("he", "he2");
+
+    assertMatches (index, "xyz", "empty");
+    assertMatches (index, "hehe", "empty", "he", "he2", "e");
+
+    index.remove ("he", "he");
+    index.remove ("", "empty");
+    index.remove ("she", "not there");
+
+    assertEquals (5, index.size ());
+
+    assertMatches (index, "ushers", "he2", "she", "hers", "e");
+  }
+
+  /**
+   * Compare against String.indexOf () for random patterns and values
+   * over a small alphabet (to get lots of overlapping matches).
+   */
+  @Test
+  public void random ()
+    throws Exception
+  {
+    Random random = new Random (42);
+    SubstringIndex<String> index = new SubstringIndex<String> ();
+    List<String> patterns = new ArrayList<String> ();
+
+    index.add ("", "");
+    patterns.add ("");
+
+    // grow well past SCAN_LIMIT to test both scanning and the automaton
+    for (int round = 0; round < 40; round++)
+    {
+      for (int i = 0; i < 10; i++)
+      {
+        String pattern = randomString (random, 1 + random.nextInt (8));
+
+        if (!patterns.contains (pattern))
+        {
+          index.add (pattern, pattern);
+          patterns.add (pattern);
+        }
+      }
+
+      for (int i = 0; i < 2 && !patterns.isEmpty (); i++)
+      {
+        String pattern = patterns.remove (random.nextInt (patterns.size ()));
+
+        index.remove (pattern, pattern);
+      }
+
+      for (int i = 0; i < 20; i++)
+      {
+        String value = randomString (random, random.nextInt (30));
+        Set<String> expected = new HashSet<String> ();
+
+        for (String pattern : patterns)
+        {
+          if (value.contains (pattern))
+            expected.add (pattern);
+        }
+
+        assertEquals ("Match for " + value, expected, matches (index, value));
+      }
+    }
+  }
+
+  private static String randomString (Random random, int length)
+  {
+    StringBuilder str = new StringBuilder (length);
+
+    for (int i = 0; i < length; i++)
+      str.append ((char)('a' + random.nextInt (3)));
+
+    return str.toString ();
+  }
+
+  private static void assertMatches (SubstringIndex<String> index,
+                                     String value, String... expected)
+  {
+    assertEquals (new HashSet<String> (asList (expected)),
+                  matches (index, value));
+  }
+
+  private static Set<String> matches (SubstringIndex<String> index,
+                                      String value)
+  {
+    final Set<String> matches = new HashSet<String> ();
+
+    index.match (value, new Visitor<String> ()
+    {
+      public void visit (String item)
+      {
+        assertTrue (matches.add (item));
+      }
+    });
+
+    return matches;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.index;
+
+import java.util.Random;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Compare the time taken to find the contains () patterns matching a
+ * value using a SubstringIndex against a String.indexOf () test per
+ * pattern, for increasing numbers of patterns. Prints one line per
+ * pattern count, showing the crossover point where the index starts
+ * to win.
+ */
+public class SubstringIndexBenchmark
+{
+  private static final int VALUES = 1000;
+  private static final int VALUE_LENGTH = 64;
+  private static final int ROUNDS = 50;
+
+  public static void main (String [] args)
+    throws Exception
+  {
+    Random random = new Random (42);
+    String [] values = new String [VALUES];
+
+    for (int i = 0; i < VALUES; i++)
+      values [i] = randomString (random, VALUE_LENGTH);
+
+    System.out.println ("patterns\tindexOf (ns)\tindex (ns)");
+
+    for (int count = 1; count <= 4096; count *= 2)
+    {
+      String [] patterns = new String [count];
+      SubstringIndex<String> index = new SubstringIndex<String> ();
+
+      for (int i = 0; i < count; i++)
+      {
+        patterns [i] = randomString (random, 3 + random.nextInt (6));
+
+        index.add (patterns [i], patterns [i]);
+      }
+
+      Counter counter = new Counter ();
+
+      // warm up
+      scan (values, patterns, counter);
+      lookup (values, index, counter);
+
+      long start = nanoTime ();
+
+      for (int i = 0; i < ROUNDS; i++)
+        scan (values, patterns, counter);
+
+      long scanTime = (nanoTime () - start) / (ROUNDS * VALUES);
+
+      start = nanoTime ();
+
+      for (int i = 0; i < ROUNDS; i++)
+        lookup (values, index, counter);
+
+      long indexTime = (nanoTime () - start) / (ROUNDS * VALUES);
+
+      System.out.println (count + "\t\t" + scanTime + "\t\t" + indexTime +
+                          (indexTime < scanTime ? "\t*" : ""));
+    }
+  }
+
+  private static void scan (String [] values, String [] patterns,
+                            Counter counter)
+  {
+    for (String value : values)
+    {
+      for (String pattern : patterns)
+      {
+        if (value.indexOf (pattern) != -1)
+          counter.visit (pattern);
+      }
+    }
+  }
+
+  private static void lookup (String [] values, SubstringIndex<String> index,
+                              Counter counter)
+  {
+    for (String value : values)
+      index.match (value, counter);
+  }
+
+  private static String randomString (Random random, int length)
+  {
+    StringBuilder str = new StringBuilder (length);
+
+    for (int i = 0; i < length; i++)
+      str.append ((char)('a' + random.nextInt (16)));
+
+    return str.toString ();
+  }
+
+  static class Counter implements Visitor<String>
+  {
+    public int count;
+
+    public void visit (String item)
+    {
+      count++;
+    }
+  }
+}
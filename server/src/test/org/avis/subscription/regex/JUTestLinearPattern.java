@@ -0,0 +1,306 @@
+/*
+ *  Avis event router.
+ *  
+ *  Copyright (C) 2008 Matthew Phillips <avis@mattp.name>
+ *
+ *  This program is free software: you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  version 3 as published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.avis.subscription.regex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static java.util.regex.Pattern.DOTALL;
+
+import static org.avis.util.Wildcard.toPattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JUTestLinearPattern
+{
+  private static final String [] REGEXES =
+  {
+    "", "a", "abc", "a|b", "ab|cd|", "a*", "a+b", "a?b?c", "a*?b", "(ab)+",
+    "(?:a|bc)*d", "a{2}", "a{2,}", "a{1,3}b", "x{0}", ".", "a.c", "^a",
+    "a$", "^$", "^", "$", "\\Aa\\z", "a\\Z", "[abc]", "[^abc]", "[a-c]+",
+    "[a-]", "[\\d_]", "[^\\s]", "[\\]x]", "[\\\\]", "\\d+", "\\D", "\\s",
+    "\\S\\w\\W", "\\t\\n\\r\\f\\a\\e", "\\x41", "\\x{42}", "\\u0043",
+    "\\0101", "\\012", "\\0777", "\\.\\*", "a|^b", "^a|^b", "(^a|b)c",
+    "(a|a)*b", "(a*)*b", "\\n$", "\r$", ".+$", "[\\x00-\\x{ff}]",
+    "\u00E9", "\u2028", "[^a]\u2028", "()", "(|a)+", "((a|b)*c)?d$"
+  };
+
+  private static final String [] UNSUPPORTED =
+  {
+    "(a)\\1", "(?=a)", "(?i)a", "a*+", "\\ba", "\\p{L}", "\\Qa\\E",
+    "[a&&b]", "[[a]]", "\uD83D\uDE00", "a{1,2}{3}", "[]a]", "\\x{1F600}"
+  };
+
+  private static final String [] WILDCARDS =
+  {
+    "", "*", "?", "a*", "*a", "a?c", "a*b*c", "\\*", "\\?x", "a\\",
+    "a.b", "[ab]", "x y", "\u00E9*", "**a**"
+  };
+
+  /**
+   * Characters used in random inputs, including line terminators and
+   * the halves of a surrogate pair.
+   */
+  private static final String ALPHABET =
+    "abcd xA_1\n\r\u0085\u2028\u2029.*\\\u00E9\uD83D\uDE00";
+
+  @Test
+  public void regexes ()
+    throws Exception
+  {
+    Random random = new Random (42);
+
+    for (String regex : REGEXES)
+    {
+      LinearPattern pattern = LinearPattern.regex (regex);
+
+      assertNotNull (regex, pattern);
+
+      checkRegex (regex, pattern, random);
+    }
+
+    for (String regex : UNSUPPORTED)
+    {
+      Pattern.compile (regex, DOTALL);
+
+      assertNull (regex, LinearPattern.regex (regex));
+    }
+  }
+
+  @Test
+  public void wildcards ()
+    throws Exception
+  {
+    Random random = new Random (42);
+
+    for (String wildcard : WILDCARDS)
+    {
+      LinearPattern pattern = LinearPattern.wildcard (wildcard);
+
+      assertNotNull (wildcard, pattern);
+
+      Pattern javaPattern = toPattern (wildcard);
+
+      for (int i = 0; i < 500; i++)
+      {
+        String input = randomString (random, 8);
+
+        assertEquals (wildcard + " on " + input,
+                      javaPattern.matcher (input).matches (),
+                      pattern.matches (input));
+      }
+    }
+
+    assertNull (LinearPattern.wildcard ("\\d"));
+  }
+
+  /**
+   * Compare against java.util.regex for randomly generated regexes.
+   */
+  @Test
+  public void randomRegexes ()
+    throws Exception
+  {
+    Random random = new Random (1);
+    int supported = 0;
+
+    for (int i = 0; i < 2000; i++)
+    {
+      String regex = randomRegex (random, 3);
+
+      try
+      {
+        Pattern.compile (regex, DOTALL);
+      } catch (PatternSyntaxException ex)
+      {
+        continue;
+      }
+
+      LinearPattern pattern = LinearPattern.regex (regex);
+
+      if (pattern != null)
+      {
+        supported++;
+
+        checkRegex (regex, pattern, random);
+      }
+    }
+
+    assertTrue (supported > 1000);
+  }
+
+  /**
+   * Patterns that take exponential time with backtracking should
+   * match in linear time.
+   */
+  @Test
+  public void pathological ()
+    throws Exception
+  {
+    StringBuilder input = new StringBuilder ();
+
+    for (int i = 0; i < 100000; i++)
+      input.append ('a');
+
+    long start = System.currentTimeMillis ();
+
+    assertFalse (LinearPattern.regex ("(a|a)*b").matches (input.toString ()));
+    assertFalse (LinearPattern.regex ("(a*)*b").matches (input.toString ()));
+    assertFalse (LinearPattern.regex ("^(a|aa)+$").matches (input + "b"));
+    assertTrue (LinearPattern.regex ("(a|a)*a$").matches (input.toString ()));
+
+    assertTrue (System.currentTimeMillis () - start < 10000);
+  }
+
+  @Test
+  public void automaton ()
+    throws Exception
+  {
+    List<LinearPattern> patterns = new ArrayList<LinearPattern> ();
+
+    for (String regex : asList ("abc", "^a", "c$", "x+y", "b.*b"))
+      patterns.add (LinearPattern.regex (regex));
+
+    patterns.add (LinearPattern.wildcard ("a*c"));
+
+    Automaton automaton = new Automaton (patterns);
+
+    assertMatches (automaton, "abc", 0, 1, 2, 5);
+    assertMatches (automaton, "xxy babc", 0, 2, 3, 4);
+    assertMatches (automaton, "zzz");
+    assertMatches (automaton, "");
+
+    Random random = new Random (7);
+
+    for (int i = 0; i < 1000; i++)
+    {
+      String input = randomString (random, 10);
+      int [] results = new int [patterns.size ()];
+      int count = automaton.match (input, results);
+      boolean [] matched = new boolean [patterns.size ()];
+
+      for (int j = 0; j < count; j++)
+        matched [results [j]] = true;
+
+      for (int j = 0; j < patterns.size (); j++)
+        assertEquals (patterns.get (j).matches (input), matched [j]);
+    }
+
+    assertEquals (0, new Automaton (new ArrayList<LinearPattern> ()).
+                       match ("abc", new int [0]));
+  }
+
+  @Test
+  public void tooComplex ()
+    throws Exception
+  {
+    Pattern.compile ("(a{1000}){1000}");
+
+    assertNull (LinearPattern.regex ("(a{1000}){1000}"));
+  }
+
+  private static void assertMatches (Automaton automaton, String input,
+                                     int... expected)
+  {
+    int [] results = new int [automaton.size ()];
+    int count = automaton.match (input, results);
+    boolean [] matched = new boolean [automaton.size ()];
+
+    for (int i = 0; i < count; i++)
+      matched [results [i]] = true;
+
+    assertEquals (input, expected.length, count);
+
+    for (int i : expected)
+      assertTrue (input + ": " + i, matched [i]);
+  }
+
+  private static void checkRegex (String regex, LinearPattern pattern,
+                                  Random random)
+  {
+    Pattern javaPattern = Pattern.compile (regex, DOTALL);
+
+    for (int i = 0; i < 200; i++)
+    {
+      String input = randomString (random, 6);
+
+      assertEquals (regex + " on " + input,
+                    javaPattern.matcher (input).find (),
+                    pattern.matches (input));
+    }
+  }
+
+  private static String randomString (Random random, int maxLength)
+  {
+    int length = random.nextInt (maxLength + 1);
+    StringBuilder string = new StringBuilder (length);
+
+    for (int i = 0; i < length; i++)
+      string.append (ALPHABET.charAt (random.nextInt (ALPHABET.length ())));
+
+    return string.toString ();
+  }
+
+  private static final String [] ATOMS =
+  {
+    "a", "b", ".", "\\d", "\\s", "\\w", "\\W", "[ab]", "[^a]", "[a-c\\s]",
+    "\\n", "\\r", "\u2028", "\\.", "^", "$", "\\z", "\\Z", "x"
+  };
+
+  private static final String [] QUANTIFIERS =
+  {
+    "", "", "", "*", "+", "?", "*?", "{2}", "{0,2}", "{1,}"
+  };
+
+  private static String randomRegex (Random random, int depth)
+  {
+    StringBuilder regex = new StringBuilder ();
+    int terms = 1 + random.nextInt (3);
+
+    for (int i = 0; i < terms; i++)
+    {
+      if (depth > 0 && random.nextInt (4) == 0)
+      {
+        regex.append (random.nextBoolean () ? "(" : "(?:");
+        regex.append (randomRegex (random, depth - 1));
+
+        if (random.nextBoolean ())
+          regex.append ('|').append (randomRegex (random, depth - 1));
+
+        regex.append (')');
+      } else
+      {
+        regex.append (ATOMS [random.nextInt (ATOMS.length)]);
+      }
+
+      regex.append (QUANTIFIERS [random.nextInt (QUANTIFIERS.length)]);
+    }
+
+    return regex.toString ();
+  }
+}